@@ -13,7 +13,26 @@ import org.jdesktop.application.SingleFrameApplication;
 import org.jdesktop.application.FrameView;
 import org.jdesktop.application.TaskMonitor;
 
+import com.dirsync.util.BatchResult;
+import com.dirsync.util.BidirectionalSync;
+import com.dirsync.util.CatalogFilter;
+import com.dirsync.util.ChunkStore;
+import com.dirsync.util.CopyOrderPolicy;
+import com.dirsync.util.DifferenceListener;
+import com.dirsync.util.DuplicateGroup;
+import com.dirsync.util.ExternalDuplicateFinder;
 import com.dirsync.util.FileManager;
+import com.dirsync.util.IoRateLimiter;
+import com.dirsync.util.PackArchive;
+import com.dirsync.util.PerceptualHash;
+import com.dirsync.util.SampledFingerprint;
+import com.dirsync.util.SnapshotBackup;
+import com.dirsync.util.StandardCopyOrder;
+import com.dirsync.util.SyncClient;
+import com.dirsync.util.SyncOperation;
+import com.dirsync.util.SyncPlan;
+import com.dirsync.util.SyncProtocol;
+import com.dirsync.util.ThroughputHistory;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -21,13 +40,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 import javax.swing.Timer;
+import javax.swing.DefaultListModel;
 import javax.swing.Icon;
+import javax.swing.JCheckBox;
 import javax.swing.JDialog;
 import javax.swing.JFrame;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.JTextArea;
 import javax.swing.ListModel;
 import javax.swing.SwingWorker;
 
@@ -36,7 +62,7 @@ import javax.swing.SwingWorker;
  */
 public class DirSyncView extends FrameView {
 
-    private String[] functions = new String[]{"Cataloging directories", "Deleting files", "Copying files", "Finding duplicates", "Remove empty directories", "Remove from lists"};
+    private String[] functions = new String[]{"Cataloging directories", "Deleting files", "Copying files", "Finding duplicates", "Remove empty directories", "Remove from lists", "Synchronizing both ways", "Moving files", "Backing up", "Restoring", "Pushing to sync agent"};
     private HashSet<String> functionsSet = new HashSet<String>(Arrays.asList(functions));
 
     public enum SyncMode {
@@ -150,6 +176,27 @@ public class DirSyncView extends FrameView {
         menuBar = new javax.swing.JMenuBar();
         javax.swing.JMenu fileMenu = new javax.swing.JMenu();
         javax.swing.JMenuItem exitMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenu optionsMenu = new javax.swing.JMenu();
+        sparseCopyMenuItem = new javax.swing.JCheckBoxMenuItem();
+        javax.swing.JMenu toolsMenu = new javax.swing.JMenu();
+        javax.swing.JMenuItem createPackArchiveMenuItem = new javax.swing.JMenuItem();
+        digestCompareMenuItem = new javax.swing.JCheckBoxMenuItem();
+        javax.swing.JMenuItem filterMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem copyOrderMenuItem = new javax.swing.JMenuItem();
+        pipelinedCopyMenuItem = new javax.swing.JCheckBoxMenuItem();
+        verifyCopyMenuItem = new javax.swing.JCheckBoxMenuItem();
+        javax.swing.JMenuItem syncBothWaysMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem ioLimitsMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem similarImagesMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem likelyDuplicatesMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem lowMemoryDuplicatesMenuItem = new javax.swing.JMenuItem();
+        pruneEmptyDirectoriesMenuItem = new javax.swing.JCheckBoxMenuItem();
+        javax.swing.JMenuItem applyMovesMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem snapshotBackupMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem chunkBackupMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem chunkRestoreMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem syncAgentPushMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenuItem fanOutCopyMenuItem = new javax.swing.JMenuItem();
         javax.swing.JMenu helpMenu = new javax.swing.JMenu();
         javax.swing.JMenuItem aboutMenuItem = new javax.swing.JMenuItem();
         statusPanel = new javax.swing.JPanel();
@@ -321,6 +368,92 @@ public class DirSyncView extends FrameView {
 
         menuBar.add(fileMenu);
 
+        optionsMenu.setText(resourceMap.getString("optionsMenu.text")); // NOI18N
+        optionsMenu.setName("optionsMenu"); // NOI18N
+
+        sparseCopyMenuItem.setText(resourceMap.getString("sparseCopyMenuItem.text")); // NOI18N
+        sparseCopyMenuItem.setName("sparseCopyMenuItem"); // NOI18N
+        optionsMenu.add(sparseCopyMenuItem);
+
+        digestCompareMenuItem.setText(resourceMap.getString("digestCompareMenuItem.text")); // NOI18N
+        digestCompareMenuItem.setName("digestCompareMenuItem"); // NOI18N
+        optionsMenu.add(digestCompareMenuItem);
+
+        filterMenuItem.setAction(actionMap.get("editFilter")); // NOI18N
+        filterMenuItem.setName("filterMenuItem"); // NOI18N
+        optionsMenu.add(filterMenuItem);
+
+        copyOrderMenuItem.setAction(actionMap.get("chooseCopyOrder")); // NOI18N
+        copyOrderMenuItem.setName("copyOrderMenuItem"); // NOI18N
+        optionsMenu.add(copyOrderMenuItem);
+
+        pipelinedCopyMenuItem.setText(resourceMap.getString("pipelinedCopyMenuItem.text")); // NOI18N
+        pipelinedCopyMenuItem.setName("pipelinedCopyMenuItem"); // NOI18N
+        optionsMenu.add(pipelinedCopyMenuItem);
+
+        verifyCopyMenuItem.setText(resourceMap.getString("verifyCopyMenuItem.text")); // NOI18N
+        verifyCopyMenuItem.setName("verifyCopyMenuItem"); // NOI18N
+        optionsMenu.add(verifyCopyMenuItem);
+
+        ioLimitsMenuItem.setAction(actionMap.get("editIoLimits")); // NOI18N
+        ioLimitsMenuItem.setName("ioLimitsMenuItem"); // NOI18N
+        optionsMenu.add(ioLimitsMenuItem);
+
+        pruneEmptyDirectoriesMenuItem.setText(resourceMap.getString("pruneEmptyDirectoriesMenuItem.text")); // NOI18N
+        pruneEmptyDirectoriesMenuItem.setName("pruneEmptyDirectoriesMenuItem"); // NOI18N
+        optionsMenu.add(pruneEmptyDirectoriesMenuItem);
+
+        menuBar.add(optionsMenu);
+
+        toolsMenu.setText(resourceMap.getString("toolsMenu.text")); // NOI18N
+        toolsMenu.setName("toolsMenu"); // NOI18N
+
+        createPackArchiveMenuItem.setAction(actionMap.get("createPackArchive")); // NOI18N
+        createPackArchiveMenuItem.setName("createPackArchiveMenuItem"); // NOI18N
+        toolsMenu.add(createPackArchiveMenuItem);
+
+        syncBothWaysMenuItem.setAction(actionMap.get("syncBothWays")); // NOI18N
+        syncBothWaysMenuItem.setName("syncBothWaysMenuItem"); // NOI18N
+        toolsMenu.add(syncBothWaysMenuItem);
+
+        similarImagesMenuItem.setAction(actionMap.get("similarImages")); // NOI18N
+        similarImagesMenuItem.setName("similarImagesMenuItem"); // NOI18N
+        toolsMenu.add(similarImagesMenuItem);
+
+        likelyDuplicatesMenuItem.setAction(actionMap.get("likelyDuplicates")); // NOI18N
+        likelyDuplicatesMenuItem.setName("likelyDuplicatesMenuItem"); // NOI18N
+        toolsMenu.add(likelyDuplicatesMenuItem);
+
+        lowMemoryDuplicatesMenuItem.setAction(actionMap.get("lowMemoryDuplicates")); // NOI18N
+        lowMemoryDuplicatesMenuItem.setName("lowMemoryDuplicatesMenuItem"); // NOI18N
+        toolsMenu.add(lowMemoryDuplicatesMenuItem);
+
+        applyMovesMenuItem.setAction(actionMap.get("applyMoves")); // NOI18N
+        applyMovesMenuItem.setName("applyMovesMenuItem"); // NOI18N
+        toolsMenu.add(applyMovesMenuItem);
+
+        snapshotBackupMenuItem.setAction(actionMap.get("snapshotBackup")); // NOI18N
+        snapshotBackupMenuItem.setName("snapshotBackupMenuItem"); // NOI18N
+        toolsMenu.add(snapshotBackupMenuItem);
+
+        chunkBackupMenuItem.setAction(actionMap.get("chunkBackup")); // NOI18N
+        chunkBackupMenuItem.setName("chunkBackupMenuItem"); // NOI18N
+        toolsMenu.add(chunkBackupMenuItem);
+
+        chunkRestoreMenuItem.setAction(actionMap.get("chunkRestore")); // NOI18N
+        chunkRestoreMenuItem.setName("chunkRestoreMenuItem"); // NOI18N
+        toolsMenu.add(chunkRestoreMenuItem);
+
+        syncAgentPushMenuItem.setAction(actionMap.get("syncAgentPush")); // NOI18N
+        syncAgentPushMenuItem.setName("syncAgentPushMenuItem"); // NOI18N
+        toolsMenu.add(syncAgentPushMenuItem);
+
+        fanOutCopyMenuItem.setAction(actionMap.get("fanOutCopy")); // NOI18N
+        fanOutCopyMenuItem.setName("fanOutCopyMenuItem"); // NOI18N
+        toolsMenu.add(fanOutCopyMenuItem);
+
+        menuBar.add(toolsMenu);
+
         helpMenu.setText(resourceMap.getString("helpMenu.text")); // NOI18N
         helpMenu.setName("helpMenu"); // NOI18N
 
@@ -376,68 +509,98 @@ public class DirSyncView extends FrameView {
 
     @Action
     public void synchronize() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        }
         final DirSyncView dirSyncView = this;
-        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+        final String dir1 = (jTextField1.getText().length() > 0) ? jTextField1.getText() : "C:\\Temp\\Test\\dir1";
+        final String dir2 = (jTextField2.getText().length() > 0) ? jTextField2.getText() : "C:\\Temp\\Test\\dir2";
+        final FileManager fileManager = createFileManager();
+        // Digests do not cover the entries of pack archives.
+        final boolean compareDigests = digestCompareMenuItem.isSelected() && !PackArchive.isArchive(dir1) && !PackArchive.isArchive(dir2);
+        jButton3.setEnabled(true);
+        jButton4.setEnabled(true);
+        statusMessageLabel.setText(functions[0]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString((compareDigests ? "Comparing digests of " : "Comparing ") + dir1 + " and " + dir2);
+        jLabel3.setText(SyncMode.SYNCHRONIZATION.name());
+        jLabel5.setText("Files in Directory 1 not in Directory 2");
+        jLabel6.setText("Files in Directory 2 not in Directory 1");
+        // The lists grow as differences are found; appending keeps any selection made meanwhile.
+        final DefaultListModel<String> model1 = new DefaultListModel<String>();
+        final DefaultListModel<String> model2 = new DefaultListModel<String>();
+        jList1.setModel(model1);
+        jList2.setModel(model2);
+        SwingWorker<Void, Difference> worker = new SwingWorker<Void, Difference>() {
 
             @Override
             public Void doInBackground() {
-                dirSyncView.jButton3.setEnabled(true);
-                dirSyncView.jButton4.setEnabled(true);
-                dirSyncView.statusMessageLabel.setText(functions[0]);
-                dirSyncView.progressBar.setStringPainted(true);
-                dirSyncView.progressBar.setIndeterminate(true);
-                dirSyncView.progressBar.setVisible(true);
-                jLabel3.setText(SyncMode.SYNCHRONIZATION.name());
-                jLabel5.setText("Files in Directory 1 not in Directory 2");
-                jLabel6.setText("Files in Directory 2 not in Directory 1");
-                ArrayList<String> emptyList = new ArrayList<String>();
-                emptyList.add("");
-                jList1.setListData(emptyList.toArray());
-                jList2.setListData(emptyList.toArray());
-
-                String dir1 = "C:\\Temp\\Test\\dir1";
-                String dir2 = "C:\\Temp\\Test\\dir2";
-
-                if ((jTextField1.getText().length() > 0)) {
-                    dir1 = jTextField1.getText();
-                }
-
-                if ((jTextField2.getText().length() > 0)) {
-                    dir2 = jTextField2.getText();
-                }
-
-                FileManager fileManager = new FileManager();
-                // Get List of files from the directories.
-                dirSyncView.progressBar.setString("Cataloging " + dir1);
-                Collection<String> dir1Files = fileManager.catalogDirectory(dir1, true, null);
-                dirSyncView.progressBar.setString("Cataloging " + dir2);
-                Collection<String> dir2Files = fileManager.catalogDirectory(dir2, true, null);
+                if (compareDigests) {
+                    // Only read the subtrees whose digests differ.
+                    HashSet<String> dir1Diff = new HashSet<String>();
+                    HashSet<String> dir2Diff = new HashSet<String>();
+                    try {
+                        fileManager.compareDirectories(dir1, dir2, dir1Diff, dir2Diff);
+                    } catch (IOException ex) {
+                        Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                    publish(new Difference(true, dir1Diff), new Difference(false, dir2Diff));
+                } else {
+                    // Walk both trees side by side, publishing each directory's differences.
+                    fileManager.compareDirectories(dir1, dir2, new DifferenceListener() {
 
-                // Get items from hashmap 1 that are not in hashmap 2.
-                HashSet<String> dir1Diff = new HashSet<String>();
-                dir1Diff.addAll(dir1Files);
-                dir1Diff.removeAll(dir2Files);
+                        public void onlyIn1(Collection<String> fileNames) {
+                            publish(new Difference(true, fileNames));
+                        }
 
-                // Get items from hashmap 2 that are not in hashmp 1.
-                HashSet<String> dir2Diff = new HashSet<String>();
-                dir2Diff.addAll(dir2Files);
-                dir2Diff.removeAll(dir1Files);
+                        public void onlyIn2(Collection<String> fileNames) {
+                            publish(new Difference(false, fileNames));
+                        }
+                    });
+                    closePackArchives(fileManager);
+                }
+                return null;
+            }
 
-                // Add items to list box 1.
-                dirSyncView.jList1.setListData(dir1Diff.toArray());
+            @Override
+            protected void process(List<Difference> differences) {
+                for (Difference difference : differences) {
+                    DefaultListModel<String> model = difference.inDirectory1 ? model1 : model2;
+                    for (String fileName : difference.fileNames) {
+                        model.addElement(fileName);
+                    }
+                }
+                dirSyncView.progressBar.setString(String.format("Found %d and %d differences", model1.getSize(), model2.getSize()));
+            }
 
-                // Add items to list box 2.
-                dirSyncView.jList2.setListData(dir2Diff.toArray());
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                }
                 dirSyncView.statusMessageLabel.setText("Finished cataloging");
                 dirSyncView.progressBar.setVisible(false);
-                return null;
             }
         };
+        worker.execute();
+    }
 
-        if (functionsSet.contains(this.statusMessageLabel.getText())) {
-            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
-        } else {
-            worker.execute();
+    /**
+     * A batch of files found on one side only, published while comparing.
+     */
+    private static class Difference {
+
+        final boolean inDirectory1;
+        final Collection<String> fileNames;
+
+        Difference(boolean inDirectory1, Collection<String> fileNames) {
+            this.inDirectory1 = inDirectory1;
+            this.fileNames = fileNames;
         }
     }
 
@@ -468,30 +631,57 @@ public class DirSyncView extends FrameView {
                         dir1 = jTextField1.getText();
                     }
                     jTextField2.setText("");
-                    FileManager fileManager = new FileManager();
+                    FileManager fileManager = createFileManager();
                     // Get duplicate files.
                     dirSyncView.progressBar.setString("Finding duplicates in " + dir1);
                     ArrayList<ArrayList<String>> duplicateFiles = fileManager.findDuplicates(dir1, true);
+                    showDuplicateGroups(duplicateFiles);
+                    dirSyncView.statusMessageLabel.setText("Finished finding duplicates");
+                    dirSyncView.progressBar.setVisible(false);
+                } catch (IOException ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                return null;
+            }
+        };
 
-                    ArrayList<String> list1 = new ArrayList<String>();
-                    ArrayList<String> list2 = new ArrayList<String>();
-                    for (int i = 0; i < duplicateFiles.size(); i++) {
-                        for (int j = 0; j < duplicateFiles.get(i).size(); j++) {
-                            if (j == 0) {
-                                list1.add(duplicateFiles.get(i).get(j));
-                            } else if (j == 1) {
-                                list2.add(duplicateFiles.get(i).get(j));
-                            } else {
-                                list1.add(duplicateFiles.get(i).get(0));
-                                list2.add(duplicateFiles.get(i).get(j));
-                            }
-                        }
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+        } else {
+            worker.execute();
+        }
+    }
+
+    @Action
+    public void similarImages() {
+        final DirSyncView dirSyncView = this;
+        SwingWorker<Void, Void> worker = new SwingWorker<Void, Void>() {
+
+            @Override
+            public Void doInBackground() {
+                try {
+                    dirSyncView.jButton3.setEnabled(false);
+                    dirSyncView.jButton4.setEnabled(false);
+                    dirSyncView.statusMessageLabel.setText(functions[3]);
+                    dirSyncView.progressBar.setStringPainted(true);
+                    dirSyncView.progressBar.setIndeterminate(true);
+                    dirSyncView.progressBar.setVisible(true);
+                    jLabel3.setText(SyncMode.DUPLICATES.name());
+                    jLabel5.setText("Similar images in Directory 1");
+                    jLabel6.setText("Look like images in Directory 1");
+                    ArrayList<String> emptyList = new ArrayList<String>();
+                    emptyList.add("");
+                    jList1.setListData(emptyList.toArray());
+                    jList2.setListData(emptyList.toArray());
+                    String dir1 = "C:\\Temp\\Test\\dir1";
+                    if (jTextField1.getText().length() > 0) {
+                        dir1 = jTextField1.getText();
                     }
-                    // Add items to list box 1.
-                    dirSyncView.jList1.setListData(list1.toArray());
-                    // Add items to list box 2.
-                    dirSyncView.jList2.setListData(list2.toArray());
-                    dirSyncView.statusMessageLabel.setText("Finished finding duplicates");
+                    jTextField2.setText("");
+                    FileManager fileManager = createFileManager();
+                    dirSyncView.progressBar.setString("Finding similar images in " + dir1);
+                    showDuplicateGroups(fileManager.findSimilarImages(dir1, true, PerceptualHash.DEFAULT_MAX_DISTANCE));
+                    dirSyncView.statusMessageLabel.setText("Finished finding similar images");
                     dirSyncView.progressBar.setVisible(false);
                 } catch (IOException ex) {
                     Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
@@ -507,6 +697,645 @@ public class DirSyncView extends FrameView {
         }
     }
 
+    @Action
+    public void likelyDuplicates() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = (jTextField1.getText().length() > 0) ? jTextField1.getText() : "C:\\Temp\\Test\\dir1";
+        final FileManager fileManager = createFileManager();
+        jButton3.setEnabled(false);
+        jButton4.setEnabled(false);
+        statusMessageLabel.setText(functions[3]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Sampling files in " + dir1);
+        jLabel3.setText(SyncMode.DUPLICATES.name());
+        jLabel5.setText("Likely duplicate files in Directory 1");
+        jLabel6.setText("Likely duplicate to files in Directory 1");
+        jList1.setListData(new Object[0]);
+        jList2.setListData(new Object[0]);
+        jTextField2.setText("");
+        SwingWorker<ArrayList<DuplicateGroup>, Void> worker = new SwingWorker<ArrayList<DuplicateGroup>, Void>() {
+
+            @Override
+            public ArrayList<DuplicateGroup> doInBackground() throws IOException {
+                return fileManager.findLikelyDuplicates(dir1, true, SampledFingerprint.DEFAULT_SAMPLES, SampledFingerprint.DEFAULT_CHUNK_SIZE);
+            }
+
+            @Override
+            protected void done() {
+                final ArrayList<DuplicateGroup> groups;
+                try {
+                    groups = get();
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Finding likely duplicates failed");
+                    dirSyncView.progressBar.setVisible(false);
+                    return;
+                }
+                showDuplicateGroups(getFileNames(groups));
+                int likely = 0;
+                double lowestCoverage = 1;
+                for (DuplicateGroup group : groups) {
+                    if (!group.isConfirmed()) {
+                        likely++;
+                        lowestCoverage = Math.min(lowestCoverage, group.getCoverage());
+                    }
+                }
+                String found = String.format("Found %d duplicate groups, %d confirmed", groups.size(), groups.size() - likely);
+                dirSyncView.statusMessageLabel.setText(found);
+                dirSyncView.progressBar.setVisible(false);
+                if (likely == 0) {
+                    return;
+                }
+                int response = JOptionPane.showConfirmDialog(dirSyncView.getFrame(), String.format("%d groups matched only on sampled chunks, covering as little as %.2f%% of each file.%nFiles that differ outside the samples are not told apart.%nConfirm them with full hashes in the background?", likely, lowestCoverage * 100), "Likely Duplicates", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+                if (response != JOptionPane.YES_OPTION) {
+                    return;
+                }
+                dirSyncView.statusMessageLabel.setText(functions[3]);
+                dirSyncView.progressBar.setString("Confirming likely duplicates in " + dir1);
+                dirSyncView.progressBar.setVisible(true);
+                new SwingWorker<ArrayList<DuplicateGroup>, Void>() {
+
+                    @Override
+                    public ArrayList<DuplicateGroup> doInBackground() throws IOException {
+                        return fileManager.confirmDuplicates(dir1, groups);
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            ArrayList<DuplicateGroup> confirmed = get();
+                            showDuplicateGroups(getFileNames(confirmed));
+                            dirSyncView.statusMessageLabel.setText(String.format("Confirmed %d duplicate groups", confirmed.size()));
+                        } catch (Exception ex) {
+                            Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                            dirSyncView.statusMessageLabel.setText("Confirming duplicates failed");
+                        }
+                        dirSyncView.progressBar.setVisible(false);
+                    }
+                }.execute();
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void lowMemoryDuplicates() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = (jTextField1.getText().length() > 0) ? jTextField1.getText() : "C:\\Temp\\Test\\dir1";
+        final FileManager fileManager = createFileManager();
+        jButton3.setEnabled(false);
+        jButton4.setEnabled(false);
+        statusMessageLabel.setText(functions[3]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Finding duplicates in " + dir1 + " with records sorted on disk");
+        jLabel3.setText(SyncMode.DUPLICATES.name());
+        jLabel5.setText("Duplicate files in Directory 1");
+        jLabel6.setText("Duplicate to files in Directory 1");
+        jList1.setListData(new Object[0]);
+        jList2.setListData(new Object[0]);
+        jTextField2.setText("");
+        final ArrayList<String> list1 = new ArrayList<String>();
+        final ArrayList<String> list2 = new ArrayList<String>();
+        SwingWorker<Long, Void> worker = new SwingWorker<Long, Void>() {
+
+            @Override
+            public Long doInBackground() throws IOException {
+                return fileManager.findDuplicates(dir1, true, ExternalDuplicateFinder.DEFAULT_RECORDS_IN_MEMORY, new ExternalDuplicateFinder.PairHandler() {
+
+                    public void duplicate(String original, String duplicate) {
+                        list1.add(original);
+                        list2.add(duplicate);
+                    }
+                });
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    long found = get();
+                    jList1.setListData(list1.toArray());
+                    jList2.setListData(list2.toArray());
+                    dirSyncView.statusMessageLabel.setText(String.format("Found %d duplicates", found));
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Finding duplicates failed");
+                }
+                dirSyncView.progressBar.setVisible(false);
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void applyMoves() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if (!jLabel3.getText().equals(SyncMode.SYNCHRONIZATION.name())) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Synchronize the directories first.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = (jTextField1.getText().length() > 0) ? jTextField1.getText() : "C:\\Temp\\Test\\dir1";
+        final String dir2 = (jTextField2.getText().length() > 0) ? jTextField2.getText() : "C:\\Temp\\Test\\dir2";
+        final FileManager fileManager = createFileManager();
+        final ArrayList<String> dir1Elements = getJListElements(jList1);
+        final ArrayList<String> dir2Elements = getJListElements(jList2);
+        statusMessageLabel.setText(functions[7]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Matching moved files by size and hash");
+        SwingWorker<SyncPlan, Void> worker = new SwingWorker<SyncPlan, Void>() {
+
+            @Override
+            public SyncPlan doInBackground() throws IOException {
+                return fileManager.findMoves(dir1, dir2, dir1Elements, dir2Elements);
+            }
+
+            @Override
+            protected void done() {
+                final SyncPlan plan;
+                try {
+                    plan = get();
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Matching moved files failed");
+                    dirSyncView.progressBar.setVisible(false);
+                    return;
+                }
+                if (plan.isEmpty()) {
+                    dirSyncView.statusMessageLabel.setText("No moved files found");
+                    dirSyncView.progressBar.setVisible(false);
+                    return;
+                }
+                StringBuilder summary = new StringBuilder();
+                summary.append("Rename files in ").append(dir2).append(": ").append(plan.getCount(SyncOperation.Type.MOVE)).append("\n\n");
+                for (SyncOperation operation : plan.getOperations()) {
+                    summary.append(operation.getFileName()).append(" -> ").append(operation.getTargetName()).append("\n");
+                }
+                JTextArea textArea = new JTextArea(summary.toString(), 16, 60);
+                textArea.setEditable(false);
+                int response = JOptionPane.showConfirmDialog(dirSyncView.getFrame(), new JScrollPane(textArea), "Apply Moves", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+                if (response != JOptionPane.OK_OPTION) {
+                    dirSyncView.statusMessageLabel.setText("Moves cancelled");
+                    dirSyncView.progressBar.setVisible(false);
+                    return;
+                }
+                dirSyncView.progressBar.setString("Renaming files in " + dir2);
+                new SwingWorker<BatchResult, Void>() {
+
+                    @Override
+                    public BatchResult doInBackground() {
+                        return plan.execute(fileManager);
+                    }
+
+                    @Override
+                    protected void done() {
+                        try {
+                            BatchResult result = get();
+                            logFailures(result);
+                            // A renamed file now matches its source, so neither list shows it.
+                            HashSet<String> moved = new HashSet<String>(result.getSucceeded());
+                            for (SyncOperation operation : plan.getOperations()) {
+                                if (moved.contains(operation.getFileName())) {
+                                    dir1Elements.remove(operation.getTargetName());
+                                    dir2Elements.remove(operation.getFileName());
+                                }
+                            }
+                            jList1.setListData(dir1Elements.toArray());
+                            jList2.setListData(dir2Elements.toArray());
+                            dirSyncView.statusMessageLabel.setText(String.format("Moved %d files, %d failed", moved.size(), result.getFailed().size()));
+                        } catch (Exception ex) {
+                            Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                            dirSyncView.statusMessageLabel.setText("Moving files failed");
+                        }
+                        dirSyncView.progressBar.setVisible(false);
+                    }
+                }.execute();
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void snapshotBackup() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if ((jTextField1.getText().length() == 0) || (jTextField2.getText().length() == 0)) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 1 and Directory 2 first.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = jTextField1.getText();
+        final String dir2 = jTextField2.getText();
+        JCheckBox compareHashes = new JCheckBox("Compare hashes of files whose size and time are unchanged");
+        Object[] message = new Object[]{"Back up " + dir1 + " into a new snapshot in " + dir2 + "?", compareHashes};
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), message, "Snapshot Backup", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (response != JOptionPane.OK_OPTION) {
+            return;
+        }
+        final SnapshotBackup backup = new SnapshotBackup(createFileManager(), dir2);
+        backup.setCompareHashes(compareHashes.isSelected());
+        statusMessageLabel.setText(functions[8]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Backing up " + dir1 + " into " + dir2);
+        SwingWorker<BatchResult, Void> worker = new SwingWorker<BatchResult, Void>() {
+
+            @Override
+            public BatchResult doInBackground() throws IOException {
+                return backup.backup(dir1);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BatchResult result = get();
+                    logFailures(result);
+                    dirSyncView.statusMessageLabel.setText(String.format("Snapshot %s: %d linked, %d copied, %d failed", backup.getSnapshot().getName(), backup.getLinked().size(), backup.getCopied().size(), result.getFailed().size()));
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Backup failed");
+                }
+                dirSyncView.progressBar.setVisible(false);
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void chunkBackup() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if ((jTextField1.getText().length() == 0) || (jTextField2.getText().length() == 0)) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 1 and Directory 2 first.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = jTextField1.getText();
+        final String dir2 = jTextField2.getText();
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), "Back up " + dir1 + " into the chunk store in " + dir2 + "?", "Chunk Store Backup", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (response != JOptionPane.OK_OPTION) {
+            return;
+        }
+        final FileManager fileManager = createFileManager();
+        statusMessageLabel.setText(functions[8]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Backing up " + dir1 + " into the chunk store in " + dir2);
+        SwingWorker<ChunkStore, Void> worker = new SwingWorker<ChunkStore, Void>() {
+
+            private BatchResult result;
+
+            @Override
+            public ChunkStore doInBackground() throws IOException {
+                ChunkStore store = new ChunkStore(dir2);
+                store.setRateLimiter(ioRateLimiter);
+                result = store.backup(dir1, fileManager.catalogDirectory(dir1, true, null, false));
+                return store;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    ChunkStore store = get();
+                    logFailures(result);
+                    dirSyncView.statusMessageLabel.setText(String.format("Backed up %d files, %.1f MB new, dedupe ratio %.2f, %d failed", result.getSucceeded().size(), result.getBytes() / (1024.0 * 1024), store.getDedupeRatio(), result.getFailed().size()));
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Backup failed");
+                }
+                dirSyncView.progressBar.setVisible(false);
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void chunkRestore() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if ((jTextField1.getText().length() == 0) || (jTextField2.getText().length() == 0)) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 1 and Directory 2 first.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = jTextField1.getText();
+        final String dir2 = jTextField2.getText();
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), "Restore every file in the chunk store in " + dir2 + " into " + dir1 + ", replacing files with the same names?", "Chunk Store Restore", JOptionPane.OK_CANCEL_OPTION, JOptionPane.WARNING_MESSAGE);
+        if (response != JOptionPane.OK_OPTION) {
+            return;
+        }
+        statusMessageLabel.setText(functions[9]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Restoring the chunk store in " + dir2 + " into " + dir1);
+        SwingWorker<BatchResult, Void> worker = new SwingWorker<BatchResult, Void>() {
+
+            @Override
+            public BatchResult doInBackground() throws IOException {
+                ChunkStore store = new ChunkStore(dir2);
+                return store.restore(dir1, store.list());
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BatchResult result = get();
+                    logFailures(result);
+                    dirSyncView.statusMessageLabel.setText(String.format("Restored %d files, %d failed", result.getSucceeded().size(), result.getFailed().size()));
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Restore failed");
+                }
+                dirSyncView.progressBar.setVisible(false);
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void syncAgentPush() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if (jTextField1.getText().length() == 0) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 1 first.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = jTextField1.getText();
+        JTextField agentField = new JTextField("localhost:" + SyncProtocol.DEFAULT_PORT);
+        JCheckBox compressBox = new JCheckBox("Compress (for slow links)");
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), new Object[]{"Send the files in " + dir1 + " that are missing or different on the agent at host:port", agentField, compressBox}, "Push to Sync Agent", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (response != JOptionPane.OK_OPTION) {
+            return;
+        }
+        final String agent = agentField.getText().trim();
+        final String host;
+        final int port;
+        int colon = agent.lastIndexOf(':');
+        try {
+            host = (colon < 0) ? agent : agent.substring(0, colon);
+            port = (colon < 0) ? SyncProtocol.DEFAULT_PORT : Integer.parseInt(agent.substring(colon + 1));
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter the agent as host:port.");
+            return;
+        }
+        final boolean compress = compressBox.isSelected();
+        final FileManager fileManager = createFileManager();
+        statusMessageLabel.setText(functions[10]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Pushing " + dir1 + " to " + agent);
+        SwingWorker<BatchResult, Void> worker = new SwingWorker<BatchResult, Void>() {
+
+            @Override
+            public BatchResult doInBackground() throws IOException {
+                SyncClient client = new SyncClient(host, port, compress, fileManager);
+                try {
+                    return client.push(dir1);
+                } finally {
+                    client.close();
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    BatchResult result = get();
+                    logFailures(result);
+                    dirSyncView.statusMessageLabel.setText(String.format("Pushed %d files, %.1f MB, %d failed", result.getSucceeded().size(), result.getBytes() / (1024.0 * 1024), result.getFailed().size()));
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Push failed");
+                }
+                dirSyncView.progressBar.setVisible(false);
+            }
+        };
+        worker.execute();
+    }
+
+    @Action
+    public void fanOutCopy() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if ((jTextField1.getText().length() == 0) || (jTextField2.getText().length() == 0)) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 1 and Directory 2 first.");
+            return;
+        } else if (jList1.getSelectedValues().length == 0) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Select the files to copy in the Directory 1 list first.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final String dir1 = jTextField1.getText();
+        final String dir2 = jTextField2.getText();
+        final List<String> fileNames = new ArrayList<String>();
+        for (Object value : jList1.getSelectedValues()) {
+            fileNames.add((String) value);
+        }
+        JTextArea destinationsArea = new JTextArea(4, 40);
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), new Object[]{"Copy " + fileNames.size() + " selected files, reading each once, to " + dir2 + " and to these directories, one per line:", new JScrollPane(destinationsArea)}, "Copy to Several Destinations", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+        if (response != JOptionPane.OK_OPTION) {
+            return;
+        }
+        final List<String> destinations = new ArrayList<String>();
+        destinations.add(dir2);
+        for (String line : destinationsArea.getText().split("\n")) {
+            if ((line.trim().length() > 0) && !destinations.contains(line.trim())) {
+                destinations.add(line.trim());
+            }
+        }
+        final FileManager fileManager = createFileManager();
+        statusMessageLabel.setText(functions[2]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Copying to " + destinations.size() + " destinations");
+        SwingWorker<Map<String, BatchResult>, Void> worker = new SwingWorker<Map<String, BatchResult>, Void>() {
+
+            @Override
+            public Map<String, BatchResult> doInBackground() throws IOException {
+                return fileManager.copyFilesToAll(dir1, destinations, fileNames);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    Map<String, BatchResult> results = get();
+                    // Only files copied everywhere leave the list.
+                    HashSet<String> copied = new HashSet<String>(fileNames);
+                    StringBuilder failures = new StringBuilder();
+                    for (Map.Entry<String, BatchResult> entry : results.entrySet()) {
+                        logFailures(entry.getValue());
+                        copied.retainAll(entry.getValue().getSucceeded());
+                        if (!entry.getValue().getFailed().isEmpty()) {
+                            failures.append(String.format(", %d failed in %s", entry.getValue().getFailed().size(), entry.getKey()));
+                        }
+                    }
+                    ArrayList<String> dir1Elements = getJListElements(dirSyncView.jList1);
+                    dir1Elements.removeAll(copied);
+                    jList1.setListData(dir1Elements.toArray());
+                    dirSyncView.statusMessageLabel.setText(String.format("Copied %d files to %d destinations%s", copied.size(), results.size(), failures));
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Copy failed");
+                }
+                dirSyncView.progressBar.setVisible(false);
+            }
+        };
+        worker.execute();
+    }
+
+    private ArrayList<ArrayList<String>> getFileNames(ArrayList<DuplicateGroup> groups) {
+        ArrayList<ArrayList<String>> fileNames = new ArrayList<ArrayList<String>>();
+        for (DuplicateGroup group : groups) {
+            fileNames.add(group.getFileNames());
+        }
+        return fileNames;
+    }
+
+    /**
+     * Show groups of duplicate files as pairs: the first file of each group
+     * in list 1 beside each other file of the group in list 2.
+     */
+    private void showDuplicateGroups(ArrayList<ArrayList<String>> duplicateFiles) {
+        ArrayList<String> list1 = new ArrayList<String>();
+        ArrayList<String> list2 = new ArrayList<String>();
+        for (int i = 0; i < duplicateFiles.size(); i++) {
+            for (int j = 1; j < duplicateFiles.get(i).size(); j++) {
+                list1.add(duplicateFiles.get(i).get(0));
+                list2.add(duplicateFiles.get(i).get(j));
+            }
+        }
+        // Add items to list box 1.
+        jList1.setListData(list1.toArray());
+        // Add items to list box 2.
+        jList2.setListData(list2.toArray());
+    }
+
+    /**
+     * Create a FileManager configured with the filter and copy options
+     * selected in the Options menu.
+     */
+    private FileManager createFileManager() {
+        FileManager fileManager = new FileManager();
+        fileManager.setSparseCopy(sparseCopyMenuItem.isSelected());
+        fileManager.setPipelinedCopy(pipelinedCopyMenuItem.isSelected());
+        fileManager.setVerifyCopy(verifyCopyMenuItem.isSelected());
+        fileManager.setCatalogFilter(catalogFilter);
+        fileManager.setCopyOrder(copyOrder);
+        fileManager.setRateLimiter(ioRateLimiter);
+        fileManager.setPruneEmptyDirectories(pruneEmptyDirectoriesMenuItem.isSelected());
+        return fileManager;
+    }
+
+    @Action
+    public void chooseCopyOrder() {
+        // Show the throughput each policy achieved on the Directory 2 device.
+        String device = ThroughputHistory.getDevice(jTextField2.getText().length() > 0 ? jTextField2.getText() : ".");
+        ThroughputHistory history = null;
+        try {
+            history = new FileManager().getThroughputHistory();
+        } catch (IOException ex) {
+            Logger.getLogger(DirSyncView.class.getName()).log(Level.WARNING, null, ex);
+        }
+        StandardCopyOrder[] policies = StandardCopyOrder.values();
+        String[] choices = new String[policies.length];
+        String selected = null;
+        for (int i = 0; i < policies.length; i++) {
+            choices[i] = policies[i].getName();
+            if ((history != null) && (history.getBytesPerSecond(device, policies[i].getName()) >= 0)) {
+                choices[i] = choices[i] + String.format(" (%.1f MB/s, %.1f files/s)",
+                        history.getBytesPerSecond(device, policies[i].getName()) / (1024 * 1024),
+                        history.getFilesPerSecond(device, policies[i].getName()));
+            }
+            if (policies[i] == copyOrder) {
+                selected = choices[i];
+            }
+        }
+        Object choice = JOptionPane.showInputDialog(this.getFrame(), "Copy files to " + device + " in this order:", "Copy Order", JOptionPane.PLAIN_MESSAGE, null, choices, selected);
+        for (int i = 0; i < policies.length; i++) {
+            if (choices[i].equals(choice)) {
+                copyOrder = policies[i];
+            }
+        }
+    }
+
+    @Action
+    public void editFilter() {
+        JTextArea rules = new JTextArea(catalogFilter.toString(), 12, 40);
+        Object[] message = new Object[]{"One rule per line: exclude, include, exclude-regex, include-regex,\nmin-size, max-size, newer-than or older-than, followed by a value.", new JScrollPane(rules)};
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), message, "Filter", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (response == JOptionPane.OK_OPTION) {
+            try {
+                catalogFilter = CatalogFilter.parse(rules.getText());
+            } catch (RuntimeException ex) {
+                JOptionPane.showMessageDialog(this.getFrame(), ex.getMessage());
+            }
+        }
+    }
+
+    @Action
+    public void editIoLimits() {
+        // The limiter is shared by running jobs, so changes apply at once.
+        JTextField megabytes = new JTextField(String.valueOf(ioRateLimiter.getBytesPerSecond() / (1024 * 1024)));
+        JTextField reads = new JTextField(String.valueOf(ioRateLimiter.getReadsPerSecond()));
+        JCheckBox background = new JCheckBox("Back off when the disk is busy", ioRateLimiter.isBackground());
+        Object[] message = new Object[]{"MB per second (0 for no limit):", megabytes, "Reads per second (0 for no limit):", reads, background};
+        int response = JOptionPane.showConfirmDialog(this.getFrame(), message, "I/O Limits", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (response == JOptionPane.OK_OPTION) {
+            try {
+                ioRateLimiter.setBytesPerSecond(Double.parseDouble(megabytes.getText().trim()) * 1024 * 1024);
+                ioRateLimiter.setReadsPerSecond(Double.parseDouble(reads.getText().trim()));
+                ioRateLimiter.setBackground(background.isSelected());
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this.getFrame(), "Not a number: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Log every file a bulk operation could not process.
+     */
+    private void logFailures(BatchResult result) {
+        for (IOException ex : result.getFailed().values()) {
+            Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Flush and close the pack archives a FileManager used.
+     */
+    private void closePackArchives(FileManager fileManager) {
+        try {
+            fileManager.closePackArchives();
+        } catch (IOException ex) {
+            Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
     public ArrayList<String> getJListElements(JList jlist) {
         ArrayList<String> elements = new ArrayList<String>();
         ListModel listModel = jlist.getModel();
@@ -552,6 +1381,8 @@ public class DirSyncView extends FrameView {
 
                         ArrayList<String> dir1Elements = getJListElements(dirSyncView.jList1);
                         ArrayList<String> dir2Elements = getJListElements(dirSyncView.jList2);
+                        ArrayList<String> dir1Deleted = new ArrayList<String>();
+                        ArrayList<String> dir2Deleted = new ArrayList<String>();
 
                         // Get the selected files from the dir1 list box.
                         String[] dir1Selections = Arrays.asList(jList1.getSelectedValues()).toArray(new String[jList1.getSelectedValues().length]);
@@ -561,7 +1392,8 @@ public class DirSyncView extends FrameView {
                             dirSyncView.progressBar.setString("Deleting from dir 1");
                             for (int i = 0; i < dir1Selections.length; i++) {
                                 try {
-                                    fileManager.deleteFile(dir1 + fileManager.getSeparator() + dir1Selections[i]);
+                                    fileManager.deleteFile(dir1, dir1Selections[i]);
+                                    dir1Deleted.add(dir1Selections[i]);
                                     // Remove the file from the list.
                                     if (dirSyncView.jLabel3.getText().equals(SyncMode.DUPLICATES.name())) {
                                         // delete the same number element from list 2 that was deleted from list 1.
@@ -584,7 +1416,8 @@ public class DirSyncView extends FrameView {
                             dirSyncView.progressBar.setString("Deleting from dir 2");
                             for (int i = 0; i < dir2Selections.length; i++) {
                                 try {
-                                    fileManager.deleteFile(dir2 + fileManager.getSeparator() + dir2Selections[i]);
+                                    fileManager.deleteFile(dir2, dir2Selections[i]);
+                                    dir2Deleted.add(dir2Selections[i]);
                                     if (dirSyncView.jLabel3.getText().equals(SyncMode.DUPLICATES.name())) {
                                         // delete the same number element from list 2 that was deleted from list 1.
                                         int listIndex = dir2Elements.indexOf(dir2Selections[i]);
@@ -604,6 +1437,12 @@ public class DirSyncView extends FrameView {
 
                         jList1.setListData(dir1Elements.toArray());
                         jList2.setListData(dir2Elements.toArray());
+                        closePackArchives(fileManager);
+                        if (pruneEmptyDirectoriesMenuItem.isSelected()) {
+                            // Only the directories the deleted files were in can have emptied.
+                            fileManager.removeEmptyDirectories(dir1, dir1Deleted);
+                            fileManager.removeEmptyDirectories(dir2, dir2Deleted);
+                        }
 
                         dirSyncView.statusMessageLabel.setText("Finished deleting");
                         dirSyncView.progressBar.setVisible(false);
@@ -644,28 +1483,24 @@ public class DirSyncView extends FrameView {
                             dir2 = jTextField2.getText();
                         }
 
-                        FileManager fileManager = new FileManager();
+                        FileManager fileManager = createFileManager();
+                        String finishedMessage = "Finished copy";
 
                         // Get the selected files from the dir1 list box.
                         String[] dir1Selections = Arrays.asList(jList1.getSelectedValues()).toArray(new String[jList1.getSelectedValues().length]);
                         if (dir1Selections.length > 0) {
                             dirSyncView.progressBar.setString("Copying to dir 2");
                             ArrayList<String> dir1Elements = getJListElements(dirSyncView.jList1);
-                            for (int i = 0; i < dir1Selections.length; i++) {
-                                try {
-                                    String from = dir1 + fileManager.getSeparator() + dir1Selections[i];
-                                    String to = dir2 + fileManager.getSeparator() + dir1Selections[i];
-                                    fileManager.copyFile(from, to);
-                                    // Remove the file from the list.
-                                    dir1Elements.remove(dir1Selections[i]);
-                                } catch (IOException ex) {
-                                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
-                                }
-                            }
+                            BatchResult result = fileManager.copyFiles(dir1, dir2, Arrays.asList(dir1Selections));
+                            // Remove the copied files from the list.
+                            dir1Elements.removeAll(new HashSet<String>(result.getSucceeded()));
+                            logFailures(result);
                             jList1.setListData(dir1Elements.toArray());
+                            finishedMessage = String.format("Finished copy at %.1f MB/s", result.getBytesPerSecond() / (1024 * 1024));
                         }
+                        closePackArchives(fileManager);
 
-                        dirSyncView.statusMessageLabel.setText("Finished copy");
+                        dirSyncView.statusMessageLabel.setText(finishedMessage);
                         dirSyncView.progressBar.setVisible(false);
                         return null;
                     }
@@ -704,28 +1539,24 @@ public class DirSyncView extends FrameView {
                             dir2 = jTextField2.getText();
                         }
 
-                        FileManager fileManager = new FileManager();
+                        FileManager fileManager = createFileManager();
+                        String finishedMessage = "Finished copy";
 
                         // Get the selected files from the dir1 list box.
                         String[] dir2Selections = Arrays.asList(jList2.getSelectedValues()).toArray(new String[jList2.getSelectedValues().length]);
                         if (dir2Selections.length > 0) {
                             dirSyncView.progressBar.setString("Copying to dir 1");
                             ArrayList<String> dir2Elements = getJListElements(dirSyncView.jList2);
-                            for (int i = 0; i < dir2Selections.length; i++) {
-                                try {
-                                    String from = dir2 + fileManager.getSeparator() + dir2Selections[i];
-                                    String to = dir1 + fileManager.getSeparator() + dir2Selections[i];
-                                    fileManager.copyFile(from, to);
-                                    // Remove the file from the list.
-                                    dir2Elements.remove(dir2Selections[i]);
-                                } catch (IOException ex) {
-                                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
-                                }
-                            }
+                            BatchResult result = fileManager.copyFiles(dir2, dir1, Arrays.asList(dir2Selections));
+                            // Remove the copied files from the list.
+                            dir2Elements.removeAll(new HashSet<String>(result.getSucceeded()));
+                            logFailures(result);
                             jList2.setListData(dir2Elements.toArray());
+                            finishedMessage = String.format("Finished copy at %.1f MB/s", result.getBytesPerSecond() / (1024 * 1024));
                         }
+                        closePackArchives(fileManager);
 
-                        dirSyncView.statusMessageLabel.setText("Finished copy");
+                        dirSyncView.statusMessageLabel.setText(finishedMessage);
                         dirSyncView.progressBar.setVisible(false);
                         return null;
                     }
@@ -770,13 +1601,13 @@ public class DirSyncView extends FrameView {
                         FileManager fileManager = new FileManager();
 
                         dirSyncView.progressBar.setString("Removing dir1 empty directories");
-                        fileManager.removeEmptyDirectories(dir1);
+                        int removed = fileManager.removeEmptyDirectories(dir1);
                         if (dir2.length() > 0) {
                             dirSyncView.progressBar.setString("Remove dir2 empty directories");
-                            fileManager.removeEmptyDirectories(dir2);
+                            removed += fileManager.removeEmptyDirectories(dir2);
                         }
 
-                        dirSyncView.statusMessageLabel.setText("Finished removing empty directories");
+                        dirSyncView.statusMessageLabel.setText(String.format("Removed %d empty directories", removed));
                         dirSyncView.progressBar.setVisible(false);
                         return null;
                     }
@@ -786,6 +1617,132 @@ public class DirSyncView extends FrameView {
         }
     }
 
+    @Action
+    public void createPackArchive() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+        } else if (jTextField2.getText().length() == 0) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 2 first.");
+        } else {
+            String dir2 = jTextField2.getText();
+            int response = JOptionPane.showConfirmDialog(null, "Pack files up to " + (PackArchive.DEFAULT_SMALL_FILE_SIZE / 1024) + " KB into container files when copying to " + dir2 + "?", "Confirm", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE);
+            if (response == JOptionPane.YES_OPTION) {
+                try {
+                    new PackArchive(dir2).close();
+                    statusMessageLabel.setText("Created pack archive in " + dir2);
+                } catch (IOException ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+    }
+
+    @Action
+    public void syncBothWays() {
+        if (functionsSet.contains(this.statusMessageLabel.getText())) {
+            JOptionPane.showMessageDialog(this.getFrame(), this.statusMessageLabel.getText() + " in progress.");
+            return;
+        } else if ((jTextField1.getText().length() == 0) || (jTextField2.getText().length() == 0)) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Enter Directory 1 and Directory 2 first.");
+            return;
+        }
+        final String dir1 = jTextField1.getText();
+        final String dir2 = jTextField2.getText();
+        if (PackArchive.isArchive(dir1) || PackArchive.isArchive(dir2)) {
+            JOptionPane.showMessageDialog(this.getFrame(), "Directories holding a pack archive cannot be synchronized both ways.");
+            return;
+        }
+        final DirSyncView dirSyncView = this;
+        final FileManager fileManager = createFileManager();
+        final BidirectionalSync sync;
+        try {
+            sync = new BidirectionalSync(fileManager, dir1, dir2);
+        } catch (IOException ex) {
+            Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        statusMessageLabel.setText(functions[6]);
+        progressBar.setStringPainted(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        progressBar.setString("Comparing " + dir1 + " and " + dir2 + " with the last sync");
+        SwingWorker<SyncPlan, Void> worker = new SwingWorker<SyncPlan, Void>() {
+
+            private long estimatedNanos;
+
+            @Override
+            public SyncPlan doInBackground() throws IOException {
+                SyncPlan plan = sync.reconcile();
+                estimatedNanos = plan.estimateNanos(fileManager.getThroughputHistory());
+                return plan;
+            }
+
+            @Override
+            protected void done() {
+                final SyncPlan plan;
+                try {
+                    plan = get();
+                } catch (Exception ex) {
+                    Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                    dirSyncView.statusMessageLabel.setText("Synchronization failed");
+                    dirSyncView.progressBar.setVisible(false);
+                    return;
+                }
+                // Summarize the plan and list the conflicts for the user.
+                ArrayList<String> conflicts = plan.getConflicts();
+                StringBuilder summary = new StringBuilder();
+                summary.append("Create directories: ").append(plan.getCount(SyncOperation.Type.MKDIR)).append("\n");
+                summary.append("Copy new files: ").append(plan.getCount(SyncOperation.Type.COPY)).append("\n");
+                summary.append("Update files: ").append(plan.getCount(SyncOperation.Type.UPDATE)).append("\n");
+                summary.append("Delete files: ").append(plan.getCount(SyncOperation.Type.DELETE)).append("\n");
+                summary.append(String.format("Copy %.1f MB in about %.1f seconds", plan.getBytes() / (1024.0 * 1024), estimatedNanos / 1e9)).append("\n");
+                summary.append("Conflicts left unchanged: ").append(conflicts.size()).append("\n");
+                for (String fileName : conflicts) {
+                    summary.append("    ").append(fileName).append("\n");
+                }
+                summary.append("\n");
+                for (SyncOperation operation : plan.getOperations()) {
+                    summary.append(operation).append("\n");
+                }
+                JTextArea textArea = new JTextArea(summary.toString(), 16, 60);
+                textArea.setEditable(false);
+                int response = JOptionPane.showConfirmDialog(dirSyncView.getFrame(), new JScrollPane(textArea), "Synchronize Both Ways", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE);
+                jLabel3.setText(SyncMode.SYNCHRONIZATION.name());
+                jLabel5.setText("Conflicts left unchanged");
+                jLabel6.setText("");
+                jList1.setListData(conflicts.toArray());
+                jList2.setListData(new Object[0]);
+                if (response != JOptionPane.OK_OPTION) {
+                    dirSyncView.statusMessageLabel.setText("Synchronization cancelled");
+                    dirSyncView.progressBar.setVisible(false);
+                    return;
+                }
+                dirSyncView.progressBar.setString("Synchronizing " + dir1 + " and " + dir2);
+                new SwingWorker<Void, Void>() {
+
+                    @Override
+                    public Void doInBackground() {
+                        String finishedMessage = "Finished synchronizing";
+                        try {
+                            BatchResult result = sync.execute(plan);
+                            logFailures(result);
+                            if (!result.getFailed().isEmpty()) {
+                                finishedMessage = "Finished synchronizing, " + result.getFailed().size() + " files failed";
+                            }
+                        } catch (IOException ex) {
+                            Logger.getLogger(DirSyncView.class.getName()).log(Level.SEVERE, null, ex);
+                            finishedMessage = "Synchronization failed";
+                        }
+                        dirSyncView.statusMessageLabel.setText(finishedMessage);
+                        dirSyncView.progressBar.setVisible(false);
+                        return null;
+                    }
+                }.execute();
+            }
+        };
+        worker.execute();
+    }
+
     @Action
     public void removeFromList() {
         if (functionsSet.contains(this.statusMessageLabel.getText())) {
@@ -873,6 +1830,7 @@ public class DirSyncView extends FrameView {
         }
     }
     // Variables declaration - do not modify//GEN-BEGIN:variables
+    private javax.swing.JCheckBoxMenuItem digestCompareMenuItem;
     private javax.swing.JButton jButton1;
     private javax.swing.JButton jButton2;
     private javax.swing.JButton jButton3;
@@ -894,10 +1852,14 @@ public class DirSyncView extends FrameView {
     private javax.swing.JTextField jTextField2;
     private javax.swing.JPanel mainPanel;
     private javax.swing.JMenuBar menuBar;
+    private javax.swing.JCheckBoxMenuItem pipelinedCopyMenuItem;
     private javax.swing.JProgressBar progressBar;
+    private javax.swing.JCheckBoxMenuItem pruneEmptyDirectoriesMenuItem;
+    private javax.swing.JCheckBoxMenuItem sparseCopyMenuItem;
     private javax.swing.JLabel statusAnimationLabel;
     private javax.swing.JLabel statusMessageLabel;
     private javax.swing.JPanel statusPanel;
+    private javax.swing.JCheckBoxMenuItem verifyCopyMenuItem;
     // End of variables declaration//GEN-END:variables
     private final Timer messageTimer;
     private final Timer busyIconTimer;
@@ -905,4 +1867,7 @@ public class DirSyncView extends FrameView {
     private final Icon[] busyIcons = new Icon[15];
     private int busyIconIndex = 0;
     private JDialog aboutBox;
+    private CatalogFilter catalogFilter = new CatalogFilter();
+    private CopyOrderPolicy copyOrder = StandardCopyOrder.SELECTION;
+    private final IoRateLimiter ioRateLimiter = new IoRateLimiter();
 }
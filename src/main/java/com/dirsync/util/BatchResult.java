@@ -0,0 +1,112 @@
+package com.dirsync.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * The outcome of a bulk file operation. A batch keeps going when a single
+ * file fails, so the result records every file that succeeded and the error
+ * for every file that did not.
+ */
+public class BatchResult {
+
+	private final ArrayList<String> succeeded = new ArrayList<String>();
+
+	private final LinkedHashMap<String, IOException> failed = new LinkedHashMap<String, IOException>();
+
+	private long bytes = 0;
+
+	private long elapsedNanos = 0;
+
+	/**
+	 * @param fileName
+	 *            The file that was processed.
+	 * @param fileBytes
+	 *            The number of bytes processed for the file.
+	 */
+	public synchronized void addSucceeded(String fileName, long fileBytes) {
+		succeeded.add(fileName);
+		bytes += fileBytes;
+	}
+
+	/**
+	 * @param fileName
+	 *            The file that could not be processed.
+	 * @param exception
+	 *            The reason.
+	 */
+	public synchronized void addFailed(String fileName, IOException exception) {
+		failed.put(fileName, exception);
+	}
+
+	/**
+	 * Add the files and bytes of another result to this one. The elapsed time
+	 * is not added.
+	 *
+	 * @param other
+	 */
+	public void add(BatchResult other) {
+		ArrayList<String> otherSucceeded = other.getSucceeded();
+		LinkedHashMap<String, IOException> otherFailed = other.getFailed();
+		long otherBytes = other.getBytes();
+		synchronized (this) {
+			succeeded.addAll(otherSucceeded);
+			failed.putAll(otherFailed);
+			bytes += otherBytes;
+		}
+	}
+
+	/**
+	 * @return The files that were processed, in the order they finished.
+	 */
+	public synchronized ArrayList<String> getSucceeded() {
+		return new ArrayList<String>(succeeded);
+	}
+
+	/**
+	 * @return The files that could not be processed and why.
+	 */
+	public synchronized LinkedHashMap<String, IOException> getFailed() {
+		return new LinkedHashMap<String, IOException>(failed);
+	}
+
+	/**
+	 * @return The total number of bytes processed.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @param elapsedNanos
+	 *            How long the whole batch took.
+	 */
+	public synchronized void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return How long the whole batch took.
+	 */
+	public synchronized long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return The bytes processed per second over the whole batch, or 0 if
+	 *         the batch was not timed.
+	 */
+	public synchronized double getBytesPerSecond() {
+		return (elapsedNanos > 0) ? bytes / (elapsedNanos / 1e9) : 0;
+	}
+
+	/**
+	 * @return The files processed per second over the whole batch, or 0 if
+	 *         the batch was not timed.
+	 */
+	public synchronized double getFilesPerSecond() {
+		return (elapsedNanos > 0) ? succeeded.size() / (elapsedNanos / 1e9)
+				: 0;
+	}
+}
@@ -0,0 +1,302 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Synchronizes two directories in both directions. The state saved after
+ * the last successful sync is the common base: a file that differs from the
+ * base on one side only was changed there, and the change is carried to the
+ * other side. A file changed differently on both sides is a conflict and is
+ * left alone. File contents are only read when both sides changed a file,
+ * to tell a real conflict from the same change made twice.
+ *
+ * The directory digests of both sides are saved with the base, and only the
+ * directories whose digests changed since, or that the last sync had to
+ * change or left conflicts in, are compared with the base file by file. The first sync, or one
+ * after the catalog filter changed, compares every file.
+ */
+public class BidirectionalSync {
+
+	/**
+	 * How a file on one side differs from the base.
+	 */
+	public enum Change {
+		UNCHANGED, ADDED, MODIFIED, DELETED
+	}
+
+	private final FileManager fileManager;
+
+	private final String directory1;
+
+	private final String directory2;
+
+	private final String stateFile;
+
+	private final String digestFile1;
+
+	private final String digestFile2;
+
+	private final SyncState state;
+
+	private boolean trustDirectoryTimes = false;
+
+	private DirectoryDigest digest1;
+
+	private DirectoryDigest digest2;
+
+	/**
+	 * Load the base saved by the last sync of the two directories.
+	 *
+	 * @param fileManager
+	 *            Does the copies and deletes, with its filter and options.
+	 * @param directory1
+	 * @param directory2
+	 * @throws IOException
+	 */
+	public BidirectionalSync(FileManager fileManager, String directory1,
+			String directory2) throws IOException {
+		this.fileManager = fileManager;
+		this.directory1 = directory1;
+		this.directory2 = directory2;
+		String key = new File(directory1).getAbsolutePath()
+				+ File.pathSeparator + new File(directory2).getAbsolutePath();
+		this.stateFile = fileManager.getStateFile(key, "sync");
+		this.digestFile1 = fileManager.getStateFile(key, "sync1digest");
+		this.digestFile2 = fileManager.getStateFile(key, "sync2digest");
+		this.state = SyncState.load(stateFile);
+	}
+
+	/**
+	 * @param trustDirectoryTimes
+	 *            If true then a directory whose modification time has not
+	 *            changed since the last sync is not listed. Its files are
+	 *            then not looked at, so a file rewritten in place without
+	 *            adding or removing any entry is missed. Off by default.
+	 */
+	public void setTrustDirectoryTimes(boolean trustDirectoryTimes) {
+		this.trustDirectoryTimes = trustDirectoryTimes;
+	}
+
+	/**
+	 * Compare both directories with the base and plan what to do with every
+	 * file that changed on either side. Files changed the same way on both
+	 * sides need no step; the base records them when the plan is executed.
+	 *
+	 * @return The plan, with the conflicts it leaves alone.
+	 * @throws IOException
+	 */
+	public SyncPlan reconcile() throws IOException {
+		DirectoryDigest previous1 = loadDigest(digestFile1);
+		DirectoryDigest previous2 = loadDigest(digestFile2);
+		digest1 = DirectoryDigest.build(directory1,
+				DirectoryDigest.Mode.NAMES_SIZES_AND_TIMES, previous1,
+				trustDirectoryTimes, fileManager);
+		digest2 = DirectoryDigest.build(directory2,
+				DirectoryDigest.Mode.NAMES_SIZES_AND_TIMES, previous2,
+				trustDirectoryTimes, fileManager);
+
+		// The directories to compare with the base, and the files in them.
+		TreeSet<String> directories = new TreeSet<String>(
+				state.getDirtyDirectories());
+		TreeSet<String> fileNames = new TreeSet<String>();
+		if ((previous1 != null)
+				&& (previous2 != null)
+				&& DirectoryDigest.changedDirectories(previous1, digest1,
+						directories)
+				&& DirectoryDigest.changedDirectories(previous2, digest2,
+						directories)) {
+			for (String directory : directories) {
+				fileNames.addAll(state.getFileNames(directory));
+			}
+		} else {
+			directories.addAll(digest1.getDirectories());
+			directories.addAll(digest2.getDirectories());
+			fileNames.addAll(state.getFileNames());
+		}
+		for (String directory : directories) {
+			digest1.listFiles(directory1, directory, fileNames);
+			digest2.listFiles(directory2, directory, fileNames);
+		}
+
+		SyncPlan plan = new SyncPlan();
+		for (String fileName : fileNames) {
+			SyncState.Entry base = state.get(fileName);
+			SyncState.Version version1 = SyncState.Version.of(new File(
+					directory1, fileName));
+			SyncState.Version version2 = SyncState.Version.of(new File(
+					directory2, fileName));
+			Change change1 = classify((base == null) ? null : base
+					.getVersion1(), version1);
+			Change change2 = classify((base == null) ? null : base
+					.getVersion2(), version2);
+			plan(plan, fileName, change1, change2, version1, version2);
+		}
+		return plan;
+	}
+
+	/**
+	 * Execute a plan made by reconcile and save the new base. Conflicts are
+	 * left alone and stay conflicts on the next sync. A file whose step fails
+	 * keeps its old base, so it is retried next time. The digests were built
+	 * before the steps changed the trees, so the directories of every step
+	 * and conflict are saved as dirty and the next sync looks at them again.
+	 *
+	 * @param plan
+	 * @return The files that were synchronized and the files that failed.
+	 * @throws IOException
+	 *             If the base could not be saved.
+	 */
+	public BatchResult execute(SyncPlan plan) throws IOException {
+		BatchResult result = plan.execute(fileManager);
+		HashSet<String> succeeded = new HashSet<String>(result.getSucceeded());
+		TreeSet<String> dirtyDirectories = new TreeSet<String>();
+		for (String fileName : plan.getConflicts()) {
+			dirtyDirectories.add(getDirectory(fileName));
+		}
+		for (SyncOperation operation : plan.getOperations()) {
+			dirtyDirectories.add(getDirectory(operation.getFileName()));
+			if (!succeeded.contains(operation.getFileName())) {
+				continue;
+			}
+			switch (operation.getType()) {
+			case COPY:
+			case UPDATE:
+				record(operation.getFileName());
+				break;
+			case DELETE:
+				state.remove(operation.getFileName());
+				break;
+			default:
+				break;
+			}
+		}
+		state.setDirtyDirectories(dirtyDirectories);
+		// Digests older than the base would only make the next sync look at
+		// more directories, but none at all makes it look at every file.
+		new File(digestFile1).delete();
+		new File(digestFile2).delete();
+		state.save(stateFile);
+		if ((digest1 != null) && (digest2 != null)) {
+			digest1.save(digestFile1);
+			digest2.save(digestFile2);
+		}
+		return result;
+	}
+
+	/**
+	 * @return The digests saved by the last sync, or null if there are none
+	 *         or they cannot be read.
+	 */
+	private static DirectoryDigest loadDigest(String digestFile) {
+		try {
+			return DirectoryDigest.load(digestFile);
+		} catch (IOException ex) {
+			Logger.getLogger(BidirectionalSync.class.getName()).log(
+					Level.WARNING, "Ignoring unreadable digest file " + digestFile,
+					ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @return The directory of a relative file name, or "" for the roots.
+	 */
+	private static String getDirectory(String fileName) {
+		int separator = fileName.lastIndexOf(File.separatorChar);
+		return (separator < 0) ? "" : fileName.substring(0, separator);
+	}
+
+	/**
+	 * @param base
+	 *            The file on this side after the last sync, or null.
+	 * @param current
+	 *            The file on this side now, or null.
+	 * @return How the file changed on this side, or null if it was never
+	 *         there.
+	 */
+	private Change classify(SyncState.Version base, SyncState.Version current) {
+		if (base == null) {
+			return (current == null) ? null : Change.ADDED;
+		} else if (current == null) {
+			return Change.DELETED;
+		} else if (current.equals(base)) {
+			return Change.UNCHANGED;
+		} else {
+			return Change.MODIFIED;
+		}
+	}
+
+	/**
+	 * Add the step for a file to the plan, if it needs one.
+	 *
+	 * @throws IOException
+	 */
+	private void plan(SyncPlan plan, String fileName, Change change1,
+			Change change2, SyncState.Version version1,
+			SyncState.Version version2) throws IOException {
+		boolean changed1 = (change1 != null) && (change1 != Change.UNCHANGED);
+		boolean changed2 = (change2 != null) && (change2 != Change.UNCHANGED);
+		if (!changed1 && !changed2) {
+			return;
+		} else if (changed1 && !changed2) {
+			if (change1 == Change.DELETED) {
+				plan.add(SyncOperation.delete(directory2, fileName));
+			} else {
+				plan.addCopy(directory1, directory2, fileName);
+			}
+		} else if (changed2 && !changed1) {
+			if (change2 == Change.DELETED) {
+				plan.add(SyncOperation.delete(directory1, fileName));
+			} else {
+				plan.addCopy(directory2, directory1, fileName);
+			}
+		} else if ((change1 == Change.DELETED) && (change2 == Change.DELETED)) {
+			state.remove(fileName);
+		} else if ((change1 == Change.DELETED) || (change2 == Change.DELETED)) {
+			plan.addConflict(fileName);
+		} else if (sameContent(fileName, version1, version2)) {
+			state.put(fileName, version1, version2);
+		} else {
+			plan.addConflict(fileName);
+		}
+	}
+
+	/**
+	 * @return True if the file holds the same bytes on both sides.
+	 * @throws IOException
+	 */
+	private boolean sameContent(String fileName, SyncState.Version version1,
+			SyncState.Version version2) throws IOException {
+		if (version1.getSize() != version2.getSize()) {
+			return false;
+		}
+		File file1 = new File(directory1, fileName);
+		File file2 = new File(directory2, fileName);
+		HashCache hashCache = fileManager.getHashCache();
+		byte[] hash1 = hashCache.get(file1);
+		byte[] hash2 = (hash1 != null) ? hashCache.get(file2) : null;
+		if (hash2 != null) {
+			return MessageDigest.isEqual(hash1, hash2);
+		}
+		return fileManager.contentEquals(file1, file2);
+	}
+
+	/**
+	 * Record a file as it is now on both sides as the new base.
+	 */
+	private void record(String fileName) {
+		SyncState.Version version1 = SyncState.Version.of(new File(directory1,
+				fileName));
+		SyncState.Version version2 = SyncState.Version.of(new File(directory2,
+				fileName));
+		if ((version1 != null) && (version2 != null)) {
+			state.put(fileName, version1, version2);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.dirsync.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A BK-tree of 64 bit hashes under Hamming distance. Each child of a node
+ * sits at a known distance from it, and the triangle inequality rules out
+ * every child whose distance is too far from the query's, so a search for
+ * close hashes visits a small part of the tree instead of every hash.
+ */
+public class BkTree {
+
+	private Node root = null;
+
+	private int size = 0;
+
+	/**
+	 * @param hash
+	 * @param name
+	 *            What the hash belongs to.
+	 */
+	public void add(long hash, String name) {
+		size++;
+		if (root == null) {
+			root = new Node(hash, name);
+			return;
+		}
+		Node node = root;
+		while (true) {
+			int distance = PerceptualHash.distance(hash, node.hash);
+			if (distance == 0) {
+				node.names.add(name);
+				return;
+			}
+			Node child = node.children.get(distance);
+			if (child == null) {
+				node.children.put(distance, new Node(hash, name));
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * @param hash
+	 * @param maxDistance
+	 * @return The names of every hash within the distance of the hash.
+	 */
+	public ArrayList<String> search(long hash, int maxDistance) {
+		ArrayList<String> found = new ArrayList<String>();
+		if (root == null) {
+			return found;
+		}
+		ArrayDeque<Node> pending = new ArrayDeque<Node>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			Node node = pending.poll();
+			int distance = PerceptualHash.distance(hash, node.hash);
+			if (distance <= maxDistance) {
+				found.addAll(node.names);
+			}
+			for (int childDistance = Math.max(1, distance - maxDistance); childDistance <= distance
+					+ maxDistance; childDistance++) {
+				Node child = node.children.get(childDistance);
+				if (child != null) {
+					pending.add(child);
+				}
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return The number of names added.
+	 */
+	public int size() {
+		return size;
+	}
+
+	private static class Node {
+
+		final long hash;
+
+		final ArrayList<String> names = new ArrayList<String>(1);
+
+		final HashMap<Integer, Node> children = new HashMap<Integer, Node>();
+
+		Node(long hash, String name) {
+			this.hash = hash;
+			names.add(name);
+		}
+	}
+}
@@ -0,0 +1,406 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Include and exclude rules evaluated while a directory tree is walked. An
+ * excluded directory is never opened, so everything below it costs nothing.
+ *
+ * A file is accepted when no exclude rule matches it or any directory above
+ * it, when it matches an include rule (if there are any), and when its size
+ * and modification time fall within the configured limits. Include rules
+ * apply to files only, so including "*.jpg" still descends into every
+ * directory.
+ *
+ * Glob rules without a separator match a name at any depth, like
+ * ".git" or "*.tmp". Glob rules with a separator and regular expression
+ * rules match the path relative to the root of the walk, with "/" as the
+ * separator.
+ *
+ * Rules can also be written as text, one per line or separated by ";":
+ *
+ * <pre>
+ * exclude .git
+ * exclude node_modules
+ * include *.jpg
+ * exclude-regex .*[.]bak
+ * min-size 1K
+ * max-size 4G
+ * newer-than 30d
+ * older-than 12h
+ * modified-after 1420070400000
+ * </pre>
+ */
+public class CatalogFilter {
+
+	private final ArrayList<PathMatcher> excludeNames = new ArrayList<PathMatcher>();
+
+	private final ArrayList<PathMatcher> excludePaths = new ArrayList<PathMatcher>();
+
+	private final ArrayList<PathMatcher> includeNames = new ArrayList<PathMatcher>();
+
+	private final ArrayList<PathMatcher> includePaths = new ArrayList<PathMatcher>();
+
+	private final ArrayList<Pattern> excludeRegexes = new ArrayList<Pattern>();
+
+	private final ArrayList<Pattern> includeRegexes = new ArrayList<Pattern>();
+
+	private final StringBuilder specification = new StringBuilder();
+
+	private long minSize = -1;
+
+	private long maxSize = -1;
+
+	private long modifiedAfter = -1;
+
+	private long modifiedBefore = -1;
+
+	/**
+	 * Compile a filter from its text form.
+	 *
+	 * @param specification
+	 *            Rules, one per line or separated by ";".
+	 * @return The filter.
+	 * @throws IllegalArgumentException
+	 *             If a rule cannot be parsed.
+	 */
+	public static CatalogFilter parse(String specification) {
+		CatalogFilter filter = new CatalogFilter();
+		if (specification == null) {
+			return filter;
+		}
+		for (String rule : specification.split("[;\\r\\n]+")) {
+			rule = rule.trim();
+			if (rule.length() == 0 || rule.startsWith("#")) {
+				continue;
+			}
+			int space = rule.indexOf(' ');
+			if (space < 0) {
+				throw new IllegalArgumentException("Filter rule has no value: "
+						+ rule);
+			}
+			String keyword = rule.substring(0, space);
+			String value = rule.substring(space + 1).trim();
+			long now = System.currentTimeMillis();
+			if (keyword.equals("exclude")) {
+				filter.addExclude(value);
+			} else if (keyword.equals("include")) {
+				filter.addInclude(value);
+			} else if (keyword.equals("exclude-regex")) {
+				filter.addExcludeRegex(value);
+			} else if (keyword.equals("include-regex")) {
+				filter.addIncludeRegex(value);
+			} else if (keyword.equals("min-size")) {
+				filter.setMinSize(parseSize(value));
+			} else if (keyword.equals("max-size")) {
+				filter.setMaxSize(parseSize(value));
+			} else if (keyword.equals("newer-than")) {
+				filter.setModifiedAfter(now - parseAge(value));
+			} else if (keyword.equals("older-than")) {
+				filter.setModifiedBefore(now - parseAge(value));
+			} else if (keyword.equals("modified-after")) {
+				filter.setModifiedAfter(Long.parseLong(value));
+			} else if (keyword.equals("modified-before")) {
+				filter.setModifiedBefore(Long.parseLong(value));
+			} else {
+				throw new IllegalArgumentException("Unknown filter rule: "
+						+ rule);
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * Exclude files and directories that match a glob.
+	 *
+	 * @param glob
+	 */
+	public void addExclude(String glob) {
+		addGlob(glob, excludeNames, excludePaths);
+		addRule("exclude", glob);
+	}
+
+	/**
+	 * Accept only files that match one of the include rules.
+	 *
+	 * @param glob
+	 */
+	public void addInclude(String glob) {
+		addGlob(glob, includeNames, includePaths);
+		addRule("include", glob);
+	}
+
+	/**
+	 * Exclude files and directories whose relative path matches a regular
+	 * expression.
+	 *
+	 * @param regex
+	 * @throws PatternSyntaxException
+	 */
+	public void addExcludeRegex(String regex) {
+		excludeRegexes.add(Pattern.compile(regex));
+		addRule("exclude-regex", regex);
+	}
+
+	/**
+	 * Accept only files that match one of the include rules.
+	 *
+	 * @param regex
+	 * @throws PatternSyntaxException
+	 */
+	public void addIncludeRegex(String regex) {
+		includeRegexes.add(Pattern.compile(regex));
+		addRule("include-regex", regex);
+	}
+
+	/**
+	 * @param minSize
+	 *            The smallest file size accepted, or -1 for no limit.
+	 */
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+		addRule("min-size", String.valueOf(minSize));
+	}
+
+	/**
+	 * @param maxSize
+	 *            The largest file size accepted, or -1 for no limit.
+	 */
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		addRule("max-size", String.valueOf(maxSize));
+	}
+
+	/**
+	 * @param modifiedAfter
+	 *            Accept only files modified after this time in milliseconds,
+	 *            or -1 for no limit.
+	 */
+	public void setModifiedAfter(long modifiedAfter) {
+		this.modifiedAfter = modifiedAfter;
+		addRule("modified-after", String.valueOf(modifiedAfter));
+	}
+
+	/**
+	 * @param modifiedBefore
+	 *            Accept only files modified before this time in milliseconds,
+	 *            or -1 for no limit.
+	 */
+	public void setModifiedBefore(long modifiedBefore) {
+		this.modifiedBefore = modifiedBefore;
+		addRule("modified-before", String.valueOf(modifiedBefore));
+	}
+
+	/**
+	 * @return True if acceptFile needs the size or modification time of a
+	 *         file. A walk can skip reading attributes when this is false.
+	 */
+	public boolean needsAttributes() {
+		return (minSize >= 0) || (maxSize >= 0) || (modifiedAfter >= 0)
+				|| (modifiedBefore >= 0);
+	}
+
+	/**
+	 * @return True if the filter accepts everything.
+	 */
+	public boolean isEmpty() {
+		return excludeNames.isEmpty() && excludePaths.isEmpty()
+				&& includeNames.isEmpty() && includePaths.isEmpty()
+				&& excludeRegexes.isEmpty() && includeRegexes.isEmpty()
+				&& !needsAttributes();
+	}
+
+	/**
+	 * Decide whether a walk should descend into a directory.
+	 *
+	 * @param relativePath
+	 *            The path of the directory relative to the root of the walk.
+	 * @return False if the directory is excluded.
+	 */
+	public boolean acceptDirectory(String relativePath) {
+		return !isExcluded(normalize(relativePath));
+	}
+
+	/**
+	 * Decide whether a file found during a walk is accepted. The directories
+	 * above the file are assumed to have been accepted already.
+	 *
+	 * @param relativePath
+	 *            The path of the file relative to the root of the walk.
+	 * @param size
+	 *            The size of the file, only read if needsAttributes is true.
+	 * @param lastModified
+	 *            The modification time of the file, only read if
+	 *            needsAttributes is true.
+	 * @return True if the file is accepted.
+	 */
+	public boolean acceptFile(String relativePath, long size, long lastModified) {
+		String path = normalize(relativePath);
+		if (isExcluded(path) || !isIncluded(path)) {
+			return false;
+		}
+		if ((minSize >= 0 && size < minSize)
+				|| (maxSize >= 0 && size > maxSize)) {
+			return false;
+		}
+		if ((modifiedAfter >= 0 && lastModified <= modifiedAfter)
+				|| (modifiedBefore >= 0 && lastModified >= modifiedBefore)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decide whether a file is accepted when it was not found by a walk, for
+	 * example a name selected in a list. Every directory above the file is
+	 * checked as well.
+	 *
+	 * @param relativePath
+	 *            The path of the file relative to its root directory.
+	 * @param file
+	 *            The file, read only if needsAttributes is true.
+	 * @return True if the file is accepted.
+	 */
+	public boolean acceptPath(String relativePath, File file) {
+		if (needsAttributes()) {
+			return acceptPath(relativePath, file.length(), file.lastModified());
+		}
+		return acceptPath(relativePath, 0, 0);
+	}
+
+	/**
+	 * Decide whether a file is accepted when it was not found by a walk and
+	 * its attributes are already known. Every directory above the file is
+	 * checked as well.
+	 *
+	 * @param relativePath
+	 *            The path of the file relative to its root directory.
+	 * @param size
+	 * @param lastModified
+	 * @return True if the file is accepted.
+	 */
+	public boolean acceptPath(String relativePath, long size, long lastModified) {
+		String path = normalize(relativePath);
+		for (int i = path.indexOf('/'); i > 0; i = path.indexOf('/', i + 1)) {
+			if (isExcluded(path.substring(0, i))) {
+				return false;
+			}
+		}
+		return acceptFile(path, size, lastModified);
+	}
+
+	/**
+	 * @return The rules of the filter in the text form read by parse. Two
+	 *         filters with the same text accept the same files.
+	 */
+	@Override
+	public String toString() {
+		return specification.toString();
+	}
+
+	private boolean isExcluded(String path) {
+		Path name = Paths.get(path.substring(path.lastIndexOf('/') + 1));
+		for (PathMatcher matcher : excludeNames) {
+			if (matcher.matches(name)) {
+				return true;
+			}
+		}
+		if (!excludePaths.isEmpty()) {
+			Path relativePath = Paths.get(path);
+			for (PathMatcher matcher : excludePaths) {
+				if (matcher.matches(relativePath)) {
+					return true;
+				}
+			}
+		}
+		for (Pattern pattern : excludeRegexes) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isIncluded(String path) {
+		if (includeNames.isEmpty() && includePaths.isEmpty()
+				&& includeRegexes.isEmpty()) {
+			return true;
+		}
+		Path name = Paths.get(path.substring(path.lastIndexOf('/') + 1));
+		for (PathMatcher matcher : includeNames) {
+			if (matcher.matches(name)) {
+				return true;
+			}
+		}
+		if (!includePaths.isEmpty()) {
+			Path relativePath = Paths.get(path);
+			for (PathMatcher matcher : includePaths) {
+				if (matcher.matches(relativePath)) {
+					return true;
+				}
+			}
+		}
+		for (Pattern pattern : includeRegexes) {
+			if (pattern.matcher(path).matches()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void addRule(String keyword, String value) {
+		specification.append(keyword).append(' ').append(value).append('\n');
+	}
+
+	private void addGlob(String glob, ArrayList<PathMatcher> names,
+			ArrayList<PathMatcher> paths) {
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher(
+				"glob:" + glob);
+		if (glob.indexOf('/') >= 0) {
+			paths.add(matcher);
+		} else {
+			names.add(matcher);
+		}
+	}
+
+	private static String normalize(String relativePath) {
+		return relativePath.replace(File.separatorChar, '/');
+	}
+
+	private static long parseSize(String value) {
+		String upper = value.toUpperCase();
+		long multiplier = 1;
+		if (upper.endsWith("K")) {
+			multiplier = 1024L;
+		} else if (upper.endsWith("M")) {
+			multiplier = 1024L * 1024;
+		} else if (upper.endsWith("G")) {
+			multiplier = 1024L * 1024 * 1024;
+		}
+		if (multiplier > 1) {
+			upper = upper.substring(0, upper.length() - 1);
+		}
+		return Long.parseLong(upper.trim()) * multiplier;
+	}
+
+	private static long parseAge(String value) {
+		String lower = value.toLowerCase();
+		long multiplier = 24L * 60 * 60 * 1000;
+		if (lower.endsWith("h")) {
+			multiplier = 60L * 60 * 1000;
+		} else if (lower.endsWith("m")) {
+			multiplier = 60L * 1000;
+		}
+		if (lower.endsWith("d") || lower.endsWith("h") || lower.endsWith("m")) {
+			lower = lower.substring(0, lower.length() - 1);
+		}
+		return Long.parseLong(lower.trim()) * multiplier;
+	}
+}
@@ -0,0 +1,590 @@
+package com.dirsync.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A catalog of a directory tree kept in a memory-mapped file instead of on
+ * the heap. Each file has a fixed-width record holding its size, its
+ * modification time, whether it is packed in a pack archive, and where its
+ * UTF-8 relative name sits in a string arena at the end of the file. Entries are read by index, so iterating, sorting
+ * and looking up a path create no object per entry; a name is only decoded
+ * when asked for. Sorting rearranges the records in the file, so a sorted
+ * store stays sorted when it is opened again, which makes the file usable as
+ * the snapshot of a tree between runs.
+ *
+ * The records and the arena are each mapped as one buffer, so each must be
+ * smaller than 2 GB: about 67 million entries.
+ */
+public class CatalogStore {
+
+	/**
+	 * The order of the entries.
+	 */
+	public enum Order {
+
+		/**
+		 * The order the tree was walked in.
+		 */
+		UNSORTED,
+
+		/**
+		 * By name, comparing UTF-8 bytes.
+		 */
+		NAME,
+
+		/**
+		 * By size, then by name.
+		 */
+		SIZE
+	};
+
+	private static final int FILE_MAGIC = 0x44534353;
+
+	private static final int FILE_VERSION = 2;
+
+	private static final int HEADER_SIZE = 32;
+
+	private static final int RECORD_SIZE = 32;
+
+	private static final int NAME_OFFSET = 0;
+
+	private static final int NAME_LENGTH = 8;
+
+	private static final int FLAGS = 12;
+
+	private static final int SIZE = 16;
+
+	private static final int LAST_MODIFIED = 24;
+
+	private static final int PACKED = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final RandomAccessFile file;
+
+	private final int count;
+
+	private final MappedByteBuffer records;
+
+	private final MappedByteBuffer arena;
+
+	private Order order;
+
+	private final byte[] swap1 = new byte[RECORD_SIZE];
+
+	private final byte[] swap2 = new byte[RECORD_SIZE];
+
+	private CatalogStore(RandomAccessFile file, int count, Order order,
+			long arenaOffset, long arenaLength) throws IOException {
+		this.file = file;
+		this.count = count;
+		this.order = order;
+		FileChannel channel = file.getChannel();
+		records = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE,
+				(long) count * RECORD_SIZE);
+		arena = channel.map(FileChannel.MapMode.READ_ONLY, arenaOffset,
+				arenaLength);
+	}
+
+	/**
+	 * Catalog a directory tree into a new store file, sorted by name. The
+	 * entries of pack archives are cataloged in place of the archive files,
+	 * as catalogDirectory lists them, and are marked as packed.
+	 *
+	 * @param fileManager
+	 *            Gives the catalog filter for the files and directories to
+	 *            catalog, and opens the pack archives.
+	 * @param directory
+	 * @param recursively
+	 * @param filePathAndName
+	 *            The store file, replaced if it exists. The store is written
+	 *            under a temporary name first, so an earlier store survives a
+	 *            failed build.
+	 * @return The open store.
+	 * @throws IOException
+	 */
+	public static CatalogStore build(FileManager fileManager,
+			String directory, boolean recursively, String filePathAndName)
+			throws IOException {
+		CatalogFilter filter = fileManager.getCatalogFilter();
+		File target = new File(filePathAndName);
+		File temporary = new File(filePathAndName + ".tmp");
+		File arenaFile = File.createTempFile("arena", ".dat",
+				target.getAbsoluteFile().getParentFile());
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporary),
+							64 * 1024));
+			DataOutputStream names = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(arenaFile),
+							64 * 1024));
+			Writer writer = new Writer(out, names);
+			try {
+				out.write(new byte[HEADER_SIZE]);
+				File root = new File(directory).getAbsoluteFile();
+				// A root such as "/" already ends with a separator.
+				int rootLength = root.getPath().endsWith(File.separator) ? root
+						.getPath().length() : root.getPath().length() + 1;
+				boolean needsAttributes = filter.needsAttributes();
+				ArrayDeque<File> pending = new ArrayDeque<File>();
+				pending.push(root);
+				while (!pending.isEmpty()) {
+					File parent = pending.pop();
+					File[] entries = parent.listFiles();
+					if (entries == null) {
+						continue;
+					}
+					for (File entry : entries) {
+						String relativeName = entry.getPath().substring(
+								rootLength);
+						if (entry.isFile()) {
+							if (entry.getName().equals(
+									PackArchive.INDEX_FILE_NAME)) {
+								String prefix = parent.getPath().length() > rootLength ? parent
+										.getPath().substring(rootLength)
+										+ File.separator : "";
+								writePacked(fileManager, parent, prefix,
+										filter, writer);
+								continue;
+							}
+							if (PackArchive.isArchiveFile(entry.getName())
+									|| GroupCommit.isTempFile(entry.getName())) {
+								continue;
+							}
+							long size = entry.length();
+							long lastModified = entry.lastModified();
+							if (!filter.isEmpty()
+									&& !filter.acceptFile(relativeName,
+											needsAttributes ? size : 0,
+											needsAttributes ? lastModified : 0)) {
+								continue;
+							}
+							writer.write(relativeName, size, lastModified, 0);
+						} else if (entry.isDirectory()
+								&& recursively
+								&& (filter.isEmpty() || filter
+										.acceptDirectory(relativeName))) {
+							pending.push(entry);
+						}
+					}
+				}
+			} finally {
+				names.close();
+				out.close();
+			}
+			int count = writer.count;
+			long arenaLength = writer.arenaLength;
+			if (arenaLength > Integer.MAX_VALUE) {
+				throw new IOException("Too many names for a catalog store");
+			}
+			RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+			try {
+				FileInputStream in = new FileInputStream(arenaFile);
+				try {
+					FileChannel channel = raf.getChannel();
+					long position = channel.size();
+					long transferred = 0;
+					while (transferred < arenaLength) {
+						transferred += channel.transferFrom(in.getChannel(),
+								position + transferred, arenaLength
+										- transferred);
+					}
+				} finally {
+					in.close();
+				}
+				raf.seek(0);
+				raf.writeInt(FILE_MAGIC);
+				raf.writeInt(FILE_VERSION);
+				raf.writeInt(count);
+				raf.writeInt(Order.UNSORTED.ordinal());
+				raf.writeLong(HEADER_SIZE + (long) count * RECORD_SIZE);
+				raf.writeLong(arenaLength);
+			} finally {
+				raf.close();
+			}
+			if (target.exists() && !target.delete()) {
+				throw new IOException("Could not replace " + target);
+			}
+			if (!temporary.renameTo(target)) {
+				throw new IOException("Could not rename " + temporary + " to "
+						+ target);
+			}
+		} finally {
+			arenaFile.delete();
+			temporary.delete();
+		}
+		CatalogStore store = open(filePathAndName);
+		store.sort(Order.NAME);
+		return store;
+	}
+
+	/**
+	 * Write the entries of the pack archive in a directory. An archive that
+	 * cannot be read is left out, as catalogDirectory leaves it out.
+	 */
+	private static void writePacked(FileManager fileManager, File directory,
+			String prefix, CatalogFilter filter, Writer writer)
+			throws IOException {
+		PackArchive packArchive;
+		try {
+			packArchive = fileManager.getPackArchive(directory.getPath());
+		} catch (IOException e) {
+			Logger.getLogger(CatalogStore.class.getName()).log(Level.WARNING,
+					"Unable to read pack archive " + directory, e);
+			return;
+		}
+		for (String entry : packArchive.catalog()) {
+			PackArchive.PackEntry packEntry = packArchive.getEntry(entry);
+			String relativeName = prefix + entry;
+			if (filter.acceptPath(relativeName, packEntry.getLength(),
+					packEntry.getLastModified())) {
+				writer.write(relativeName, packEntry.getLength(),
+						packEntry.getLastModified(), PACKED);
+			}
+		}
+	}
+
+	/**
+	 * Writes records and their names while a store is built.
+	 */
+	private static class Writer {
+
+		private final DataOutputStream out;
+
+		private final DataOutputStream names;
+
+		private int count;
+
+		private long arenaLength;
+
+		Writer(DataOutputStream out, DataOutputStream names) {
+			this.out = out;
+			this.names = names;
+		}
+
+		void write(String relativeName, long size, long lastModified,
+				int flags) throws IOException {
+			if (count == Integer.MAX_VALUE / RECORD_SIZE) {
+				throw new IOException("Too many files for a catalog store");
+			}
+			byte[] name = relativeName.getBytes(UTF_8);
+			out.writeLong(arenaLength);
+			out.writeInt(name.length);
+			out.writeInt(flags);
+			out.writeLong(size);
+			out.writeLong(lastModified);
+			names.write(name);
+			arenaLength += name.length;
+			count++;
+		}
+	}
+
+	/**
+	 * Open a store written by build.
+	 *
+	 * @param filePathAndName
+	 * @return The store, or null if the file does not exist or is not a
+	 *         catalog store.
+	 * @throws IOException
+	 */
+	public static CatalogStore open(String filePathAndName) throws IOException {
+		File storeFile = new File(filePathAndName);
+		if (!storeFile.isFile() || (storeFile.length() < HEADER_SIZE)) {
+			return null;
+		}
+		RandomAccessFile raf = new RandomAccessFile(storeFile, "rw");
+		try {
+			if ((raf.readInt() != FILE_MAGIC)
+					|| (raf.readInt() != FILE_VERSION)) {
+				raf.close();
+				return null;
+			}
+			int count = raf.readInt();
+			Order order = Order.values()[raf.readInt()];
+			long arenaOffset = raf.readLong();
+			long arenaLength = raf.readLong();
+			if (arenaOffset + arenaLength != raf.length()) {
+				raf.close();
+				return null;
+			}
+			return new CatalogStore(raf, count, order, arenaOffset,
+					arenaLength);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Write any sorting back to the file and close it. The mapping is
+	 * released when the store is garbage collected.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		records.force();
+		file.close();
+	}
+
+	/**
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * @return The order of the entries.
+	 */
+	public Order getOrder() {
+		return order;
+	}
+
+	/**
+	 * @param index
+	 * @return The relative name of an entry.
+	 */
+	public String getName(int index) {
+		int record = index * RECORD_SIZE;
+		int offset = (int) records.getLong(record + NAME_OFFSET);
+		byte[] name = new byte[records.getInt(record + NAME_LENGTH)];
+		for (int i = 0; i < name.length; i++) {
+			name[i] = arena.get(offset + i);
+		}
+		return new String(name, UTF_8);
+	}
+
+	/**
+	 * @param index
+	 * @return The size of an entry in bytes.
+	 */
+	public long getSize(int index) {
+		return records.getLong(index * RECORD_SIZE + SIZE);
+	}
+
+	/**
+	 * @param index
+	 * @return True if the entry is packed in a pack archive rather than
+	 *         being a file of its own.
+	 */
+	public boolean isPacked(int index) {
+		return (records.getInt(index * RECORD_SIZE + FLAGS) & PACKED) != 0;
+	}
+
+	/**
+	 * @param index
+	 * @return The modification time of an entry.
+	 */
+	public long getLastModified(int index) {
+		return records.getLong(index * RECORD_SIZE + LAST_MODIFIED);
+	}
+
+	/**
+	 * Look up an entry by name. The store is sorted by name first if it is
+	 * not already.
+	 *
+	 * @param name
+	 *            A relative name.
+	 * @return The index of the entry, or -1 if there is none.
+	 */
+	public int find(String name) {
+		if (order != Order.NAME) {
+			sort(Order.NAME);
+		}
+		byte[] key = name.getBytes(UTF_8);
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int comparison = compareName(middle * RECORD_SIZE, key);
+			if (comparison < 0) {
+				low = middle + 1;
+			} else if (comparison > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Rearrange the entries in the file, in place.
+	 *
+	 * @param order
+	 */
+	public void sort(Order order) {
+		if ((order == this.order) || (order == Order.UNSORTED)) {
+			return;
+		}
+		this.order = order;
+		quickSort(0, count - 1);
+		records.force();
+		try {
+			file.seek(12);
+			file.writeInt(order.ordinal());
+		} catch (IOException e) {
+			// The records are sorted; the order is found again when needed.
+			this.order = Order.UNSORTED;
+		}
+	}
+
+	/**
+	 * Compare two stores sorted by name, as an older and a newer snapshot of
+	 * the same tree. Both are sorted by name first if they are not already.
+	 *
+	 * @param older
+	 * @param newer
+	 * @param added
+	 *            Receives the names only in the newer store.
+	 * @param removed
+	 *            Receives the names only in the older store.
+	 * @param changed
+	 *            Receives the names in both whose sizes or times differ, or
+	 *            null.
+	 */
+	public static void compare(CatalogStore older, CatalogStore newer,
+			Collection<String> added, Collection<String> removed,
+			Collection<String> changed) {
+		older.sort(Order.NAME);
+		newer.sort(Order.NAME);
+		int i = 0;
+		int j = 0;
+		while ((i < older.count) || (j < newer.count)) {
+			int comparison;
+			if (i == older.count) {
+				comparison = 1;
+			} else if (j == newer.count) {
+				comparison = -1;
+			} else {
+				comparison = compareNames(older, i * RECORD_SIZE, newer, j
+						* RECORD_SIZE);
+			}
+			if (comparison < 0) {
+				removed.add(older.getName(i++));
+			} else if (comparison > 0) {
+				added.add(newer.getName(j++));
+			} else {
+				if ((changed != null)
+						&& ((older.getSize(i) != newer.getSize(j)) || (older
+								.getLastModified(i) != newer.getLastModified(j)))) {
+					changed.add(newer.getName(j));
+				}
+				i++;
+				j++;
+			}
+		}
+	}
+
+	private void quickSort(int low, int high) {
+		while (high - low > 16) {
+			int middle = (low + high) >>> 1;
+			// Median of three as the pivot, moved to high.
+			if (compare(middle, low) < 0) {
+				swap(middle, low);
+			}
+			if (compare(high, low) < 0) {
+				swap(high, low);
+			}
+			if (compare(middle, high) < 0) {
+				swap(middle, high);
+			}
+			int store = low;
+			for (int i = low; i < high; i++) {
+				if (compare(i, high) < 0) {
+					swap(i, store++);
+				}
+			}
+			swap(store, high);
+			// Recurse into the smaller part to bound the stack depth.
+			if (store - low < high - store) {
+				quickSort(low, store - 1);
+				low = store + 1;
+			} else {
+				quickSort(store + 1, high);
+				high = store - 1;
+			}
+		}
+		for (int i = low + 1; i <= high; i++) {
+			for (int j = i; (j > low) && (compare(j, j - 1) < 0); j--) {
+				swap(j, j - 1);
+			}
+		}
+	}
+
+	private int compare(int index1, int index2) {
+		int record1 = index1 * RECORD_SIZE;
+		int record2 = index2 * RECORD_SIZE;
+		if (order == Order.SIZE) {
+			long size1 = records.getLong(record1 + SIZE);
+			long size2 = records.getLong(record2 + SIZE);
+			if (size1 != size2) {
+				return (size1 < size2) ? -1 : 1;
+			}
+		}
+		return compareNames(record1, record2);
+	}
+
+	private void swap(int index1, int index2) {
+		if (index1 == index2) {
+			return;
+		}
+		int record1 = index1 * RECORD_SIZE;
+		int record2 = index2 * RECORD_SIZE;
+		for (int i = 0; i < RECORD_SIZE; i++) {
+			swap1[i] = records.get(record1 + i);
+			swap2[i] = records.get(record2 + i);
+		}
+		for (int i = 0; i < RECORD_SIZE; i++) {
+			records.put(record1 + i, swap2[i]);
+			records.put(record2 + i, swap1[i]);
+		}
+	}
+
+	private int compareNames(int record1, int record2) {
+		return compareNames(this, record1, this, record2);
+	}
+
+	private static int compareNames(CatalogStore store1, int record1,
+			CatalogStore store2, int record2) {
+		int offset1 = (int) store1.records.getLong(record1 + NAME_OFFSET);
+		int length1 = store1.records.getInt(record1 + NAME_LENGTH);
+		int offset2 = (int) store2.records.getLong(record2 + NAME_OFFSET);
+		int length2 = store2.records.getInt(record2 + NAME_LENGTH);
+		int length = Math.min(length1, length2);
+		for (int i = 0; i < length; i++) {
+			int difference = (store1.arena.get(offset1 + i) & 0xFF)
+					- (store2.arena.get(offset2 + i) & 0xFF);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length1 - length2;
+	}
+
+	private int compareName(int record, byte[] key) {
+		int offset = (int) records.getLong(record + NAME_OFFSET);
+		int length = records.getInt(record + NAME_LENGTH);
+		int shortest = Math.min(length, key.length);
+		for (int i = 0; i < shortest; i++) {
+			int difference = (arena.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length - key.length;
+	}
+}
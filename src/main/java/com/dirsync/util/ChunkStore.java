@@ -0,0 +1,566 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A deduplicating backup store. Files are split into chunks by a
+ * ContentChunker and each chunk is stored once, in a file named by the
+ * SHA-256 hash of its content, however many files or versions contain it.
+ * Each backed-up file is recorded as a recipe: its length, its last
+ * modified time and the list of its chunks. Restoring a file reads its
+ * chunks a few ahead of the one being written, on several threads, checks
+ * each against its name, and commits the result with a GroupCommit.
+ *
+ * The store directory holds a chunks directory, fanned out by the first
+ * bytes of each hash, a recipes directory that mirrors the relative names
+ * of the files backed up, and a properties file with the byte counts the
+ * dedupe ratio is worked out from.
+ */
+public class ChunkStore {
+
+	/**
+	 * The number of chunks read ahead of the one being restored.
+	 */
+	public static final int READ_AHEAD = 16;
+
+	/**
+	 * The number of threads chunks are read ahead on.
+	 */
+	private static final int READ_THREADS = 4;
+
+	private static final String RECIPE_SUFFIX = ".recipe";
+
+	private static final String STATISTICS_FILE_NAME = "store.properties";
+
+	private static final int RECIPE_MAGIC = 0x44534352;
+
+	private static final int RECIPE_VERSION = 1;
+
+	/**
+	 * Chunks are named by a hash that is safe against collisions, unlike
+	 * the hash used for duplicate searches.
+	 */
+	private static final HashAlgorithm CHUNK_HASH = StandardHashAlgorithm.SHA_256;
+
+	private final File chunkDirectory;
+
+	private final File recipeDirectory;
+
+	private final File statisticsFile;
+
+	private final ContentChunker chunker;
+
+	private IoRateLimiter rateLimiter = new IoRateLimiter();
+
+	/**
+	 * Chunks known to be in the store, by hex hash.
+	 */
+	private final HashSet<String> knownChunks = new HashSet<String>();
+
+	private long logicalBytes = 0;
+
+	private long storedBytes = 0;
+
+	private long chunkCount = 0;
+
+	/**
+	 * Open a store, creating it if the directory is empty.
+	 *
+	 * @param directory
+	 * @throws IOException
+	 */
+	public ChunkStore(String directory) throws IOException {
+		this(directory, new ContentChunker());
+	}
+
+	/**
+	 * @param directory
+	 * @param chunker
+	 *            Splits files that are backed up.
+	 * @throws IOException
+	 */
+	public ChunkStore(String directory, ContentChunker chunker)
+			throws IOException {
+		this.chunker = chunker;
+		chunkDirectory = new File(directory, "chunks");
+		recipeDirectory = new File(directory, "recipes");
+		statisticsFile = new File(directory, STATISTICS_FILE_NAME);
+		chunkDirectory.mkdirs();
+		recipeDirectory.mkdirs();
+		if (!chunkDirectory.isDirectory() || !recipeDirectory.isDirectory()) {
+			throw new IOException("Unable to create chunk store in "
+					+ directory);
+		}
+		if (statisticsFile.isFile()) {
+			Properties statistics = new Properties();
+			FileInputStream in = new FileInputStream(statisticsFile);
+			try {
+				statistics.load(in);
+			} finally {
+				in.close();
+			}
+			logicalBytes = Long.parseLong(statistics.getProperty(
+					"logicalBytes", "0"));
+			storedBytes = Long.parseLong(statistics.getProperty(
+					"storedBytes", "0"));
+			chunkCount = Long.parseLong(statistics.getProperty("chunkCount",
+					"0"));
+		}
+	}
+
+	/**
+	 * @param rateLimiter
+	 *            The limiter files are read through when backed up.
+	 */
+	public void setRateLimiter(IoRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Back up files into the store. A file whose recipe already records its
+	 * length and last modified time is skipped. A file that fails does not
+	 * stop the others.
+	 *
+	 * @param directory
+	 * @param fileNames
+	 *            Names relative to the directory, which the recipes keep.
+	 * @return The files backed up and the files that could not be. The
+	 *         bytes are the bytes of new chunks written to the store.
+	 * @throws IOException
+	 *             If the statistics cannot be saved.
+	 */
+	public BatchResult backup(String directory, Collection<String> fileNames)
+			throws IOException {
+		BatchResult result = new BatchResult();
+		long start = System.nanoTime();
+		// Chunks are flushed and renamed into place a group at a time, and
+		// recipes are committed only after the chunks they list.
+		BatchResult chunkResult = new BatchResult();
+		GroupCommit chunkCommit = new GroupCommit(chunkResult);
+		ArrayList<Recipe> recipes = new ArrayList<Recipe>();
+		try {
+			for (String fileName : fileNames) {
+				File file = new File(directory, fileName);
+				try {
+					Recipe previous = readRecipe(getRecipeFile(fileName));
+					if ((previous != null)
+							&& (previous.length == file.length())
+							&& (previous.lastModified == file.lastModified())) {
+						result.addSucceeded(fileName, 0);
+						continue;
+					}
+					Recipe recipe = chunkFile(file, chunkCommit);
+					recipe.fileName = fileName;
+					recipe.previousLength = (previous == null) ? 0
+							: previous.length;
+					recipes.add(recipe);
+				} catch (IOException ex) {
+					result.addFailed(fileName, ex);
+				}
+			}
+		} finally {
+			chunkCommit.commit();
+		}
+		storedBytes += chunkResult.getBytes();
+		chunkCount += chunkResult.getSucceeded().size();
+		if (!chunkResult.getFailed().isEmpty()) {
+			// A chunk that did not reach the store must not be referenced.
+			IOException failure = chunkResult.getFailed().values()
+					.iterator().next();
+			for (Recipe recipe : recipes) {
+				result.addFailed(recipe.fileName, failure);
+			}
+			knownChunks.clear();
+			saveStatistics();
+			return result;
+		}
+
+		BatchResult recipeResult = new BatchResult();
+		GroupCommit recipeCommit = new GroupCommit(recipeResult);
+		for (Recipe recipe : recipes) {
+			File recipeFile = getRecipeFile(recipe.fileName);
+			File tempFile = GroupCommit.getTempFile(recipeFile);
+			try {
+				recipeFile.getParentFile().mkdirs();
+				writeRecipe(recipe, tempFile);
+				recipeCommit.add(recipe.fileName, tempFile, recipeFile,
+						recipe.newBytes, null);
+			} catch (IOException ex) {
+				tempFile.delete();
+				result.addFailed(recipe.fileName, ex);
+			}
+		}
+		recipeCommit.commit();
+		for (String fileName : recipeResult.getFailed().keySet()) {
+			result.addFailed(fileName, recipeResult.getFailed().get(fileName));
+		}
+		HashSet<String> committed = new HashSet<String>(
+				recipeResult.getSucceeded());
+		for (Recipe recipe : recipes) {
+			if (committed.contains(recipe.fileName)) {
+				logicalBytes += recipe.length - recipe.previousLength;
+				result.addSucceeded(recipe.fileName, recipe.newBytes);
+			}
+		}
+		saveStatistics();
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Restore files from the store, keeping their relative names and last
+	 * modified times. Each file is written under a temporary name and only
+	 * replaces an existing file once it is complete.
+	 *
+	 * @param directory
+	 *            The directory to restore into.
+	 * @param fileNames
+	 *            Names as they were backed up.
+	 * @return The files restored and the files that could not be.
+	 */
+	public BatchResult restore(String directory, Collection<String> fileNames) {
+		BatchResult result = new BatchResult();
+		long start = System.nanoTime();
+		GroupCommit commit = new GroupCommit(result);
+		ExecutorService executor = Executors.newFixedThreadPool(READ_THREADS);
+		try {
+			for (String fileName : fileNames) {
+				File target = new File(directory, fileName);
+				File tempFile = GroupCommit.getTempFile(target);
+				try {
+					Recipe recipe = readRecipe(getRecipeFile(fileName));
+					if (recipe == null) {
+						throw new IOException("No recipe for " + fileName);
+					}
+					target.getParentFile().mkdirs();
+					restore(recipe, tempFile, executor);
+					tempFile.setLastModified(recipe.lastModified);
+					commit.add(fileName, tempFile, target, recipe.length, null);
+				} catch (IOException ex) {
+					tempFile.delete();
+					result.addFailed(fileName, ex);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			commit.commit();
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * @return The relative names of every file in the store.
+	 */
+	public ArrayList<String> list() {
+		ArrayList<String> fileNames = new ArrayList<String>();
+		String root = recipeDirectory.getPath() + File.separator;
+		ArrayDeque<File> directories = new ArrayDeque<File>();
+		directories.add(recipeDirectory);
+		while (!directories.isEmpty()) {
+			File[] entries = directories.poll().listFiles();
+			if (entries == null) {
+				continue;
+			}
+			for (File entry : entries) {
+				String name = entry.getPath();
+				if (entry.isDirectory()) {
+					directories.add(entry);
+				} else if (name.endsWith(RECIPE_SUFFIX)) {
+					fileNames.add(name.substring(root.length(), name.length()
+							- RECIPE_SUFFIX.length()));
+				}
+			}
+		}
+		return fileNames;
+	}
+
+	/**
+	 * @return The total length of the files in the store.
+	 */
+	public long getLogicalBytes() {
+		return logicalBytes;
+	}
+
+	/**
+	 * @return The total length of the chunks in the store.
+	 */
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * @return The number of distinct chunks in the store.
+	 */
+	public long getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * @return The length of the files divided by the length of the chunks
+	 *         that hold them, or 1 for an empty store.
+	 */
+	public double getDedupeRatio() {
+		return (storedBytes > 0) ? (double) logicalBytes / storedBytes : 1;
+	}
+
+	/**
+	 * Split a file and add the chunks the store does not have yet.
+	 */
+	private Recipe chunkFile(File file, final GroupCommit commit)
+			throws IOException {
+		final Recipe recipe = new Recipe();
+		recipe.lastModified = file.lastModified();
+		final Hasher hasher = CHUNK_HASH.newHasher();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			recipe.length = chunker.split(in.getChannel(), rateLimiter,
+					new ContentChunker.ChunkHandler() {
+						public void chunk(byte[] data, int offset, int length)
+								throws IOException {
+							hasher.update(data, offset, length);
+							byte[] hash = hasher.digest();
+							recipe.hashes.add(hash);
+							recipe.lengths.add(length);
+							if (storeChunk(hash, data, offset, length, commit)) {
+								recipe.newBytes += length;
+							}
+						}
+					});
+		} finally {
+			in.close();
+		}
+		return recipe;
+	}
+
+	/**
+	 * Write a chunk the store does not have yet.
+	 *
+	 * @return True if the chunk was new.
+	 */
+	private boolean storeChunk(byte[] hash, byte[] data, int offset,
+			int length, GroupCommit commit) throws IOException {
+		String hex = toHex(hash);
+		if (knownChunks.contains(hex)) {
+			return false;
+		}
+		File chunkFile = getChunkFile(hex);
+		boolean added = !chunkFile.isFile();
+		if (added) {
+			chunkFile.getParentFile().mkdirs();
+			File tempFile = GroupCommit.getTempFile(chunkFile);
+			FileOutputStream out = new FileOutputStream(tempFile);
+			try {
+				out.write(data, offset, length);
+			} catch (IOException ex) {
+				out.close();
+				tempFile.delete();
+				throw ex;
+			}
+			out.close();
+			commit.add(hex, tempFile, chunkFile, length, null);
+		}
+		knownChunks.add(hex);
+		return added;
+	}
+
+	/**
+	 * Write the chunks of a recipe to a file, reading them ahead on the
+	 * executor.
+	 */
+	private void restore(final Recipe recipe, File file,
+			ExecutorService executor) throws IOException {
+		ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		int next = 0;
+		long written = 0;
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			while ((next < recipe.hashes.size()) || !pending.isEmpty()) {
+				while ((next < recipe.hashes.size())
+						&& (pending.size() < READ_AHEAD)) {
+					final int index = next++;
+					pending.add(executor.submit(new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							return readChunk(recipe.hashes.get(index),
+									recipe.lengths.get(index));
+						}
+					}));
+				}
+				ByteBuffer chunk = ByteBuffer.wrap(pending.poll().get());
+				while (chunk.hasRemaining()) {
+					written += channel.write(chunk);
+				}
+			}
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			throw (cause instanceof IOException) ? (IOException) cause
+					: new IOException(cause);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while restoring "
+					+ recipe.fileName);
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+			out.close();
+		}
+		if (written != recipe.length) {
+			throw new IOException("Restored " + written + " of "
+					+ recipe.length + " bytes of " + recipe.fileName);
+		}
+	}
+
+	/**
+	 * Read a chunk and check it against its hash.
+	 */
+	private byte[] readChunk(byte[] hash, int length) throws IOException {
+		File chunkFile = getChunkFile(toHex(hash));
+		byte[] data = new byte[length];
+		DataInputStream in = new DataInputStream(new FileInputStream(
+				chunkFile));
+		try {
+			in.readFully(data);
+			if (in.read() >= 0) {
+				throw new IOException("Chunk " + chunkFile.getName()
+						+ " is longer than expected");
+			}
+		} finally {
+			in.close();
+		}
+		Hasher hasher = CHUNK_HASH.newHasher();
+		hasher.update(data, 0, length);
+		if (!MessageDigest.isEqual(hash, hasher.digest())) {
+			throw new IOException("Chunk " + chunkFile.getName()
+					+ " is damaged");
+		}
+		return data;
+	}
+
+	private File getChunkFile(String hex) {
+		return new File(new File(new File(chunkDirectory, hex.substring(0, 2)),
+				hex.substring(2, 4)), hex);
+	}
+
+	private File getRecipeFile(String fileName) {
+		return new File(recipeDirectory, fileName + RECIPE_SUFFIX);
+	}
+
+	/**
+	 * @return The recipe in a file, or null if there is none.
+	 */
+	private Recipe readRecipe(File file) throws IOException {
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if ((in.readInt() != RECIPE_MAGIC)
+					|| (in.readInt() != RECIPE_VERSION)) {
+				throw new IOException(file + " is not a recipe");
+			}
+			Recipe recipe = new Recipe();
+			recipe.length = in.readLong();
+			recipe.lastModified = in.readLong();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[CHUNK_HASH.getLength()];
+				in.readFully(hash);
+				recipe.hashes.add(hash);
+				recipe.lengths.add(in.readInt());
+			}
+			return recipe;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeRecipe(Recipe recipe, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			out.writeInt(RECIPE_MAGIC);
+			out.writeInt(RECIPE_VERSION);
+			out.writeLong(recipe.length);
+			out.writeLong(recipe.lastModified);
+			out.writeInt(recipe.hashes.size());
+			for (int i = 0; i < recipe.hashes.size(); i++) {
+				out.write(recipe.hashes.get(i));
+				out.writeInt(recipe.lengths.get(i));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void saveStatistics() throws IOException {
+		Properties statistics = new Properties();
+		statistics.setProperty("logicalBytes", Long.toString(logicalBytes));
+		statistics.setProperty("storedBytes", Long.toString(storedBytes));
+		statistics.setProperty("chunkCount", Long.toString(chunkCount));
+		FileOutputStream out = new FileOutputStream(statisticsFile);
+		try {
+			statistics.store(out, "Chunk store");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+			hex.append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * A file as a list of chunks.
+	 */
+	private static class Recipe {
+
+		String fileName;
+
+		long length;
+
+		long lastModified;
+
+		final ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+
+		final ArrayList<Integer> lengths = new ArrayList<Integer>();
+
+		/**
+		 * The length of the file when it was last backed up, or 0.
+		 */
+		long previousLength;
+
+		/**
+		 * The bytes of the chunks first stored for this file.
+		 */
+		long newBytes;
+	}
+}
@@ -0,0 +1,186 @@
+package com.dirsync.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+/**
+ * Splits data into chunks at boundaries chosen by the content rather than
+ * by position, so that inserting or removing bytes only changes the chunks
+ * around the edit and the rest of a file still splits into the same chunks.
+ * A gear hash rolls over the bytes, each byte shifting the hash left and
+ * adding a fixed random value, and a boundary falls where the top bits of
+ * the hash are all zero. Until a chunk reaches the average size more bits
+ * must be zero and after it fewer, which keeps chunk sizes close to the
+ * average. Chunks are never shorter than the minimum size, except at the
+ * end of the data, nor longer than the maximum.
+ */
+public class ContentChunker {
+
+	/**
+	 * The default smallest chunk.
+	 */
+	public static final int DEFAULT_MIN_SIZE = 16 * 1024;
+
+	/**
+	 * The default average chunk size, a power of two.
+	 */
+	public static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+
+	/**
+	 * The default largest chunk.
+	 */
+	public static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+	/**
+	 * The value added to the hash for each byte. The seed is fixed so that
+	 * the same data always splits the same way.
+	 */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x44534343L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/**
+	 * Receives the chunks of the data in order.
+	 */
+	public interface ChunkHandler {
+
+		/**
+		 * @param data
+		 *            Holds the chunk; only valid until the method returns.
+		 * @param offset
+		 * @param length
+		 * @throws IOException
+		 */
+		void chunk(byte[] data, int offset, int length) throws IOException;
+	}
+
+	private final int minSize;
+
+	private final int averageSize;
+
+	private final int maxSize;
+
+	/**
+	 * The bits that must be zero before the average size is reached.
+	 */
+	private final long smallMask;
+
+	/**
+	 * The bits that must be zero after the average size is reached.
+	 */
+	private final long largeMask;
+
+	public ContentChunker() {
+		this(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param minSize
+	 * @param averageSize
+	 *            A power of two between the minimum and maximum sizes.
+	 * @param maxSize
+	 */
+	public ContentChunker(int minSize, int averageSize, int maxSize) {
+		if ((minSize <= 0) || (averageSize <= minSize)
+				|| (maxSize <= averageSize)
+				|| (Integer.bitCount(averageSize) != 1)) {
+			throw new IllegalArgumentException("Chunk sizes must satisfy "
+					+ "0 < min < average < max, with average a power of two");
+		}
+		this.minSize = minSize;
+		this.averageSize = averageSize;
+		this.maxSize = maxSize;
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		smallMask = -1L << (64 - (bits + 1));
+		largeMask = -1L << (64 - (bits - 1));
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Find the end of the chunk that starts at an offset.
+	 *
+	 * @param data
+	 * @param offset
+	 *            The start of the chunk.
+	 * @param length
+	 *            The number of bytes available from the offset. Unless this
+	 *            is the end of the data, at least the maximum chunk size
+	 *            should be available.
+	 * @return The length of the chunk.
+	 */
+	public int cut(byte[] data, int offset, int length) {
+		if (length <= minSize) {
+			return length;
+		}
+		int end = offset + Math.min(length, maxSize);
+		int normal = offset + Math.min(length, averageSize);
+		long hash = 0;
+		int i = offset + minSize;
+		for (; i < normal; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xFF];
+			if ((hash & smallMask) == 0) {
+				return i - offset + 1;
+			}
+		}
+		for (; i < end; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xFF];
+			if ((hash & largeMask) == 0) {
+				return i - offset + 1;
+			}
+		}
+		return end - offset;
+	}
+
+	/**
+	 * Read a channel to the end and pass each chunk to a handler.
+	 *
+	 * @param channel
+	 * @param rateLimiter
+	 *            The limiter the channel is read through.
+	 * @param handler
+	 * @return The number of bytes read.
+	 * @throws IOException
+	 */
+	public long split(ReadableByteChannel channel, IoRateLimiter rateLimiter,
+			ChunkHandler handler) throws IOException {
+		byte[] data = new byte[maxSize * 2];
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int start = 0;
+		boolean eof = false;
+		long total = 0;
+		while (true) {
+			// Keep at least one maximum chunk ahead of the start.
+			if (!eof && (buffer.position() - start < maxSize)) {
+				buffer.limit(buffer.position());
+				buffer.position(start);
+				buffer.compact();
+				start = 0;
+				while (!eof && buffer.hasRemaining()) {
+					int read = rateLimiter.read(channel, buffer);
+					if (read < 0) {
+						eof = true;
+					} else {
+						total += read;
+					}
+				}
+			}
+			int available = buffer.position() - start;
+			if (available == 0) {
+				return total;
+			}
+			int length = cut(data, start, available);
+			handler.chunk(data, start, length);
+			start += length;
+		}
+	}
+}
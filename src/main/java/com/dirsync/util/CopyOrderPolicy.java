@@ -0,0 +1,26 @@
+package com.dirsync.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Decides the order in which a bulk copy processes its files. On spinning
+ * disks the order determines how far the heads travel, so different policies
+ * suit different devices.
+ */
+public interface CopyOrderPolicy {
+
+	/**
+	 * @return The name the policy is recorded under in throughput history.
+	 */
+	String getName();
+
+	/**
+	 * @param fromDirectory
+	 *            The directory the file names are relative to.
+	 * @param fileNames
+	 *            The files to copy.
+	 * @return The same file names in the order they should be copied.
+	 */
+	ArrayList<String> order(String fromDirectory, Collection<String> fileNames);
+}
@@ -0,0 +1,24 @@
+package com.dirsync.util;
+
+import java.util.Collection;
+
+/**
+ * Receives the differences between two directory trees in batches while
+ * they are being compared, one directory at a time.
+ */
+public interface DifferenceListener {
+
+	/**
+	 * @param fileNames
+	 *            Files in the first tree not in the second, relative to the
+	 *            root of the first tree.
+	 */
+	void onlyIn1(Collection<String> fileNames);
+
+	/**
+	 * @param fileNames
+	 *            Files in the second tree not in the first, relative to the
+	 *            root of the second tree.
+	 */
+	void onlyIn2(Collection<String> fileNames);
+}
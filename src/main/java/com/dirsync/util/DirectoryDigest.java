@@ -0,0 +1,573 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Merkle-style digests for every directory of a tree. The digest of a
+ * directory covers the names and sizes (and optionally times or contents) of
+ * its files and the names and digests of its subdirectories, so two
+ * directories with the same digest hold the same tree. Comparing two roots
+ * only descends into subtrees whose digests differ.
+ *
+ * Digests are saved between runs. When rebuilding with trusted directory
+ * times, a directory whose modification time has not changed keeps its saved
+ * file digest without listing it. A directory's time changes when entries
+ * are added, removed or renamed, but not when a file is rewritten in place.
+ * It can also miss an entry added within the time granularity of the file
+ * system, and some file systems, such as FAT, do not update it at all, so
+ * trusted rebuilds only suit archives on disks known to keep directory times
+ * whose files are never edited.
+ *
+ * In CONTENT mode files are hashed by the FileManager's hash engine, through
+ * its rate limiter and hash cache.
+ */
+public class DirectoryDigest {
+
+	/**
+	 * What the digest of a file covers.
+	 */
+	public enum Mode {
+
+		/**
+		 * File names and sizes. Copies made on another disk match.
+		 */
+		NAMES_AND_SIZES,
+
+		/**
+		 * File names, sizes and modification times.
+		 */
+		NAMES_SIZES_AND_TIMES,
+
+		/**
+		 * File names and a hash of each file's content.
+		 */
+		CONTENT
+	};
+
+	private static final int FILE_MAGIC = 0x44534447;
+
+	private static final int FILE_VERSION = 3;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final Mode mode;
+
+	private final HashMap<String, Node> nodes = new HashMap<String, Node>();
+
+	private CatalogFilter filter = new CatalogFilter();
+
+	/**
+	 * The text form of the filter the digests were built with.
+	 */
+	private String filterSpecification = "";
+
+	/**
+	 * The name of the algorithm file contents are hashed with in CONTENT
+	 * mode, or "".
+	 */
+	private String hashName = "";
+
+	private HashEngine hashEngine = null;
+
+	private HashCache hashCache = null;
+
+	private DirectoryDigest(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Build the digests of a directory tree.
+	 *
+	 * @param directory
+	 *            The root of the tree.
+	 * @param mode
+	 *            What the digest of a file covers.
+	 * @param previous
+	 *            Digests saved by an earlier build of the same tree, or null.
+	 * @param trustDirectoryTimes
+	 *            If true then reuse the saved file digest of any directory
+	 *            whose modification time has not changed.
+	 * @param fileManager
+	 *            Supplies the catalog filter, which decides the files and
+	 *            directories the digests cover, and in CONTENT mode the hash
+	 *            engine and hash cache.
+	 * @return The digests.
+	 * @throws IOException
+	 */
+	public static DirectoryDigest build(String directory, Mode mode,
+			DirectoryDigest previous, boolean trustDirectoryTimes,
+			FileManager fileManager) throws IOException {
+		DirectoryDigest digest = new DirectoryDigest(mode);
+		digest.filter = fileManager.getCatalogFilter();
+		digest.filterSpecification = digest.filter.toString();
+		if (mode == Mode.CONTENT) {
+			digest.hashEngine = fileManager.getHashEngine();
+			digest.hashCache = fileManager.getHashCache();
+			digest.hashName = digest.hashEngine.getAlgorithm().getName();
+		}
+		if ((previous != null) && !digest.isComparable(previous)) {
+			previous = null;
+		}
+		digest.digestDirectory(new File(directory), "", previous,
+				trustDirectoryTimes);
+		return digest;
+	}
+
+	/**
+	 * Load digests written by save.
+	 *
+	 * @param filePathAndName
+	 * @return The digests, or null if the file does not exist or is not a
+	 *         digest file.
+	 * @throws IOException
+	 */
+	public static DirectoryDigest load(String filePathAndName)
+			throws IOException {
+		File file = new File(filePathAndName);
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if ((in.readInt() != FILE_MAGIC) || (in.readInt() != FILE_VERSION)) {
+				return null;
+			}
+			DirectoryDigest digest = new DirectoryDigest(
+					Mode.values()[in.readInt()]);
+			digest.filterSpecification = in.readUTF();
+			digest.hashName = in.readUTF();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String relativeDirectory = in.readUTF();
+				Node node = new Node();
+				node.lastModified = in.readLong();
+				node.filesDigest = readBytes(in);
+				node.digest = readBytes(in);
+				int subdirectoryCount = in.readInt();
+				node.subdirectories = new ArrayList<String>(subdirectoryCount);
+				for (int j = 0; j < subdirectoryCount; j++) {
+					node.subdirectories.add(in.readUTF());
+				}
+				digest.nodes.put(relativeDirectory, node);
+			}
+			return digest;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the digests to a file.
+	 *
+	 * @param filePathAndName
+	 * @throws IOException
+	 */
+	public void save(String filePathAndName) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filePathAndName)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(mode.ordinal());
+			out.writeUTF(filterSpecification);
+			out.writeUTF(hashName);
+			out.writeInt(nodes.size());
+			for (String relativeDirectory : nodes.keySet()) {
+				Node node = nodes.get(relativeDirectory);
+				out.writeUTF(relativeDirectory);
+				out.writeLong(node.lastModified);
+				out.writeInt(node.filesDigest.length);
+				out.write(node.filesDigest);
+				out.writeInt(node.digest.length);
+				out.write(node.digest);
+				out.writeInt(node.subdirectories.size());
+				for (String subdirectory : node.subdirectories) {
+					out.writeUTF(subdirectory);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return What the digest of a file covers.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @param relativeDirectory
+	 *            A directory relative to the root, or "" for the root.
+	 * @return The digest of the directory, or null if it is not in the tree.
+	 */
+	public byte[] getDigest(String relativeDirectory) {
+		Node node = nodes.get(relativeDirectory);
+		return (node == null) ? null : node.digest.clone();
+	}
+
+	/**
+	 * @return The number of directories in the tree.
+	 */
+	public int getDirectoryCount() {
+		return nodes.size();
+	}
+
+	/**
+	 * @return The directories of the tree relative to the root, with "" for
+	 *         the root.
+	 */
+	public Set<String> getDirectories() {
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	/**
+	 * Add the files directly in one directory of the tree that the filter
+	 * the digests were built with accepts.
+	 *
+	 * @param directory
+	 *            The root of the tree.
+	 * @param relativeDirectory
+	 *            The directory relative to the root, or "" for the root.
+	 * @param files
+	 *            Receives the file names relative to the root.
+	 */
+	public void listFiles(String directory, String relativeDirectory,
+			Collection<String> files) {
+		for (String name : listFiles(new File(directory, relativeDirectory),
+				relativeDirectory).keySet()) {
+			files.add(join(relativeDirectory, name));
+		}
+	}
+
+	/**
+	 * Find the directories whose files differ between an older and a newer
+	 * build of the same tree, without reading the tree: only subtrees whose
+	 * digests differ are descended into. A directory in only one of the
+	 * builds is changed, and so is every directory under it.
+	 *
+	 * @param older
+	 * @param newer
+	 * @param directories
+	 *            Receives the changed directories relative to the root.
+	 * @return False if the builds differ in mode, filter or hash algorithm
+	 *         and cannot be compared.
+	 */
+	public static boolean changedDirectories(DirectoryDigest older,
+			DirectoryDigest newer, Collection<String> directories) {
+		if (!newer.isComparable(older)) {
+			return false;
+		}
+		changedDirectories(older, newer, "", directories);
+		return true;
+	}
+
+	/**
+	 * @return True if the other digests were built in the same mode, with the
+	 *         same filter and hash algorithm.
+	 */
+	private boolean isComparable(DirectoryDigest other) {
+		return (other.mode == mode)
+				&& other.filterSpecification.equals(filterSpecification)
+				&& other.hashName.equals(hashName);
+	}
+
+	private static void changedDirectories(DirectoryDigest older,
+			DirectoryDigest newer, String relativeDirectory,
+			Collection<String> directories) {
+		Node olderNode = older.nodes.get(relativeDirectory);
+		Node newerNode = newer.nodes.get(relativeDirectory);
+		TreeSet<String> subdirectories = new TreeSet<String>();
+		if ((olderNode != null) && (newerNode != null)) {
+			if (Arrays.equals(olderNode.digest, newerNode.digest)) {
+				return;
+			}
+			if (!Arrays.equals(olderNode.filesDigest, newerNode.filesDigest)) {
+				directories.add(relativeDirectory);
+			}
+			subdirectories.addAll(olderNode.subdirectories);
+			subdirectories.addAll(newerNode.subdirectories);
+		} else if (olderNode != null) {
+			directories.add(relativeDirectory);
+			subdirectories.addAll(olderNode.subdirectories);
+		} else if (newerNode != null) {
+			directories.add(relativeDirectory);
+			subdirectories.addAll(newerNode.subdirectories);
+		}
+		for (String subdirectory : subdirectories) {
+			changedDirectories(older, newer,
+					join(relativeDirectory, subdirectory), directories);
+		}
+	}
+
+	/**
+	 * Compare two trees, reading only the directories whose digests differ.
+	 * File names are relative to the roots, as returned by
+	 * FileManager.catalogDirectory.
+	 *
+	 * @param directory1
+	 *            The root of the first tree.
+	 * @param digest1
+	 *            The digests of the first tree.
+	 * @param directory2
+	 *            The root of the second tree.
+	 * @param digest2
+	 *            The digests of the second tree, built in the same mode and
+	 *            with the same filter.
+	 * @param onlyIn1
+	 *            Receives the files in the first tree not in the second.
+	 * @param onlyIn2
+	 *            Receives the files in the second tree not in the first.
+	 * @param changed
+	 *            Receives the files in both trees whose sizes differ, or
+	 *            whose times differ in NAMES_SIZES_AND_TIMES mode, or null.
+	 */
+	public static void compare(String directory1, DirectoryDigest digest1,
+			String directory2, DirectoryDigest digest2,
+			Collection<String> onlyIn1, Collection<String> onlyIn2,
+			Collection<String> changed) {
+		if (digest1.mode != digest2.mode) {
+			throw new IllegalArgumentException(
+					"Digests built in different modes cannot be compared");
+		}
+		compare(new File(directory1), digest1, new File(directory2), digest2,
+				"", onlyIn1, onlyIn2, changed);
+	}
+
+	private static void compare(File root1, DirectoryDigest digest1,
+			File root2, DirectoryDigest digest2, String relativeDirectory,
+			Collection<String> onlyIn1, Collection<String> onlyIn2,
+			Collection<String> changed) {
+		Node node1 = digest1.nodes.get(relativeDirectory);
+		Node node2 = digest2.nodes.get(relativeDirectory);
+		if (Arrays.equals(node1.digest, node2.digest)) {
+			return;
+		}
+		if (!Arrays.equals(node1.filesDigest, node2.filesDigest)) {
+			TreeMap<String, File> files1 = digest1.listFiles(new File(root1,
+					relativeDirectory), relativeDirectory);
+			TreeMap<String, File> files2 = digest2.listFiles(new File(root2,
+					relativeDirectory), relativeDirectory);
+			for (String name : files1.keySet()) {
+				File file2 = files2.get(name);
+				if (file2 == null) {
+					onlyIn1.add(join(relativeDirectory, name));
+				} else if ((changed != null)
+						&& digest1.isChanged(files1.get(name), file2)) {
+					changed.add(join(relativeDirectory, name));
+				}
+			}
+			for (String name : files2.keySet()) {
+				if (!files1.containsKey(name)) {
+					onlyIn2.add(join(relativeDirectory, name));
+				}
+			}
+		}
+		TreeSet<String> subdirectories = new TreeSet<String>(
+				node1.subdirectories);
+		subdirectories.addAll(node2.subdirectories);
+		for (String subdirectory : subdirectories) {
+			String relativeSubdirectory = join(relativeDirectory, subdirectory);
+			boolean in1 = digest1.nodes.containsKey(relativeSubdirectory);
+			boolean in2 = digest2.nodes.containsKey(relativeSubdirectory);
+			if (in1 && in2) {
+				compare(root1, digest1, root2, digest2, relativeSubdirectory,
+						onlyIn1, onlyIn2, changed);
+			} else if (in1) {
+				digest1.listTree(root1, relativeSubdirectory, onlyIn1);
+			} else {
+				digest2.listTree(root2, relativeSubdirectory, onlyIn2);
+			}
+		}
+	}
+
+	private boolean isChanged(File file1, File file2) {
+		return (file1.length() != file2.length())
+				|| ((mode == Mode.NAMES_SIZES_AND_TIMES) && (file1
+						.lastModified() != file2.lastModified()));
+	}
+
+	/**
+	 * Add every file of a subtree to a collection.
+	 */
+	private void listTree(File root, String relativeDirectory,
+			Collection<String> files) {
+		for (String name : listFiles(new File(root, relativeDirectory),
+				relativeDirectory).keySet()) {
+			files.add(join(relativeDirectory, name));
+		}
+		Node node = nodes.get(relativeDirectory);
+		for (String subdirectory : node.subdirectories) {
+			listTree(root, join(relativeDirectory, subdirectory), files);
+		}
+	}
+
+	/**
+	 * @return The digest of the directory.
+	 */
+	private byte[] digestDirectory(File directory, String relativeDirectory,
+			DirectoryDigest previous, boolean trustDirectoryTimes)
+			throws IOException {
+		Node node = new Node();
+		node.lastModified = directory.lastModified();
+		Node previousNode = (previous == null) ? null : previous.nodes
+				.get(relativeDirectory);
+		if (trustDirectoryTimes && (previousNode != null)
+				&& (previousNode.lastModified == node.lastModified)) {
+			node.filesDigest = previousNode.filesDigest;
+			node.subdirectories = previousNode.subdirectories;
+		} else {
+			MessageDigest filesDigest = newMessageDigest();
+			TreeMap<String, File> files = listFiles(directory,
+					relativeDirectory);
+			HashMap<String, byte[]> hashes = (mode == Mode.CONTENT) ? hashEngine
+					.hashFiles(directory.getPath(), files.keySet(), hashCache)
+					: null;
+			for (String name : files.keySet()) {
+				File file = files.get(name);
+				filesDigest.update(name.getBytes(UTF_8));
+				filesDigest.update((byte) 0);
+				if (mode == Mode.CONTENT) {
+					byte[] hash = hashes.get(name);
+					if (hash == null) {
+						throw new IOException("Unable to hash " + file);
+					}
+					filesDigest.update(hash);
+				} else {
+					update(filesDigest, file.length());
+					if (mode == Mode.NAMES_SIZES_AND_TIMES) {
+						update(filesDigest, file.lastModified());
+					}
+				}
+			}
+			node.filesDigest = filesDigest.digest();
+			node.subdirectories = listSubdirectories(directory,
+					relativeDirectory);
+		}
+
+		MessageDigest digest = newMessageDigest();
+		digest.update(node.filesDigest);
+		ArrayList<String> subdirectories = new ArrayList<String>();
+		for (String subdirectory : node.subdirectories) {
+			File subdirectoryFile = new File(directory, subdirectory);
+			if (subdirectoryFile.isDirectory()) {
+				byte[] subdirectoryDigest = digestDirectory(subdirectoryFile,
+						join(relativeDirectory, subdirectory), previous,
+						trustDirectoryTimes);
+				digest.update(subdirectory.getBytes(UTF_8));
+				digest.update((byte) 0);
+				digest.update(subdirectoryDigest);
+				subdirectories.add(subdirectory);
+			}
+		}
+		node.subdirectories = subdirectories;
+		node.digest = digest.digest();
+		nodes.put(relativeDirectory, node);
+		return node.digest;
+	}
+
+	/**
+	 * @return The files of a directory accepted by the filter, by name,
+	 *         leaving out pack archive files and uncommitted copies.
+	 */
+	private TreeMap<String, File> listFiles(File directory,
+			String relativeDirectory) {
+		TreeMap<String, File> files = new TreeMap<String, File>();
+		File[] children = directory.listFiles();
+		if (children != null) {
+			boolean needsAttributes = filter.needsAttributes();
+			for (File child : children) {
+				if (child.isFile()
+						&& !PackArchive.isArchiveFile(child.getName())
+						&& !GroupCommit.isTempFile(child.getName())
+						&& filter.acceptFile(
+								join(relativeDirectory, child.getName()),
+								needsAttributes ? child.length() : 0,
+								needsAttributes ? child.lastModified() : 0)) {
+					files.put(child.getName(), child);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @return The names of the subdirectories accepted by the filter, sorted.
+	 */
+	private ArrayList<String> listSubdirectories(File directory,
+			String relativeDirectory) {
+		ArrayList<String> subdirectories = new ArrayList<String>();
+		File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()
+						&& filter.acceptDirectory(join(relativeDirectory,
+								child.getName()))) {
+					subdirectories.add(child.getName());
+				}
+			}
+		}
+		Collections.sort(subdirectories);
+		return subdirectories;
+	}
+
+	private static void update(MessageDigest digest, long value) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			digest.update((byte) (value >>> shift));
+		}
+	}
+
+	private static MessageDigest newMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private static String join(String relativeDirectory, String name) {
+		return (relativeDirectory.length() == 0) ? name : relativeDirectory
+				+ File.separator + name;
+	}
+
+	/**
+	 * The saved state of one directory.
+	 */
+	private static class Node {
+
+		long lastModified;
+
+		byte[] filesDigest;
+
+		byte[] digest;
+
+		ArrayList<String> subdirectories;
+	}
+}
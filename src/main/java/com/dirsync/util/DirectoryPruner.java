@@ -0,0 +1,142 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Removes empty directories. After a batch of deletes or moves only the
+ * directories the batch touched can have become empty, so pruneUpward starts
+ * from those and walks towards the root, stopping at the first directory
+ * that is not empty. Nothing is listed: removing a directory that is not
+ * empty fails, and that failure is the test. pruneTree handles a whole tree
+ * in parallel, listing each directory once and removing it after its
+ * subdirectories.
+ */
+public class DirectoryPruner {
+
+	private DirectoryPruner() {
+	}
+
+	/**
+	 * Remove the touched directories that are empty, and then each parent
+	 * that becomes empty, up to but not including the root.
+	 *
+	 * @param root
+	 * @param touched
+	 *            Directories under the root that files were deleted or moved
+	 *            from.
+	 * @return The number of directories removed.
+	 */
+	public static int pruneUpward(File root, Collection<File> touched) {
+		String rootPath = root.getAbsolutePath();
+		ArrayList<File> deepestFirst = new ArrayList<File>();
+		for (File directory : touched) {
+			deepestFirst.add(directory.getAbsoluteFile());
+		}
+		Collections.sort(deepestFirst, new Comparator<File>() {
+			public int compare(File file1, File file2) {
+				return file2.getPath().length() - file1.getPath().length();
+			}
+		});
+		HashSet<String> removedPaths = new HashSet<String>();
+		int removed = 0;
+		for (File directory : deepestFirst) {
+			// A parent that still held a sibling when an earlier directory
+			// was removed is tried again after each later one.
+			while ((directory != null) && isBelow(directory, rootPath)
+					&& !removedPaths.contains(directory.getPath())) {
+				if (!directory.isDirectory() || !directory.delete()) {
+					break;
+				}
+				removedPaths.add(directory.getPath());
+				removed++;
+				directory = directory.getParentFile();
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove every empty directory in a tree, in parallel. A directory left
+	 * holding only empty directories is removed too.
+	 *
+	 * @param root
+	 * @param includeRoot
+	 *            If true then the root is removed if it ends up empty.
+	 * @return The number of directories removed.
+	 */
+	public static int pruneTree(File root, boolean includeRoot) {
+		AtomicInteger removed = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new PruneTask(root, includeRoot, removed));
+		} finally {
+			pool.shutdown();
+		}
+		return removed.get();
+	}
+
+	private static boolean isBelow(File directory, String rootPath) {
+		String path = directory.getPath();
+		return (path.length() > rootPath.length())
+				&& path.startsWith(rootPath)
+				&& ((path.charAt(rootPath.length()) == File.separatorChar) || rootPath
+						.endsWith(File.separator));
+	}
+
+	/**
+	 * Prunes one directory after its subdirectories, and reports whether it
+	 * was removed.
+	 */
+	private static class PruneTask extends RecursiveTask<Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final File directory;
+
+		private final boolean removable;
+
+		private final AtomicInteger removed;
+
+		PruneTask(File directory, boolean removable, AtomicInteger removed) {
+			this.directory = directory;
+			this.removable = removable;
+			this.removed = removed;
+		}
+
+		@Override
+		protected Boolean compute() {
+			File[] entries = directory.listFiles();
+			if (entries == null) {
+				return false;
+			}
+			boolean empty = true;
+			ArrayList<PruneTask> subdirectories = new ArrayList<PruneTask>();
+			for (File entry : entries) {
+				if (entry.isDirectory()) {
+					subdirectories.add(new PruneTask(entry, true, removed));
+				} else {
+					empty = false;
+				}
+			}
+			invokeAll(subdirectories);
+			for (PruneTask subdirectory : subdirectories) {
+				if (!subdirectory.join()) {
+					empty = false;
+				}
+			}
+			if (empty && removable && directory.delete()) {
+				removed.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
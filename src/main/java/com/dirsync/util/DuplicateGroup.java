@@ -0,0 +1,59 @@
+package com.dirsync.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Files of the same size believed to hold the same bytes, with how much of
+ * each file was compared. A confirmed group was compared in full; an
+ * unconfirmed group only matched on sampled chunks. Coverage is not a
+ * likelihood: files that differ only outside the sampled chunks match at any
+ * coverage below 1.
+ */
+public class DuplicateGroup {
+
+	private final ArrayList<String> fileNames;
+
+	private final long size;
+
+	private final double coverage;
+
+	/**
+	 * @param fileNames
+	 *            The relative names of the files.
+	 * @param size
+	 *            The size of each file.
+	 * @param coverage
+	 *            The fraction of each file that was compared, 1 if the whole
+	 *            files match.
+	 */
+	public DuplicateGroup(Collection<String> fileNames, long size,
+			double coverage) {
+		this.fileNames = new ArrayList<String>(fileNames);
+		this.size = size;
+		this.coverage = coverage;
+	}
+
+	public ArrayList<String> getFileNames() {
+		return new ArrayList<String>(fileNames);
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return The fraction of each file that was compared, 1 if the whole
+	 *         files match.
+	 */
+	public double getCoverage() {
+		return coverage;
+	}
+
+	/**
+	 * @return True if the whole files match.
+	 */
+	public boolean isConfirmed() {
+		return coverage >= 1;
+	}
+}
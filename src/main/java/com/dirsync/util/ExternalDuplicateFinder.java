@@ -0,0 +1,302 @@
+package com.dirsync.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Finds duplicate files in a fixed amount of memory, however many files
+ * there are. Paths are written to a file as the tree is walked, and each is
+ * known by its offset in that file. (size, path) records are sorted on disk
+ * so that files of equal size come together. Only files that share a size
+ * are hashed, and (hash, path) records are sorted the same way so that
+ * duplicates come together. Neither the catalog nor the groups are held in
+ * memory: each duplicate is passed to a handler as soon as it is found.
+ * Files with equal hashes are compared byte for byte before they are
+ * reported, as findDuplicates does, unless confirmation is turned off, in
+ * which case a match is only probable.
+ */
+public class ExternalDuplicateFinder {
+
+	/**
+	 * The default number of records sorted in memory at a time, 16 MB of
+	 * records with 64 bit hashes.
+	 */
+	public static final int DEFAULT_RECORDS_IN_MEMORY = 1024 * 1024;
+
+	/**
+	 * Receives duplicates as they are found.
+	 */
+	public interface PairHandler {
+
+		/**
+		 * @param original
+		 *            The relative name of the first file of a group.
+		 * @param duplicate
+		 *            The relative name of a file with the same content.
+		 * @throws IOException
+		 */
+		void duplicate(String original, String duplicate) throws IOException;
+	}
+
+	private final FileManager fileManager;
+
+	private final CatalogFilter filter;
+
+	private final HashEngine hashEngine;
+
+	private final int recordsInMemory;
+
+	private final File workDirectory;
+
+	private boolean confirm = true;
+
+	/**
+	 * @param fileManager
+	 *            Gives the catalog filter for the files and directories to
+	 *            look at, the engine files are hashed with, and the byte
+	 *            comparison that confirms them.
+	 * @param recordsInMemory
+	 *            The number of records each sort holds in memory.
+	 * @param workDirectory
+	 *            Where the path file and sorted runs are written. It should
+	 *            have room for about 60 bytes per file.
+	 */
+	public ExternalDuplicateFinder(FileManager fileManager,
+			int recordsInMemory, File workDirectory) {
+		this.fileManager = fileManager;
+		this.filter = fileManager.getCatalogFilter();
+		this.hashEngine = fileManager.getHashEngine();
+		this.recordsInMemory = recordsInMemory;
+		this.workDirectory = workDirectory;
+	}
+
+	/**
+	 * @param confirm
+	 *            If false then files are reported as duplicates when their
+	 *            hashes are equal, without reading them again. With a 64 bit
+	 *            hash that is very likely but not certain.
+	 */
+	public void setConfirm(boolean confirm) {
+		this.confirm = confirm;
+	}
+
+	/**
+	 * @param directory
+	 * @param recursively
+	 * @param handler
+	 * @return The number of duplicates found.
+	 * @throws IOException
+	 */
+	public long find(String directory, boolean recursively,
+			PairHandler handler) throws IOException {
+		File pathFile = File.createTempFile("paths", ".dat", workDirectory);
+		ExternalSorter sizes = new ExternalSorter(8, recordsInMemory,
+				workDirectory);
+		ExternalSorter hashes = new ExternalSorter(hashEngine.getAlgorithm()
+				.getLength(), recordsInMemory,
+				workDirectory);
+		RandomAccessFile paths = null;
+		try {
+			catalog(new File(directory).getAbsoluteFile(), recursively,
+					pathFile, sizes);
+			paths = new RandomAccessFile(pathFile, "r");
+			hashSameSizes(directory, paths, sizes, hashes);
+			sizes.close();
+			return reportSameHashes(directory, paths, hashes, handler);
+		} finally {
+			if (paths != null) {
+				paths.close();
+			}
+			sizes.close();
+			hashes.close();
+			pathFile.delete();
+		}
+	}
+
+	/**
+	 * Walk the tree, writing each path to the path file and a (size, path)
+	 * record to the sorter. A path is known by its offset in the file, which
+	 * is counted here since DataOutputStream.size() stops at 2 GB.
+	 */
+	private void catalog(File root, boolean recursively, File pathFile,
+			ExternalSorter sizes) throws IOException {
+		// A root such as "/" already ends with a separator.
+		int rootLength = root.getPath().endsWith(File.separator) ? root
+				.getPath().length() : root.getPath().length() + 1;
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(pathFile), 64 * 1024));
+		try {
+			long offset = 0;
+			ArrayDeque<File> pending = new ArrayDeque<File>();
+			pending.push(root);
+			while (!pending.isEmpty()) {
+				File[] entries = pending.pop().listFiles();
+				if (entries == null) {
+					continue;
+				}
+				for (File entry : entries) {
+					String relativeName = entry.getPath().substring(rootLength);
+					if (entry.isFile()) {
+						if (PackArchive.isArchiveFile(entry.getName())
+								|| GroupCommit.isTempFile(entry.getName())) {
+							continue;
+						}
+						long size = entry.length();
+						if (!filter.isEmpty()
+								&& !filter.acceptFile(relativeName, size, filter
+										.needsAttributes() ? entry
+										.lastModified() : 0)) {
+							continue;
+						}
+						long id = offset;
+						out.writeUTF(relativeName);
+						offset += 2 + getUtfLength(relativeName);
+						sizes.add(ByteBuffer.allocate(8).putLong(size).array(),
+								id);
+					} else if (entry.isDirectory() && recursively
+							&& (filter.isEmpty() || filter
+									.acceptDirectory(relativeName))) {
+						pending.push(entry);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Hash every file that shares its size with another, writing a (hash,
+	 * path) record for each.
+	 */
+	private void hashSameSizes(String directory, RandomAccessFile paths,
+			ExternalSorter sizes, ExternalSorter hashes) throws IOException {
+		ExternalSorter.Reader reader = sizes.sorted();
+		try {
+			byte[] previousKey = null;
+			long previousId = -1;
+			boolean previousHashed = false;
+			while (reader.next()) {
+				if ((previousKey != null) && reader.hasKey(previousKey)) {
+					if (!previousHashed) {
+						hash(directory, paths, previousId, hashes);
+						previousHashed = true;
+					}
+					hash(directory, paths, reader.getId(), hashes);
+				} else {
+					previousKey = reader.getKey();
+					previousHashed = false;
+				}
+				previousId = reader.getId();
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void hash(String directory, RandomAccessFile paths, long id,
+			ExternalSorter hashes) throws IOException {
+		File file = new File(directory, readPath(paths, id));
+		try {
+			hashes.add(hashEngine.hash(file), id);
+		} catch (InterruptedIOException e) {
+			throw e;
+		} catch (IOException e) {
+			// A file that cannot be read cannot be shown to be a duplicate.
+		}
+	}
+
+	/**
+	 * Pass each run of equal hashes to the handler as pairs with the first
+	 * file of the run that has the same content. With confirmation on, each
+	 * file is compared with the distinct contents seen so far in the run,
+	 * which is a single one unless hashes collided.
+	 *
+	 * @return The number of pairs.
+	 */
+	private long reportSameHashes(String directory, RandomAccessFile paths,
+			ExternalSorter hashes, PairHandler handler) throws IOException {
+		long found = 0;
+		ExternalSorter.Reader reader = hashes.sorted();
+		try {
+			byte[] previousKey = null;
+			ArrayList<String> originals = new ArrayList<String>();
+			while (reader.next()) {
+				String path = readPath(paths, reader.getId());
+				if ((previousKey == null) || !reader.hasKey(previousKey)) {
+					previousKey = reader.getKey();
+					originals.clear();
+					originals.add(path);
+					continue;
+				}
+				String original = confirm ? findSame(directory, originals,
+						path) : originals.get(0);
+				if (original != null) {
+					handler.duplicate(original, path);
+					found++;
+				} else {
+					originals.add(path);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return found;
+	}
+
+	/**
+	 * @return The first of the originals with the same bytes as the file, or
+	 *         null.
+	 */
+	private String findSame(String directory, ArrayList<String> originals,
+			String path) throws IOException {
+		File file = new File(directory, path);
+		for (String original : originals) {
+			try {
+				if (fileManager.contentEquals(new File(directory, original),
+						file)) {
+					return original;
+				}
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				// A file that cannot be read cannot be shown to be a duplicate.
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The number of bytes writeUTF encodes a string in, after its
+	 *         length.
+	 */
+	static int getUtfLength(String text) {
+		int length = 0;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if ((c >= 0x0001) && (c <= 0x007F)) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private String readPath(RandomAccessFile paths, long id)
+			throws IOException {
+		paths.seek(id);
+		return paths.readUTF();
+	}
+}
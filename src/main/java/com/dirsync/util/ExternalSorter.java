@@ -0,0 +1,290 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts any number of fixed-width records in a fixed amount of memory.
+ * Each record is a key of a fixed number of bytes and a long id. Records
+ * are collected in one byte array; when it is full it is sorted and written
+ * to a run file, and the runs are merged when the sorted records are read.
+ * Keys compare as unsigned bytes, so big-endian non-negative numbers sort
+ * numerically; records with equal keys sort by id.
+ */
+public class ExternalSorter {
+
+	private final int keyWidth;
+
+	private final int recordWidth;
+
+	private final int recordsInMemory;
+
+	private final File workDirectory;
+
+	private final byte[] records;
+
+	private int count = 0;
+
+	private final ArrayList<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param keyWidth
+	 *            The number of bytes in each key.
+	 * @param recordsInMemory
+	 *            The number of records held before a run is written.
+	 * @param workDirectory
+	 *            Where run files are written.
+	 */
+	public ExternalSorter(int keyWidth, int recordsInMemory, File workDirectory) {
+		this.keyWidth = keyWidth;
+		this.recordWidth = keyWidth + 8;
+		this.recordsInMemory = recordsInMemory;
+		this.workDirectory = workDirectory;
+		this.records = new byte[recordsInMemory * recordWidth];
+	}
+
+	/**
+	 * @param key
+	 *            keyWidth bytes.
+	 * @param id
+	 * @throws IOException
+	 *             If a run could not be written.
+	 */
+	public void add(byte[] key, long id) throws IOException {
+		if (count == recordsInMemory) {
+			spill();
+		}
+		int offset = count * recordWidth;
+		System.arraycopy(key, 0, records, offset, keyWidth);
+		for (int i = 7; i >= 0; i--) {
+			records[offset + keyWidth + i] = (byte) id;
+			id >>>= 8;
+		}
+		count++;
+	}
+
+	/**
+	 * Finish adding and read the records back in order. The reader must be
+	 * closed.
+	 *
+	 * @return A reader positioned before the first record.
+	 * @throws IOException
+	 */
+	public Reader sorted() throws IOException {
+		if (count > 0) {
+			spill();
+		}
+		return new Reader();
+	}
+
+	/**
+	 * Delete the run files.
+	 */
+	public void close() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * Sort the records in memory and write them as a run.
+	 */
+	private void spill() throws IOException {
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		mergeSort(order, new int[count], 0, count);
+		File run = File.createTempFile("run", ".dat", workDirectory);
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(run), 64 * 1024));
+		try {
+			for (int i = 0; i < count; i++) {
+				out.write(records, order[i] * recordWidth, recordWidth);
+			}
+		} finally {
+			out.close();
+		}
+		count = 0;
+	}
+
+	/**
+	 * Sort record numbers without creating an object per record.
+	 */
+	private void mergeSort(int[] order, int[] scratch, int from, int to) {
+		if (to - from < 2) {
+			return;
+		}
+		int middle = (from + to) >>> 1;
+		mergeSort(order, scratch, from, middle);
+		mergeSort(order, scratch, middle, to);
+		if (compare(records, order[middle - 1] * recordWidth, records,
+				order[middle] * recordWidth) <= 0) {
+			return;
+		}
+		System.arraycopy(order, from, scratch, from, to - from);
+		int left = from;
+		int right = middle;
+		for (int i = from; i < to; i++) {
+			if ((right >= to)
+					|| ((left < middle) && (compare(records, scratch[left]
+							* recordWidth, records, scratch[right]
+							* recordWidth) <= 0))) {
+				order[i] = scratch[left++];
+			} else {
+				order[i] = scratch[right++];
+			}
+		}
+	}
+
+	private int compare(byte[] a, int aOffset, byte[] b, int bOffset) {
+		for (int i = 0; i < recordWidth; i++) {
+			int difference = (a[aOffset + i] & 0xFF) - (b[bOffset + i] & 0xFF);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Reads the sorted records by merging the runs.
+	 */
+	public class Reader {
+
+		private final PriorityQueue<Run> queue;
+
+		private byte[] current = null;
+
+		private Reader() throws IOException {
+			queue = new PriorityQueue<Run>(Math.max(1, runs.size()),
+					new Comparator<Run>() {
+						public int compare(Run run1, Run run2) {
+							return ExternalSorter.this.compare(run1.record, 0,
+									run2.record, 0);
+						}
+					});
+			try {
+				for (File run : runs) {
+					Run reader = new Run(run);
+					if (reader.next()) {
+						queue.add(reader);
+					} else {
+						reader.close();
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Move to the next record.
+		 *
+		 * @return False if there are no more records.
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			Run run = queue.poll();
+			if (run == null) {
+				current = null;
+				return false;
+			}
+			current = run.record.clone();
+			if (run.next()) {
+				queue.add(run);
+			} else {
+				run.close();
+			}
+			return true;
+		}
+
+		/**
+		 * @return The key of the current record.
+		 */
+		public byte[] getKey() {
+			byte[] key = new byte[keyWidth];
+			System.arraycopy(current, 0, key, 0, keyWidth);
+			return key;
+		}
+
+		/**
+		 * @param key
+		 * @return True if the current record has the key.
+		 */
+		public boolean hasKey(byte[] key) {
+			for (int i = 0; i < keyWidth; i++) {
+				if (current[i] != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * @return The id of the current record.
+		 */
+		public long getId() {
+			long id = 0;
+			for (int i = 0; i < 8; i++) {
+				id = (id << 8) | (current[keyWidth + i] & 0xFF);
+			}
+			return id;
+		}
+
+		/**
+		 * Close every run still open.
+		 */
+		public void close() {
+			for (Run run : queue) {
+				run.close();
+			}
+			queue.clear();
+		}
+	}
+
+	/**
+	 * One run file being read.
+	 */
+	private class Run {
+
+		final DataInputStream in;
+
+		final byte[] record = new byte[recordWidth];
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file), 64 * 1024));
+		}
+
+		boolean next() throws IOException {
+			try {
+				in.readFully(record);
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Only read from; nothing is lost.
+			}
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies a batch of files to several destinations while reading each source
+ * only once. One thread reads the sources into a fixed pool of direct
+ * buffers and hands every filled buffer to a writer thread per destination,
+ * so each destination writes as fast as it can. A buffer goes back to the
+ * pool once every writer has written it, so the slowest destination falls
+ * behind by at most the pool before the reader waits for it. The pool spans
+ * file boundaries: the reader starts on the next file while the writers are
+ * still finishing the previous one. A destination that cannot write a file
+ * drops that file and carries on with the next; the other destinations are
+ * not affected. Each destination's copies are written under temporary
+ * names, keep the source's last modified time, and are renamed into place by
+ * a GroupCommit of its own.
+ *
+ * With a single destination this is the pipelined copy of PipelinedCopier.
+ */
+public class FanOutCopier {
+
+	/**
+	 * The default number of buffers in the pool, the number of blocks the
+	 * slowest destination may fall behind by.
+	 */
+	public static final int DEFAULT_QUEUE_BLOCKS = 8;
+
+	/**
+	 * The default size of each block read.
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final int queueBlocks;
+
+	private final int blockSize;
+
+	private boolean verify = false;
+
+	private HashCache hashCache = null;
+
+	private HashAlgorithm hashAlgorithm = HashEngine.DEFAULT_ALGORITHM;
+
+	private IoRateLimiter rateLimiter = new IoRateLimiter();
+
+	public FanOutCopier() {
+		this(DEFAULT_QUEUE_BLOCKS, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param queueBlocks
+	 *            The number of buffers in the pool, at least 1, which is the
+	 *            number of blocks the slowest destination may fall behind by.
+	 * @param blockSize
+	 *            The size of each buffer in bytes.
+	 */
+	public FanOutCopier(int queueBlocks, int blockSize) {
+		if (queueBlocks < 1 || blockSize <= 0) {
+			throw new IllegalArgumentException(
+					"A fan-out copy needs a queue of non-empty blocks");
+		}
+		this.queueBlocks = queueBlocks;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param verify
+	 *            If true then the reader hashes each source as it goes, and
+	 *            each writer flushes its copy to the device and reads it back
+	 *            once to check it. A copy that does not match fails at that
+	 *            destination only.
+	 */
+	public void setVerify(boolean verify) {
+		this.verify = verify;
+	}
+
+	/**
+	 * @param rateLimiter
+	 *            The limiter the reader and verification read through.
+	 */
+	public void setRateLimiter(IoRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * @param hashAlgorithm
+	 *            The algorithm verification hashes with, which must match
+	 *            the hash cache's.
+	 */
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	/**
+	 * @param hashCache
+	 *            Where verified copies record the hashes of the source and the
+	 *            copies, or null.
+	 */
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * Copy files from one directory to each of several others, keeping their
+	 * relative names. The destination directories must already exist.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectories
+	 * @param fileNames
+	 *            The names of the files relative to every directory, in the
+	 *            order they should be copied.
+	 * @return For each destination, in order, the files that were copied
+	 *         there and the files that could not be.
+	 */
+	public LinkedHashMap<String, BatchResult> copyFiles(String fromDirectory,
+			List<String> toDirectories, List<String> fileNames) {
+		ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<ByteBuffer>(
+				queueBlocks);
+		for (int i = 0; i < queueBlocks; i++) {
+			pool.add(ByteBuffer.allocateDirect(blockSize));
+		}
+		HashEngine hashEngine = verify ? new HashEngine(hashAlgorithm,
+				rateLimiter) : null;
+		LinkedHashMap<String, BatchResult> results = new LinkedHashMap<String, BatchResult>();
+		ArrayList<Writer> writers = new ArrayList<Writer>();
+		for (String toDirectory : toDirectories) {
+			BatchResult result = new BatchResult();
+			results.put(toDirectory, result);
+			Writer writer = new Writer(fromDirectory, toDirectory, fileNames,
+					pool, hashEngine, result);
+			writers.add(writer);
+			Thread thread = new Thread(writer, "dirsync-fanout-writer-"
+					+ writers.size());
+			thread.setDaemon(true);
+			writer.thread = thread;
+			thread.start();
+		}
+
+		try {
+			for (int i = 0; i < fileNames.size(); i++) {
+				read(i, new File(fromDirectory, fileNames.get(i)), pool,
+						writers);
+			}
+			for (Writer writer : writers) {
+				writer.queue.put(Block.END);
+			}
+			for (Writer writer : writers) {
+				writer.thread.join();
+			}
+		} catch (InterruptedException e) {
+			for (Writer writer : writers) {
+				writer.thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+		}
+		return results;
+	}
+
+	/**
+	 * Read one file into buffers from the pool and hand each to every
+	 * writer. A read failure is passed on as an error block, failing the file
+	 * at every destination.
+	 */
+	private void read(int index, File file, ArrayBlockingQueue<ByteBuffer> pool,
+			List<Writer> writers) throws InterruptedException {
+		FileInputStream in = null;
+		ByteBuffer buffer = null;
+		Hasher hasher = verify ? hashAlgorithm.newHasher() : null;
+		try {
+			in = new FileInputStream(file);
+			FileChannel channel = in.getChannel();
+			long lastModified = file.lastModified();
+			boolean last = false;
+			while (!last) {
+				buffer = pool.take();
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					if (rateLimiter.read(channel, buffer) < 0) {
+						last = true;
+						break;
+					}
+				}
+				buffer.flip();
+				if (hasher != null) {
+					hasher.update(buffer.duplicate());
+				}
+				Block block = new Block(index, buffer, writers.size(), last,
+						lastModified, null, (last && hasher != null) ? hasher
+								.digest() : null);
+				buffer = null;
+				for (Writer writer : writers) {
+					writer.queue.put(block);
+				}
+			}
+		} catch (IOException e) {
+			if (buffer != null) {
+				pool.put(buffer);
+			}
+			Block block = new Block(index, null, 0, true, 0, e, null);
+			for (Writer writer : writers) {
+				writer.queue.put(block);
+			}
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// The data has been read; nothing to recover.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the blocks for one destination until the end marker, returning
+	 * each buffer to the pool once every writer is done with it.
+	 */
+	private class Writer implements Runnable {
+
+		/**
+		 * Unbounded, since the pool bounds the blocks in flight.
+		 */
+		final LinkedBlockingQueue<Block> queue = new LinkedBlockingQueue<Block>();
+
+		final String fromDirectory;
+
+		final String toDirectory;
+
+		final List<String> fileNames;
+
+		final ArrayBlockingQueue<ByteBuffer> pool;
+
+		final HashEngine hashEngine;
+
+		final BatchResult result;
+
+		Thread thread;
+
+		Writer(String fromDirectory, String toDirectory,
+				List<String> fileNames, ArrayBlockingQueue<ByteBuffer> pool,
+				HashEngine hashEngine, BatchResult result) {
+			this.fromDirectory = fromDirectory;
+			this.toDirectory = toDirectory;
+			this.fileNames = fileNames;
+			this.pool = pool;
+			this.hashEngine = hashEngine;
+			this.result = result;
+		}
+
+		public void run() {
+			GroupCommit commit = new GroupCommit(result);
+			commit.setHashCache(hashCache);
+			boolean stopped = true;
+			try {
+				write(commit);
+				stopped = false;
+			} catch (InterruptedException e) {
+				// Every writer is being interrupted; nothing waits on this one.
+				stopped = false;
+				Thread.currentThread().interrupt();
+			} finally {
+				// Copies that were finished before an interruption are kept.
+				commit.commit();
+				if (stopped) {
+					drain();
+				}
+			}
+		}
+
+		/**
+		 * Release the blocks that reach a writer that stopped early, failing
+		 * their files, so the reader and the other writers carry on.
+		 */
+		private void drain() {
+			try {
+				Block block;
+				while ((block = queue.take()) != Block.END) {
+					String fileName = fileNames.get(block.index);
+					if (!result.getFailed().containsKey(fileName)) {
+						result.addFailed(fileName, new IOException(
+								"Writer to " + toDirectory + " stopped"));
+					}
+					block.release(pool);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void write(GroupCommit commit) throws InterruptedException {
+			int current = -1;
+			boolean currentFailed = false;
+			File target = null;
+			File outFile = null;
+			FileOutputStream out = null;
+			long written = 0;
+			while (true) {
+				Block block = queue.take();
+				if (block == Block.END) {
+					break;
+				}
+				String fileName = fileNames.get(block.index);
+				try {
+					if (block.index != current) {
+						current = block.index;
+						currentFailed = false;
+						written = 0;
+						target = new File(toDirectory, fileName);
+						outFile = GroupCommit.getTempFile(target);
+						if (block.error == null) {
+							out = new FileOutputStream(outFile);
+						}
+					}
+					if (currentFailed) {
+						continue;
+					}
+					if (block.error != null) {
+						throw block.error;
+					}
+					FileChannel channel = out.getChannel();
+					// Every writer reads the shared buffer from the start.
+					ByteBuffer data = block.buffer.duplicate();
+					while (data.hasRemaining()) {
+						written += writeCopy(toDirectory, channel, data);
+					}
+					if (block.last) {
+						if (block.hash != null) {
+							channel.force(true);
+						}
+						out.close();
+						out = null;
+						outFile.setLastModified(block.lastModified);
+						byte[] copyHash = null;
+						if (block.hash != null) {
+							copyHash = verify(hashEngine, new File(
+									fromDirectory, fileName), outFile,
+									block.hash);
+						}
+						commit.add(fileName, outFile, target, written, copyHash);
+					}
+				} catch (IOException e) {
+					currentFailed = true;
+					result.addFailed(fileName, e);
+					abandon(out, outFile);
+					out = null;
+				} catch (RuntimeException e) {
+					// Fails this file at this destination only, like an
+					// IOException.
+					currentFailed = true;
+					result.addFailed(fileName, new IOException(
+							"Unable to write " + target, e));
+					abandon(out, outFile);
+					out = null;
+				} finally {
+					block.release(pool);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close and delete a copy that failed.
+	 */
+	private static void abandon(FileOutputStream out, File outFile) {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException closeFailure) {
+				// Already failed; the partial file is removed below.
+			}
+		}
+		if (outFile != null) {
+			outFile.delete();
+		}
+	}
+
+	/**
+	 * Write part of a block to a copy. Package-private so a test can fail
+	 * one destination.
+	 *
+	 * @return The number of bytes written.
+	 */
+	int writeCopy(String toDirectory, FileChannel channel, ByteBuffer data)
+			throws IOException {
+		return channel.write(data);
+	}
+
+	/**
+	 * Read back a flushed copy and compare it with the hash of the source,
+	 * returning the hash of the copy.
+	 */
+	private byte[] verify(HashEngine hashEngine, File fromFile, File toFile,
+			byte[] sourceHash) throws IOException {
+		byte[] copyHash = hashEngine.hash(toFile);
+		if (!MessageDigest.isEqual(sourceHash, copyHash)) {
+			throw new IOException("Verification failed: " + toFile
+					+ " does not match " + fromFile);
+		}
+		if (hashCache != null) {
+			hashCache.put(fromFile, sourceHash);
+		}
+		return copyHash;
+	}
+
+	/**
+	 * A block of a source file on its way from the reader to the writers.
+	 */
+	private static class Block {
+
+		static final Block END = new Block(-1, null, 0, true, 0, null, null);
+
+		final int index;
+
+		/**
+		 * The filled buffer, flipped for reading, or null for an error or the
+		 * end marker.
+		 */
+		final ByteBuffer buffer;
+
+		/**
+		 * The writers that have yet to write the buffer.
+		 */
+		final AtomicInteger references;
+
+		final boolean last;
+
+		final long lastModified;
+
+		final IOException error;
+
+		/**
+		 * The hash of the whole source, on the last block of a verified file.
+		 */
+		final byte[] hash;
+
+		Block(int index, ByteBuffer buffer, int references, boolean last,
+				long lastModified, IOException error, byte[] hash) {
+			this.index = index;
+			this.buffer = buffer;
+			this.references = new AtomicInteger(references);
+			this.last = last;
+			this.lastModified = lastModified;
+			this.error = error;
+			this.hash = hash;
+		}
+
+		/**
+		 * Return the buffer to the pool if this was the last writer of it.
+		 */
+		void release(ArrayBlockingQueue<ByteBuffer> pool)
+				throws InterruptedException {
+			if ((buffer != null) && (references.decrementAndGet() == 0)) {
+				pool.put(buffer);
+			}
+		}
+	}
+}
@@ -8,23 +8,110 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.apache.commons.io.FileUtils;
 
 public class FileManager {
 
+	/**
+	 * The unit in which a sparse copy looks for zero-filled regions. Most file
+	 * systems allocate in blocks of this size, so a smaller region could not
+	 * become a hole anyway.
+	 */
+	private static final int SPARSE_BLOCK_SIZE = 4096;
+
+	/**
+	 * The number of bytes a sparse copy reads from the source at a time.
+	 */
+	private static final int SPARSE_READ_SIZE = 1024 * 1024;
+
+	/**
+	 * The number of bytes a plain copy reads at a time. Each read counts
+	 * against the read limit of the rate limiter.
+	 */
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The most images decoded at once. Even subsampled, a decoder holds
+	 * buffers of its own, so the number of threads is not left to the
+	 * number of processors alone.
+	 */
+	private static final int MAX_IMAGE_THREADS = 4;
+
+	private boolean sparseCopy = false;
+
+	private boolean pipelinedCopy = false;
+
+	private boolean verifyCopy = false;
+
+	private boolean pruneEmptyDirectories = false;
+
+	private boolean trustDirectoryTimes = false;
+
+	private HashCache hashCache = null;
+
+	private HashCache perceptualHashCache = null;
+
+	private IoRateLimiter rateLimiter = new IoRateLimiter();
+
+	private HashAlgorithm hashAlgorithm = HashEngine.DEFAULT_ALGORITHM;
+
+	private HashEngine hashEngine = null;
+
+	private int pipelineBufferCount = PipelinedCopier.DEFAULT_BUFFER_COUNT;
+
+	private int pipelineBufferSize = PipelinedCopier.DEFAULT_BUFFER_SIZE;
+
+	private int moveThreads = MoveEngine.DEFAULT_THREADS;
+
+	private CatalogFilter catalogFilter = new CatalogFilter();
+
+	private CopyOrderPolicy copyOrder = StandardCopyOrder.SELECTION;
+
+	private ThroughputHistory throughputHistory = null;
+
+	private final HashMap<String, PackArchive> packArchives = new HashMap<String, PackArchive>();
+
+	/**
+	 * Directories this FileManager has created or seen to exist, by absolute
+	 * path. Directories it removes are forgotten, and a copy into a cached
+	 * directory that someone else removed creates it again.
+	 */
+	private final Set<String> knownDirectories = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
 	/**
 	 * Write a String to a file.
 	 *
@@ -156,25 +243,34 @@ public class FileManager {
 	 * @return A collection of Strings containing filenames in the directory relative to the directory argument.
 	 */
 	public Collection<String> catalogDirectory(String directory, boolean recursively, String recursiveRootDirectory) {
+		return catalogDirectory(directory, recursively, recursiveRootDirectory, true);
+	}
+
+	/**
+	 * Get a list of files in a directory with a recursive option. The index
+	 * and container files of a pack archive are never listed; the entries of
+	 * the archive are listed in their place when includePackedEntries is true.
+	 * Copies a GroupCommit has not committed are never listed either.
+	 * Directories excluded by the catalog filter are not opened.
+	 * 
+	 * @param directory
+	 *            The directory to get a list of files for.
+	 * @param recursively
+	 *            If true then recurse directories, else do not recurse
+	 *            directories.
+	 * @param recursiveRootDirectory
+	 *            The caller of this method should pass null for recursiveRootDirectory.
+	 *            This value is set in the method when doing a recursive call.
+	 * @param includePackedEntries
+	 *            If true then list the entries of pack archives as files.
+	 * @return A collection of Strings containing filenames in the directory relative to the directory argument.
+	 */
+	public Collection<String> catalogDirectory(String directory, boolean recursively, String recursiveRootDirectory,
+			boolean includePackedEntries) {
 		Collection<String> files = null;
 		String catalogRootDirectory = null;
 		if (recursiveRootDirectory == null) {
-			// Make sure the directory argument separator is the same as the OS directory separator.
-			if (getSeparator().equals("/")) {
-				catalogRootDirectory = directory.replace("\\", getSeparator());				
-			} else {
-				// else the directory separator is a backslash.
-				catalogRootDirectory = directory.replace("/", getSeparator());				
-			}
-			
-			// On Windows, getAbsolutePath returns a single escaped backslash between directories.
-			// The replaceFirst argument is a regularExpression which must escape the backslash to
-			// provide a match for the returned value of getAbsolutePath.
-			// If the directory argument contains a double backslash then catalogRootDirectory 
-			// will already be properly escaped to find a match for the result of getAbsolutePath.
-			if (!catalogRootDirectory.contains("\\\\")) {
-				catalogRootDirectory = catalogRootDirectory.replace("\\", "\\\\");			
-			}
+			catalogRootDirectory = getCatalogRootDirectory(directory);
 		} else {
 			catalogRootDirectory = recursiveRootDirectory;
 		}
@@ -182,18 +278,27 @@ public class FileManager {
 		File directoryFile = new File(directory);
 		if ((directoryFile != null) && (directoryFile.isDirectory())) {
 			for (File f : directoryFile.listFiles()) {
-				if (f.isFile()) {
-					String fileName = f.getAbsolutePath();
-					// Remove the recursive root directory from the file name.
-					fileName = fileName.replaceFirst(
-							catalogRootDirectory, "");
-					if (fileName.startsWith("\\") || fileName.startsWith("/")) {
-						fileName = fileName.substring(1);
+				if (f.isFile() && GroupCommit.isTempFile(f.getName())) {
+					// An uncommitted copy is not part of the tree.
+				} else if (f.isFile() && PackArchive.isArchiveFile(f.getName())) {
+					if (includePackedEntries
+							&& f.getName().equals(PackArchive.INDEX_FILE_NAME)) {
+						files.addAll(catalogPackArchive(directoryFile,
+								catalogRootDirectory));
 					}
-					files.add(fileName);
-				} else if (f.isDirectory() && recursively) {
+				} else if (f.isFile()) {
+					String fileName = getRelativeName(f, catalogRootDirectory);
+					if (catalogFilter.isEmpty() || catalogFilter.acceptFile(fileName,
+							catalogFilter.needsAttributes() ? f.length() : 0,
+							catalogFilter.needsAttributes() ? f.lastModified() : 0)) {
+						files.add(fileName);
+					}
+				} else if (f.isDirectory() && recursively
+						&& (catalogFilter.isEmpty() || catalogFilter
+								.acceptDirectory(getRelativeName(f, catalogRootDirectory)))) {
 					Collection<String> subFiles = catalogDirectory(
-							f.getAbsolutePath(), recursively, catalogRootDirectory);
+							f.getAbsolutePath(), recursively, catalogRootDirectory,
+							includePackedEntries);
 					files.addAll(subFiles);
 				}
 			}
@@ -202,7 +307,122 @@ public class FileManager {
 	}
 
 	/**
-	 * Move a file from one directory to another.
+	 * @param directory
+	 * @return The root directory escaped to match the start of absolute paths
+	 *         under it, as getRelativeName expects.
+	 */
+	private String getCatalogRootDirectory(String directory) {
+		String catalogRootDirectory;
+		// Make sure the directory argument separator is the same as the OS directory separator.
+		if (getSeparator().equals("/")) {
+			catalogRootDirectory = directory.replace("\\", getSeparator());				
+		} else {
+			// else the directory separator is a backslash.
+			catalogRootDirectory = directory.replace("/", getSeparator());				
+		}
+		
+		// On Windows, getAbsolutePath returns a single escaped backslash between directories.
+		// The replaceFirst argument is a regularExpression which must escape the backslash to
+		// provide a match for the returned value of getAbsolutePath.
+		// If the directory argument contains a double backslash then catalogRootDirectory 
+		// will already be properly escaped to find a match for the result of getAbsolutePath.
+		if (!catalogRootDirectory.contains("\\\\")) {
+			catalogRootDirectory = catalogRootDirectory.replace("\\", "\\\\");			
+		}
+		return catalogRootDirectory;
+	}
+
+	/**
+	 * @param file
+	 * @param catalogRootDirectory
+	 *            The escaped root directory built by catalogDirectory.
+	 * @return The name of the file relative to the catalog root directory.
+	 */
+	private String getRelativeName(File file, String catalogRootDirectory) {
+		String fileName = file.getAbsolutePath();
+		// Remove the recursive root directory from the file name.
+		fileName = fileName.replaceFirst(
+				catalogRootDirectory, "");
+		if (fileName.startsWith("\\") || fileName.startsWith("/")) {
+			fileName = fileName.substring(1);
+		}
+		return fileName;
+	}
+
+	/**
+	 * List the entries of the pack archive in a directory relative to the
+	 * catalog root directory.
+	 *
+	 * @param directoryFile
+	 * @param catalogRootDirectory
+	 * @return The relative names of the packed files.
+	 */
+	private Collection<String> catalogPackArchive(File directoryFile,
+			String catalogRootDirectory) {
+		Collection<String> files = new ArrayList<String>();
+		String prefix = getRelativeName(directoryFile, catalogRootDirectory);
+		try {
+			PackArchive packArchive = getPackArchive(directoryFile
+					.getAbsolutePath());
+			for (String entry : packArchive.catalog()) {
+				String fileName = prefix.length() > 0 ? prefix + getSeparator()
+						+ entry : entry;
+				PackArchive.PackEntry packEntry = packArchive.getEntry(entry);
+				if (catalogFilter.acceptPath(fileName, packEntry.getLength(),
+						packEntry.getLastModified())) {
+					files.add(fileName);
+				}
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(FileManager.class.getName()).log(Level.WARNING,
+					"Unable to read pack archive " + directoryFile, ex);
+		}
+		return files;
+	}
+
+	/**
+	 * Get the pack archive in a directory, opening it on first use. Archives
+	 * stay open until closePackArchives is called.
+	 *
+	 * @param directory
+	 *            The root directory of the archive.
+	 * @return The archive.
+	 * @throws IOException
+	 */
+	public PackArchive getPackArchive(String directory) throws IOException {
+		String key = new File(directory).getAbsolutePath();
+		PackArchive packArchive = packArchives.get(key);
+		if (packArchive == null) {
+			packArchive = new PackArchive(key);
+			packArchives.put(key, packArchive);
+		}
+		return packArchive;
+	}
+
+	/**
+	 * Close every pack archive opened by this FileManager.
+	 *
+	 * @throws IOException
+	 */
+	public void closePackArchives() throws IOException {
+		IOException failure = null;
+		for (PackArchive packArchive : packArchives.values()) {
+			try {
+				packArchive.close();
+			} catch (IOException ex) {
+				failure = ex;
+			}
+		}
+		packArchives.clear();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Move a file from one directory to another. The file is renamed when
+	 * both are on the same file system, and otherwise copied, checked and
+	 * deleted.
 	 * 
 	 * @param fromPathAndName
 	 *            Given the path and name of a file
@@ -212,23 +432,43 @@ public class FileManager {
 	 */
 	public void moveFile(String fromPathAndName, String toPathAndName)
 			throws IOException {
-		String fromFileName = getFileName(fromPathAndName);
-		String toFileName = getFileName(toPathAndName);
-		String toDirectory = toPathAndName.substring(0, toPathAndName.length()
-				- toFileName.length());
-		if (!directoryExists(toDirectory)) {
-			// create the directories.
-			new File(toDirectory).mkdirs();
-		}
-		File file = new File(fromPathAndName);
-		// Move file to new directory
-		boolean success = file.renameTo(new File(toPathAndName));
-		if (!success) {
-			// File was not successfully moved
-			throw new IOException("Unable to move file " + fromFileName
-					+ " from " + fromPathAndName + " to directory "
-					+ toPathAndName);
+		createParentDirectory(toPathAndName);
+		newMoveEngine().move(new File(fromPathAndName),
+				new File(toPathAndName));
+		forgetDirectories(new File(fromPathAndName));
+	}
+
+	/**
+	 * Move files from one directory to another, keeping their relative names.
+	 * The destination directories are created up front, once each. Files are
+	 * moved a few at a time by a MoveEngine, renamed where possible and
+	 * otherwise copied, checked and deleted.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileNames
+	 *            The names of the files relative to both directories.
+	 * @return The files that were renamed, the files that were copied, and
+	 *         the files that could not be moved.
+	 */
+	public MoveResult moveFiles(String fromDirectory, String toDirectory,
+			Collection<String> fileNames) {
+		createDirectories(toDirectory, fileNames);
+		MoveResult result = newMoveEngine().moveFiles(fromDirectory,
+				toDirectory, fileNames);
+		if (pruneEmptyDirectories) {
+			removeEmptyDirectories(fromDirectory, result.getSucceeded());
 		}
+		return result;
+	}
+
+	/**
+	 * @return An engine that moves files with this FileManager's thread
+	 *         count, copying them across file systems as this FileManager
+	 *         copies.
+	 */
+	private MoveEngine newMoveEngine() {
+		return new MoveEngine(this, moveThreads);
 	}
 
 	/**
@@ -248,16 +488,13 @@ public class FileManager {
 		File dir = new File(toDirectory);
 
 		// Move file to new directory
-		boolean success = file.renameTo(new File(dir, file.getName()));
-		if (!success) {
-			// File was not successfully moved
-			throw new IOException("Unable to move file " + fileName + " from "
-					+ fromDirectory + " to directory " + toDirectory);
-		}
+		newMoveEngine().move(file, new File(dir, file.getName()));
+		forgetDirectories(file);
 	}
 
 	/**
-	 * Delete a file.
+	 * Delete a file. A file that is packed in a pack archive in the directory
+	 * is removed from the archive.
 	 *
 	 * @param directory
 	 * @param fileName
@@ -265,8 +502,27 @@ public class FileManager {
 	 */
 	public void deleteFile(String directory, String fileName)
 			throws IOException {
-		boolean success = (new File(getFilePathAndName(directory, fileName)))
-				.delete();
+		removeFile(directory, fileName);
+		if (PackArchive.isArchive(directory)) {
+			getPackArchive(directory).flush();
+		}
+	}
+
+	/**
+	 * Delete a file or remove it from the pack archive in the directory,
+	 * leaving the archive to be flushed by the caller.
+	 */
+	private void removeFile(String directory, String fileName)
+			throws IOException {
+		File file = new File(getFilePathAndName(directory, fileName));
+		if (!file.exists() && PackArchive.isArchive(directory)) {
+			PackArchive packArchive = getPackArchive(directory);
+			if (packArchive.contains(fileName)) {
+				packArchive.remove(fileName);
+				return;
+			}
+		}
+		boolean success = file.delete();
 		if (!success) {
 			// Deletion failed
 			throw new IOException("Unable to delete file " + fileName
@@ -274,6 +530,40 @@ public class FileManager {
 		}
 	}
 
+	/**
+	 * Delete files from a directory.
+	 *
+	 * @param directory
+	 * @param fileNames
+	 *            The names of the files relative to the directory.
+	 * @return The files that were deleted and the files that could not be.
+	 */
+	public BatchResult deleteFiles(String directory, Collection<String> fileNames) {
+		long start = System.nanoTime();
+		BatchResult result = new BatchResult();
+		for (String fileName : fileNames) {
+			try {
+				removeFile(directory, fileName);
+				result.addSucceeded(fileName, 0);
+			} catch (IOException ex) {
+				result.addFailed(fileName, ex);
+			}
+		}
+		if (PackArchive.isArchive(directory)) {
+			try {
+				getPackArchive(directory).flush();
+			} catch (IOException ex) {
+				Logger.getLogger(FileManager.class.getName()).log(Level.WARNING,
+						"Unable to flush pack archive " + directory, ex);
+			}
+		}
+		if (pruneEmptyDirectories) {
+			removeEmptyDirectories(directory, result.getSucceeded());
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
 	/**
 	 * Delete a file.
 	 *
@@ -459,6 +749,12 @@ public class FileManager {
 	}
 
 	/**
+	 * Copy a file. When sparse copying is enabled, zero-filled regions of the
+	 * source are recreated as holes in the destination. When verification is
+	 * enabled, the copy is read back and compared with the hash taken while
+	 * copying. The copy is written under a temporary name, flushed to the
+	 * device and renamed into place, so the destination is never left
+	 * truncated.
 	 *
 	 * @param inputFile
 	 * @param outputFile
@@ -467,254 +763,2008 @@ public class FileManager {
 	 */
 	public void copyFile(String fromPathAndName, String toPathAndName)
 			throws FileNotFoundException, IOException {
-		String toFileName = getFileName(toPathAndName);
-		String toDirectory = toPathAndName.substring(0, toPathAndName.length()
-				- toFileName.length());
-		if (!directoryExists(toDirectory)) {
-			// create the directories.
-			new File(toDirectory).mkdirs();
+		createParentDirectory(toPathAndName);
+		BatchResult result = new BatchResult();
+		GroupCommit commit = newGroupCommit(result);
+		try {
+			copyIntoDirectory(fromPathAndName, toPathAndName, toPathAndName,
+					commit);
+			commitCopy(commit, result);
+		} finally {
+			saveHashCache();
 		}
+	}
 
-		File file1 = new File(fromPathAndName);
-		File file2 = new File(toPathAndName);
-		InputStream in = new FileInputStream(file1);
-		OutputStream out = new FileOutputStream(file2);
+	/**
+	 * Copy a file for a move to another file system, which deletes the
+	 * source next. The copy is always flushed, read back and checked,
+	 * whether or not copies are verified, and it is committed before this
+	 * returns. It keeps the last modified time of the source.
+	 *
+	 * @param fromFile
+	 * @param toFile
+	 *            The target, in a directory that already exists. It is only
+	 *            replaced by a copy that has been checked.
+	 * @throws IOException
+	 */
+	void copyVerified(File fromFile, File toFile) throws IOException {
+		BatchResult result = new BatchResult();
+		GroupCommit commit = newGroupCommit(result);
 		try {
-			byte[] buf = new byte[1024];
-			int len;
-			while ((len = in.read(buf)) > 0) {
-				out.write(buf, 0, len);
-			}
+			copyFileContents(fromFile.getPath(), toFile.getPath(),
+					toFile.getPath(), commit, true);
+			commitCopy(commit, result);
 		} finally {
-			in.close();
-			out.close();
+			saveHashCache();
 		}
+		toFile.setLastModified(fromFile.lastModified());
 	}
 
 	/**
-	 * @param filePathAndName
-	 * @return
+	 * Copy a file into a directory that already exists. The copy is written
+	 * under a temporary name and handed to a group commit, which renames it
+	 * into place.
+	 *
+	 * @param fromPathAndName
+	 * @param toPathAndName
+	 * @param fileName
+	 *            The name the copy is reported under.
+	 * @param commit
+	 * @param verify
+	 *            If true then the copy is flushed, read back and checked
+	 *            before it is handed to the commit.
+	 * @return The number of bytes copied.
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 */
-	public byte[] readBytes(String filePathAndName)
-			throws FileNotFoundException, IOException {
-		InputStream inputStream = null;
-		byte[] bytes = null;
+	private long copyFileContents(String fromPathAndName,
+			String toPathAndName, String fileName, GroupCommit commit,
+			boolean verify) throws FileNotFoundException, IOException {
+		File file1 = new File(fromPathAndName);
+		File target = new File(toPathAndName);
+		File file2 = GroupCommit.getTempFile(target);
+		// The source is hashed as it streams past, so only the copy is
+		// read a second time.
+		Hasher hasher = verify ? hashAlgorithm.newHasher() : null;
+		long copied = 0;
+		byte[] copyHash = null;
 		try {
-			File file = new File(filePathAndName);
-			inputStream = new FileInputStream(file);
-			Long length = file.length();
-			bytes = readBytes(inputStream, length);
-		} finally {
-			if (inputStream != null) {
-				inputStream.close();
+			if (sparseCopy) {
+				copied = file1.length();
+				copySparseContents(fromPathAndName, file2.getPath(), hasher);
+			} else {
+				InputStream in = new FileInputStream(file1);
+				FileOutputStream out = new FileOutputStream(file2);
+				try {
+					byte[] buf = new byte[COPY_BUFFER_SIZE];
+					int len;
+					while ((len = rateLimiter.read(in, buf)) > 0) {
+						out.write(buf, 0, len);
+						if (hasher != null) {
+							hasher.update(buf, 0, len);
+						}
+						copied += len;
+					}
+					if (hasher != null) {
+						out.getFD().sync();
+					}
+				} finally {
+					in.close();
+					out.close();
+				}
+			}
+			if (hasher != null) {
+				copyHash = verifyCopy(file1, file2, hasher.digest());
 			}
+		} catch (IOException ex) {
+			file2.delete();
+			throw ex;
 		}
-		return bytes;
+		commit.add(fileName, file2, target, copied, copyHash);
+		return copied;
 	}
 
 	/**
-	 * @param is
-	 * @param length
-	 * @return
+	 * Read back a copy that has been flushed to the device and compare it
+	 * with the hash of the source. The hash of the source is recorded in the
+	 * hash cache; the hash of the copy is recorded once it is committed.
+	 *
+	 * @param fromFile
+	 * @param toFile
+	 * @param sourceHash
+	 *            The hash of the source, taken while it was copied.
+	 * @return The hash of the copy.
 	 * @throws IOException
+	 *             If the copy does not match the source.
 	 */
-	private byte[] readBytes(InputStream is, long length) throws IOException {
-		// You cannot create an array using a long type.
-		// It needs to be an int type.
-		// Before converting to an int type, check
-		// to ensure that file is not larger than Integer.MAX_VALUE.
-		if (length > Integer.MAX_VALUE) {
-			// File is too large
-			throw new IOException("File too large, cannot read file: "
-					+ Integer.MAX_VALUE);
+	private byte[] verifyCopy(File fromFile, File toFile, byte[] sourceHash)
+			throws IOException {
+		byte[] copyHash = getHashEngine().hash(toFile);
+		if (!MessageDigest.isEqual(sourceHash, copyHash)) {
+			throw new IOException("Verification failed: " + toFile
+					+ " does not match " + fromFile);
 		}
+		getHashCache().put(fromFile, sourceHash);
+		return copyHash;
+	}
 
-		// Create the byte array to hold the data
-		byte[] bytes = new byte[(int) length];
-
-		// Read in the bytes
-		int offset = 0;
-		int numRead = 0;
-		while (offset < bytes.length
-				&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
-			offset += numRead;
+	/**
+	 * @param result
+	 *            Receives the copies as they are committed.
+	 * @return A group commit that records the hashes of verified copies in
+	 *         the hash cache.
+	 */
+	private GroupCommit newGroupCommit(BatchResult result) {
+		GroupCommit commit = new GroupCommit(result);
+		if (verifyCopy) {
+			try {
+				commit.setHashCache(getHashCache());
+			} catch (IOException ex) {
+				Logger.getLogger(FileManager.class.getName()).log(
+						Level.WARNING, "Unable to load hash cache", ex);
+			}
 		}
+		return commit;
+	}
 
-		// Ensure all the bytes have been read.
-		if (offset < bytes.length) {
-			throw new IOException("InputStream to large!");
+	/**
+	 * Commit a single copy and throw its failure, if it had one.
+	 *
+	 * @param commit
+	 * @param result
+	 *            The result the commit reports to.
+	 * @throws IOException
+	 */
+	private void commitCopy(GroupCommit commit, BatchResult result)
+			throws IOException {
+		commit.commit();
+		for (IOException ex : result.getFailed().values()) {
+			throw ex;
 		}
-
-		return bytes;
 	}
 
 	/**
-	 * @param filePathAndName
-	 * @return
-	 * @throws FileNotFoundException
+	 * @return The hashes recorded by verified copies and duplicate searches,
+	 *         computed with the hash algorithm and loaded on first use.
 	 * @throws IOException
 	 */
-	public String read(String filePathAndName) throws FileNotFoundException,
-			IOException {
-		byte[] bytes = readBytes(filePathAndName);
-		return new String(bytes);
+	public synchronized HashCache getHashCache() throws IOException {
+		if (hashCache == null) {
+			hashCache = new HashCache(getStateDirectory().getPath()
+					+ File.separator + "hashes-"
+					+ hashAlgorithm.getName().toLowerCase() + ".properties");
+		}
+		return hashCache;
 	}
 
 	/**
-	 * @param rootDirectory
-	 * @param relativeFilePathAndNames
-	 * @return
-	 * @throws IOException
+	 * @return The engine that hashes whole files with the hash algorithm,
+	 *         reading through the rate limiter.
 	 */
-	public HashMap<String, BasicFileAttributes> getBasicFileAttributes(
-			String rootDirectory, Collection<String> relativeFilePathAndNames)
-			throws IOException {
-		HashMap<String, BasicFileAttributes> fileAttributes = new HashMap<String, BasicFileAttributes>();
-		for (int i = 0; i < relativeFilePathAndNames.size(); i++) {
-			fileAttributes.put(
-					((ArrayList<String>) relativeFilePathAndNames).get(i),
-					this.getBasicFileAttributes(rootDirectory
-							+ File.separator
-							+ ((ArrayList<String>) relativeFilePathAndNames)
-									.get(i)));
+	public synchronized HashEngine getHashEngine() {
+		if (hashEngine == null) {
+			hashEngine = new HashEngine(hashAlgorithm, rateLimiter);
 		}
-		return fileAttributes;
+		return hashEngine;
 	}
 
 	/**
-	 * @param filePathAndName
-	 * @return
-	 * @throws IOException
+	 * Save the hash cache if it has been loaded and changed.
 	 */
-	public BasicFileAttributes getBasicFileAttributes(String filePathAndName)
-			throws IOException {
-		BasicFileAttributes attributes = null;
-		FileSystem fs = FileSystems.getDefault();
-		Path filePath = fs.getPath(filePathAndName);
-		attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
-		return attributes;
+	private void saveHashCache() {
+		HashCache hashCache;
+		synchronized (this) {
+			hashCache = this.hashCache;
+		}
+		if (hashCache == null) {
+			return;
+		}
+		try {
+			hashCache.save();
+		} catch (IOException ex) {
+			Logger.getLogger(FileManager.class.getName()).log(Level.WARNING,
+					"Unable to save hash cache", ex);
+		}
 	}
 
 	/**
-	 * @param directory
+	 * Copy files from one directory to another, keeping their relative names.
+	 * The destination directories are created up front, once each, so no file
+	 * needs its own directory check. Pack archives are handled as in
+	 * copyFile(String, String, String). Files rejected by the catalog filter
+	 * are skipped and left out of the result. Files are copied in the order
+	 * chosen by the copy order policy, and the throughput achieved is added
+	 * to the throughput history of the destination device. With pipelined
+	 * copy on, plain copies between ordinary directories go through a
+	 * PipelinedCopier so reading and writing overlap across the whole batch.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileNames
+	 *            The names of the files relative to both directories.
+	 * @return The files that were copied and the files that could not be.
 	 */
-	public void removeEmptyDirectories(String directory) {
-		File directoryFile = new File(directory);
-		if ((directoryFile != null) && (directoryFile.isDirectory())) {
-			for (File f : directoryFile.listFiles()) {
-				if (f.isDirectory()) {
-					removeEmptyDirectories(f.getAbsolutePath());
+	public BatchResult copyFiles(String fromDirectory, String toDirectory,
+			Collection<String> fileNames) {
+		BatchResult result = new BatchResult();
+		long start = System.nanoTime();
+		// Small files bound for a pack archive need no directories.
+		boolean packTarget = PackArchive.isArchive(toDirectory);
+		if (!packTarget) {
+			createDirectories(toDirectory, fileNames);
+		}
+		ArrayList<String> accepted = new ArrayList<String>();
+		for (String fileName : copyOrder.order(fromDirectory, fileNames)) {
+			if (catalogFilter.isEmpty()
+					|| catalogFilter.acceptPath(fileName, new File(
+							getFilePathAndName(fromDirectory, fileName)))) {
+				accepted.add(fileName);
+			}
+		}
+		String label = copyOrder.getName();
+		if (pipelinedCopy && !sparseCopy && !packTarget
+				&& !PackArchive.isArchive(fromDirectory)) {
+			PipelinedCopier copier = new PipelinedCopier(pipelineBufferCount,
+					pipelineBufferSize);
+			copier.setRateLimiter(rateLimiter);
+			if (verifyCopy) {
+				copier.setVerify(true);
+				copier.setHashAlgorithm(hashAlgorithm);
+				try {
+					copier.setHashCache(getHashCache());
+				} catch (IOException ex) {
+					Logger.getLogger(FileManager.class.getName()).log(
+							Level.WARNING, "Unable to load hash cache", ex);
+				}
+			}
+			result = copier.copyFiles(fromDirectory, toDirectory, accepted);
+			label += "+PIPELINED";
+		} else {
+			// Copies are flushed and renamed into place a group at a time.
+			GroupCommit commit = newGroupCommit(result);
+			BatchResult packed = new BatchResult();
+			for (String fileName : accepted) {
+				try {
+					copyFile(fromDirectory, toDirectory, fileName, packTarget,
+							commit, packed);
+				} catch (IOException ex) {
+					result.addFailed(fileName, ex);
 				}
 			}
-			// Check to see if this directory is now empty.
-			directoryFile = new File(directory);
-			if (directoryFile.listFiles().length == 0) {
-				directoryFile.delete();
+			commit.commit();
+			if (packTarget) {
+				flushPackTarget(toDirectory, packed, result);
 			}
 		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		saveHashCache();
+		recordThroughput(toDirectory, label, result);
+		return result;
 	}
 
 	/**
-	 * @param directory
-	 * @param recursively
-	 * @return
-	 * @throws IOException
+	 * Copy files from one directory to each of several others, reading each
+	 * file once through a FanOutCopier. The destination directories are
+	 * created up front. Files rejected by the catalog filter are skipped and
+	 * left out of the results, and files are copied in the order chosen by
+	 * the copy order policy. A file that cannot be written to one destination
+	 * is reported in that destination's result and still copied to the
+	 * others. Pack archives are not supported as sources or destinations.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectories
+	 * @param fileNames
+	 *            The names of the files relative to every directory.
+	 * @return For each destination, in order, the files that were copied
+	 *         there and the files that could not be.
+	 * @throws IOException
+	 *             If a directory is a pack archive.
+	 */
+	public LinkedHashMap<String, BatchResult> copyFilesToAll(
+			String fromDirectory, List<String> toDirectories,
+			Collection<String> fileNames) throws IOException {
+		long start = System.nanoTime();
+		if (PackArchive.isArchive(fromDirectory)) {
+			throw new IOException("Cannot fan out from a pack archive: "
+					+ fromDirectory);
+		}
+		for (String toDirectory : toDirectories) {
+			if (PackArchive.isArchive(toDirectory)) {
+				throw new IOException("Cannot fan out to a pack archive: "
+						+ toDirectory);
+			}
+			createDirectories(toDirectory, fileNames);
+		}
+		ArrayList<String> accepted = new ArrayList<String>();
+		for (String fileName : copyOrder.order(fromDirectory, fileNames)) {
+			if (catalogFilter.isEmpty()
+					|| catalogFilter.acceptPath(fileName, new File(
+							getFilePathAndName(fromDirectory, fileName)))) {
+				accepted.add(fileName);
+			}
+		}
+		FanOutCopier copier = new FanOutCopier();
+		copier.setRateLimiter(rateLimiter);
+		if (verifyCopy) {
+			copier.setVerify(true);
+			copier.setHashAlgorithm(hashAlgorithm);
+			try {
+				copier.setHashCache(getHashCache());
+			} catch (IOException ex) {
+				Logger.getLogger(FileManager.class.getName()).log(
+						Level.WARNING, "Unable to load hash cache", ex);
+			}
+		}
+		LinkedHashMap<String, BatchResult> results = copier.copyFiles(
+				fromDirectory, toDirectories, accepted);
+		long elapsed = System.nanoTime() - start;
+		for (Map.Entry<String, BatchResult> entry : results.entrySet()) {
+			entry.getValue().setElapsedNanos(elapsed);
+			recordThroughput(entry.getKey(), copyOrder.getName() + "+FANOUT",
+					entry.getValue());
+		}
+		saveHashCache();
+		return results;
+	}
+
+	/**
+	 * Add the throughput a batch achieved to the throughput history of the
+	 * device holding a directory.
+	 *
+	 * @param directory
+	 * @param label
+	 * @param result
+	 */
+	private void recordThroughput(String directory, String label,
+			BatchResult result) {
+		if (result.getSucceeded().isEmpty()) {
+			return;
+		}
+		try {
+			getThroughputHistory().record(
+					ThroughputHistory.getDevice(directory), label,
+					result.getBytes(), result.getSucceeded().size(),
+					result.getElapsedNanos());
+		} catch (IOException ex) {
+			Logger.getLogger(FileManager.class.getName()).log(Level.WARNING,
+					"Unable to save throughput history", ex);
+		}
+	}
+
+	/**
+	 * @return The throughput measured by earlier bulk operations, loaded on
+	 *         first use.
+	 * @throws IOException
+	 */
+	public synchronized ThroughputHistory getThroughputHistory()
+			throws IOException {
+		if (throughputHistory == null) {
+			throughputHistory = new ThroughputHistory(getStateDirectory()
+					.getPath() + File.separator + "throughput.properties");
+		}
+		return throughputHistory;
+	}
+
+	/**
+	 * Create every directory needed to hold files with the given relative
+	 * names. Each distinct directory is created once, parents before
+	 * children, and is remembered so the copies and moves of the batch skip
+	 * it.
+	 *
+	 * @param directory
+	 *            The root directory the file names are relative to.
+	 * @param fileNames
+	 */
+	public void createDirectories(String directory, Collection<String> fileNames) {
+		// A parent sorts before its children, so the set is in creation order.
+		TreeSet<String> directories = new TreeSet<String>();
+		for (String fileName : fileNames) {
+			for (int i = 0; i < fileName.length(); i++) {
+				char c = fileName.charAt(i);
+				if (c == File.separatorChar || c == '/') {
+					directories.add(fileName.substring(0, i));
+				}
+			}
+		}
+		// Each directory is checked once per batch, even when cached, in case
+		// it was removed since.
+		File root = new File(directory).getAbsoluteFile();
+		root.mkdirs();
+		if (root.isDirectory()) {
+			knownDirectories.add(root.getPath());
+		}
+		for (String relativeDirectory : directories) {
+			File dir = new File(root, relativeDirectory);
+			if (dir.mkdir() || dir.isDirectory()) {
+				knownDirectories.add(dir.getPath());
+			} else {
+				knownDirectories.remove(dir.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Create the directory a file will be written to. Directories that this
+	 * FileManager has already created or found are not checked again.
+	 *
+	 * @param filePathAndName
+	 */
+	private void createParentDirectory(String filePathAndName) {
+		File parent = new File(filePathAndName).getAbsoluteFile()
+				.getParentFile();
+		if ((parent != null) && !knownDirectories.contains(parent.getPath())) {
+			if (!parent.isDirectory()) {
+				// create the directories.
+				parent.mkdirs();
+			}
+			if (parent.isDirectory()) {
+				knownDirectories.add(parent.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Forget a directory and every directory below it, after they have been
+	 * removed or moved away.
+	 *
+	 * @param directory
+	 */
+	private void forgetDirectories(File directory) {
+		String path = directory.getAbsolutePath();
+		String prefix = path.endsWith(File.separator) ? path : path
+				+ File.separator;
+		Iterator<String> iterator = knownDirectories.iterator();
+		while (iterator.hasNext()) {
+			String knownDirectory = iterator.next();
+			if (knownDirectory.equals(path)
+					|| knownDirectory.startsWith(prefix)) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Copy a file into a directory that was created for it. If the directory
+	 * has been removed since it was cached, it is forgotten, created again
+	 * and the copy is tried once more.
+	 */
+	private void copyIntoDirectory(String fromPathAndName,
+			String toPathAndName, String fileName, GroupCommit commit)
+			throws FileNotFoundException, IOException {
+		try {
+			copyFileContents(fromPathAndName, toPathAndName, fileName, commit,
+					verifyCopy);
+		} catch (FileNotFoundException ex) {
+			File parent = new File(toPathAndName).getAbsoluteFile()
+					.getParentFile();
+			if ((parent == null) || parent.isDirectory()
+					|| !new File(fromPathAndName).isFile()) {
+				throw ex;
+			}
+			forgetDirectories(parent);
+			createParentDirectory(toPathAndName);
+			copyFileContents(fromPathAndName, toPathAndName, fileName, commit,
+					verifyCopy);
+		}
+	}
+
+	/**
+	 * Copy a file from one directory to another. The file may be an entry of
+	 * a pack archive in the from directory. When the to directory holds a pack
+	 * archive, files no larger than PackArchive.DEFAULT_SMALL_FILE_SIZE are
+	 * packed into the archive instead of being copied.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileName
+	 *            The name of the file relative to both directories.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void copyFile(String fromDirectory, String toDirectory,
+			String fileName) throws FileNotFoundException, IOException {
+		BatchResult result = new BatchResult();
+		GroupCommit commit = newGroupCommit(result);
+		try {
+			BatchResult packed = new BatchResult();
+			copyFile(fromDirectory, toDirectory, fileName, true, commit,
+					packed);
+			commitCopy(commit, result);
+			if (PackArchive.isArchive(toDirectory)) {
+				flushPackTarget(toDirectory, packed, result);
+				for (IOException ex : result.getFailed().values()) {
+					throw ex;
+				}
+			}
+		} finally {
+			saveHashCache();
+		}
+	}
+
+	/**
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileName
+	 * @param createDirectories
+	 *            If false then the destination directory must already exist.
+	 * @param commit
+	 *            Commits the copy and reports it, or reports a file that was
+	 *            extracted.
+	 * @param packed
+	 *            Receives a file that was packed, to be reported once the
+	 *            pack archive is flushed.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	private void copyFile(String fromDirectory, String toDirectory,
+			String fileName, boolean createDirectories, GroupCommit commit,
+			BatchResult packed) throws FileNotFoundException, IOException {
+		String fromPathAndName = getFilePathAndName(fromDirectory, fileName);
+		String toPathAndName = getFilePathAndName(toDirectory, fileName);
+		File fromFile = new File(fromPathAndName);
+		if (!fromFile.exists() && PackArchive.isArchive(fromDirectory)
+				&& getPackArchive(fromDirectory).contains(fileName)) {
+			PackArchive packArchive = getPackArchive(fromDirectory);
+			packArchive.extract(fileName, toPathAndName);
+			commit.addCommitted(fileName, packArchive.getEntry(fileName)
+					.getLength());
+			return;
+		} else if (PackArchive.isArchive(toDirectory)
+				&& fromFile.length() <= PackArchive.DEFAULT_SMALL_FILE_SIZE) {
+			getPackArchive(toDirectory).add(fileName, fromPathAndName);
+			packed.addSucceeded(fileName, fromFile.length());
+			return;
+		}
+		if (createDirectories) {
+			createParentDirectory(toPathAndName);
+		}
+		copyIntoDirectory(fromPathAndName, toPathAndName, fileName, commit);
+	}
+
+	/**
+	 * Finish a batch of copies into a pack archive once the plain copies are
+	 * committed. A plain copy replaces an entry packed by an earlier run, and
+	 * a packed file replaces a plain file, so each name is listed once. The
+	 * archive is flushed once for the whole batch before the packed files are
+	 * reported; if it cannot be, they are reported as failed.
+	 *
+	 * @param toDirectory
+	 * @param packed
+	 *            The files packed into the archive.
+	 * @param result
+	 *            Holds the committed plain copies, and receives the packed
+	 *            files.
+	 */
+	private void flushPackTarget(String toDirectory, BatchResult packed,
+			BatchResult result) {
+		ArrayList<String> packedNames = packed.getSucceeded();
+		try {
+			PackArchive packArchive = getPackArchive(toDirectory);
+			HashSet<String> packedSet = new HashSet<String>(packedNames);
+			for (String fileName : result.getSucceeded()) {
+				if (!packedSet.contains(fileName)
+						&& packArchive.contains(fileName)) {
+					packArchive.remove(fileName);
+				}
+			}
+			packArchive.flush();
+		} catch (IOException ex) {
+			for (String fileName : packedNames) {
+				result.addFailed(fileName, ex);
+			}
+			return;
+		}
+		for (String fileName : packedNames) {
+			File plainFile = new File(getFilePathAndName(toDirectory, fileName));
+			if (plainFile.isFile() && !plainFile.delete()) {
+				Logger.getLogger(FileManager.class.getName()).log(Level.WARNING,
+						"Unable to delete " + plainFile + ", which is now packed");
+			}
+		}
+		result.add(packed);
+	}
+
+	/**
+	 * Copy a file, leaving holes in the destination wherever the source holds
+	 * a block of zeros. Holes in the source read back as zeros, so they are
+	 * preserved as well. The copy is written under a temporary name and
+	 * renamed over the destination once it is flushed, so skipped regions
+	 * never expose stale data from an earlier copy.
+	 *
+	 * @param fromPathAndName
+	 *            The file to copy.
+	 * @param toPathAndName
+	 *            The file to create or overwrite.
+	 * @return The number of bytes left as holes in the destination.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public long copySparseFile(String fromPathAndName, String toPathAndName)
+			throws FileNotFoundException, IOException {
+		createParentDirectory(toPathAndName);
+		File target = new File(toPathAndName);
+		File tempFile = GroupCommit.getTempFile(target);
+		long skipped;
+		try {
+			skipped = copySparseContents(fromPathAndName, tempFile.getPath(),
+					null);
+		} catch (IOException ex) {
+			tempFile.delete();
+			throw ex;
+		}
+		BatchResult result = new BatchResult();
+		GroupCommit commit = new GroupCommit(result);
+		commit.add(toPathAndName, tempFile, target, new File(fromPathAndName)
+				.length(), null);
+		commitCopy(commit, result);
+		return skipped;
+	}
+
+	/**
+	 * Sparse copy a file into a directory that already exists.
+	 *
+	 * @param fromPathAndName
+	 * @param toPathAndName
+	 * @param hasher
+	 *            If not null then the source is added to this hasher as it is
+	 *            read, and the copy is flushed to the device.
+	 * @return The number of bytes left as holes in the destination.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	private long copySparseContents(String fromPathAndName,
+			String toPathAndName, Hasher hasher)
+			throws FileNotFoundException, IOException {
+		long skipped = 0;
+		RandomAccessFile in = new RandomAccessFile(fromPathAndName, "r");
+		RandomAccessFile out = null;
+		try {
+			out = new RandomAccessFile(toPathAndName, "rw");
+			out.setLength(0);
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long length = inChannel.size();
+			ByteBuffer buffer = ByteBuffer.allocateDirect(SPARSE_READ_SIZE);
+			long position = 0;
+			while (position < length) {
+				buffer.clear();
+				int read = rateLimiter.read(inChannel, buffer, position);
+				if (read <= 0) {
+					break;
+				}
+				if (hasher != null) {
+					buffer.flip();
+					hasher.update(buffer);
+				}
+				// Write each run of non-zero blocks with a single call and
+				// step over each run of zero blocks.
+				int runStart = -1;
+				for (int block = 0; block < read; block += SPARSE_BLOCK_SIZE) {
+					int blockEnd = Math.min(block + SPARSE_BLOCK_SIZE, read);
+					if (isZeroBlock(buffer, block, blockEnd)) {
+						if (runStart >= 0) {
+							writeRegion(outChannel, buffer, runStart, block,
+									position + runStart);
+							runStart = -1;
+						}
+						skipped += blockEnd - block;
+					} else if (runStart < 0) {
+						runStart = block;
+					}
+				}
+				if (runStart >= 0) {
+					writeRegion(outChannel, buffer, runStart, read, position
+							+ runStart);
+				}
+				position += read;
+			}
+			// Extending the length leaves any trailing zero region as a hole.
+			if (out.length() < length) {
+				out.setLength(length);
+			}
+			if (hasher != null) {
+				outChannel.force(true);
+			}
+		} finally {
+			in.close();
+			if (out != null) {
+				out.close();
+			}
+		}
+		return skipped;
+	}
+
+	/**
+	 * @param buffer
+	 * @param from
+	 *            The first byte of the block in the buffer.
+	 * @param to
+	 *            One past the last byte of the block in the buffer.
+	 * @return True if every byte in the block is zero.
+	 */
+	private boolean isZeroBlock(ByteBuffer buffer, int from, int to) {
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			if (buffer.getLong(i) != 0) {
+				return false;
+			}
+		}
+		for (; i < to; i++) {
+			if (buffer.get(i) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write part of a buffer to a channel at an absolute position.
+	 *
+	 * @param channel
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 * @param position
+	 * @throws IOException
+	 */
+	private void writeRegion(FileChannel channel, ByteBuffer buffer, int from,
+			int to, long position) throws IOException {
+		ByteBuffer region = buffer.duplicate();
+		region.limit(to);
+		region.position(from);
+		while (region.hasRemaining()) {
+			position += channel.write(region, position);
+		}
+	}
+
+	/**
+	 * @return The filter applied by catalog, digest, duplicate and bulk copy
+	 *         operations.
+	 */
+	public CatalogFilter getCatalogFilter() {
+		return catalogFilter;
+	}
+
+	/**
+	 * @param catalogFilter
+	 *            The filter applied by catalog, digest, duplicate and bulk copy
+	 *            operations.
+	 */
+	public void setCatalogFilter(CatalogFilter catalogFilter) {
+		this.catalogFilter = catalogFilter;
+	}
+
+	/**
+	 * @return The order in which copyFiles copies files.
+	 */
+	public CopyOrderPolicy getCopyOrder() {
+		return copyOrder;
+	}
+
+	/**
+	 * @param copyOrder
+	 *            The order in which copyFiles copies files.
+	 */
+	public void setCopyOrder(CopyOrderPolicy copyOrder) {
+		this.copyOrder = copyOrder;
+	}
+
+	/**
+	 * @return True if copyFile recreates zero-filled regions as holes.
+	 */
+	public boolean isSparseCopy() {
+		return sparseCopy;
+	}
+
+	/**
+	 * @param sparseCopy
+	 *            If true then copyFile recreates zero-filled regions as holes.
+	 */
+	public void setSparseCopy(boolean sparseCopy) {
+		this.sparseCopy = sparseCopy;
+	}
+
+	/**
+	 * @return The limiter that copies, verification and content comparisons
+	 *         read through.
+	 */
+	public IoRateLimiter getRateLimiter() {
+		return rateLimiter;
+	}
+
+	/**
+	 * @param rateLimiter
+	 *            The limiter that copies, verification and content
+	 *            comparisons read through. Share one limiter between
+	 *            FileManagers to hold them all to the same limits.
+	 */
+	public synchronized void setRateLimiter(IoRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+		hashEngine = null;
+	}
+
+	/**
+	 * @return The algorithm files are hashed with for verification and
+	 *         duplicate searches.
+	 */
+	public HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * @param hashAlgorithm
+	 *            The algorithm files are hashed with for verification and
+	 *            duplicate searches. Each algorithm has its own hash cache.
+	 */
+	public synchronized void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		if (hashAlgorithm != this.hashAlgorithm) {
+			saveHashCache();
+			hashCache = null;
+			hashEngine = null;
+		}
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	/**
+	 * @return True if every copy is read back and checked against the source.
+	 */
+	public boolean isVerifyCopy() {
+		return verifyCopy;
+	}
+
+	/**
+	 * @param verifyCopy
+	 *            If true then the source is hashed while it is copied, the
+	 *            copy is flushed to the device and read back once, and a copy
+	 *            that does not match fails. The hashes are kept in the hash
+	 *            cache. Files extracted from or added to pack archives are not
+	 *            verified.
+	 */
+	public void setVerifyCopy(boolean verifyCopy) {
+		this.verifyCopy = verifyCopy;
+	}
+
+	/**
+	 * @return True if batches of deletes and moves remove the directories
+	 *         they leave empty.
+	 */
+	public boolean isPruneEmptyDirectories() {
+		return pruneEmptyDirectories;
+	}
+
+	/**
+	 * @param pruneEmptyDirectories
+	 *            If true then deleteFiles, moveFiles and sync plans remove
+	 *            the directories they leave empty, checking only the
+	 *            directories they touched.
+	 */
+	public void setPruneEmptyDirectories(boolean pruneEmptyDirectories) {
+		this.pruneEmptyDirectories = pruneEmptyDirectories;
+	}
+
+	/**
+	 * @return True if digestDirectory reuses the saved digests of directories
+	 *         whose modification time has not changed.
+	 */
+	public boolean isTrustDirectoryTimes() {
+		return trustDirectoryTimes;
+	}
+
+	/**
+	 * @param trustDirectoryTimes
+	 *            If true then digestDirectory does not list a directory whose
+	 *            modification time has not changed. A file rewritten in
+	 *            place, or added within the time granularity of the file
+	 *            system, is then missed, and on file systems that do not
+	 *            keep directory times, such as FAT, every change is missed.
+	 */
+	public void setTrustDirectoryTimes(boolean trustDirectoryTimes) {
+		this.trustDirectoryTimes = trustDirectoryTimes;
+	}
+
+	/**
+	 * @return True if copyFiles overlaps reading and writing.
+	 */
+	public boolean isPipelinedCopy() {
+		return pipelinedCopy;
+	}
+
+	/**
+	 * @param pipelinedCopy
+	 *            If true then copyFiles reads on one thread and writes on
+	 *            another. Sparse copies and pack archives are not pipelined.
+	 */
+	public void setPipelinedCopy(boolean pipelinedCopy) {
+		this.pipelinedCopy = pipelinedCopy;
+	}
+
+	/**
+	 * @return The number of buffers between the reader and the writer of a
+	 *         pipelined copy.
+	 */
+	public int getPipelineBufferCount() {
+		return pipelineBufferCount;
+	}
+
+	/**
+	 * @param pipelineBufferCount
+	 *            The number of buffers between the reader and the writer of a
+	 *            pipelined copy, at least 2.
+	 */
+	public void setPipelineBufferCount(int pipelineBufferCount) {
+		this.pipelineBufferCount = pipelineBufferCount;
+	}
+
+	/**
+	 * @return The size in bytes of each pipelined copy buffer.
+	 */
+	public int getPipelineBufferSize() {
+		return pipelineBufferSize;
+	}
+
+	/**
+	 * @param pipelineBufferSize
+	 *            The size in bytes of each pipelined copy buffer.
+	 */
+	public void setPipelineBufferSize(int pipelineBufferSize) {
+		this.pipelineBufferSize = pipelineBufferSize;
+	}
+
+	/**
+	 * @return The number of files moveFiles moves at the same time.
+	 */
+	public int getMoveThreads() {
+		return moveThreads;
+	}
+
+	/**
+	 * @param moveThreads
+	 *            The number of files moveFiles moves at the same time, at
+	 *            least 1.
+	 */
+	public void setMoveThreads(int moveThreads) {
+		this.moveThreads = moveThreads;
+	}
+
+	/**
+	 * @param filePathAndName
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public byte[] readBytes(String filePathAndName)
+			throws FileNotFoundException, IOException {
+		InputStream inputStream = null;
+		byte[] bytes = null;
+		try {
+			File file = new File(filePathAndName);
+			inputStream = new FileInputStream(file);
+			Long length = file.length();
+			bytes = readBytes(inputStream, length);
+		} finally {
+			if (inputStream != null) {
+				inputStream.close();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param is
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 */
+	private byte[] readBytes(InputStream is, long length) throws IOException {
+		// You cannot create an array using a long type.
+		// It needs to be an int type.
+		// Before converting to an int type, check
+		// to ensure that file is not larger than Integer.MAX_VALUE.
+		if (length > Integer.MAX_VALUE) {
+			// File is too large
+			throw new IOException("File too large, cannot read file: "
+					+ Integer.MAX_VALUE);
+		}
+
+		// Create the byte array to hold the data
+		byte[] bytes = new byte[(int) length];
+
+		// Read in the bytes
+		int offset = 0;
+		int numRead = 0;
+		while (offset < bytes.length
+				&& (numRead = is.read(bytes, offset, bytes.length - offset)) >= 0) {
+			offset += numRead;
+		}
+
+		// Ensure all the bytes have been read.
+		if (offset < bytes.length) {
+			throw new IOException("InputStream to large!");
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @param filePathAndName
+	 * @return
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public String read(String filePathAndName) throws FileNotFoundException,
+			IOException {
+		byte[] bytes = readBytes(filePathAndName);
+		return new String(bytes);
+	}
+
+	/**
+	 * @param rootDirectory
+	 * @param relativeFilePathAndNames
+	 * @return
+	 * @throws IOException
+	 */
+	public HashMap<String, BasicFileAttributes> getBasicFileAttributes(
+			String rootDirectory, Collection<String> relativeFilePathAndNames)
+			throws IOException {
+		HashMap<String, BasicFileAttributes> fileAttributes = new HashMap<String, BasicFileAttributes>();
+		for (int i = 0; i < relativeFilePathAndNames.size(); i++) {
+			fileAttributes.put(
+					((ArrayList<String>) relativeFilePathAndNames).get(i),
+					this.getBasicFileAttributes(rootDirectory
+							+ File.separator
+							+ ((ArrayList<String>) relativeFilePathAndNames)
+									.get(i)));
+		}
+		return fileAttributes;
+	}
+
+	/**
+	 * @param filePathAndName
+	 * @return
+	 * @throws IOException
+	 */
+	public BasicFileAttributes getBasicFileAttributes(String filePathAndName)
+			throws IOException {
+		BasicFileAttributes attributes = null;
+		FileSystem fs = FileSystems.getDefault();
+		Path filePath = fs.getPath(filePathAndName);
+		attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+		return attributes;
+	}
+
+	/**
+	 * Get the file that holds saved state of one kind for a directory. State
+	 * files live in the .dirsync directory of the user's home directory and
+	 * are named after the absolute path of the directory they describe.
+	 *
+	 * @param directory
+	 *            The directory the state describes.
+	 * @param extension
+	 *            The kind of state.
+	 * @return The path and name of the state file.
+	 */
+	public String getStateFile(String directory, String extension) {
+		File stateDirectory = getStateDirectory();
+		String key = new File(directory).getAbsolutePath();
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			key = toHex(digest.digest(key.getBytes("UTF-8")));
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1.
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			// Every Java platform is required to support UTF-8.
+			throw new IllegalStateException(e);
+		}
+		return stateDirectory.getPath() + File.separator + key + "."
+				+ extension;
+	}
+
+	/**
+	 * @return The .dirsync directory in the user's home directory, created if
+	 *         needed.
+	 */
+	private File getStateDirectory() {
+		File stateDirectory = new File(System.getProperty("user.home"),
+				".dirsync");
+		if (!knownDirectories.contains(stateDirectory.getPath())) {
+			stateDirectory.mkdirs();
+			if (stateDirectory.isDirectory()) {
+				knownDirectories.add(stateDirectory.getPath());
+			}
+		}
+		return stateDirectory;
+	}
+
+	/**
+	 * @param bytes
+	 * @return The bytes as lower case hexadecimal digits.
+	 */
+	public String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Bring the saved Merkle digests of a directory tree up to date. When
+	 * directory times are trusted, the digests from the previous run are
+	 * reused for every directory whose modification time has not changed.
+	 * The digests cover the files accepted by the catalog filter, and in
+	 * CONTENT mode files are hashed with the chosen hash algorithm through the
+	 * hash cache.
+	 *
+	 * @param directory
+	 * @param mode
+	 *            What the digest of a file covers.
+	 * @return The digests.
+	 * @throws IOException
+	 */
+	public DirectoryDigest digestDirectory(String directory,
+			DirectoryDigest.Mode mode) throws IOException {
+		String stateFile = getStateFile(directory, "digest");
+		DirectoryDigest previous = null;
+		try {
+			previous = DirectoryDigest.load(stateFile);
+		} catch (IOException ex) {
+			Logger.getLogger(FileManager.class.getName()).log(Level.WARNING,
+					"Ignoring unreadable digest file " + stateFile, ex);
+		}
+		DirectoryDigest digest;
+		try {
+			digest = DirectoryDigest.build(directory, mode, previous,
+					trustDirectoryTimes, this);
+		} finally {
+			saveHashCache();
+		}
+		digest.save(stateFile);
+		return digest;
+	}
+
+	/**
+	 * Compare the files of two directory trees by name, descending only into
+	 * subtrees whose digests differ.
+	 *
+	 * @param directory1
+	 * @param directory2
+	 * @param onlyIn1
+	 *            Receives the files in directory1 not in directory2.
+	 * @param onlyIn2
+	 *            Receives the files in directory2 not in directory1.
+	 * @throws IOException
+	 */
+	public void compareDirectories(String directory1, String directory2,
+			Collection<String> onlyIn1, Collection<String> onlyIn2)
+			throws IOException {
+		DirectoryDigest digest1 = digestDirectory(directory1,
+				DirectoryDigest.Mode.NAMES_AND_SIZES);
+		DirectoryDigest digest2 = digestDirectory(directory2,
+				DirectoryDigest.Mode.NAMES_AND_SIZES);
+		DirectoryDigest.compare(directory1, digest1, directory2, digest2,
+				onlyIn1, onlyIn2, null);
+	}
+
+	/**
+	 * Compare the files of two directory trees by name, passing differences
+	 * to a listener as soon as each directory has been listed instead of
+	 * after both trees are cataloged. The trees are walked side by side, each
+	 * directory is listed once, and a subtree on only one side is reported as
+	 * it is walked. The result is the same set of names as the difference of
+	 * the two catalogs, including the entries of pack archives. The walk stops
+	 * early if the thread is interrupted.
+	 *
+	 * @param directory1
+	 * @param directory2
+	 * @param listener
+	 */
+	public void compareDirectories(String directory1, String directory2,
+			DifferenceListener listener) {
+		File root1 = new File(directory1).getAbsoluteFile();
+		File root2 = new File(directory2).getAbsoluteFile();
+		compareDirectories(root1, getCatalogRootDirectory(root1.getPath()),
+				root2, getCatalogRootDirectory(root2.getPath()), "", listener);
+	}
+
+	private void compareDirectories(File root1, String catalogRoot1,
+			File root2, String catalogRoot2, String relativeDirectory,
+			DifferenceListener listener) {
+		if (Thread.currentThread().isInterrupted()) {
+			return;
+		}
+		File directoryFile1 = new File(root1, relativeDirectory);
+		File directoryFile2 = new File(root2, relativeDirectory);
+		if (new File(directoryFile1, PackArchive.INDEX_FILE_NAME).isFile()
+				|| new File(directoryFile2, PackArchive.INDEX_FILE_NAME)
+						.isFile()) {
+			// Packed entries can stand for files in subdirectories on the
+			// other side, so compare the whole subtrees.
+			Collection<String> catalog1 = catalogDirectory(
+					directoryFile1.getPath(), true, catalogRoot1);
+			Collection<String> catalog2 = catalogDirectory(
+					directoryFile2.getPath(), true, catalogRoot2);
+			ArrayList<String> onlyIn1 = new ArrayList<String>(catalog1);
+			onlyIn1.removeAll(new HashSet<String>(catalog2));
+			ArrayList<String> onlyIn2 = new ArrayList<String>(catalog2);
+			onlyIn2.removeAll(new HashSet<String>(catalog1));
+			if (!onlyIn1.isEmpty()) {
+				listener.onlyIn1(onlyIn1);
+			}
+			if (!onlyIn2.isEmpty()) {
+				listener.onlyIn2(onlyIn2);
+			}
+			return;
+		}
+		TreeSet<String> subdirectories1 = new TreeSet<String>();
+		TreeSet<String> subdirectories2 = new TreeSet<String>();
+		Collection<String> files1 = listDirectory(directoryFile1,
+				catalogRoot1, relativeDirectory, subdirectories1);
+		Collection<String> files2 = listDirectory(directoryFile2,
+				catalogRoot2, relativeDirectory, subdirectories2);
+		HashSet<String> set2 = new HashSet<String>(files2);
+		ArrayList<String> onlyIn1 = new ArrayList<String>();
+		for (String fileName : files1) {
+			if (!set2.remove(fileName)) {
+				onlyIn1.add(fileName);
+			}
+		}
+		if (!onlyIn1.isEmpty()) {
+			listener.onlyIn1(onlyIn1);
+		}
+		if (!set2.isEmpty()) {
+			// Keep the listing order.
+			ArrayList<String> onlyIn2 = new ArrayList<String>();
+			for (String fileName : files2) {
+				if (set2.contains(fileName)) {
+					onlyIn2.add(fileName);
+				}
+			}
+			listener.onlyIn2(onlyIn2);
+		}
+		for (String subdirectory : subdirectories1) {
+			if (subdirectories2.remove(subdirectory)) {
+				compareDirectories(root1, catalogRoot1, root2, catalogRoot2,
+						subdirectory, listener);
+			} else {
+				reportTree(root1, catalogRoot1, subdirectory, listener, true);
+			}
+		}
+		for (String subdirectory : subdirectories2) {
+			reportTree(root2, catalogRoot2, subdirectory, listener, false);
+		}
+	}
+
+	/**
+	 * Pass every file of a subtree that is on one side only to the listener.
+	 */
+	private void reportTree(File root, String catalogRoot,
+			String relativeDirectory, DifferenceListener listener,
+			boolean side1) {
+		if (Thread.currentThread().isInterrupted()) {
+			return;
+		}
+		TreeSet<String> subdirectories = new TreeSet<String>();
+		Collection<String> files = listDirectory(new File(root,
+				relativeDirectory), catalogRoot, relativeDirectory,
+				subdirectories);
+		if (!files.isEmpty()) {
+			if (side1) {
+				listener.onlyIn1(files);
+			} else {
+				listener.onlyIn2(files);
+			}
+		}
+		for (String subdirectory : subdirectories) {
+			reportTree(root, catalogRoot, subdirectory, listener, side1);
+		}
+	}
+
+	/**
+	 * List one directory the way catalogDirectory does.
+	 *
+	 * @param subdirectories
+	 *            Receives the relative names of the subdirectories accepted
+	 *            by the catalog filter.
+	 * @return The relative names of the files accepted by the catalog filter,
+	 *         and of the entries of a pack archive in the directory.
+	 */
+	private Collection<String> listDirectory(File directoryFile,
+			String catalogRootDirectory, String relativeDirectory,
+			Collection<String> subdirectories) {
+		ArrayList<String> files = new ArrayList<String>();
+		File[] entries = directoryFile.listFiles();
+		if (entries == null) {
+			return files;
+		}
+		for (File f : entries) {
+			String fileName = (relativeDirectory.length() == 0) ? f.getName()
+					: relativeDirectory + getSeparator() + f.getName();
+			if (f.isFile() && GroupCommit.isTempFile(f.getName())) {
+				// An uncommitted copy is not part of the tree.
+			} else if (f.isFile() && PackArchive.isArchiveFile(f.getName())) {
+				if (f.getName().equals(PackArchive.INDEX_FILE_NAME)) {
+					files.addAll(catalogPackArchive(directoryFile,
+							catalogRootDirectory));
+				}
+			} else if (f.isFile()) {
+				if (catalogFilter.isEmpty() || catalogFilter.acceptFile(fileName,
+						catalogFilter.needsAttributes() ? f.length() : 0,
+						catalogFilter.needsAttributes() ? f.lastModified() : 0)) {
+					files.add(fileName);
+				}
+			} else if (f.isDirectory()
+					&& (catalogFilter.isEmpty() || catalogFilter
+							.acceptDirectory(fileName))) {
+				subdirectories.add(fileName);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Find the files that were moved or renamed in directory 1 and still sit
+	 * under their old names in directory 2. Files found on one side only are
+	 * paired first by size, and only files whose size appears on both sides
+	 * are hashed, so a reorganized tree costs a read of the candidates rather
+	 * than a copy. Files whose sizes and hashes match are compared byte for
+	 * byte before they are paired. Each file in directory 2 is paired at most
+	 * once, with a file of the same name preferred when several match.
+	 *
+	 * @param directory1
+	 *            The source, whose names are kept.
+	 * @param directory2
+	 *            The destination, where the files are renamed.
+	 * @param onlyIn1
+	 *            Files in directory 1 not in directory 2.
+	 * @param onlyIn2
+	 *            Files in directory 2 not in directory 1.
+	 * @return A plan of MOVE steps in directory 2, each renaming a file from
+	 *         onlyIn2 to the name it has in onlyIn1.
+	 * @throws IOException
+	 *             If the thread was interrupted.
+	 */
+	public SyncPlan findMoves(String directory1, String directory2,
+			Collection<String> onlyIn1, Collection<String> onlyIn2)
+			throws IOException {
+		SyncPlan plan = new SyncPlan();
+		HashMap<Long, ArrayList<String>> sizes2 = new HashMap<Long, ArrayList<String>>();
+		for (String fileName : onlyIn2) {
+			File file = new File(directory2, fileName);
+			if (file.isFile()) {
+				Long size = file.length();
+				if (!sizes2.containsKey(size)) {
+					sizes2.put(size, new ArrayList<String>());
+				}
+				sizes2.get(size).add(fileName);
+			}
+		}
+		// Only sizes found on both sides are worth hashing.
+		TreeSet<String> candidates1 = new TreeSet<String>();
+		HashSet<Long> matchedSizes = new HashSet<Long>();
+		for (String fileName : onlyIn1) {
+			File file = new File(directory1, fileName);
+			if (file.isFile() && sizes2.containsKey(file.length())) {
+				candidates1.add(fileName);
+				matchedSizes.add(file.length());
+			}
+		}
+		if (candidates1.isEmpty()) {
+			return plan;
+		}
+		ArrayList<String> candidates2 = new ArrayList<String>();
+		for (Long size : matchedSizes) {
+			candidates2.addAll(sizes2.get(size));
+		}
+
+		HashEngine engine = getHashEngine();
+		HashCache hashCache = getHashCache();
+		HashMap<String, byte[]> hashes1 = engine.hashFiles(directory1,
+				candidates1, hashCache);
+		HashMap<String, byte[]> hashes2 = engine.hashFiles(directory2,
+				candidates2, hashCache);
+		saveHashCache();
+
+		// The unpaired files in directory 2, by size and hash.
+		HashMap<String, ArrayList<String>> byContent = new HashMap<String, ArrayList<String>>();
+		for (String fileName : hashes2.keySet()) {
+			String key = new File(directory2, fileName).length() + ":"
+					+ toHex(hashes2.get(fileName));
+			if (!byContent.containsKey(key)) {
+				byContent.put(key, new ArrayList<String>());
+			}
+			byContent.get(key).add(fileName);
+		}
+		for (String fileName : candidates1) {
+			byte[] hash = hashes1.get(fileName);
+			if (hash == null) {
+				continue;
+			}
+			ArrayList<String> matches = byContent.get(new File(directory1,
+					fileName).length() + ":" + toHex(hash));
+			if ((matches == null) || matches.isEmpty()) {
+				continue;
+			}
+			File file1 = new File(directory1, fileName);
+			String baseName = file1.getName();
+			String match = null;
+			// Files with the same name are tried first. A pair is only moved
+			// once its bytes match, since equal hashes can still differ.
+			for (int pass = 0; (pass < 2) && (match == null); pass++) {
+				for (String candidate : matches) {
+					boolean sameName = new File(candidate).getName().equals(
+							baseName);
+					if ((sameName == (pass == 0))
+							&& contentEquals(file1, new File(directory2,
+									candidate))) {
+						match = candidate;
+						break;
+					}
+				}
+			}
+			if (match != null) {
+				matches.remove(match);
+				plan.add(SyncOperation.move(directory2, match, fileName));
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * Catalog a directory tree into its saved snapshot, replacing the
+	 * snapshot of the previous run. The catalog is kept in a memory-mapped
+	 * file rather than on the heap, for trees with millions of files. Any
+	 * store opened from the previous snapshot should be closed first.
+	 *
+	 * @param directory
+	 * @param recursively
+	 * @return The open snapshot, sorted by name.
+	 * @throws IOException
+	 */
+	public CatalogStore snapshotDirectory(String directory, boolean recursively)
+			throws IOException {
+		return CatalogStore.build(this, directory, recursively,
+				getStateFile(directory, "catalog"));
+	}
+
+	/**
+	 * @param directory
+	 * @return The snapshot saved by the last snapshotDirectory, or null if
+	 *         there is none.
+	 * @throws IOException
+	 */
+	public CatalogStore getDirectorySnapshot(String directory)
+			throws IOException {
+		return CatalogStore.open(getStateFile(directory, "catalog"));
+	}
+
+	/**
+	 * Remove every empty directory in a tree, including the directory itself
+	 * if it ends up empty. Subtrees are pruned in parallel and each directory
+	 * is listed once.
+	 *
+	 * @param directory
+	 * @return The number of directories removed.
+	 */
+	public int removeEmptyDirectories(String directory) {
+		int removed = DirectoryPruner.pruneTree(new File(directory), true);
+		forgetDirectories(new File(directory));
+		return removed;
+	}
+
+	/**
+	 * Remove the directories that deleting or moving some files left empty.
+	 * Only the parents of the files are checked, walking up towards the
+	 * directory, which itself is kept.
+	 *
+	 * @param directory
+	 * @param fileNames
+	 *            The files deleted or moved away, relative to the directory.
+	 * @return The number of directories removed.
+	 */
+	public int removeEmptyDirectories(String directory,
+			Collection<String> fileNames) {
+		HashSet<File> parents = new HashSet<File>();
+		for (String fileName : fileNames) {
+			File parent = new File(directory, fileName).getParentFile();
+			if (parent != null) {
+				parents.add(parent);
+			}
+		}
+		int removed = DirectoryPruner.pruneUpward(new File(directory), parents);
+		forgetDirectories(new File(directory));
+		return removed;
+	}
+
+	/**
+	 * Find duplicates by cataloging the tree into a temporary catalog store,
+	 * sorted by size, so only the files of one size are held in memory at a
+	 * time. The saved snapshot of the directory is left alone. Packed entries
+	 * are left out.
+	 *
+	 * @param directory
+	 * @param recursively
+	 * @return Each group of files with the same content.
+	 * @throws IOException
 	 */
 	public ArrayList<ArrayList<String>> findDuplicates(String directory,
 			boolean recursively) throws IOException {
 		ArrayList<ArrayList<String>> duplicateFiles = new ArrayList<ArrayList<String>>();
-		// Get the list of files.
-		Collection<String> files = catalogDirectory(directory, recursively, null);
-		HashMap<String, BasicFileAttributes> basicFileAttributes = getBasicFileAttributes(
-				directory, files);
-
-		// Sort the files based on size.
-		ArrayList<String> filesBySize = (ArrayList<String>) filesBySize(basicFileAttributes);
+		HashCache hashCache = getHashCache();
+		File catalogFile = File.createTempFile("catalog", ".dat", new File(
+				System.getProperty("java.io.tmpdir")));
+		CatalogStore snapshot;
+		try {
+			snapshot = CatalogStore.build(this, directory, recursively,
+					catalogFile.getPath());
+		} catch (IOException e) {
+			catalogFile.delete();
+			throw e;
+		}
+		try {
+			snapshot.sort(CatalogStore.Order.SIZE);
+			int numFiles = snapshot.size();
+			int runStart = 0;
+			while (runStart < numFiles) {
+				long size = snapshot.getSize(runStart);
+				int runEnd = runStart + 1;
+				while ((runEnd < numFiles) && (snapshot.getSize(runEnd) == size)) {
+					runEnd++;
+				}
+				if (runEnd - runStart > 1) {
+					ArrayList<String> sameSize = new ArrayList<String>();
+					for (int i = runStart; i < runEnd; i++) {
+						if (!snapshot.isPacked(i)) {
+							sameSize.add(snapshot.getName(i));
+						}
+					}
+					findDuplicates(directory, sameSize, hashCache,
+							duplicateFiles);
+				}
+				runStart = runEnd;
+			}
+		} finally {
+			snapshot.close();
+			// The mapping can keep the file from being deleted until it is
+			// garbage collected.
+			if (!catalogFile.delete()) {
+				catalogFile.deleteOnExit();
+			}
+		}
+		saveHashCache();
+		return duplicateFiles;
+	}
 
-		// Compare files by size.
-		int numFiles = filesBySize.size();
-		ArrayList<String> addedDuplicates = new ArrayList<String>();
+	/**
+	 * Group files of the same size that have the same content.
+	 *
+	 * @param directory
+	 * @param sameSize
+	 *            The relative names of files of one size.
+	 * @param hashCache
+	 * @param duplicateFiles
+	 *            Receives each group of two or more.
+	 * @throws IOException
+	 */
+	private void findDuplicates(String directory, ArrayList<String> sameSize,
+			HashCache hashCache, ArrayList<ArrayList<String>> duplicateFiles)
+			throws IOException {
+		int numFiles = sameSize.size();
+		// Hash the files when there are three or more, in parallel, so they
+		// are compared by hash below instead of reading every pair.
+		if (numFiles > 2) {
+			getHashEngine().hashFiles(directory, sameSize, hashCache);
+		}
+		HashSet<String> addedDuplicates = new HashSet<String>();
 		for (int i = 0; i < numFiles; i++) {
-			if (!addedDuplicates.contains(filesBySize.get(i))) {
-				int j = i + 1;
+			if (!addedDuplicates.contains(sameSize.get(i))) {
 				ArrayList<String> duplicates = null;
-				File file1 = null;
+				File file1 = new File(directory + File.separator
+						+ sameSize.get(i));
 				// Look forward in the list to see if this file has a duplicate.
-				while ((j < numFiles)
-						&& (((BasicFileAttributes) basicFileAttributes
-								.get(filesBySize.get(i))).size() == ((BasicFileAttributes) basicFileAttributes
-								.get(filesBySize.get(j))).size())) {
-					if (j == (i + 1)) {
-						file1 = new File(directory + File.separator
-								+ filesBySize.get(i));
+				for (int j = i + 1; j < numFiles; j++) {
+					if (addedDuplicates.contains(sameSize.get(j))) {
+						continue;
 					}
 					File file2 = new File(directory + File.separator
-							+ filesBySize.get(j));
-					// Compare files.
-					if (FileUtils.contentEquals(file1, file2)) {
+							+ sameSize.get(j));
+					// Compare files, by hash if both were hashed as they are now.
+					byte[] hash1 = hashCache.get(file1);
+					byte[] hash2 = (hash1 != null) ? hashCache.get(file2) : null;
+					boolean same = (hash2 != null) ? MessageDigest.isEqual(
+							hash1, hash2) : contentEquals(file1, file2);
+					if (same) {
 						// If true, create a paired array.
 						if (duplicates == null) {
 							duplicates = new ArrayList<String>();
-							duplicates.add(filesBySize.get(i));
-							addedDuplicates.add(filesBySize.get(i));
-							duplicates.add(filesBySize.get(j));
-							addedDuplicates.add(filesBySize.get(j));
-						} else {
-							duplicates.add(filesBySize.get(j));
-							addedDuplicates.add(filesBySize.get(j));
+							duplicates.add(sameSize.get(i));
+							addedDuplicates.add(sameSize.get(i));
 						}
+						duplicates.add(sameSize.get(j));
+						addedDuplicates.add(sameSize.get(j));
 					}
-					j = j + 1;
 				}
 				if (duplicates != null) {
 					duplicateFiles.add(duplicates);
 				}
 			}
 		}
-		return duplicateFiles;
 	}
 
 	/**
-	 * @param filePathAndName1
-	 * @param filePathAndName2
-	 * @return
+	 * Find duplicates in a fixed amount of memory, for trees too large to
+	 * catalog in memory. Records are sorted on disk in the temporary
+	 * directory, and the hash cache is not used since it is held in memory.
+	 * Files with equal hashes are compared byte for byte before they are
+	 * reported.
+	 *
+	 * @param directory
+	 * @param recursively
+	 * @param recordsInMemory
+	 *            The number of records sorted in memory at a time, see
+	 *            ExternalDuplicateFinder.DEFAULT_RECORDS_IN_MEMORY.
+	 * @param handler
+	 *            Receives each duplicate with the first file of its group.
+	 * @return The number of duplicates found.
+	 * @throws IOException
 	 */
-	public Boolean compareFiles(String filePathAndName1, String filePathAndName2) {
-		Boolean same = false;
-		return same;
+	public long findDuplicates(String directory, boolean recursively,
+			int recordsInMemory, ExternalDuplicateFinder.PairHandler handler)
+			throws IOException {
+		ExternalDuplicateFinder finder = new ExternalDuplicateFinder(this,
+				recordsInMemory, new File(System.getProperty("java.io.tmpdir")));
+		return finder.find(directory, recursively, handler);
 	}
 
 	/**
-	 * @param basicFileAttributes
-	 * @return
+	 * Find likely duplicates quickly. Files of the same size are compared by
+	 * a sampled fingerprint that reads a few chunks of each file instead of
+	 * all of it. A group whose files were read in full, or whose files all
+	 * have matching full hashes in the hash cache, is confirmed; any other
+	 * group carries the fraction of each file that was sampled as its
+	 * coverage and should be checked with confirmDuplicates.
+	 *
+	 * @param directory
+	 * @param recursively
+	 * @param samples
+	 *            The number of chunks read from each file, see
+	 *            SampledFingerprint.DEFAULT_SAMPLES.
+	 * @param chunkSize
+	 *            The size of each chunk, see
+	 *            SampledFingerprint.DEFAULT_CHUNK_SIZE.
+	 * @return The groups of likely duplicates, largest files first.
+	 * @throws IOException
+	 */
+	public ArrayList<DuplicateGroup> findLikelyDuplicates(String directory,
+			boolean recursively, int samples, int chunkSize)
+			throws IOException {
+		HashMap<Long, ArrayList<String>> bySize = new HashMap<Long, ArrayList<String>>();
+		for (String fileName : catalogDirectory(directory, recursively, null,
+				false)) {
+			Long size = new File(directory, fileName).length();
+			ArrayList<String> sameSize = bySize.get(size);
+			if (sameSize == null) {
+				sameSize = new ArrayList<String>();
+				bySize.put(size, sameSize);
+			}
+			sameSize.add(fileName);
+		}
+		ArrayList<Long> sizes = new ArrayList<Long>(bySize.keySet());
+		Collections.sort(sizes, Collections.reverseOrder());
+
+		HashCache cache = getHashCache();
+		ArrayList<DuplicateGroup> groups = new ArrayList<DuplicateGroup>();
+		for (Long size : sizes) {
+			ArrayList<String> sameSize = bySize.get(size);
+			if (sameSize.size() < 2) {
+				continue;
+			}
+			HashMap<String, ArrayList<String>> byFingerprint = new HashMap<String, ArrayList<String>>();
+			HashMap<String, Double> coverage = new HashMap<String, Double>();
+			for (String fileName : sameSize) {
+				SampledFingerprint fingerprint;
+				try {
+					fingerprint = SampledFingerprint.of(new File(directory,
+							fileName), samples, chunkSize, rateLimiter);
+				} catch (IOException ex) {
+					Logger.getLogger(FileManager.class.getName()).log(
+							Level.FINE, "Unable to read " + fileName, ex);
+					continue;
+				}
+				String key = toHex(fingerprint.getFingerprint());
+				if (!byFingerprint.containsKey(key)) {
+					byFingerprint.put(key, new ArrayList<String>());
+					coverage.put(key, fingerprint.getCoverage());
+				}
+				byFingerprint.get(key).add(fileName);
+			}
+			for (String key : byFingerprint.keySet()) {
+				ArrayList<String> fileNames = byFingerprint.get(key);
+				if (fileNames.size() < 2) {
+					continue;
+				}
+				Collections.sort(fileNames);
+				ArrayList<ArrayList<String>> byHash = groupByCachedHash(
+						directory, fileNames, cache);
+				if (byHash != null) {
+					for (ArrayList<String> sameHash : byHash) {
+						groups.add(new DuplicateGroup(sameHash, size, 1));
+					}
+				} else {
+					groups.add(new DuplicateGroup(fileNames, size, coverage
+							.get(key)));
+				}
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Confirm likely duplicates by hashing each file in full, in parallel.
+	 * Hashes are taken from the hash cache where possible, and new hashes are
+	 * added to it. Groups that are already confirmed are kept as they are.
+	 *
+	 * @param directory
+	 * @param groups
+	 *            Groups found by findLikelyDuplicates.
+	 * @return The confirmed groups; a likely group that turns out to hold
+	 *         different files is split or dropped.
+	 * @throws IOException
+	 */
+	public ArrayList<DuplicateGroup> confirmDuplicates(String directory,
+			Collection<DuplicateGroup> groups) throws IOException {
+		HashCache cache = getHashCache();
+		ArrayList<DuplicateGroup> confirmed = new ArrayList<DuplicateGroup>();
+		try {
+			ArrayList<String> unconfirmed = new ArrayList<String>();
+			for (DuplicateGroup group : groups) {
+				if (!group.isConfirmed()) {
+					unconfirmed.addAll(group.getFileNames());
+				}
+			}
+			getHashEngine().hashFiles(directory, unconfirmed, cache);
+			for (DuplicateGroup group : groups) {
+				if (group.isConfirmed()) {
+					confirmed.add(group);
+					continue;
+				}
+				ArrayList<ArrayList<String>> byHash = groupByCachedHash(
+						directory, group.getFileNames(), cache);
+				if (byHash != null) {
+					for (ArrayList<String> sameHash : byHash) {
+						confirmed.add(new DuplicateGroup(sameHash, group
+								.getSize(), 1));
+					}
+				}
+			}
+		} finally {
+			cache.save();
+		}
+		return confirmed;
+	}
+
+	/**
+	 * @return The files split into groups of two or more with the same cached
+	 *         full hash, or null if any file has no cached hash.
+	 */
+	private ArrayList<ArrayList<String>> groupByCachedHash(String directory,
+			Collection<String> fileNames, HashCache cache) {
+		HashMap<String, ArrayList<String>> byHash = new HashMap<String, ArrayList<String>>();
+		for (String fileName : fileNames) {
+			byte[] hash = cache.get(new File(directory, fileName));
+			if (hash == null) {
+				return null;
+			}
+			String key = toHex(hash);
+			if (!byHash.containsKey(key)) {
+				byHash.put(key, new ArrayList<String>());
+			}
+			byHash.get(key).add(fileName);
+		}
+		ArrayList<ArrayList<String>> groups = new ArrayList<ArrayList<String>>();
+		for (ArrayList<String> sameHash : byHash.values()) {
+			if (sameHash.size() > 1) {
+				groups.add(sameHash);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Find images that look alike, such as the same photo re-exported,
+	 * resized or recompressed. Each image is given a perceptual hash, in
+	 * parallel and cached between runs, and the hashes are indexed in a
+	 * BK-tree so each image is matched against its near neighbours only.
+	 * Images that cannot be read are skipped.
+	 *
+	 * @param directory
+	 * @param recursively
+	 * @param maxDistance
+	 *            The largest number of differing hash bits between two
+	 *            images in a group, see PerceptualHash.DEFAULT_MAX_DISTANCE.
+	 * @return Groups of relative names, each group holding two or more images
+	 *         that look alike.
+	 * @throws IOException
+	 */
+	public ArrayList<ArrayList<String>> findSimilarImages(String directory,
+			boolean recursively, int maxDistance) throws IOException {
+		ArrayList<String> images = new ArrayList<String>();
+		for (String fileName : catalogDirectory(directory, recursively, null,
+				false)) {
+			if (PerceptualHash.isImage(fileName)) {
+				images.add(fileName);
+			}
+		}
+		Collections.sort(images);
+		HashMap<String, Long> hashes = perceptualHashes(directory, images);
+
+		BkTree tree = new BkTree();
+		for (String image : images) {
+			if (hashes.containsKey(image)) {
+				tree.add(hashes.get(image), image);
+			}
+		}
+		ArrayList<ArrayList<String>> groups = new ArrayList<ArrayList<String>>();
+		HashSet<String> grouped = new HashSet<String>();
+		for (String image : images) {
+			if (!hashes.containsKey(image) || grouped.contains(image)) {
+				continue;
+			}
+			ArrayList<String> group = new ArrayList<String>();
+			group.add(image);
+			for (String similar : tree.search(hashes.get(image), maxDistance)) {
+				if (!similar.equals(image) && !grouped.contains(similar)) {
+					group.add(similar);
+				}
+			}
+			if (group.size() > 1) {
+				grouped.addAll(group);
+				Collections.sort(group.subList(1, group.size()));
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Hash images on one thread per processor, up to MAX_IMAGE_THREADS,
+	 * taking unchanged images from the perceptual hash cache. Each file is
+	 * charged to the rate limiter in full before it is decoded.
+	 *
+	 * @return The hash of every image that could be read, by relative name.
+	 * @throws IOException
+	 */
+	private HashMap<String, Long> perceptualHashes(final String directory,
+			Collection<String> images) throws IOException {
+		final HashCache cache = getPerceptualHashCache();
+		HashMap<String, Long> hashes = new HashMap<String, Long>();
+		HashMap<String, Future<Long>> pending = new HashMap<String, Future<Long>>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				Runtime.getRuntime().availableProcessors(), MAX_IMAGE_THREADS));
+		try {
+			for (final String image : images) {
+				final File file = new File(directory, image);
+				byte[] cached = cache.get(file);
+				if (cached != null) {
+					hashes.put(image, ByteBuffer.wrap(cached).getLong());
+					continue;
+				}
+				pending.put(image, executor.submit(new Callable<Long>() {
+					public Long call() throws IOException {
+						rateLimiter.acquire(file.length());
+						long hash = PerceptualHash.hash(file);
+						cache.put(file, ByteBuffer.allocate(8).putLong(hash)
+								.array());
+						return hash;
+					}
+				}));
+			}
+			for (String image : pending.keySet()) {
+				try {
+					hashes.put(image, pending.get(image).get());
+				} catch (ExecutionException ex) {
+					Logger.getLogger(FileManager.class.getName()).log(
+							Level.FINE, "Unable to hash image " + image,
+							ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while hashing images");
+		} finally {
+			executor.shutdownNow();
+			cache.save();
+		}
+		return hashes;
+	}
+
+	/**
+	 * @return The perceptual hashes of images, loaded on first use.
+	 * @throws IOException
 	 */
-	private Collection<String> filesBySize(
-			HashMap<String, BasicFileAttributes> basicFileAttributes) {
-		// return a list of files sorted by file size.
-		// Sort values and keys in the same order.
-		ArrayList<String> keys = new ArrayList<String>(
-				basicFileAttributes.keySet());
-		ArrayList<Long> values = new ArrayList<Long>();
-		ArrayList<Long> sizes = new ArrayList<Long>();
-		for (int i = 0; i < keys.size(); i++) {
-			Long fileSize = basicFileAttributes.get(keys.get(i)).size();
-			sizes.add(fileSize);
-			values.add(fileSize);
+	public synchronized HashCache getPerceptualHashCache() throws IOException {
+		if (perceptualHashCache == null) {
+			perceptualHashCache = new HashCache(getStateDirectory().getPath()
+					+ File.separator + "perceptual-hashes.properties");
 		}
-		ArrayList<String> filesBySize = new ArrayList<String>();
+		return perceptualHashCache;
+	}
 
-		Collections.sort(sizes);
+	/**
+	 * Compare the contents of two files, reading both within the limits of
+	 * the rate limiter and stopping at the first difference.
+	 *
+	 * @param file1
+	 * @param file2
+	 * @return True if both files exist and hold the same bytes.
+	 * @throws IOException
+	 */
+	public boolean contentEquals(File file1, File file2) throws IOException {
+		if (!file1.isFile() || !file2.isFile()
+				|| (file1.length() != file2.length())) {
+			return false;
+		}
+		FileInputStream in1 = new FileInputStream(file1);
+		FileInputStream in2 = null;
+		try {
+			in2 = new FileInputStream(file2);
+			FileChannel channel1 = in1.getChannel();
+			FileChannel channel2 = in2.getChannel();
+			ByteBuffer buffer1 = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+			ByteBuffer buffer2 = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+			while (true) {
+				buffer1.clear();
+				buffer2.clear();
+				int read1 = fill(channel1, buffer1);
+				int read2 = fill(channel2, buffer2);
+				if (read1 != read2) {
+					return false;
+				} else if (read1 == 0) {
+					return true;
+				}
+				buffer1.flip();
+				buffer2.flip();
+				if (!buffer1.equals(buffer2)) {
+					return false;
+				}
+			}
+		} finally {
+			in1.close();
+			if (in2 != null) {
+				in2.close();
+			}
+		}
+	}
 
-		for (int i = 0; i < sizes.size(); i++) {
-			int arrayIndex = values.indexOf(sizes.get(i));
-			filesBySize.add(keys.get(arrayIndex));
-			keys.remove(arrayIndex);
-			values.remove(arrayIndex);
+	/**
+	 * Read within the limits of the rate limiter until a buffer is full or
+	 * the channel ends.
+	 *
+	 * @return The number of bytes read.
+	 */
+	private int fill(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int read = rateLimiter.read(channel, buffer);
+			if (read < 0) {
+				break;
+			}
+			total += read;
 		}
+		return total;
+	}
 
-		return filesBySize;
+	/**
+	 * @param filePathAndName1
+	 * @param filePathAndName2
+	 * @return
+	 */
+	public Boolean compareFiles(String filePathAndName1, String filePathAndName2) {
+		Boolean same = false;
+		return same;
 	}
 	
 }
@@ -0,0 +1,284 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes copies durable in groups. Each copy is written under a temporary
+ * name next to its target and handed to a GroupCommit. The group is flushed
+ * to the device together, each copy is renamed into place, and then each
+ * directory is flushed once so that the new names are durable too. After a
+ * crash the target name holds either the old file or the complete copy,
+ * never a truncated one. Flushing a group at a time lets the file system
+ * combine the flushes of many small files into a few journal commits.
+ */
+public class GroupCommit {
+
+	/**
+	 * The default number of copies held before the group is committed.
+	 */
+	public static final int DEFAULT_MAX_FILES = 256;
+
+	/**
+	 * The default number of bytes held before the group is committed.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Added to the name of a copy until it is committed.
+	 */
+	private static final String TEMP_SUFFIX = ".dirsync-copy";
+
+	/**
+	 * The number of files flushed at the same time.
+	 */
+	private static final int SYNC_THREADS = 4;
+
+	private final BatchResult result;
+
+	private final int maxFiles;
+
+	private final long maxBytes;
+
+	private HashCache hashCache = null;
+
+	private final ArrayList<Copy> pending = new ArrayList<Copy>();
+
+	private long pendingBytes = 0;
+
+	/**
+	 * @param result
+	 *            Receives each copy once it has been committed or has failed.
+	 */
+	public GroupCommit(BatchResult result) {
+		this(result, DEFAULT_MAX_FILES, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param result
+	 *            Receives each copy once it has been committed or has failed.
+	 * @param maxFiles
+	 *            The number of copies held before the group is committed.
+	 * @param maxBytes
+	 *            The number of bytes held before the group is committed.
+	 */
+	public GroupCommit(BatchResult result, int maxFiles, long maxBytes) {
+		this.result = result;
+		this.maxFiles = maxFiles;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param hashCache
+	 *            Records the hash of each verified copy under its target name
+	 *            once it is committed.
+	 */
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	/**
+	 * Name the file a copy to the target is written under until it is
+	 * committed, in the same directory so the rename stays on one file
+	 * system. A file left under that name by an interrupted run is deleted,
+	 * so nothing of it survives into the new copy.
+	 *
+	 * @param target
+	 * @return The temporary file, which does not exist.
+	 */
+	public static File getTempFile(File target) {
+		File tempFile = new File(target.getParentFile(), "."
+				+ target.getName() + TEMP_SUFFIX);
+		if (tempFile.isFile() && !tempFile.delete()) {
+			Logger.getLogger(GroupCommit.class.getName()).log(Level.WARNING,
+					"Unable to delete stale copy " + tempFile);
+		}
+		return tempFile;
+	}
+
+	/**
+	 * @param fileName
+	 *            A file name without a directory.
+	 * @return True if the name is that of an uncommitted copy, which
+	 *         catalogs leave out.
+	 */
+	public static boolean isTempFile(String fileName) {
+		return fileName.startsWith(".") && fileName.endsWith(TEMP_SUFFIX);
+	}
+
+	/**
+	 * Hold a finished copy for the next commit, committing the group if it
+	 * is full.
+	 *
+	 * @param fileName
+	 *            The name the copy is reported under.
+	 * @param tempFile
+	 *            The copy, written under getTempFile(target).
+	 * @param target
+	 * @param bytes
+	 *            The number of bytes copied.
+	 * @param hash
+	 *            The hash of the verified copy, or null.
+	 */
+	public void add(String fileName, File tempFile, File target, long bytes,
+			byte[] hash) {
+		pending.add(new Copy(fileName, tempFile, target, bytes, hash));
+		pendingBytes += bytes;
+		if ((pending.size() >= maxFiles) || (pendingBytes >= maxBytes)) {
+			commit();
+		}
+	}
+
+	/**
+	 * Report a file that needed no commit, such as one added to a pack
+	 * archive.
+	 *
+	 * @param fileName
+	 * @param bytes
+	 */
+	public void addCommitted(String fileName, long bytes) {
+		result.addSucceeded(fileName, bytes);
+	}
+
+	/**
+	 * Flush, rename and report every copy held. A copy that cannot be
+	 * flushed or renamed is deleted and reported as failed, and its target
+	 * is left as it was.
+	 */
+	public void commit() {
+		if (pending.isEmpty()) {
+			return;
+		}
+		ArrayList<Copy> flushed = new ArrayList<Copy>();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				SYNC_THREADS, pending.size()));
+		try {
+			ArrayList<Future<Void>> syncs = new ArrayList<Future<Void>>();
+			for (final Copy copy : pending) {
+				syncs.add(executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						FileChannel channel = FileChannel.open(
+								copy.tempFile.toPath(), StandardOpenOption.WRITE);
+						try {
+							channel.force(true);
+						} finally {
+							channel.close();
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < pending.size(); i++) {
+				Copy copy = pending.get(i);
+				try {
+					syncs.get(i).get();
+					flushed.add(copy);
+				} catch (ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					fail(copy, (cause instanceof IOException) ? (IOException) cause
+							: new IOException(cause));
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					fail(copy, new InterruptedIOException(
+							"Interrupted while committing copies"));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		ArrayList<Copy> renamed = new ArrayList<Copy>();
+		LinkedHashSet<File> directories = new LinkedHashSet<File>();
+		for (Copy copy : flushed) {
+			try {
+				try {
+					Files.move(copy.tempFile.toPath(), copy.target.toPath(),
+							StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException ex) {
+					Files.move(copy.tempFile.toPath(), copy.target.toPath(),
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+				renamed.add(copy);
+				directories.add(copy.target.getAbsoluteFile().getParentFile());
+			} catch (IOException ex) {
+				fail(copy, ex);
+			}
+		}
+		for (File directory : directories) {
+			syncDirectory(directory);
+		}
+		for (Copy copy : renamed) {
+			if ((hashCache != null) && (copy.hash != null)) {
+				hashCache.put(copy.target, copy.hash);
+			}
+			result.addSucceeded(copy.fileName, copy.bytes);
+		}
+		pending.clear();
+		pendingBytes = 0;
+	}
+
+	private void fail(Copy copy, IOException ex) {
+		copy.tempFile.delete();
+		result.addFailed(copy.fileName, ex);
+	}
+
+	/**
+	 * Flush a directory so that the names renamed into it are durable. Not
+	 * every platform can open a directory for this; there the names are as
+	 * durable as the platform makes them.
+	 */
+	private static void syncDirectory(File directory) {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(),
+					StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(GroupCommit.class.getName()).log(Level.FINE,
+					"Unable to flush directory " + directory, ex);
+		}
+	}
+
+	/**
+	 * A finished copy waiting to be committed.
+	 */
+	private static class Copy {
+
+		final String fileName;
+
+		final File tempFile;
+
+		final File target;
+
+		final long bytes;
+
+		final byte[] hash;
+
+		Copy(String fileName, File tempFile, File target, long bytes,
+				byte[] hash) {
+			this.fileName = fileName;
+			this.tempFile = tempFile;
+			this.target = target;
+			this.bytes = bytes;
+			this.hash = hash;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package com.dirsync.util;
+
+/**
+ * A function that reduces the content of a file to a short hash. Fast
+ * non-cryptographic hashes suit finding duplicates and verifying copies;
+ * cryptographic hashes suit manifests that others check.
+ */
+public interface HashAlgorithm {
+
+	/**
+	 * @return The name the algorithm is recorded under in hash caches.
+	 */
+	String getName();
+
+	/**
+	 * @return The number of bytes in a hash.
+	 */
+	int getLength();
+
+	/**
+	 * @return A new hasher, which is used by one thread at a time.
+	 */
+	Hasher newHasher();
+}
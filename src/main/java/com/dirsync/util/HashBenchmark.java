@@ -0,0 +1,85 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Measures the throughput of each standard hash algorithm: over a direct
+ * buffer in memory, over a heap array, and over any files named on the
+ * command line, read through a HashEngine.
+ *
+ * Usage: java com.dirsync.util.HashBenchmark [file ...]
+ */
+public class HashBenchmark {
+
+	private static final int SIZE = 64 * 1024 * 1024;
+
+	private static final int WARM_UP_ROUNDS = 3;
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		byte[] bytes = new byte[SIZE];
+		new Random(1).nextBytes(bytes);
+		ByteBuffer direct = ByteBuffer.allocateDirect(SIZE);
+		direct.put(bytes);
+
+		System.out.printf("%-8s %14s %14s%n", "", "direct MB/s", "array MB/s");
+		for (StandardHashAlgorithm algorithm : StandardHashAlgorithm.values()) {
+			Hasher hasher = algorithm.newHasher();
+			for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+				hashBuffer(hasher, direct);
+				hashArray(hasher, bytes);
+			}
+			long directNanos = 0;
+			long arrayNanos = 0;
+			for (int i = 0; i < ROUNDS; i++) {
+				directNanos += hashBuffer(hasher, direct);
+				arrayNanos += hashArray(hasher, bytes);
+			}
+			System.out.printf("%-8s %14.0f %14.0f%n", algorithm.getName(),
+					megabytesPerSecond((long) SIZE * ROUNDS, directNanos),
+					megabytesPerSecond((long) SIZE * ROUNDS, arrayNanos));
+		}
+
+		if (args.length > 0) {
+			long total = 0;
+			for (String fileName : args) {
+				total += new File(fileName).length();
+			}
+			System.out.printf("%n%-8s %14s%n", "", "files MB/s");
+			for (StandardHashAlgorithm algorithm : StandardHashAlgorithm
+					.values()) {
+				HashEngine engine = new HashEngine(algorithm,
+						new IoRateLimiter());
+				long start = System.nanoTime();
+				for (String fileName : args) {
+					engine.hash(new File(fileName));
+				}
+				System.out.printf("%-8s %14.0f%n", algorithm.getName(),
+						megabytesPerSecond(total, System.nanoTime() - start));
+			}
+		}
+	}
+
+	private static long hashBuffer(Hasher hasher, ByteBuffer buffer) {
+		long start = System.nanoTime();
+		buffer.clear();
+		hasher.update(buffer);
+		hasher.digest();
+		return System.nanoTime() - start;
+	}
+
+	private static long hashArray(Hasher hasher, byte[] bytes) {
+		long start = System.nanoTime();
+		hasher.update(bytes, 0, bytes.length);
+		hasher.digest();
+		return System.nanoTime() - start;
+	}
+
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+	}
+}
@@ -0,0 +1,111 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Content hashes of files, remembered with the size and modification time
+ * they were computed for. A hash is only handed out while the file still has
+ * that size and time, so a changed file is never matched by a stale hash.
+ * Copies record hashes here as a side effect, which later duplicate and sync
+ * runs can use without reading the files. The cache is saved as a properties
+ * file keyed by absolute path; each file holds hashes of one algorithm.
+ */
+public class HashCache {
+
+	private final String filePathAndName;
+
+	private final Properties properties = new Properties();
+
+	private boolean modified = false;
+
+	/**
+	 * Load the cache from a file. A missing file is an empty cache.
+	 *
+	 * @param filePathAndName
+	 * @throws IOException
+	 */
+	public HashCache(String filePathAndName) throws IOException {
+		this.filePathAndName = filePathAndName;
+		File file = new File(filePathAndName);
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * @param file
+	 * @return The cached hash of the file, or null if there is none or the
+	 *         file has changed since it was hashed.
+	 */
+	public synchronized byte[] get(File file) {
+		String value = properties.getProperty(file.getAbsolutePath());
+		if (value == null) {
+			return null;
+		}
+		String[] fields = value.split(",");
+		if ((fields.length != 3)
+				|| (Long.parseLong(fields[0]) != file.length())
+				|| (Long.parseLong(fields[1]) != file.lastModified())) {
+			return null;
+		}
+		return fromHex(fields[2]);
+	}
+
+	/**
+	 * Remember the hash of a file as it is now.
+	 *
+	 * @param file
+	 * @param hash
+	 *            The hash computed with whatever function this cache was
+	 *            created for.
+	 */
+	public synchronized void put(File file, byte[] hash) {
+		StringBuilder value = new StringBuilder();
+		value.append(file.length()).append(',').append(file.lastModified())
+				.append(',');
+		for (byte b : hash) {
+			value.append(Character.forDigit((b >> 4) & 0xF, 16));
+			value.append(Character.forDigit(b & 0xF, 16));
+		}
+		properties.setProperty(file.getAbsolutePath(), value.toString());
+		modified = true;
+	}
+
+	/**
+	 * Save the cache if anything was added since it was loaded or saved.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (!modified) {
+			return;
+		}
+		OutputStream out = new FileOutputStream(filePathAndName);
+		try {
+			properties.store(out, "Directory Synchronization file hashes");
+		} finally {
+			out.close();
+		}
+		modified = false;
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2),
+					16);
+		}
+		return bytes;
+	}
+}
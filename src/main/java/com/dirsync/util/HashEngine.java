@@ -0,0 +1,177 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashes whole files with a chosen algorithm. Each thread reads into one
+ * direct buffer of its own that is reused for every file, and hashers are
+ * fed the buffer itself, so hashing allocates nothing per chunk. Files are
+ * never memory-mapped: a mapping stays open until it is garbage collected,
+ * and on Windows an open mapping stops the file from being renamed or
+ * deleted, which verified copies and moves do straight after hashing.
+ * Batches of files are hashed on a pool with one thread per processor that
+ * the engine keeps for its lifetime; its threads end when idle.
+ */
+public class HashEngine {
+
+	/**
+	 * The algorithm used unless another is chosen.
+	 */
+	public static final HashAlgorithm DEFAULT_ALGORITHM = StandardHashAlgorithm.XXHASH64;
+
+	/**
+	 * The number of bytes read at a time.
+	 */
+	public static final int BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * How long an idle pool thread is kept.
+	 */
+	private static final long IDLE_SECONDS = 30;
+
+	private final HashAlgorithm algorithm;
+
+	private final IoRateLimiter rateLimiter;
+
+	private final ThreadPoolExecutor executor;
+
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+	};
+
+	private final ThreadLocal<Hasher> hashers = new ThreadLocal<Hasher>() {
+		@Override
+		protected Hasher initialValue() {
+			return algorithm.newHasher();
+		}
+	};
+
+	/**
+	 * @param algorithm
+	 * @param rateLimiter
+	 *            The limiter files are read through.
+	 */
+	public HashEngine(HashAlgorithm algorithm, IoRateLimiter rateLimiter) {
+		this.algorithm = algorithm;
+		this.rateLimiter = rateLimiter;
+		int threads = Runtime.getRuntime().availableProcessors();
+		executor = new ThreadPoolExecutor(threads, threads, IDLE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "dirsync-hash");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	public HashAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	/**
+	 * Read a whole file and hash it.
+	 *
+	 * @param file
+	 * @return The hash.
+	 * @throws IOException
+	 */
+	public byte[] hash(File file) throws IOException {
+		Hasher hasher = hashers.get();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = buffers.get();
+			buffer.clear();
+			while (rateLimiter.read(channel, buffer) >= 0) {
+				buffer.flip();
+				hasher.update(buffer);
+				buffer.clear();
+			}
+			return hasher.digest();
+		} catch (IOException e) {
+			// Start the next file with a fresh hash.
+			hasher.digest();
+			throw e;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Hash files on one thread per processor. Hashes are taken from the
+	 * cache where the file is unchanged, and new hashes are added to it.
+	 * Files that cannot be read are left out.
+	 *
+	 * @param directory
+	 * @param fileNames
+	 *            Names relative to the directory.
+	 * @param cache
+	 *            Hashes computed with this engine's algorithm, or null.
+	 * @return The hash of every file that could be read, by relative name.
+	 * @throws IOException
+	 *             If the thread was interrupted.
+	 */
+	public HashMap<String, byte[]> hashFiles(String directory,
+			Collection<String> fileNames, final HashCache cache)
+			throws IOException {
+		HashMap<String, byte[]> hashes = new HashMap<String, byte[]>();
+		HashMap<String, Future<byte[]>> pending = new HashMap<String, Future<byte[]>>();
+		try {
+			for (String fileName : fileNames) {
+				final File file = new File(directory, fileName);
+				byte[] cached = (cache == null) ? null : cache.get(file);
+				if (cached != null) {
+					hashes.put(fileName, cached);
+					continue;
+				}
+				pending.put(fileName, executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws IOException {
+						byte[] hash = hash(file);
+						if (cache != null) {
+							cache.put(file, hash);
+						}
+						return hash;
+					}
+				}));
+			}
+			for (String fileName : pending.keySet()) {
+				try {
+					hashes.put(fileName, pending.get(fileName).get());
+				} catch (ExecutionException ex) {
+					Logger.getLogger(HashEngine.class.getName()).log(
+							Level.FINE, "Unable to hash " + fileName,
+							ex.getCause());
+				}
+			}
+		} catch (InterruptedException ex) {
+			for (Future<byte[]> future : pending.values()) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while hashing files");
+		}
+		return hashes;
+	}
+}
@@ -0,0 +1,31 @@
+package com.dirsync.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes one hash at a time, fed with bytes in any number of pieces.
+ */
+public interface Hasher {
+
+	/**
+	 * Add the remaining bytes of a buffer, which may be direct or mapped.
+	 * The buffer's position is moved to its limit.
+	 *
+	 * @param buffer
+	 */
+	void update(ByteBuffer buffer);
+
+	/**
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 */
+	void update(byte[] bytes, int offset, int length);
+
+	/**
+	 * Finish the hash and start a new one.
+	 *
+	 * @return The hash of the bytes added since the last digest.
+	 */
+	byte[] digest();
+}
@@ -0,0 +1,347 @@
+package com.dirsync.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Token buckets that cap the bytes per second and reads per second of every
+ * copy and hash worker sharing the limiter. Each read is charged for the
+ * bytes it returned once it is done, and a worker whose reads overdrew a
+ * bucket sleeps before its next read until the debt is repaid, so concurrent
+ * workers share the limit between them and a short read or the read that
+ * finds the end of a file costs only what it returned. The limits can be
+ * changed at any time and apply from the next read.
+ *
+ * Only reads are limited; writes are not charged. A copy writes what it
+ * reads, so its write rate follows its read rate, but the operating system
+ * may buffer the writes and flush them to the disk in bursts.
+ *
+ * In the background profile the byte rate is also steered by the latency of
+ * the reads themselves. When reads take much longer than the quietest
+ * latency seen, another program is competing for the disk, so the rate is
+ * halved; while latency stays low it grows again by a fixed step.
+ */
+public class IoRateLimiter {
+
+	/**
+	 * The number of seconds of unused rate a bucket can save up.
+	 */
+	private static final double BURST_SECONDS = 0.25;
+
+	/**
+	 * The byte rate the background profile starts at when no byte limit is
+	 * set.
+	 */
+	public static final double BACKGROUND_START_BYTES_PER_SECOND = 16 * 1024 * 1024;
+
+	/**
+	 * The lowest byte rate the background profile backs off to.
+	 */
+	public static final double BACKGROUND_MIN_BYTES_PER_SECOND = 256 * 1024;
+
+	/**
+	 * The step the background profile raises the byte rate by while latency
+	 * is low.
+	 */
+	private static final double BACKGROUND_INCREASE = 1024 * 1024;
+
+	/**
+	 * How many times the quietest latency counts as contention.
+	 */
+	private static final double CONTENTION_FACTOR = 2.0;
+
+	/**
+	 * Reads faster than this are never taken as contention, so jitter among
+	 * reads served from the page cache does not throttle anything.
+	 */
+	private static final long MIN_CONTENTION_NANOS = 1000000L;
+
+	/**
+	 * How often the background profile adjusts its rate.
+	 */
+	private static final long ADJUST_INTERVAL_NANOS = 100000000L;
+
+	private double bytesPerSecond;
+
+	private double readsPerSecond;
+
+	private boolean background = false;
+
+	private double backgroundBytesPerSecond = BACKGROUND_START_BYTES_PER_SECOND;
+
+	private double byteTokens = 0;
+
+	private double readTokens = 0;
+
+	/**
+	 * The source of time and of waiting, replaced in tests.
+	 */
+	interface Clock {
+
+		long nanoTime();
+
+		void sleep(long nanos) throws InterruptedException;
+	}
+
+	private static final Clock SYSTEM_CLOCK = new Clock() {
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		public void sleep(long nanos) throws InterruptedException {
+			Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+		}
+	};
+
+	private final Clock clock;
+
+	private long lastRefill;
+
+	private double baselineLatency = -1;
+
+	private double recentLatency = -1;
+
+	private long lastAdjust;
+
+	/**
+	 * Create a limiter that does not limit.
+	 */
+	public IoRateLimiter() {
+		this(0, 0);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            The byte limit, or 0 for none.
+	 * @param readsPerSecond
+	 *            The read limit, or 0 for none.
+	 */
+	public IoRateLimiter(double bytesPerSecond, double readsPerSecond) {
+		this(bytesPerSecond, readsPerSecond, SYSTEM_CLOCK);
+	}
+
+	IoRateLimiter(double bytesPerSecond, double readsPerSecond, Clock clock) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.readsPerSecond = readsPerSecond;
+		this.clock = clock;
+		lastRefill = clock.nanoTime();
+		lastAdjust = lastRefill;
+	}
+
+	public synchronized double getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            The byte limit, or 0 for none.
+	 */
+	public synchronized void setBytesPerSecond(double bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	public synchronized double getReadsPerSecond() {
+		return readsPerSecond;
+	}
+
+	/**
+	 * @param readsPerSecond
+	 *            The read limit, or 0 for none.
+	 */
+	public synchronized void setReadsPerSecond(double readsPerSecond) {
+		this.readsPerSecond = readsPerSecond;
+	}
+
+	public synchronized boolean isBackground() {
+		return background;
+	}
+
+	/**
+	 * @param background
+	 *            If true then back off when read latency rises.
+	 */
+	public synchronized void setBackground(boolean background) {
+		if (background && !this.background) {
+			backgroundBytesPerSecond = (bytesPerSecond > 0) ? bytesPerSecond
+					: BACKGROUND_START_BYTES_PER_SECOND;
+			recentLatency = -1;
+		}
+		this.background = background;
+	}
+
+	/**
+	 * @return The byte rate reads are held to now, or 0 for none.
+	 */
+	public synchronized double getEffectiveBytesPerSecond() {
+		if (!background) {
+			return bytesPerSecond;
+		} else if (bytesPerSecond > 0) {
+			return Math.min(bytesPerSecond, backgroundBytesPerSecond);
+		}
+		return backgroundBytesPerSecond;
+	}
+
+	/**
+	 * Wait until a read of some bytes is allowed, and charge it.
+	 *
+	 * @param bytes
+	 * @throws InterruptedIOException
+	 *             If the thread was interrupted while waiting.
+	 */
+	public void acquire(long bytes) throws InterruptedIOException {
+		sleep(reserve(bytes, 1));
+	}
+
+	/**
+	 * Wait until earlier reads have been paid for.
+	 *
+	 * @throws InterruptedIOException
+	 *             If the thread was interrupted while waiting.
+	 */
+	private void awaitDebt() throws InterruptedIOException {
+		sleep(reserve(0, 0));
+	}
+
+	/**
+	 * Charge a finished read for what it returned; the end of a file is
+	 * free.
+	 */
+	private void charge(int read, long latencyNanos) {
+		completed(latencyNanos);
+		if (read >= 0) {
+			reserve(read, 1);
+		}
+	}
+
+	private void sleep(long waitNanos) throws InterruptedIOException {
+		if (waitNanos > 0) {
+			try {
+				clock.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+		}
+	}
+
+	/**
+	 * Report how long a read took, for the background profile.
+	 *
+	 * @param latencyNanos
+	 */
+	public synchronized void completed(long latencyNanos) {
+		if (!background) {
+			return;
+		}
+		if ((baselineLatency < 0) || (latencyNanos < baselineLatency)) {
+			baselineLatency = latencyNanos;
+		} else {
+			// Let the baseline drift up slowly in case the device got slower.
+			baselineLatency += 0.01 * (latencyNanos - baselineLatency);
+		}
+		recentLatency = (recentLatency < 0) ? latencyNanos : 0.3
+				* latencyNanos + 0.7 * recentLatency;
+		long now = clock.nanoTime();
+		if (now - lastAdjust >= ADJUST_INTERVAL_NANOS) {
+			lastAdjust = now;
+			if ((recentLatency > MIN_CONTENTION_NANOS)
+					&& (recentLatency > CONTENTION_FACTOR * baselineLatency)) {
+				backgroundBytesPerSecond = Math.max(
+						BACKGROUND_MIN_BYTES_PER_SECOND,
+						backgroundBytesPerSecond / 2);
+			} else if ((bytesPerSecond <= 0)
+					|| (backgroundBytesPerSecond < bytesPerSecond)) {
+				backgroundBytesPerSecond += BACKGROUND_INCREASE;
+			}
+		}
+	}
+
+	/**
+	 * Read from a channel within the limits.
+	 *
+	 * @param channel
+	 * @param buffer
+	 * @return The number of bytes read, or -1 at the end of the channel.
+	 * @throws IOException
+	 */
+	public int read(ReadableByteChannel channel, ByteBuffer buffer)
+			throws IOException {
+		awaitDebt();
+		long start = clock.nanoTime();
+		int read = channel.read(buffer);
+		charge(read, clock.nanoTime() - start);
+		return read;
+	}
+
+	/**
+	 * Read from a file channel at a position within the limits.
+	 *
+	 * @param channel
+	 * @param buffer
+	 * @param position
+	 * @return The number of bytes read, or -1 at the end of the file.
+	 * @throws IOException
+	 */
+	public int read(FileChannel channel, ByteBuffer buffer, long position)
+			throws IOException {
+		awaitDebt();
+		long start = clock.nanoTime();
+		int read = channel.read(buffer, position);
+		charge(read, clock.nanoTime() - start);
+		return read;
+	}
+
+	/**
+	 * Read from a stream within the limits.
+	 *
+	 * @param in
+	 * @param buffer
+	 * @return The number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException
+	 */
+	public int read(InputStream in, byte[] buffer) throws IOException {
+		awaitDebt();
+		long start = clock.nanoTime();
+		int read = in.read(buffer);
+		charge(read, clock.nanoTime() - start);
+		return read;
+	}
+
+	/**
+	 * Refill the buckets for the time passed and charge some bytes and
+	 * reads.
+	 *
+	 * @return How long the caller must wait to repay any debt.
+	 */
+	private synchronized long reserve(long bytes, int reads) {
+		long now = clock.nanoTime();
+		double seconds = (now - lastRefill) / 1e9;
+		lastRefill = now;
+		double waitSeconds = 0;
+		double byteRate = getEffectiveBytesPerSecond();
+		if (byteRate > 0) {
+			byteTokens = Math.min(byteRate * BURST_SECONDS, byteTokens
+					+ seconds * byteRate) - bytes;
+			if (byteTokens < 0) {
+				waitSeconds = -byteTokens / byteRate;
+			}
+		} else {
+			byteTokens = 0;
+		}
+		if (readsPerSecond > 0) {
+			readTokens = Math.min(readsPerSecond * BURST_SECONDS, readTokens
+					+ seconds * readsPerSecond) - reads;
+			if (readTokens < 0) {
+				waitSeconds = Math.max(waitSeconds, -readTokens
+						/ readsPerSecond);
+			}
+		} else {
+			readTokens = 0;
+		}
+		return (long) (waitSeconds * 1e9);
+	}
+}
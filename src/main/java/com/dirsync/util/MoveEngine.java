@@ -0,0 +1,137 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Moves files within or across file systems. A move is first tried as an
+ * atomic rename. When the destination is on another file system the file is
+ * copied by the FileManager, always verified, and committed by a
+ * GroupCommit, and only then is the source deleted. A batch runs on a fixed
+ * number of threads so that copies between drives do not all compete for
+ * the same disks at once.
+ */
+public class MoveEngine {
+
+	/**
+	 * The default number of files moved at the same time.
+	 */
+	public static final int DEFAULT_THREADS = 2;
+
+	private final FileManager fileManager;
+
+	private final int threads;
+
+	/**
+	 * @param fileManager
+	 *            Copies files across file systems, with its rate limiter,
+	 *            hash algorithm and copy options.
+	 * @param threads
+	 *            The number of files moved at the same time, at least 1.
+	 */
+	public MoveEngine(FileManager fileManager, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException(
+					"A move engine needs at least one thread");
+		}
+		this.fileManager = fileManager;
+		this.threads = threads;
+	}
+
+	/**
+	 * Move one file, replacing any file at the destination. The destination
+	 * directory must exist.
+	 *
+	 * @param fromFile
+	 * @param toFile
+	 * @return True if the file was renamed, false if it was copied and the
+	 *         source deleted.
+	 * @throws IOException
+	 *             If the file could not be moved. The source is left in
+	 *             place, and the destination is only ever replaced by a copy
+	 *             that has been checked.
+	 */
+	public boolean move(File fromFile, File toFile) throws IOException {
+		try {
+			Files.move(fromFile.toPath(), toFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		} catch (AtomicMoveNotSupportedException ex) {
+			fileManager.copyVerified(fromFile, toFile);
+			if (!fromFile.delete()) {
+				throw new IOException("Copied " + fromFile + " to " + toFile
+						+ " but unable to delete it");
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Move files from one directory to another, keeping their relative
+	 * names. The destination directories must exist. A file that cannot be
+	 * moved, for whatever reason, is reported as failed and does not stop
+	 * the others.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileNames
+	 *            The names of the files relative to both directories.
+	 * @return The files that were renamed, the files that were copied, and
+	 *         the files that could not be moved.
+	 */
+	public MoveResult moveFiles(String fromDirectory, String toDirectory,
+			Collection<String> fileNames) {
+		final MoveResult result = new MoveResult();
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			ArrayList<String> names = new ArrayList<String>();
+			ArrayList<Future<Void>> pending = new ArrayList<Future<Void>>();
+			for (final String fileName : fileNames) {
+				final File fromFile = new File(fromDirectory, fileName);
+				final File toFile = new File(toDirectory, fileName);
+				names.add(fileName);
+				pending.add(executor.submit(new Callable<Void>() {
+					public Void call() {
+						try {
+							long length = fromFile.length();
+							if (move(fromFile, toFile)) {
+								result.addRenamed(fileName, length);
+							} else {
+								result.addCopied(fileName, length);
+							}
+						} catch (IOException ex) {
+							result.addFailed(fileName, ex);
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < pending.size(); i++) {
+				try {
+					pending.get(i).get();
+				} catch (ExecutionException ex) {
+					// Anything but an IOException escaped the move.
+					result.addFailed(names.get(i), new IOException(
+							"Unable to move " + names.get(i), ex.getCause()));
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} finally {
+			executor.shutdownNow();
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+}
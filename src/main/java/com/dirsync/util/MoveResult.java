@@ -0,0 +1,51 @@
+package com.dirsync.util;
+
+import java.util.ArrayList;
+
+/**
+ * The outcome of a batch of moves. Besides what succeeded and failed, it
+ * records how each file was moved: renamed in place on the same file
+ * system, or copied to another file system and removed from the first.
+ */
+public class MoveResult extends BatchResult {
+
+	private final ArrayList<String> renamed = new ArrayList<String>();
+
+	private final ArrayList<String> copied = new ArrayList<String>();
+
+	/**
+	 * @param fileName
+	 *            A file that was moved by a rename.
+	 * @param fileBytes
+	 *            The size of the file.
+	 */
+	public synchronized void addRenamed(String fileName, long fileBytes) {
+		renamed.add(fileName);
+		addSucceeded(fileName, fileBytes);
+	}
+
+	/**
+	 * @param fileName
+	 *            A file that was moved by copying it and deleting the source.
+	 * @param fileBytes
+	 *            The number of bytes copied.
+	 */
+	public synchronized void addCopied(String fileName, long fileBytes) {
+		copied.add(fileName);
+		addSucceeded(fileName, fileBytes);
+	}
+
+	/**
+	 * @return The files moved by a rename.
+	 */
+	public synchronized ArrayList<String> getRenamed() {
+		return new ArrayList<String>(renamed);
+	}
+
+	/**
+	 * @return The files moved by a copy and delete.
+	 */
+	public synchronized ArrayList<String> getCopied() {
+		return new ArrayList<String>(copied);
+	}
+}
@@ -0,0 +1,504 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * A backup target format that packs small files into large append-only
+ * container files. Each container is named .dirsync-pack-NNNNN.dat and an
+ * append-only index, .dirsync-pack.idx, records where every entry lives. A
+ * directory holding an index is a pack archive; the catalog lists its entries
+ * as if they were ordinary files.
+ *
+ * Replacing an entry appends the new content and a new index record, and
+ * removing an entry appends a removal record. The last record for a name
+ * wins when the index is loaded. Records are held back until flush or close,
+ * which force the packed content to disk once for the whole batch before the
+ * records are written, so a record never points at data a crash lost.
+ */
+public class PackArchive {
+
+	/**
+	 * The name of the index file that marks a directory as a pack archive.
+	 */
+	public static final String INDEX_FILE_NAME = ".dirsync-pack.idx";
+
+	/**
+	 * Files no larger than this are packed by default.
+	 */
+	public static final long DEFAULT_SMALL_FILE_SIZE = 64 * 1024;
+
+	/**
+	 * A container is closed and a new one started once it reaches this size.
+	 */
+	public static final long DEFAULT_MAX_PACK_SIZE = 256L * 1024 * 1024;
+
+	private static final String PACK_FILE_PREFIX = ".dirsync-pack-";
+
+	private static final String PACK_FILE_SUFFIX = ".dat";
+
+	private static final byte RECORD_ADD = 1;
+
+	private static final byte RECORD_REMOVE = 2;
+
+	/**
+	 * The bytes of an index record besides the name: type, name length,
+	 * pack, offset, length and modification time.
+	 */
+	private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 8 + 8 + 8;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final String directory;
+
+	private final long maxPackSize;
+
+	private final HashMap<String, PackEntry> entries = new HashMap<String, PackEntry>();
+
+	private final HashMap<Integer, FileChannel> readChannels = new HashMap<Integer, FileChannel>();
+
+	private RandomAccessFile index = null;
+
+	private RandomAccessFile currentPack = null;
+
+	private int currentPackNumber = 0;
+
+	/**
+	 * The adds and removes not yet written to the index, in order.
+	 */
+	private final ArrayList<PendingRecord> pendingRecords = new ArrayList<PendingRecord>();
+
+	/**
+	 * Open the pack archive in a directory, creating an empty archive if the
+	 * directory does not hold one.
+	 *
+	 * @param directory
+	 *            The root directory of the archive.
+	 * @throws IOException
+	 */
+	public PackArchive(String directory) throws IOException {
+		this(directory, DEFAULT_MAX_PACK_SIZE);
+	}
+
+	/**
+	 * @param directory
+	 *            The root directory of the archive.
+	 * @param maxPackSize
+	 *            The size at which a new container file is started.
+	 * @throws IOException
+	 */
+	public PackArchive(String directory, long maxPackSize) throws IOException {
+		this.directory = directory;
+		this.maxPackSize = maxPackSize;
+		new File(directory).mkdirs();
+		loadIndex();
+		while (new File(getPackPathAndName(currentPackNumber + 1)).exists()) {
+			currentPackNumber = currentPackNumber + 1;
+		}
+	}
+
+	/**
+	 * @param directory
+	 * @return True if the directory holds a pack archive index.
+	 */
+	public static boolean isArchive(String directory) {
+		return new File(directory, INDEX_FILE_NAME).isFile();
+	}
+
+	/**
+	 * @param fileName
+	 *            A file name without a directory.
+	 * @return True if the name is the index or one of the container files of
+	 *         a pack archive.
+	 */
+	public static boolean isArchiveFile(String fileName) {
+		return fileName.equals(INDEX_FILE_NAME)
+				|| (fileName.startsWith(PACK_FILE_PREFIX) && fileName
+						.endsWith(PACK_FILE_SUFFIX));
+	}
+
+	/**
+	 * Append a file to the archive under a relative name, replacing any entry
+	 * with the same name. The entry is recorded in the index by the next
+	 * flush.
+	 *
+	 * @param relativeName
+	 *            The name of the entry, relative to the archive directory.
+	 * @param fromPathAndName
+	 *            The file to pack.
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public synchronized void add(String relativeName, String fromPathAndName)
+			throws FileNotFoundException, IOException {
+		File file = new File(fromPathAndName);
+		long length = file.length();
+		if ((currentPack == null)
+				|| (currentPack.length() > 0 && currentPack.length() + length > maxPackSize)) {
+			rollPack();
+		}
+		FileChannel packChannel = currentPack.getChannel();
+		long offset = packChannel.size();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel inChannel = in.getChannel();
+			long copied = 0;
+			while (copied < length) {
+				long transferred = inChannel.transferTo(copied,
+						length - copied, packChannel.position(offset + copied));
+				if (transferred <= 0) {
+					break;
+				}
+				copied += transferred;
+			}
+			length = copied;
+		} finally {
+			in.close();
+		}
+		PackEntry entry = new PackEntry(relativeName, currentPackNumber,
+				offset, length, file.lastModified());
+		pendingRecords.add(new PendingRecord(RECORD_ADD, entry));
+		entries.put(relativeName, entry);
+	}
+
+	/**
+	 * Remove an entry from the archive. The space it used is not reclaimed.
+	 * The removal is recorded in the index by the next flush.
+	 *
+	 * @param relativeName
+	 * @throws IOException
+	 *             Throw an exception if the entry does not exist.
+	 */
+	public synchronized void remove(String relativeName) throws IOException {
+		PackEntry entry = entries.remove(relativeName);
+		if (entry == null) {
+			throw new IOException("Unable to remove " + relativeName
+					+ " from pack archive " + directory);
+		}
+		pendingRecords.add(new PendingRecord(RECORD_REMOVE, entry));
+	}
+
+	/**
+	 * Copy an entry out of the archive into an ordinary file.
+	 *
+	 * @param relativeName
+	 *            The name of the entry to extract.
+	 * @param toPathAndName
+	 *            The file to create or overwrite.
+	 * @throws IOException
+	 */
+	public synchronized void extract(String relativeName, String toPathAndName)
+			throws IOException {
+		PackEntry entry = getRequiredEntry(relativeName);
+		File toFile = new File(toPathAndName);
+		if (toFile.getParentFile() != null) {
+			toFile.getParentFile().mkdirs();
+		}
+		FileChannel packChannel = getReadChannel(entry.getPack());
+		FileOutputStream out = new FileOutputStream(toFile);
+		try {
+			FileChannel outChannel = out.getChannel();
+			long copied = 0;
+			while (copied < entry.getLength()) {
+				long transferred = packChannel.transferTo(entry.getOffset()
+						+ copied, entry.getLength() - copied, outChannel);
+				if (transferred <= 0) {
+					throw new EOFException("Pack archive entry " + relativeName
+							+ " is truncated");
+				}
+				copied += transferred;
+			}
+		} finally {
+			out.close();
+		}
+		toFile.setLastModified(entry.getLastModified());
+	}
+
+	/**
+	 * Read the content of an entry.
+	 *
+	 * @param relativeName
+	 * @return The bytes of the entry.
+	 * @throws IOException
+	 */
+	public synchronized byte[] readBytes(String relativeName)
+			throws IOException {
+		PackEntry entry = getRequiredEntry(relativeName);
+		if (entry.getLength() > Integer.MAX_VALUE) {
+			throw new IOException("File too large, cannot read file: "
+					+ relativeName);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) entry.getLength());
+		FileChannel packChannel = getReadChannel(entry.getPack());
+		while (buffer.hasRemaining()) {
+			int read = packChannel.read(buffer,
+					entry.getOffset() + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Pack archive entry " + relativeName
+						+ " is truncated");
+			}
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * @param relativeName
+	 * @return True if the archive holds an entry with this name.
+	 */
+	public synchronized boolean contains(String relativeName) {
+		return entries.containsKey(relativeName);
+	}
+
+	/**
+	 * @param relativeName
+	 * @return The entry with this name, or null.
+	 */
+	public synchronized PackEntry getEntry(String relativeName) {
+		return entries.get(relativeName);
+	}
+
+	/**
+	 * @return The names of all entries in the archive.
+	 */
+	public synchronized Collection<String> catalog() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	/**
+	 * Record the adds and removes since the last flush in the index. The
+	 * packed content is forced to disk first, then the records are written
+	 * and forced, so a batch of files costs two flushes rather than one per
+	 * file.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (pendingRecords.isEmpty()) {
+			return;
+		}
+		if (currentPack != null) {
+			currentPack.getChannel().force(true);
+		}
+		ByteArrayOutputStream records = new ByteArrayOutputStream();
+		for (PendingRecord record : pendingRecords) {
+			records.write(toRecord(record.type, record.entry));
+		}
+		index.write(records.toByteArray());
+		index.getChannel().force(true);
+		pendingRecords.clear();
+	}
+
+	/**
+	 * Flush, then release open files.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		try {
+			if (index != null) {
+				flush();
+			}
+			if (currentPack != null) {
+				currentPack.close();
+				currentPack = null;
+			}
+			if (index != null) {
+				index.close();
+				index = null;
+			}
+		} finally {
+			for (FileChannel channel : readChannels.values()) {
+				channel.close();
+			}
+			readChannels.clear();
+		}
+	}
+
+	private PackEntry getRequiredEntry(String relativeName)
+			throws FileNotFoundException {
+		PackEntry entry = entries.get(relativeName);
+		if (entry == null) {
+			throw new FileNotFoundException(relativeName
+					+ " is not in pack archive " + directory);
+		}
+		return entry;
+	}
+
+	private FileChannel getReadChannel(int pack) throws IOException {
+		FileChannel channel = readChannels.get(pack);
+		if (channel == null) {
+			channel = new RandomAccessFile(getPackPathAndName(pack), "r")
+					.getChannel();
+			readChannels.put(pack, channel);
+		}
+		return channel;
+	}
+
+	private String getPackPathAndName(int pack) {
+		return directory + File.separator + PACK_FILE_PREFIX
+				+ String.format("%05d", pack) + PACK_FILE_SUFFIX;
+	}
+
+	/**
+	 * Start writing to the newest container, or to a new one when the newest
+	 * is full.
+	 *
+	 * @throws IOException
+	 */
+	private void rollPack() throws IOException {
+		if (currentPack != null) {
+			currentPack.getChannel().force(true);
+			currentPack.close();
+			currentPack = null;
+			currentPackNumber = currentPackNumber + 1;
+		} else if ((currentPackNumber == 0)
+				|| (new File(getPackPathAndName(currentPackNumber)).length() >= maxPackSize)) {
+			currentPackNumber = currentPackNumber + 1;
+		}
+		currentPack = new RandomAccessFile(
+				getPackPathAndName(currentPackNumber), "rw");
+	}
+
+	/**
+	 * Read the index. A record cut short by a crash, or one that cannot be
+	 * a record, ends the index: it and anything after it are discarded and
+	 * the index is truncated to the last good record. Records are only ever
+	 * appended, so only the tail can be torn.
+	 *
+	 * @throws IOException
+	 */
+	private void loadIndex() throws IOException {
+		File indexFile = new File(directory, INDEX_FILE_NAME);
+		long validLength = 0;
+		if (indexFile.exists()) {
+			long indexLength = indexFile.length();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(indexFile)));
+			try {
+				while (true) {
+					byte type = in.readByte();
+					int nameLength = in.readInt();
+					if (((type != RECORD_ADD) && (type != RECORD_REMOVE))
+							|| (nameLength < 0)
+							|| (nameLength > indexLength - validLength
+									- RECORD_OVERHEAD)) {
+						break;
+					}
+					byte[] nameBytes = new byte[nameLength];
+					in.readFully(nameBytes);
+					int pack = in.readInt();
+					long offset = in.readLong();
+					long length = in.readLong();
+					long lastModified = in.readLong();
+					if ((pack < 1) || (offset < 0) || (length < 0)) {
+						break;
+					}
+					String name = new String(nameBytes, UTF_8);
+					if (type == RECORD_ADD) {
+						entries.put(name, new PackEntry(name, pack, offset,
+								length, lastModified));
+					} else {
+						entries.remove(name);
+					}
+					currentPackNumber = Math.max(currentPackNumber, pack);
+					validLength += RECORD_OVERHEAD + nameLength;
+				}
+			} catch (EOFException e) {
+				// End of the index or a partial record.
+			} finally {
+				in.close();
+			}
+		}
+		index = new RandomAccessFile(indexFile, "rw");
+		index.setLength(validLength);
+		index.seek(validLength);
+	}
+
+	private static byte[] toRecord(byte type, PackEntry entry) {
+		byte[] nameBytes = entry.getName().getBytes(UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_OVERHEAD
+				+ nameBytes.length);
+		record.put(type);
+		record.putInt(nameBytes.length);
+		record.put(nameBytes);
+		record.putInt(entry.getPack());
+		record.putLong(entry.getOffset());
+		record.putLong(entry.getLength());
+		record.putLong(entry.getLastModified());
+		return record.array();
+	}
+
+	/**
+	 * An add or remove waiting for the next flush.
+	 */
+	private static class PendingRecord {
+
+		private final byte type;
+
+		private final PackEntry entry;
+
+		PendingRecord(byte type, PackEntry entry) {
+			this.type = type;
+			this.entry = entry;
+		}
+	}
+
+	/**
+	 * The location and metadata of one packed file.
+	 */
+	public static class PackEntry {
+
+		private final String name;
+
+		private final int pack;
+
+		private final long offset;
+
+		private final long length;
+
+		private final long lastModified;
+
+		PackEntry(String name, int pack, long offset, long length,
+				long lastModified) {
+			this.name = name;
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getPack() {
+			return pack;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.dirsync.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * A 64 bit difference hash (dHash) of an image. The image is reduced to a
+ * 9 by 8 grid of average brightness, and each bit records whether a cell is
+ * darker than its right neighbour. Resizing, recompressing or slightly
+ * adjusting a photo changes few bits, so the number of differing bits, the
+ * Hamming distance, measures how alike two images look.
+ *
+ * Files are decoded with source subsampling, skipping rows and columns so
+ * that each grid cell still covers at least PIXELS_PER_CELL pixels each way.
+ * A large photo then decodes to a small image instead of tens of megabytes.
+ */
+public class PerceptualHash {
+
+	/**
+	 * The largest distance at which two images are taken to be the same
+	 * picture.
+	 */
+	public static final int DEFAULT_MAX_DISTANCE = 10;
+
+	private static final int GRID_WIDTH = 9;
+
+	private static final int GRID_HEIGHT = 8;
+
+	private static final int PIXELS_PER_CELL = 32;
+
+	private static final HashSet<String> IMAGE_EXTENSIONS = new HashSet<String>(
+			Arrays.asList(ImageIO.getReaderFileSuffixes()));
+
+	private PerceptualHash() {
+	}
+
+	/**
+	 * @param fileName
+	 * @return True if the file name has an extension the installed image
+	 *         readers handle.
+	 */
+	public static boolean isImage(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return (dot >= 0)
+				&& IMAGE_EXTENSIONS.contains(fileName.substring(dot + 1)
+						.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * @param file
+	 *            An image file.
+	 * @return The hash of the image.
+	 * @throws IOException
+	 *             If the file is not an image the installed readers handle.
+	 */
+	public static long hash(File file) throws IOException {
+		ImageInputStream in = ImageIO.createImageInputStream(file);
+		if (in == null) {
+			throw new IOException("Unable to open " + file);
+		}
+		try {
+			return hash(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param bytes
+	 *            The contents of an image file.
+	 * @return The hash of the image.
+	 * @throws IOException
+	 *             If the bytes are not an image the installed readers handle.
+	 */
+	public static long hash(byte[] bytes) throws IOException {
+		ImageInputStream in = ImageIO
+				.createImageInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return hash(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Decode the first image of a stream, subsampled, and hash it.
+	 */
+	private static long hash(ImageInputStream in) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			throw new IOException("Not a readable image");
+		}
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(in, true, true);
+			int step = Math.max(1, Math.min(reader.getWidth(0)
+					/ (GRID_WIDTH * PIXELS_PER_CELL), reader.getHeight(0)
+					/ (GRID_HEIGHT * PIXELS_PER_CELL)));
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(step, step, 0, 0);
+			return hash(reader.read(0, param));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * @param image
+	 * @return The hash of the image.
+	 */
+	public static long hash(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double[] sums = new double[GRID_WIDTH * GRID_HEIGHT];
+		int[] counts = new int[GRID_WIDTH * GRID_HEIGHT];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			int cellRow = (y * GRID_HEIGHT / height) * GRID_WIDTH;
+			for (int x = 0; x < width; x++) {
+				int rgb = row[x];
+				int cell = cellRow + x * GRID_WIDTH / width;
+				sums[cell] += 0.299 * ((rgb >> 16) & 0xFF) + 0.587
+						* ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+				counts[cell]++;
+			}
+		}
+		long hash = 0;
+		for (int y = 0; y < GRID_HEIGHT; y++) {
+			for (int x = 0; x < GRID_WIDTH - 1; x++) {
+				int cell = y * GRID_WIDTH + x;
+				hash <<= 1;
+				if (average(sums, counts, cell) < average(sums, counts, cell + 1)) {
+					hash |= 1;
+				}
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @param hash1
+	 * @param hash2
+	 * @return The number of bits that differ.
+	 */
+	public static int distance(long hash1, long hash2) {
+		return Long.bitCount(hash1 ^ hash2);
+	}
+
+	/**
+	 * A cell of an image narrower or shorter than the grid may cover no
+	 * pixels; it counts as black.
+	 */
+	private static double average(double[] sums, int[] counts, int cell) {
+		return (counts[cell] == 0) ? 0 : sums[cell] / counts[cell];
+	}
+}
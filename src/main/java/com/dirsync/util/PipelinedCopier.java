@@ -0,0 +1,97 @@
+package com.dirsync.util;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Copies a batch of files with one thread reading and another writing, so
+ * that a source and destination on different drives both stream at the same
+ * time. The reader fills a ring of direct buffers and the writer drains it.
+ * The ring spans file boundaries: the reader starts on the next file while
+ * the writer is still finishing the previous one. Each copy is written under
+ * a temporary name and renamed into place by a GroupCommit.
+ *
+ * This is a FanOutCopier with a single destination.
+ */
+public class PipelinedCopier {
+
+	/**
+	 * The default number of buffers in the ring.
+	 */
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	/**
+	 * The default size of each buffer in the ring.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private final FanOutCopier copier;
+
+	/**
+	 * @param bufferCount
+	 *            The number of buffers in the ring, at least 2.
+	 * @param bufferSize
+	 *            The size of each buffer in bytes.
+	 */
+	public PipelinedCopier(int bufferCount, int bufferSize) {
+		if (bufferCount < 2 || bufferSize <= 0) {
+			throw new IllegalArgumentException(
+					"A pipelined copy needs at least two non-empty buffers");
+		}
+		copier = new FanOutCopier(bufferCount, bufferSize);
+	}
+
+	/**
+	 * @param verify
+	 *            If true then the reader hashes each source as it goes, and
+	 *            the writer flushes each copy to the device and reads it back
+	 *            once to check it. A copy that does not match fails.
+	 */
+	public void setVerify(boolean verify) {
+		copier.setVerify(verify);
+	}
+
+	/**
+	 * @param rateLimiter
+	 *            The limiter the reader and verification read through.
+	 */
+	public void setRateLimiter(IoRateLimiter rateLimiter) {
+		copier.setRateLimiter(rateLimiter);
+	}
+
+	/**
+	 * @param hashAlgorithm
+	 *            The algorithm verification hashes with, which must match
+	 *            the hash cache's.
+	 */
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		copier.setHashAlgorithm(hashAlgorithm);
+	}
+
+	/**
+	 * @param hashCache
+	 *            Where verified copies record the hashes of the source and the
+	 *            copy, or null.
+	 */
+	public void setHashCache(HashCache hashCache) {
+		copier.setHashCache(hashCache);
+	}
+
+	/**
+	 * Copy files from one directory to another, keeping their relative names.
+	 * The destination directories must already exist.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileNames
+	 *            The names of the files relative to both directories, in the
+	 *            order they should be copied.
+	 * @return The files that were copied and the files that could not be.
+	 */
+	public BatchResult copyFiles(String fromDirectory, String toDirectory,
+			List<String> fileNames) {
+		return copier.copyFiles(fromDirectory,
+				Collections.singletonList(toDirectory), fileNames).get(
+				toDirectory);
+	}
+}
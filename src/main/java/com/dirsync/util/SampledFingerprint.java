@@ -0,0 +1,117 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A quick fingerprint of a large file made from its size and a few chunks
+ * read at fixed offsets: the start, the end and evenly spaced points in
+ * between. Files with different fingerprints certainly differ; files with
+ * the same fingerprint are likely, but not certainly, the same. A file no
+ * larger than the sampled chunks is read in full, so its fingerprint is as
+ * good as a full hash.
+ */
+public class SampledFingerprint {
+
+	/**
+	 * The default number of chunks sampled from a file.
+	 */
+	public static final int DEFAULT_SAMPLES = 8;
+
+	/**
+	 * The default size of each sampled chunk.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	private final byte[] fingerprint;
+
+	private final long sampledBytes;
+
+	private final long size;
+
+	private SampledFingerprint(byte[] fingerprint, long sampledBytes, long size) {
+		this.fingerprint = fingerprint;
+		this.sampledBytes = sampledBytes;
+		this.size = size;
+	}
+
+	/**
+	 * Fingerprint a file.
+	 *
+	 * @param file
+	 * @param samples
+	 *            The number of chunks to read, at least 2.
+	 * @param chunkSize
+	 *            The size of each chunk.
+	 * @param rateLimiter
+	 *            The limiter the chunks are read through.
+	 * @return The fingerprint.
+	 * @throws IOException
+	 */
+	public static SampledFingerprint of(File file, int samples, int chunkSize,
+			IoRateLimiter rateLimiter) throws IOException {
+		Hasher hasher = HashEngine.DEFAULT_ALGORITHM.newHasher();
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			ByteBuffer sizeBytes = ByteBuffer.allocate(8);
+			sizeBytes.putLong(size).flip();
+			hasher.update(sizeBytes);
+			ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+			long sampled = 0;
+			if (size <= (long) samples * chunkSize) {
+				// Small enough to read all of it.
+				while (rateLimiter.read(channel, buffer) >= 0) {
+					buffer.flip();
+					sampled += buffer.remaining();
+					hasher.update(buffer);
+					buffer.clear();
+				}
+			} else {
+				long lastOffset = size - chunkSize;
+				for (int i = 0; i < samples; i++) {
+					long offset = lastOffset * i / (samples - 1);
+					buffer.clear();
+					while (buffer.hasRemaining()) {
+						if (rateLimiter.read(channel, buffer, offset
+								+ buffer.position()) < 0) {
+							break;
+						}
+					}
+					buffer.flip();
+					sampled += buffer.remaining();
+					hasher.update(buffer);
+				}
+			}
+			return new SampledFingerprint(hasher.digest(), sampled, size);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return The hash of the size and the sampled chunks.
+	 */
+	public byte[] getFingerprint() {
+		return fingerprint.clone();
+	}
+
+	/**
+	 * @return The fraction of the file the fingerprint covers, 1 if every
+	 *         byte was read.
+	 */
+	public double getCoverage() {
+		return (size == 0) ? 1 : Math.min(1, (double) sampledBytes / size);
+	}
+
+	/**
+	 * @return True if every byte of the file was read.
+	 */
+	public boolean isComplete() {
+		return sampledBytes >= size;
+	}
+}
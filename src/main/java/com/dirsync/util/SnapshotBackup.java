@@ -0,0 +1,284 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Keeps point-in-time backups of a directory as dated snapshot directories
+ * under a backup directory. Each run creates a new snapshot that looks like
+ * a full copy, but a file that is unchanged since the previous snapshot is
+ * hard linked to the copy already there, so a run only reads and writes the
+ * files that changed. A file counts as unchanged when its size and last
+ * modified time match, and, if hashes are compared, its hash as well.
+ *
+ * A snapshot is built under a name ending in PARTIAL_SUFFIX and renamed when
+ * it is complete, so an interrupted run is never taken as the previous
+ * snapshot. A run in which some files could not be copied leaves its
+ * snapshot under the partial name too. The next run links what it can from
+ * the newest partial snapshot, since every file in one was copied or linked
+ * in full, and then deletes the partial snapshots.
+ */
+public class SnapshotBackup {
+
+	/**
+	 * The format of snapshot names, which sort in the order they were taken.
+	 */
+	public static final String NAME_FORMAT = "yyyy-MM-dd_HHmmss";
+
+	/**
+	 * Added to the name of a snapshot until it is complete.
+	 */
+	public static final String PARTIAL_SUFFIX = ".partial";
+
+	private final FileManager fileManager;
+
+	private final File backupDirectory;
+
+	private boolean compareHashes = false;
+
+	private File snapshot = null;
+
+	private final ArrayList<String> linked = new ArrayList<String>();
+
+	private final ArrayList<String> copied = new ArrayList<String>();
+
+	/**
+	 * @param fileManager
+	 *            Copies the changed files, with its catalog filter, copy
+	 *            order and verification.
+	 * @param backupDirectory
+	 *            The directory the snapshots are kept in.
+	 */
+	public SnapshotBackup(FileManager fileManager, String backupDirectory) {
+		this.fileManager = fileManager;
+		this.backupDirectory = new File(backupDirectory);
+	}
+
+	/**
+	 * @param compareHashes
+	 *            If true then a file whose size and time are unchanged is
+	 *            also hashed on both sides before it is linked.
+	 */
+	public void setCompareHashes(boolean compareHashes) {
+		this.compareHashes = compareHashes;
+	}
+
+	/**
+	 * @return The most recent complete snapshot, or null if there is none.
+	 */
+	public File getLatestSnapshot() {
+		String[] names = backupDirectory.list();
+		if (names == null) {
+			return null;
+		}
+		Arrays.sort(names);
+		for (int i = names.length - 1; i >= 0; i--) {
+			File candidate = new File(backupDirectory, names[i]);
+			if (isSnapshotName(names[i]) && candidate.isDirectory()) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Take a new snapshot of a directory tree.
+	 *
+	 * @param sourceDirectory
+	 * @return Every file in the snapshot, linked or copied, and the files
+	 *         that could not be. Only copied bytes are counted. If any file
+	 *         failed the snapshot is left under its partial name.
+	 * @throws IOException
+	 *             If the snapshot directory cannot be created or completed.
+	 */
+	public BatchResult backup(String sourceDirectory) throws IOException {
+		linked.clear();
+		copied.clear();
+		long start = System.nanoTime();
+		File previous = getLatestSnapshot();
+		String name = new SimpleDateFormat(NAME_FORMAT).format(new Date());
+		File target = new File(backupDirectory, name);
+		File partial = new File(backupDirectory, name + PARTIAL_SUFFIX);
+		ArrayList<File> stalePartials = getPartialSnapshots();
+		stalePartials.remove(partial);
+		if (target.exists() || (!partial.mkdirs() && !partial.isDirectory())) {
+			throw new IOException("Unable to create snapshot " + target);
+		}
+
+		Collection<String> fileNames = fileManager.catalogDirectory(
+				sourceDirectory, true, null, true);
+		fileManager.createDirectories(partial.getPath(), fileNames);
+		BatchResult result = new BatchResult();
+		ArrayList<String> changed = new ArrayList<String>(fileNames);
+		if (previous != null) {
+			changed = link(sourceDirectory, previous, changed, partial, result);
+		}
+		if (!stalePartials.isEmpty()) {
+			// The newest partial snapshot holds the files the last failed
+			// run copied.
+			changed = link(sourceDirectory,
+					stalePartials.get(stalePartials.size() - 1), changed,
+					partial, result);
+		}
+		BatchResult copyResult = fileManager.copyFiles(sourceDirectory,
+				partial.getPath(), changed);
+		// The next run compares against these times.
+		for (String fileName : copyResult.getSucceeded()) {
+			File sourceFile = new File(sourceDirectory, fileName);
+			if (sourceFile.isFile()) {
+				new File(partial, fileName).setLastModified(sourceFile
+						.lastModified());
+			}
+		}
+		copied.addAll(copyResult.getSucceeded());
+		result.add(copyResult);
+
+		for (File stalePartial : stalePartials) {
+			try {
+				FileUtils.deleteDirectory(stalePartial);
+			} catch (IOException ex) {
+				Logger.getLogger(SnapshotBackup.class.getName()).log(
+						Level.WARNING, "Unable to delete " + stalePartial, ex);
+			}
+		}
+		if (!copyResult.getFailed().isEmpty()) {
+			snapshot = partial;
+		} else if (partial.renameTo(target)) {
+			snapshot = target;
+		} else {
+			throw new IOException("Unable to complete snapshot " + target);
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Link the files that are unchanged in an earlier snapshot into the new
+	 * one.
+	 *
+	 * @return The files that were not linked.
+	 */
+	private ArrayList<String> link(String sourceDirectory, File base,
+			Collection<String> fileNames, File partial, BatchResult result)
+			throws IOException {
+		ArrayList<String> unchanged = new ArrayList<String>();
+		ArrayList<String> changed = new ArrayList<String>();
+		for (String fileName : fileNames) {
+			File sourceFile = new File(sourceDirectory, fileName);
+			File baseFile = new File(base, fileName);
+			if (baseFile.isFile() && sourceFile.isFile()
+					&& (baseFile.length() == sourceFile.length())
+					&& (baseFile.lastModified() == sourceFile.lastModified())) {
+				unchanged.add(fileName);
+			} else {
+				changed.add(fileName);
+			}
+		}
+		if (compareHashes && !unchanged.isEmpty()) {
+			HashEngine engine = fileManager.getHashEngine();
+			HashCache hashCache = fileManager.getHashCache();
+			HashMap<String, byte[]> sourceHashes = engine.hashFiles(
+					sourceDirectory, unchanged, hashCache);
+			HashMap<String, byte[]> baseHashes = engine.hashFiles(
+					base.getPath(), unchanged, hashCache);
+			ArrayList<String> matching = new ArrayList<String>();
+			for (String fileName : unchanged) {
+				byte[] sourceHash = sourceHashes.get(fileName);
+				if ((sourceHash != null)
+						&& MessageDigest.isEqual(sourceHash,
+								baseHashes.get(fileName))) {
+					matching.add(fileName);
+				} else {
+					changed.add(fileName);
+				}
+			}
+			unchanged = matching;
+		}
+
+		for (String fileName : unchanged) {
+			try {
+				Files.createLink(new File(partial, fileName).toPath(),
+						new File(base, fileName).toPath());
+				linked.add(fileName);
+				result.addSucceeded(fileName, 0);
+			} catch (IOException ex) {
+				// Links are not supported here, or the file has too many.
+				changed.add(fileName);
+			} catch (UnsupportedOperationException ex) {
+				changed.add(fileName);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return The snapshots left partial by earlier runs, oldest first.
+	 */
+	private ArrayList<File> getPartialSnapshots() {
+		ArrayList<File> partials = new ArrayList<File>();
+		String[] names = backupDirectory.list();
+		if (names == null) {
+			return partials;
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			File candidate = new File(backupDirectory, name);
+			if (name.endsWith(PARTIAL_SUFFIX)
+					&& isSnapshotName(name.substring(0, name.length()
+							- PARTIAL_SUFFIX.length()))
+					&& candidate.isDirectory()) {
+				partials.add(candidate);
+			}
+		}
+		return partials;
+	}
+
+	/**
+	 * @return The snapshot made by the last backup, under its partial name
+	 *         if some files could not be copied, or null.
+	 */
+	public File getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * @return The files the last backup linked to the previous snapshot.
+	 */
+	public ArrayList<String> getLinked() {
+		return new ArrayList<String>(linked);
+	}
+
+	/**
+	 * @return The files the last backup copied.
+	 */
+	public ArrayList<String> getCopied() {
+		return new ArrayList<String>(copied);
+	}
+
+	private static boolean isSnapshotName(String name) {
+		if (name.length() != NAME_FORMAT.length()) {
+			return false;
+		}
+		try {
+			SimpleDateFormat format = new SimpleDateFormat(NAME_FORMAT);
+			format.setLenient(false);
+			format.parse(name);
+			return true;
+		} catch (ParseException ex) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * The copy order policies provided with the application.
+ */
+public enum StandardCopyOrder implements CopyOrderPolicy {
+
+	/**
+	 * The order the files were given in.
+	 */
+	SELECTION {
+		@Override
+		public ArrayList<String> order(String fromDirectory,
+				Collection<String> fileNames) {
+			return new ArrayList<String>(fileNames);
+		}
+	},
+
+	/**
+	 * Ascending inode number, which follows the on-disk layout of most Unix
+	 * file systems closely enough to keep the source heads moving forward.
+	 * Falls back to DIRECTORY where the platform does not expose inodes.
+	 */
+	PHYSICAL {
+		@Override
+		public ArrayList<String> order(String fromDirectory,
+				Collection<String> fileNames) {
+			final HashMap<String, Long> inodes = new HashMap<String, Long>();
+			try {
+				for (String fileName : fileNames) {
+					Object inode = Files.getAttribute(
+							Paths.get(fromDirectory, fileName), "unix:ino");
+					inodes.put(fileName, ((Number) inode).longValue());
+				}
+			} catch (UnsupportedOperationException e) {
+				return DIRECTORY.order(fromDirectory, fileNames);
+			} catch (IllegalArgumentException e) {
+				return DIRECTORY.order(fromDirectory, fileNames);
+			} catch (IOException e) {
+				return DIRECTORY.order(fromDirectory, fileNames);
+			}
+			ArrayList<String> ordered = new ArrayList<String>(fileNames);
+			Collections.sort(ordered, new Comparator<String>() {
+				public int compare(String name1, String name2) {
+					return compareLongs(inodes.get(name1), inodes.get(name2));
+				}
+			});
+			return ordered;
+		}
+	},
+
+	/**
+	 * Sorted by path, so each directory's files are copied together and
+	 * directories are visited in one pass.
+	 */
+	DIRECTORY {
+		@Override
+		public ArrayList<String> order(String fromDirectory,
+				Collection<String> fileNames) {
+			ArrayList<String> ordered = new ArrayList<String>(fileNames);
+			Collections.sort(ordered, new Comparator<String>() {
+				public int compare(String name1, String name2) {
+					int i1 = name1.lastIndexOf(File.separatorChar);
+					int i2 = name2.lastIndexOf(File.separatorChar);
+					String directory1 = (i1 < 0) ? "" : name1.substring(0, i1);
+					String directory2 = (i2 < 0) ? "" : name2.substring(0, i2);
+					int result = directory1.compareTo(directory2);
+					return (result != 0) ? result : name1.compareTo(name2);
+				}
+			});
+			return ordered;
+		}
+	},
+
+	/**
+	 * Smallest files first, protecting the most files per second.
+	 */
+	SMALLEST_FIRST {
+		@Override
+		public ArrayList<String> order(String fromDirectory,
+				Collection<String> fileNames) {
+			final HashMap<String, Long> sizes = new HashMap<String, Long>();
+			for (String fileName : fileNames) {
+				sizes.put(fileName, new File(fromDirectory, fileName).length());
+			}
+			ArrayList<String> ordered = new ArrayList<String>(fileNames);
+			Collections.sort(ordered, new Comparator<String>() {
+				public int compare(String name1, String name2) {
+					return compareLongs(sizes.get(name1), sizes.get(name2));
+				}
+			});
+			return ordered;
+		}
+	},
+
+	/**
+	 * Most recently modified files first.
+	 */
+	NEWEST_FIRST {
+		@Override
+		public ArrayList<String> order(String fromDirectory,
+				Collection<String> fileNames) {
+			final HashMap<String, Long> times = new HashMap<String, Long>();
+			for (String fileName : fileNames) {
+				times.put(fileName,
+						new File(fromDirectory, fileName).lastModified());
+			}
+			ArrayList<String> ordered = new ArrayList<String>(fileNames);
+			Collections.sort(ordered, new Comparator<String>() {
+				public int compare(String name1, String name2) {
+					return compareLongs(times.get(name2), times.get(name1));
+				}
+			});
+			return ordered;
+		}
+	};
+
+	public String getName() {
+		return name();
+	}
+
+	private static int compareLongs(long value1, long value2) {
+		return (value1 < value2) ? -1 : ((value1 == value2) ? 0 : 1);
+	}
+}
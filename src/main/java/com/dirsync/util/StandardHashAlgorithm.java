@@ -0,0 +1,89 @@
+package com.dirsync.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The hash algorithms provided with the application.
+ */
+public enum StandardHashAlgorithm implements HashAlgorithm {
+
+	/**
+	 * 64 bit xxHash, which hashes at close to memory speed. The default for
+	 * duplicate detection and copy verification.
+	 */
+	XXHASH64("XXH64", 8) {
+		@Override
+		public Hasher newHasher() {
+			return new XxHash64();
+		}
+	},
+
+	/**
+	 * SHA-256, for manifests that must resist deliberate collisions.
+	 */
+	SHA_256("SHA-256", 32) {
+		@Override
+		public Hasher newHasher() {
+			return new MessageDigestHasher(getName());
+		}
+	},
+
+	/**
+	 * SHA-1.
+	 */
+	SHA_1("SHA-1", 20) {
+		@Override
+		public Hasher newHasher() {
+			return new MessageDigestHasher(getName());
+		}
+	};
+
+	private final String name;
+
+	private final int length;
+
+	private StandardHashAlgorithm(String name, int length) {
+		this.name = name;
+		this.length = length;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * A hasher backed by a message digest from the platform.
+	 */
+	private static class MessageDigestHasher implements Hasher {
+
+		private final MessageDigest digest;
+
+		MessageDigestHasher(String algorithm) {
+			try {
+				digest = MessageDigest.getInstance(algorithm);
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-1 and
+				// SHA-256.
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public void update(ByteBuffer buffer) {
+			digest.update(buffer);
+		}
+
+		public void update(byte[] bytes, int offset, int length) {
+			digest.update(bytes, offset, length);
+		}
+
+		public byte[] digest() {
+			return digest.digest();
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package com.dirsync.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves a directory to SyncClients over TCP, so a remote directory can be
+ * synchronized without mounting it. The agent catalogs its own directory
+ * when asked, so no file is ever examined across the network, and it only
+ * reads and writes inside that directory. Each connection is handled on a
+ * thread of its own. The agent does not authenticate clients, so it only
+ * listens on the loopback address unless given another one: tunnel to it,
+ * or bind it to an address only trusted hosts can reach.
+ *
+ * Usage: java com.dirsync.util.SyncAgent directory [port [bind-address]]
+ */
+public class SyncAgent {
+
+	private final FileManager fileManager;
+
+	private final File directory;
+
+	private ServerSocket serverSocket = null;
+
+	/**
+	 * @param fileManager
+	 *            Catalogs the directory, with its catalog filter, and sets
+	 *            the rate files are read at.
+	 * @param directory
+	 *            The directory served.
+	 */
+	public SyncAgent(FileManager fileManager, String directory) {
+		this.fileManager = fileManager;
+		this.directory = new File(directory);
+	}
+
+	/**
+	 * Start accepting connections on a background thread.
+	 *
+	 * @param bindAddress
+	 *            The address to listen on, or null for the loopback address.
+	 *            Pass the wildcard address explicitly to listen on every
+	 *            address.
+	 * @param port
+	 *            The port to listen on, or 0 for any free port.
+	 * @return The port listened on.
+	 * @throws IOException
+	 */
+	public synchronized int start(InetAddress bindAddress, int port)
+			throws IOException {
+		if (serverSocket != null) {
+			throw new IllegalStateException("The agent is already running");
+		}
+		if (bindAddress == null) {
+			bindAddress = InetAddress.getLoopbackAddress();
+		}
+		final ServerSocket socket = new ServerSocket(port, 50, bindAddress);
+		serverSocket = socket;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				accept(socket);
+			}
+		}, "dirsync-agent");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return socket.getLocalPort();
+	}
+
+	/**
+	 * Stop accepting connections. Connections already open finish their
+	 * current command.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void stop() throws IOException {
+		if (serverSocket != null) {
+			serverSocket.close();
+			serverSocket = null;
+		}
+	}
+
+	private void accept(ServerSocket socket) {
+		while (!socket.isClosed()) {
+			try {
+				final Socket connection = socket.accept();
+				Thread handler = new Thread(new Runnable() {
+					public void run() {
+						serve(connection);
+					}
+				}, "dirsync-agent-" + connection.getRemoteSocketAddress());
+				handler.setDaemon(true);
+				handler.start();
+			} catch (SocketException ex) {
+				// The agent was stopped.
+			} catch (IOException ex) {
+				Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING,
+						"Unable to accept a connection", ex);
+			}
+		}
+	}
+
+	/**
+	 * Answer one client's commands until it quits or goes away.
+	 */
+	private void serve(Socket connection) {
+		try {
+			connection.setTcpNoDelay(true);
+			DataInputStream handshakeIn = new DataInputStream(
+					connection.getInputStream());
+			DataOutputStream handshakeOut = new DataOutputStream(
+					connection.getOutputStream());
+			if ((handshakeIn.readInt() != SyncProtocol.MAGIC)
+					|| (handshakeIn.readInt() != SyncProtocol.VERSION)) {
+				throw new IOException("Not a dirsync client");
+			}
+			boolean compress = handshakeIn.readBoolean();
+			handshakeOut.writeInt(SyncProtocol.MAGIC);
+			handshakeOut.writeInt(SyncProtocol.VERSION);
+			handshakeOut.flush();
+
+			DataInputStream in = SyncProtocol.openInput(
+					connection.getInputStream(), compress);
+			DataOutputStream out = SyncProtocol.openOutput(
+					connection.getOutputStream(), compress);
+			byte[] buffer = new byte[SyncProtocol.BLOCK_SIZE];
+			while (true) {
+				byte command = in.readByte();
+				if (command == SyncProtocol.CATALOG) {
+					SyncProtocol.writeCatalog(out, SyncProtocol.catalog(
+							fileManager, directory.getPath()));
+				} else if (command == SyncProtocol.PUT) {
+					BatchResult result = new BatchResult();
+					GroupCommit commit = new GroupCommit(result);
+					int count = in.readInt();
+					for (int i = 0; i < count; i++) {
+						SyncProtocol.receiveFile(in, directory, commit, result,
+								buffer);
+					}
+					commit.commit();
+					Map<String, IOException> failed = result.getFailed();
+					out.writeInt(failed.size());
+					for (String fileName : failed.keySet()) {
+						out.writeUTF(fileName);
+						out.writeUTF(String.valueOf(failed.get(fileName)
+								.getMessage()));
+					}
+				} else if (command == SyncProtocol.GET) {
+					int count = in.readInt();
+					String[] fileNames = new String[count];
+					for (int i = 0; i < count; i++) {
+						fileNames[i] = in.readUTF();
+					}
+					out.writeInt(count);
+					for (String fileName : fileNames) {
+						try {
+							SyncProtocol.sendFile(out, SyncProtocol.resolve(
+									directory, fileName), fileName,
+									fileManager.getRateLimiter(), buffer);
+						} catch (IOException ex) {
+							SyncProtocol.sendFailure(out, fileName, ex);
+						}
+					}
+				} else if (command == SyncProtocol.QUIT) {
+					break;
+				} else {
+					throw new IOException("Unknown command " + command);
+				}
+				out.flush();
+			}
+		} catch (IOException ex) {
+			Logger.getLogger(SyncAgent.class.getName()).log(Level.WARNING,
+					"Connection from " + connection.getRemoteSocketAddress()
+							+ " ended", ex);
+		} finally {
+			try {
+				connection.close();
+			} catch (IOException ex) {
+				// Nothing more to send.
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java " + SyncAgent.class.getName()
+					+ " directory [port [bind-address]]");
+			System.exit(1);
+		}
+		int port = (args.length > 1) ? Integer.parseInt(args[1])
+				: SyncProtocol.DEFAULT_PORT;
+		// Listen beyond this host only when asked to, e.g. with 0.0.0.0.
+		InetAddress bindAddress = (args.length > 2) ? InetAddress
+				.getByName(args[2]) : InetAddress.getLoopbackAddress();
+		SyncAgent agent = new SyncAgent(new FileManager(), args[0]);
+		port = agent.start(bindAddress, port);
+		System.out.println("Serving " + args[0] + " on "
+				+ bindAddress.getHostAddress() + " port " + port);
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,182 @@
+package com.dirsync.util;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Synchronizes a local directory with the directory a SyncAgent serves.
+ * Each side catalogs its own files and only the catalogs cross the network
+ * to decide what to send. A file is sent whole when it is missing on the
+ * other side or differs in size or last modified time, and all the files
+ * needed travel in one stream without waiting for each to be acknowledged.
+ */
+public class SyncClient implements Closeable {
+
+	private final FileManager fileManager;
+
+	private final Socket socket;
+
+	private final DataInputStream in;
+
+	private final DataOutputStream out;
+
+	private final byte[] buffer = new byte[SyncProtocol.BLOCK_SIZE];
+
+	/**
+	 * Connect to an agent.
+	 *
+	 * @param host
+	 * @param port
+	 * @param compress
+	 *            If true then commands and data are deflated, which helps on
+	 *            slow links and costs CPU on fast ones.
+	 * @param fileManager
+	 *            Catalogs the local directory, with its catalog filter, and
+	 *            sets the rate local files are read at.
+	 * @throws IOException
+	 */
+	public SyncClient(String host, int port, boolean compress,
+			FileManager fileManager) throws IOException {
+		this.fileManager = fileManager;
+		socket = new Socket(host, port);
+		try {
+			socket.setTcpNoDelay(true);
+			DataOutputStream handshakeOut = new DataOutputStream(
+					socket.getOutputStream());
+			handshakeOut.writeInt(SyncProtocol.MAGIC);
+			handshakeOut.writeInt(SyncProtocol.VERSION);
+			handshakeOut.writeBoolean(compress);
+			handshakeOut.flush();
+			DataInputStream handshakeIn = new DataInputStream(
+					socket.getInputStream());
+			if ((handshakeIn.readInt() != SyncProtocol.MAGIC)
+					|| (handshakeIn.readInt() != SyncProtocol.VERSION)) {
+				throw new IOException("Not a dirsync agent: " + host + ":"
+						+ port);
+			}
+			in = SyncProtocol.openInput(socket.getInputStream(), compress);
+			out = SyncProtocol.openOutput(socket.getOutputStream(), compress);
+		} catch (IOException ex) {
+			socket.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * @return The agent's files, by relative name with '/' separators.
+	 * @throws IOException
+	 */
+	public LinkedHashMap<String, SyncProtocol.Entry> catalog()
+			throws IOException {
+		out.writeByte(SyncProtocol.CATALOG);
+		out.flush();
+		return SyncProtocol.readCatalog(in);
+	}
+
+	/**
+	 * Send the agent the local files it is missing or has a different
+	 * version of. The agent's other files are left alone.
+	 *
+	 * @param directory
+	 *            The local directory.
+	 * @return The files sent and those the agent could not store.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	public BatchResult push(String directory) throws IOException {
+		long start = System.nanoTime();
+		Map<String, SyncProtocol.Entry> remote = catalog();
+		Map<String, SyncProtocol.Entry> local = SyncProtocol.catalog(
+				fileManager, directory);
+		ArrayList<String> needed = new ArrayList<String>();
+		for (Map.Entry<String, SyncProtocol.Entry> entry : local.entrySet()) {
+			if (!entry.getValue().matches(remote.get(entry.getKey()))) {
+				needed.add(entry.getKey());
+			}
+		}
+
+		out.writeByte(SyncProtocol.PUT);
+		out.writeInt(needed.size());
+		LinkedHashMap<String, Long> sent = new LinkedHashMap<String, Long>();
+		for (String fileName : needed) {
+			sent.put(fileName, SyncProtocol.sendFile(out, new File(directory,
+					fileName.replace('/', File.separatorChar)), fileName,
+					fileManager.getRateLimiter(), buffer));
+		}
+		out.flush();
+
+		BatchResult result = new BatchResult();
+		int failedCount = in.readInt();
+		for (int i = 0; i < failedCount; i++) {
+			String fileName = in.readUTF();
+			result.addFailed(fileName, new IOException(in.readUTF()));
+			sent.remove(fileName);
+		}
+		for (Map.Entry<String, Long> entry : sent.entrySet()) {
+			result.addSucceeded(entry.getKey(), entry.getValue());
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Fetch the agent's files that are missing locally or differ from the
+	 * local version. Local files the agent does not have are left alone.
+	 *
+	 * @param directory
+	 *            The local directory.
+	 * @return The files received and those that could not be.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	public BatchResult pull(String directory) throws IOException {
+		long start = System.nanoTime();
+		Map<String, SyncProtocol.Entry> remote = catalog();
+		Map<String, SyncProtocol.Entry> local = SyncProtocol.catalog(
+				fileManager, directory);
+		ArrayList<String> needed = new ArrayList<String>();
+		for (Map.Entry<String, SyncProtocol.Entry> entry : remote.entrySet()) {
+			if (!entry.getValue().matches(local.get(entry.getKey()))) {
+				needed.add(entry.getKey());
+			}
+		}
+
+		out.writeByte(SyncProtocol.GET);
+		SyncProtocol.writeNames(out, needed);
+		out.flush();
+
+		BatchResult result = new BatchResult();
+		GroupCommit commit = new GroupCommit(result);
+		File localDirectory = new File(directory);
+		try {
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				SyncProtocol.receiveFile(in, localDirectory, commit, result,
+						buffer);
+			}
+		} finally {
+			commit.commit();
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Tell the agent the session is over and disconnect.
+	 */
+	public void close() throws IOException {
+		try {
+			out.writeByte(SyncProtocol.QUIT);
+			out.flush();
+		} finally {
+			socket.close();
+		}
+	}
+}
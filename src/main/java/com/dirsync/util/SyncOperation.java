@@ -0,0 +1,161 @@
+package com.dirsync.util;
+
+/**
+ * One step of a sync plan.
+ */
+public class SyncOperation {
+
+	/**
+	 * What a step does.
+	 */
+	public enum Type {
+
+		/**
+		 * Create a directory.
+		 */
+		MKDIR,
+
+		/**
+		 * Copy a file to a directory that does not have it.
+		 */
+		COPY,
+
+		/**
+		 * Copy a file over an older version.
+		 */
+		UPDATE,
+
+		/**
+		 * Delete a file.
+		 */
+		DELETE,
+
+		/**
+		 * Rename a file within a directory tree.
+		 */
+		MOVE
+	}
+
+	private final Type type;
+
+	private final String fromDirectory;
+
+	private final String directory;
+
+	private final String fileName;
+
+	private final String targetName;
+
+	private final long bytes;
+
+	/**
+	 * @param type
+	 * @param fromDirectory
+	 *            The directory copied from, or null if the step does not copy.
+	 * @param directory
+	 *            The directory the step changes.
+	 * @param fileName
+	 *            The name of the file or directory relative to the
+	 *            directories.
+	 * @param targetName
+	 *            The new relative name of a moved file, or null.
+	 * @param bytes
+	 *            The number of bytes the step copies.
+	 */
+	public SyncOperation(Type type, String fromDirectory, String directory,
+			String fileName, String targetName, long bytes) {
+		this.type = type;
+		this.fromDirectory = fromDirectory;
+		this.directory = directory;
+		this.fileName = fileName;
+		this.targetName = targetName;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @param directory
+	 * @param directoryName
+	 *            The relative name of the directory to create.
+	 * @return A step that creates a directory.
+	 */
+	public static SyncOperation mkdir(String directory, String directoryName) {
+		return new SyncOperation(Type.MKDIR, null, directory, directoryName,
+				null, 0);
+	}
+
+	/**
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileName
+	 * @param bytes
+	 * @param update
+	 *            True if the file already exists in the to directory.
+	 * @return A step that copies a file.
+	 */
+	public static SyncOperation copy(String fromDirectory, String toDirectory,
+			String fileName, long bytes, boolean update) {
+		return new SyncOperation(update ? Type.UPDATE : Type.COPY,
+				fromDirectory, toDirectory, fileName, null, bytes);
+	}
+
+	/**
+	 * @param directory
+	 * @param fileName
+	 * @return A step that deletes a file.
+	 */
+	public static SyncOperation delete(String directory, String fileName) {
+		return new SyncOperation(Type.DELETE, null, directory, fileName, null,
+				0);
+	}
+
+	/**
+	 * @param directory
+	 * @param fileName
+	 * @param targetName
+	 * @return A step that renames a file.
+	 */
+	public static SyncOperation move(String directory, String fileName,
+			String targetName) {
+		return new SyncOperation(Type.MOVE, null, directory, fileName,
+				targetName, 0);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getFromDirectory() {
+		return fromDirectory;
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public String getTargetName() {
+		return targetName;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		switch (type) {
+		case MOVE:
+			return type + " " + fileName + " -> " + targetName + " in "
+					+ directory;
+		case COPY:
+		case UPDATE:
+			return type + " " + fileName + " from " + fromDirectory + " to "
+					+ directory;
+		default:
+			return type + " " + fileName + " in " + directory;
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.TreeSet;
+
+/**
+ * An explicit list of the directory creations, copies, updates, deletes and
+ * moves that bring directories in sync, worked out before anything is
+ * changed. A plan can be saved, inspected, timed in advance from the
+ * throughput measured on the devices involved, and then executed in batches.
+ */
+public class SyncPlan {
+
+	/**
+	 * The copy rate assumed for a device with no throughput history.
+	 */
+	public static final double DEFAULT_BYTES_PER_SECOND = 50 * 1024 * 1024;
+
+	/**
+	 * The file rate assumed for a device with no throughput history.
+	 */
+	public static final double DEFAULT_FILES_PER_SECOND = 200;
+
+	/**
+	 * The time assumed for a step that does not copy data.
+	 */
+	private static final long OPERATION_NANOS = 1000000L;
+
+	private static final int FILE_MAGIC = 0x44535350;
+
+	private static final int FILE_VERSION = 1;
+
+	private final ArrayList<SyncOperation> operations = new ArrayList<SyncOperation>();
+
+	private final ArrayList<String> conflicts = new ArrayList<String>();
+
+	/**
+	 * The directories with a planned MKDIR, as directory and relative name.
+	 */
+	private final HashSet<String> plannedDirectories = new HashSet<String>();
+
+	/**
+	 * @param operation
+	 */
+	public void add(SyncOperation operation) {
+		operations.add(operation);
+	}
+
+	/**
+	 * Plan a copy of a file, with a MKDIR for each directory the copy needs
+	 * that does not exist yet. Whether the copy is an update and how many
+	 * bytes it moves are taken from the files as they are now.
+	 *
+	 * @param fromDirectory
+	 * @param toDirectory
+	 * @param fileName
+	 *            The name of the file relative to both directories.
+	 */
+	public void addCopy(String fromDirectory, String toDirectory,
+			String fileName) {
+		File toFile = new File(toDirectory, fileName);
+		ArrayList<String> missing = new ArrayList<String>();
+		File parent = toFile.getParentFile();
+		String name = parentName(fileName);
+		while ((name != null) && !parent.isDirectory()) {
+			missing.add(name);
+			parent = parent.getParentFile();
+			name = parentName(name);
+		}
+		Collections.reverse(missing);
+		for (String directoryName : missing) {
+			if (plannedDirectories.add(toDirectory + File.pathSeparator
+					+ directoryName)) {
+				add(SyncOperation.mkdir(toDirectory, directoryName));
+			}
+		}
+		add(SyncOperation.copy(fromDirectory, toDirectory, fileName, new File(
+				fromDirectory, fileName).length(), toFile.exists()));
+	}
+
+	/**
+	 * @return The relative name of the directory holding a relative name, or
+	 *         null if it is at the top.
+	 */
+	private static String parentName(String fileName) {
+		int separator = Math.max(fileName.lastIndexOf('/'),
+				fileName.lastIndexOf(File.separatorChar));
+		return (separator > 0) ? fileName.substring(0, separator) : null;
+	}
+
+	/**
+	 * Record a file that is left alone because it cannot be synchronized
+	 * automatically.
+	 *
+	 * @param fileName
+	 */
+	public void addConflict(String fileName) {
+		conflicts.add(fileName);
+	}
+
+	/**
+	 * @return The steps in the order they were planned.
+	 */
+	public ArrayList<SyncOperation> getOperations() {
+		return new ArrayList<SyncOperation>(operations);
+	}
+
+	/**
+	 * @return The files left alone.
+	 */
+	public ArrayList<String> getConflicts() {
+		return new ArrayList<String>(conflicts);
+	}
+
+	/**
+	 * @param type
+	 * @return The number of steps of a type.
+	 */
+	public int getCount(SyncOperation.Type type) {
+		int count = 0;
+		for (SyncOperation operation : operations) {
+			if (operation.getType() == type) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return The total number of bytes the plan copies.
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (SyncOperation operation : operations) {
+			bytes += operation.getBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return True if the plan has no steps.
+	 */
+	public boolean isEmpty() {
+		return operations.isEmpty();
+	}
+
+	/**
+	 * Estimate how long the plan will take without touching any file. The
+	 * copies between each pair of directories are timed at the slower of the
+	 * best rates measured on the source and target devices, and bounded by
+	 * the best file rate, so many small files are not estimated as one large
+	 * one.
+	 *
+	 * @param history
+	 *            The throughput measured by earlier copies, or null to use
+	 *            the default rates.
+	 * @return The estimated run time in nanoseconds.
+	 */
+	public long estimateNanos(ThroughputHistory history) {
+		LinkedHashMap<String, long[]> copies = new LinkedHashMap<String, long[]>();
+		HashMap<String, String[]> pairs = new HashMap<String, String[]>();
+		double nanos = 0;
+		for (SyncOperation operation : operations) {
+			if (operation.getFromDirectory() == null) {
+				nanos += OPERATION_NANOS;
+				continue;
+			}
+			String key = operation.getFromDirectory() + File.pathSeparator
+					+ operation.getDirectory();
+			long[] totals = copies.get(key);
+			if (totals == null) {
+				totals = new long[2];
+				copies.put(key, totals);
+				pairs.put(key, new String[] { operation.getFromDirectory(),
+						operation.getDirectory() });
+			}
+			totals[0] += operation.getBytes();
+			totals[1]++;
+		}
+		HashMap<String, String> devices = new HashMap<String, String>();
+		for (String key : copies.keySet()) {
+			double bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+			double filesPerSecond = DEFAULT_FILES_PER_SECOND;
+			if (history != null) {
+				double measuredBytes = -1;
+				double measuredFiles = -1;
+				for (String directory : pairs.get(key)) {
+					String device = devices.get(directory);
+					if (device == null) {
+						device = ThroughputHistory.getDevice(directory);
+						devices.put(directory, device);
+					}
+					measuredBytes = slower(measuredBytes,
+							history.getBestBytesPerSecond(device));
+					measuredFiles = slower(measuredFiles,
+							history.getBestFilesPerSecond(device));
+				}
+				if (measuredBytes > 0) {
+					bytesPerSecond = measuredBytes;
+				}
+				if (measuredFiles > 0) {
+					filesPerSecond = measuredFiles;
+				}
+			}
+			long[] totals = copies.get(key);
+			nanos += Math.max(totals[0] / bytesPerSecond, totals[1]
+					/ filesPerSecond) * 1e9;
+		}
+		return (long) nanos;
+	}
+
+	/**
+	 * @return The lower of two measured rates, ignoring a rate below zero
+	 *         that stands for no measurement.
+	 */
+	private static double slower(double rate1, double rate2) {
+		if (rate1 <= 0) {
+			return rate2;
+		} else if (rate2 <= 0) {
+			return rate1;
+		}
+		return Math.min(rate1, rate2);
+	}
+
+	/**
+	 * Carry out the plan in batches: directories are created first, parents
+	 * before children, then files are moved, then the copies and updates
+	 * between each pair of directories run as one copyFiles batch in the
+	 * FileManager's copy order, and deletes run last so nothing is removed
+	 * before its replacement is in place. A failed step does not stop the
+	 * others. If the FileManager prunes empty directories, the directories
+	 * that moves and deletes left empty are removed at the end.
+	 *
+	 * @param fileManager
+	 * @return The steps that succeeded and failed, by relative name.
+	 */
+	public BatchResult execute(FileManager fileManager) {
+		BatchResult result = new BatchResult();
+		long start = System.nanoTime();
+
+		TreeSet<String> directories = new TreeSet<String>();
+		HashMap<String, SyncOperation> mkdirs = new HashMap<String, SyncOperation>();
+		LinkedHashMap<String, ArrayList<String>> copies = new LinkedHashMap<String, ArrayList<String>>();
+		HashMap<String, String[]> pairs = new HashMap<String, String[]>();
+		ArrayList<SyncOperation> moves = new ArrayList<SyncOperation>();
+		ArrayList<SyncOperation> deletes = new ArrayList<SyncOperation>();
+		for (SyncOperation operation : operations) {
+			switch (operation.getType()) {
+			case MKDIR:
+				// The full path sorts a parent before its children.
+				String path = fileManager.getFilePathAndName(
+						operation.getDirectory(), operation.getFileName());
+				directories.add(path);
+				mkdirs.put(path, operation);
+				break;
+			case MOVE:
+				moves.add(operation);
+				break;
+			case COPY:
+			case UPDATE:
+				String key = operation.getFromDirectory() + File.pathSeparator
+						+ operation.getDirectory();
+				if (!copies.containsKey(key)) {
+					copies.put(key, new ArrayList<String>());
+					pairs.put(key, new String[] { operation.getFromDirectory(),
+							operation.getDirectory() });
+				}
+				copies.get(key).add(operation.getFileName());
+				break;
+			case DELETE:
+				deletes.add(operation);
+				break;
+			}
+		}
+
+		for (String path : directories) {
+			File directory = new File(path);
+			if (directory.mkdir() || directory.isDirectory()) {
+				result.addSucceeded(mkdirs.get(path).getFileName(), 0);
+			} else {
+				result.addFailed(mkdirs.get(path).getFileName(),
+						new IOException("Unable to create " + path));
+			}
+		}
+		// The files each directory lost, to prune the directories they left
+		// empty.
+		HashMap<String, ArrayList<String>> vacated = new HashMap<String, ArrayList<String>>();
+		for (SyncOperation move : moves) {
+			try {
+				fileManager.moveFile(
+						fileManager.getFilePathAndName(move.getDirectory(),
+								move.getFileName()),
+						fileManager.getFilePathAndName(move.getDirectory(),
+								move.getTargetName()));
+				result.addSucceeded(move.getFileName(), 0);
+				addVacated(vacated, move);
+			} catch (IOException ex) {
+				result.addFailed(move.getFileName(), ex);
+			}
+		}
+		for (String key : copies.keySet()) {
+			String[] pair = pairs.get(key);
+			result.add(fileManager.copyFiles(pair[0], pair[1], copies.get(key)));
+		}
+		for (SyncOperation delete : deletes) {
+			try {
+				fileManager.deleteFile(delete.getDirectory(),
+						delete.getFileName());
+				result.addSucceeded(delete.getFileName(), 0);
+				addVacated(vacated, delete);
+			} catch (IOException ex) {
+				result.addFailed(delete.getFileName(), ex);
+			}
+		}
+		if (fileManager.isPruneEmptyDirectories()) {
+			for (String directory : vacated.keySet()) {
+				fileManager.removeEmptyDirectories(directory,
+						vacated.get(directory));
+			}
+		}
+		result.setElapsedNanos(System.nanoTime() - start);
+		return result;
+	}
+
+	private static void addVacated(
+			HashMap<String, ArrayList<String>> vacated, SyncOperation operation) {
+		ArrayList<String> fileNames = vacated.get(operation.getDirectory());
+		if (fileNames == null) {
+			fileNames = new ArrayList<String>();
+			vacated.put(operation.getDirectory(), fileNames);
+		}
+		fileNames.add(operation.getFileName());
+	}
+
+	/**
+	 * Load a plan written by save.
+	 *
+	 * @param filePathAndName
+	 * @return The plan, or null if the file does not exist or is not a plan.
+	 * @throws IOException
+	 */
+	public static SyncPlan load(String filePathAndName) throws IOException {
+		File file = new File(filePathAndName);
+		if (!file.isFile()) {
+			return null;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if ((in.readInt() != FILE_MAGIC) || (in.readInt() != FILE_VERSION)) {
+				return null;
+			}
+			SyncPlan plan = new SyncPlan();
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				SyncOperation.Type type = SyncOperation.Type.values()[in
+						.readInt()];
+				String fromDirectory = readOptional(in);
+				String directory = in.readUTF();
+				String fileName = in.readUTF();
+				String targetName = readOptional(in);
+				long bytes = in.readLong();
+				plan.add(new SyncOperation(type, fromDirectory, directory,
+						fileName, targetName, bytes));
+			}
+			count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				plan.addConflict(in.readUTF());
+			}
+			return plan;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the plan to a file.
+	 *
+	 * @param filePathAndName
+	 * @throws IOException
+	 */
+	public void save(String filePathAndName) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filePathAndName)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(operations.size());
+			for (SyncOperation operation : operations) {
+				out.writeInt(operation.getType().ordinal());
+				writeOptional(out, operation.getFromDirectory());
+				out.writeUTF(operation.getDirectory());
+				out.writeUTF(operation.getFileName());
+				writeOptional(out, operation.getTargetName());
+				out.writeLong(operation.getBytes());
+			}
+			out.writeInt(conflicts.size());
+			for (String conflict : conflicts) {
+				out.writeUTF(conflict);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeOptional(DataOutputStream out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The wire format shared by SyncAgent and SyncClient. A connection opens
+ * with a handshake in the clear, in which the client says whether the rest
+ * of the connection is compressed. After that the client sends commands and
+ * the agent answers each in turn:
+ *
+ * CATALOG: the agent replies with the count of its files and, for each, the
+ * relative name, size and last modified time.
+ *
+ * PUT: the client sends a count and then each file as its name, last
+ * modified time and data. The agent replies, once all have arrived, with
+ * the files it could not store and why.
+ *
+ * GET: the client sends a count and the names it wants, and the agent
+ * replies with each file as its name, last modified time and data.
+ *
+ * File data travels as blocks, each preceded by its length, and ends with a
+ * zero length, or with -1 and a message if the sender could not read the
+ * whole file; the receiver then discards what it got. No step waits for an
+ * answer per file, so a batch streams at the speed of the link. Relative
+ * names always use '/' on the wire.
+ */
+public final class SyncProtocol {
+
+	public static final int MAGIC = 0x4453594E;
+
+	public static final int VERSION = 1;
+
+	/**
+	 * The port an agent listens on unless told otherwise.
+	 */
+	public static final int DEFAULT_PORT = 7387;
+
+	static final byte CATALOG = 1;
+
+	static final byte PUT = 2;
+
+	static final byte GET = 3;
+
+	static final byte QUIT = 4;
+
+	/**
+	 * The largest block of file data sent at a time.
+	 */
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final int END_OF_FILE = 0;
+
+	private static final int FAILED = -1;
+
+	/**
+	 * The size and last modified time of a file in a catalog.
+	 */
+	public static class Entry {
+
+		private final long size;
+
+		private final long lastModified;
+
+		public Entry(long size, long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		/**
+		 * @param other
+		 * @return True if the other entry has the same size and time.
+		 */
+		public boolean matches(Entry other) {
+			return (other != null) && (size == other.size)
+					&& (lastModified == other.lastModified);
+		}
+	}
+
+	private SyncProtocol() {
+	}
+
+	/**
+	 * @param socketOut
+	 * @param compress
+	 *            If true then everything written is deflated, and each flush
+	 *            sends what has been written so far.
+	 * @return A buffered stream for the commands and data sent.
+	 */
+	static DataOutputStream openOutput(OutputStream socketOut,
+			boolean compress) {
+		OutputStream out = new BufferedOutputStream(socketOut, BLOCK_SIZE);
+		if (compress) {
+			out = new BufferedOutputStream(new DeflaterOutputStream(out,
+					new Deflater(Deflater.BEST_SPEED), BLOCK_SIZE, true),
+					BLOCK_SIZE);
+		}
+		return new DataOutputStream(out);
+	}
+
+	/**
+	 * @param socketIn
+	 * @param compress
+	 *            If true then everything read is inflated.
+	 * @return A buffered stream for the commands and data received.
+	 */
+	static DataInputStream openInput(InputStream socketIn, boolean compress) {
+		InputStream in = new BufferedInputStream(socketIn, BLOCK_SIZE);
+		if (compress) {
+			in = new BufferedInputStream(new InflaterInputStream(in,
+					new Inflater(), BLOCK_SIZE), BLOCK_SIZE);
+		}
+		return new DataInputStream(in);
+	}
+
+	/**
+	 * @param fileName
+	 *            A relative name with the local separator.
+	 * @return The name as it is sent.
+	 */
+	static String toWireName(String fileName) {
+		return fileName.replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Resolve a name received from the other side, which must stay inside
+	 * the directory.
+	 *
+	 * @param directory
+	 * @param wireName
+	 * @return The file the name refers to.
+	 * @throws IOException
+	 *             If the name is absolute or leads out of the directory.
+	 */
+	static File resolve(File directory, String wireName) throws IOException {
+		File root = directory.getCanonicalFile();
+		File file = new File(root, wireName.replace('/', File.separatorChar))
+				.getCanonicalFile();
+		if (wireName.startsWith("/") || !file.getPath().startsWith(
+				root.getPath() + File.separator)) {
+			throw new IOException("Refusing file outside " + root + ": "
+					+ wireName);
+		}
+		return file;
+	}
+
+	/**
+	 * Catalog a directory for the other side.
+	 */
+	static LinkedHashMap<String, Entry> catalog(FileManager fileManager,
+			String directory) {
+		LinkedHashMap<String, Entry> catalog = new LinkedHashMap<String, Entry>();
+		for (String fileName : fileManager.catalogDirectory(directory, true,
+				null, false)) {
+			File file = new File(directory, fileName);
+			catalog.put(toWireName(fileName), new Entry(file.length(), file
+					.lastModified()));
+		}
+		return catalog;
+	}
+
+	static void writeCatalog(DataOutputStream out,
+			Map<String, Entry> catalog) throws IOException {
+		out.writeInt(catalog.size());
+		for (Map.Entry<String, Entry> entry : catalog.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeLong(entry.getValue().getSize());
+			out.writeLong(entry.getValue().getLastModified());
+		}
+	}
+
+	static LinkedHashMap<String, Entry> readCatalog(DataInputStream in)
+			throws IOException {
+		int count = in.readInt();
+		LinkedHashMap<String, Entry> catalog = new LinkedHashMap<String, Entry>();
+		for (int i = 0; i < count; i++) {
+			String fileName = in.readUTF();
+			catalog.put(fileName, new Entry(in.readLong(), in.readLong()));
+		}
+		return catalog;
+	}
+
+	/**
+	 * Send one file. A file that cannot be read is sent as a failure, which
+	 * the receiver reports, rather than ending the connection.
+	 *
+	 * @param out
+	 * @param file
+	 * @param wireName
+	 *            The name the file is sent under.
+	 * @param rateLimiter
+	 *            The limiter the file is read through.
+	 * @param buffer
+	 *            BLOCK_SIZE bytes.
+	 * @return The number of bytes sent, or -1 if the file could not be read.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	static long sendFile(DataOutputStream out, File file, String wireName,
+			IoRateLimiter rateLimiter, byte[] buffer) throws IOException {
+		long sent = 0;
+		InputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (IOException ex) {
+			sendFailure(out, wireName, ex);
+			return -1;
+		}
+		out.writeUTF(wireName);
+		out.writeLong(file.lastModified());
+		try {
+			while (true) {
+				int read;
+				try {
+					read = rateLimiter.read(in, buffer);
+				} catch (IOException ex) {
+					out.writeInt(FAILED);
+					out.writeUTF(String.valueOf(ex.getMessage()));
+					return -1;
+				}
+				if (read < 0) {
+					break;
+				}
+				if (read > 0) {
+					out.writeInt(read);
+					out.write(buffer, 0, read);
+					sent += read;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		out.writeInt(END_OF_FILE);
+		return sent;
+	}
+
+	/**
+	 * Send a file that could not be read, in place of its data.
+	 */
+	static void sendFailure(DataOutputStream out, String wireName,
+			IOException ex) throws IOException {
+		out.writeUTF(wireName);
+		out.writeLong(0);
+		out.writeInt(FAILED);
+		out.writeUTF(String.valueOf(ex.getMessage()));
+	}
+
+	/**
+	 * Receive one file into a temporary name and hand it to a group commit,
+	 * or report why it could not be stored. The data is always read to its
+	 * end so the connection stays in step.
+	 *
+	 * @param in
+	 * @param directory
+	 *            The directory the file is stored under; names leading out
+	 *            of it are refused.
+	 * @param commit
+	 * @param result
+	 *            Receives the file if it cannot be stored.
+	 * @param buffer
+	 *            At least BLOCK_SIZE bytes.
+	 * @throws IOException
+	 *             If the connection failed.
+	 */
+	static void receiveFile(DataInputStream in, File directory,
+			GroupCommit commit, BatchResult result, byte[] buffer)
+			throws IOException {
+		String wireName = in.readUTF();
+		long lastModified = in.readLong();
+		File target = null;
+		File tempFile = null;
+		OutputStream out = null;
+		IOException failure = null;
+		try {
+			target = resolve(directory, wireName);
+			target.getParentFile().mkdirs();
+			tempFile = GroupCommit.getTempFile(target);
+			out = new FileOutputStream(tempFile);
+		} catch (IOException ex) {
+			failure = ex;
+		}
+		long received = 0;
+		while (true) {
+			int length = in.readInt();
+			if (length == END_OF_FILE) {
+				break;
+			} else if (length == FAILED) {
+				String message = in.readUTF();
+				if (failure == null) {
+					failure = new IOException("Sender could not read "
+							+ wireName + ": " + message);
+				}
+				break;
+			} else if ((length < 0) || (length > buffer.length)) {
+				throw new IOException("Bad block length " + length);
+			}
+			in.readFully(buffer, 0, length);
+			if (failure == null) {
+				try {
+					out.write(buffer, 0, length);
+					received += length;
+				} catch (IOException ex) {
+					failure = ex;
+				}
+			}
+		}
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException ex) {
+				if (failure == null) {
+					failure = ex;
+				}
+			}
+		}
+		if (failure != null) {
+			if (tempFile != null) {
+				tempFile.delete();
+			}
+			result.addFailed(wireName, failure);
+			return;
+		}
+		tempFile.setLastModified(lastModified);
+		commit.add(wireName, tempFile, target, received, null);
+	}
+
+	/**
+	 * Send file names, or anything else, as a counted list.
+	 */
+	static void writeNames(DataOutputStream out, Collection<String> names)
+			throws IOException {
+		out.writeInt(names.size());
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+	}
+}
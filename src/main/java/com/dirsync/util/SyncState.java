@@ -0,0 +1,278 @@
+package com.dirsync.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * What two directories held the last time they were synchronized: for every
+ * file, its size and modification time on each side. Comparing each side
+ * with this base tells whether a file was added, modified or deleted there
+ * since, so changes can be carried over in either direction. The state also
+ * keeps the directories the last sync changed or left conflicts in, which are
+ * looked at again on the next sync even if neither side changed them.
+ */
+public class SyncState {
+
+	private static final int FILE_MAGIC = 0x44535353;
+
+	private static final int FILE_VERSION = 2;
+
+	private final TreeMap<String, Entry> entries = new TreeMap<String, Entry>();
+
+	private final TreeSet<String> dirtyDirectories = new TreeSet<String>();
+
+	/**
+	 * Load a state written by save.
+	 *
+	 * @param filePathAndName
+	 * @return The state, or an empty state if the file does not exist or is
+	 *         not a state file.
+	 * @throws IOException
+	 */
+	public static SyncState load(String filePathAndName) throws IOException {
+		SyncState state = new SyncState();
+		File file = new File(filePathAndName);
+		if (!file.isFile()) {
+			return state;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != FILE_MAGIC) {
+				return state;
+			}
+			// Version 1 had no dirty directories.
+			int version = in.readInt();
+			if ((version != 1) && (version != FILE_VERSION)) {
+				return state;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String fileName = in.readUTF();
+				Version version1 = new Version(in.readLong(), in.readLong());
+				Version version2 = new Version(in.readLong(), in.readLong());
+				state.entries.put(fileName, new Entry(version1, version2));
+			}
+			if (version == FILE_VERSION) {
+				count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					state.dirtyDirectories.add(in.readUTF());
+				}
+			}
+			return state;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the state to a file. The file is replaced only once the new state
+	 * has been written in full, so an interrupted save keeps the old state.
+	 *
+	 * @param filePathAndName
+	 * @throws IOException
+	 */
+	public void save(String filePathAndName) throws IOException {
+		File file = new File(filePathAndName);
+		File temporaryFile = new File(filePathAndName + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temporaryFile)));
+		try {
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(FILE_VERSION);
+			out.writeInt(entries.size());
+			for (String fileName : entries.keySet()) {
+				Entry entry = entries.get(fileName);
+				out.writeUTF(fileName);
+				out.writeLong(entry.version1.size);
+				out.writeLong(entry.version1.lastModified);
+				out.writeLong(entry.version2.size);
+				out.writeLong(entry.version2.lastModified);
+			}
+			out.writeInt(dirtyDirectories.size());
+			for (String relativeDirectory : dirtyDirectories) {
+				out.writeUTF(relativeDirectory);
+			}
+		} finally {
+			out.close();
+		}
+		file.delete();
+		if (!temporaryFile.renameTo(file)) {
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+
+	/**
+	 * @param fileName
+	 *            The name of the file relative to both directories.
+	 * @return The file as it was on both sides after the last sync, or null if
+	 *         it was not on both sides.
+	 */
+	public Entry get(String fileName) {
+		return entries.get(fileName);
+	}
+
+	/**
+	 * Record a file as being the same on both sides.
+	 *
+	 * @param fileName
+	 * @param version1
+	 *            The file in directory 1.
+	 * @param version2
+	 *            The file in directory 2.
+	 */
+	public void put(String fileName, Version version1, Version version2) {
+		entries.put(fileName, new Entry(version1, version2));
+	}
+
+	/**
+	 * Forget a file that is no longer on either side.
+	 *
+	 * @param fileName
+	 */
+	public void remove(String fileName) {
+		entries.remove(fileName);
+	}
+
+	/**
+	 * @return The names of all recorded files, in sorted order.
+	 */
+	public Set<String> getFileNames() {
+		return entries.keySet();
+	}
+
+	/**
+	 * @param relativeDirectory
+	 *            A directory relative to both directories, or "" for the
+	 *            roots.
+	 * @return The names of the recorded files directly in the directory, in
+	 *         sorted order.
+	 */
+	public Collection<String> getFileNames(String relativeDirectory) {
+		ArrayList<String> fileNames = new ArrayList<String>();
+		if (relativeDirectory.length() == 0) {
+			for (String fileName : entries.keySet()) {
+				if (fileName.indexOf(File.separatorChar) < 0) {
+					fileNames.add(fileName);
+				}
+			}
+			return fileNames;
+		}
+		String prefix = relativeDirectory + File.separator;
+		for (String fileName : entries.subMap(prefix, prefix + Character.MAX_VALUE)
+				.keySet()) {
+			if (fileName.indexOf(File.separatorChar, prefix.length()) < 0) {
+				fileNames.add(fileName);
+			}
+		}
+		return fileNames;
+	}
+
+	/**
+	 * @return The directories to look at on the next sync whether or not
+	 *         they changed, relative to both directories.
+	 */
+	public Set<String> getDirtyDirectories() {
+		return dirtyDirectories;
+	}
+
+	/**
+	 * @param relativeDirectories
+	 *            The directories holding conflicts or files with steps,
+	 *            replacing those of the last sync.
+	 */
+	public void setDirtyDirectories(Collection<String> relativeDirectories) {
+		dirtyDirectories.clear();
+		dirtyDirectories.addAll(relativeDirectories);
+	}
+
+	/**
+	 * The size and modification time of a file on one side.
+	 */
+	public static class Version {
+
+		private final long size;
+
+		private final long lastModified;
+
+		public Version(long size, long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @param file
+		 * @return The version of the file as it is now, or null if it does not
+		 *         exist.
+		 */
+		public static Version of(File file) {
+			if (!file.isFile()) {
+				return null;
+			}
+			return new Version(file.length(), file.lastModified());
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof Version)) {
+				return false;
+			}
+			Version version = (Version) other;
+			return (size == version.size)
+					&& (lastModified == version.lastModified);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (size ^ (size >>> 32) ^ lastModified ^ (lastModified >>> 32));
+		}
+	}
+
+	/**
+	 * A file as it was on both sides after the last sync.
+	 */
+	public static class Entry {
+
+		private final Version version1;
+
+		private final Version version2;
+
+		Entry(Version version1, Version version2) {
+			this.version1 = version1;
+			this.version2 = version2;
+		}
+
+		/**
+		 * @return The file in directory 1.
+		 */
+		public Version getVersion1() {
+			return version1;
+		}
+
+		/**
+		 * @return The file in directory 2.
+		 */
+		public Version getVersion2() {
+			return version2;
+		}
+	}
+}
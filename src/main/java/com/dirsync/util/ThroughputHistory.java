@@ -0,0 +1,179 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Throughput measured for each device, kept as a moving average per label so
+ * that, for example, copy order policies can be compared on the same backup
+ * disk. The history is saved as a properties file.
+ */
+public class ThroughputHistory {
+
+	/**
+	 * The weight of the newest measurement in the moving average.
+	 */
+	private static final double WEIGHT = 0.3;
+
+	private final String filePathAndName;
+
+	private final Properties properties = new Properties();
+
+	/**
+	 * Load the history from a file. A missing file is an empty history.
+	 *
+	 * @param filePathAndName
+	 * @throws IOException
+	 */
+	public ThroughputHistory(String filePathAndName) throws IOException {
+		this.filePathAndName = filePathAndName;
+		File file = new File(filePathAndName);
+		if (file.isFile()) {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Identify the device that holds a directory. The directory does not
+	 * need to exist; its nearest existing parent is used.
+	 *
+	 * @param directory
+	 * @return The name of the file store, or the absolute path of the
+	 *         directory if the file store cannot be found.
+	 */
+	public static String getDevice(String directory) {
+		Path path = Paths.get(directory).toAbsolutePath();
+		while ((path != null) && !Files.exists(path)) {
+			path = path.getParent();
+		}
+		if (path != null) {
+			try {
+				FileStore store = Files.getFileStore(path);
+				return store.name();
+			} catch (IOException e) {
+				// Fall through to the path.
+			}
+		}
+		return new File(directory).getAbsolutePath();
+	}
+
+	/**
+	 * Add a measurement and save the history.
+	 *
+	 * @param device
+	 *            The device the work was done on, see getDevice.
+	 * @param label
+	 *            What was measured, for example a copy order policy name.
+	 * @param bytes
+	 *            The number of bytes processed.
+	 * @param files
+	 *            The number of files processed.
+	 * @param elapsedNanos
+	 *            How long the work took.
+	 * @throws IOException
+	 */
+	public synchronized void record(String device, String label, long bytes,
+			long files, long elapsedNanos) throws IOException {
+		if (elapsedNanos <= 0) {
+			return;
+		}
+		double seconds = elapsedNanos / 1e9;
+		update(device, label, "bytesPerSecond", bytes / seconds);
+		update(device, label, "filesPerSecond", files / seconds);
+		String samplesKey = key(device, label, "samples");
+		properties.setProperty(samplesKey,
+				String.valueOf(Long.parseLong(properties.getProperty(
+						samplesKey, "0")) + 1));
+		save();
+	}
+
+	/**
+	 * @param device
+	 * @param label
+	 * @return The average bytes per second, or -1 if nothing was recorded.
+	 */
+	public synchronized double getBytesPerSecond(String device, String label) {
+		return get(device, label, "bytesPerSecond");
+	}
+
+	/**
+	 * @param device
+	 * @param label
+	 * @return The average files per second, or -1 if nothing was recorded.
+	 */
+	public synchronized double getFilesPerSecond(String device, String label) {
+		return get(device, label, "filesPerSecond");
+	}
+
+	/**
+	 * @param device
+	 * @return The highest average bytes per second recorded for the device
+	 *         under any label, or -1 if nothing was recorded.
+	 */
+	public synchronized double getBestBytesPerSecond(String device) {
+		return getBest(device, "bytesPerSecond");
+	}
+
+	/**
+	 * @param device
+	 * @return The highest average files per second recorded for the device
+	 *         under any label, or -1 if nothing was recorded.
+	 */
+	public synchronized double getBestFilesPerSecond(String device) {
+		return getBest(device, "filesPerSecond");
+	}
+
+	private double getBest(String device, String measure) {
+		double best = -1;
+		String prefix = device + "|";
+		String suffix = "." + measure;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix) && key.endsWith(suffix)) {
+				best = Math.max(best,
+						Double.parseDouble(properties.getProperty(key)));
+			}
+		}
+		return best;
+	}
+
+	private void update(String device, String label, String measure,
+			double value) {
+		String key = key(device, label, measure);
+		String previous = properties.getProperty(key);
+		double average = (previous == null) ? value : WEIGHT * value
+				+ (1 - WEIGHT) * Double.parseDouble(previous);
+		properties.setProperty(key, String.valueOf(average));
+	}
+
+	private double get(String device, String label, String measure) {
+		String value = properties.getProperty(key(device, label, measure));
+		return (value == null) ? -1 : Double.parseDouble(value);
+	}
+
+	private static String key(String device, String label, String measure) {
+		return device + "|" + label + "." + measure;
+	}
+
+	private void save() throws IOException {
+		OutputStream out = new FileOutputStream(filePathAndName);
+		try {
+			properties.store(out, "Directory Synchronization throughput");
+		} finally {
+			out.close();
+		}
+	}
+}
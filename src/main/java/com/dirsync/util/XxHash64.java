@@ -0,0 +1,211 @@
+package com.dirsync.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 64 bit xxHash of Yann Collet, computed incrementally. Input is
+ * consumed in 32 byte stripes by four independent lanes, reading whole
+ * longs straight from the caller's buffer, so hashing a direct or mapped
+ * buffer allocates nothing. The hash is returned in the canonical big-endian
+ * byte order.
+ */
+public class XxHash64 implements Hasher {
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private static final int STRIPE = 32;
+
+	private final long seed;
+
+	private long lane1;
+
+	private long lane2;
+
+	private long lane3;
+
+	private long lane4;
+
+	private long total;
+
+	/**
+	 * Bytes waiting for a full stripe.
+	 */
+	private final byte[] pending = new byte[STRIPE];
+
+	private int pendingLength;
+
+	public XxHash64() {
+		this(0);
+	}
+
+	/**
+	 * @param seed
+	 */
+	public XxHash64(long seed) {
+		this.seed = seed;
+		reset();
+	}
+
+	private void reset() {
+		lane1 = seed + PRIME1 + PRIME2;
+		lane2 = seed + PRIME2;
+		lane3 = seed;
+		lane4 = seed - PRIME1;
+		total = 0;
+		pendingLength = 0;
+	}
+
+	public void update(ByteBuffer buffer) {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		total += limit - position;
+		if (pendingLength > 0) {
+			int take = Math.min(STRIPE - pendingLength, limit - position);
+			for (int i = 0; i < take; i++) {
+				pending[pendingLength++] = buffer.get(position++);
+			}
+			if (pendingLength < STRIPE) {
+				buffer.position(position);
+				return;
+			}
+			stripe(pending, 0);
+			pendingLength = 0;
+		}
+		boolean bigEndian = buffer.order() == ByteOrder.BIG_ENDIAN;
+		long v1 = lane1;
+		long v2 = lane2;
+		long v3 = lane3;
+		long v4 = lane4;
+		while (limit - position >= STRIPE) {
+			long k1 = buffer.getLong(position);
+			long k2 = buffer.getLong(position + 8);
+			long k3 = buffer.getLong(position + 16);
+			long k4 = buffer.getLong(position + 24);
+			if (bigEndian) {
+				k1 = Long.reverseBytes(k1);
+				k2 = Long.reverseBytes(k2);
+				k3 = Long.reverseBytes(k3);
+				k4 = Long.reverseBytes(k4);
+			}
+			v1 = round(v1, k1);
+			v2 = round(v2, k2);
+			v3 = round(v3, k3);
+			v4 = round(v4, k4);
+			position += STRIPE;
+		}
+		lane1 = v1;
+		lane2 = v2;
+		lane3 = v3;
+		lane4 = v4;
+		while (position < limit) {
+			pending[pendingLength++] = buffer.get(position++);
+		}
+		buffer.position(limit);
+	}
+
+	public void update(byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		total += length;
+		if (pendingLength > 0) {
+			int take = Math.min(STRIPE - pendingLength, length);
+			System.arraycopy(bytes, offset, pending, pendingLength, take);
+			pendingLength += take;
+			offset += take;
+			if (pendingLength < STRIPE) {
+				return;
+			}
+			stripe(pending, 0);
+			pendingLength = 0;
+		}
+		while (end - offset >= STRIPE) {
+			stripe(bytes, offset);
+			offset += STRIPE;
+		}
+		pendingLength = end - offset;
+		System.arraycopy(bytes, offset, pending, 0, pendingLength);
+	}
+
+	public byte[] digest() {
+		long hash;
+		if (total >= STRIPE) {
+			hash = Long.rotateLeft(lane1, 1) + Long.rotateLeft(lane2, 7)
+					+ Long.rotateLeft(lane3, 12) + Long.rotateLeft(lane4, 18);
+			hash = merge(hash, lane1);
+			hash = merge(hash, lane2);
+			hash = merge(hash, lane3);
+			hash = merge(hash, lane4);
+		} else {
+			hash = seed + PRIME5;
+		}
+		hash += total;
+		int i = 0;
+		for (; i + 8 <= pendingLength; i += 8) {
+			hash ^= round(0, littleEndianLong(pending, i));
+			hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+		}
+		if (i + 4 <= pendingLength) {
+			hash ^= (littleEndianInt(pending, i) & 0xFFFFFFFFL) * PRIME1;
+			hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < pendingLength; i++) {
+			hash ^= (pending[i] & 0xFF) * PRIME5;
+			hash = Long.rotateLeft(hash, 11) * PRIME1;
+		}
+		hash ^= hash >>> 33;
+		hash *= PRIME2;
+		hash ^= hash >>> 29;
+		hash *= PRIME3;
+		hash ^= hash >>> 32;
+		reset();
+		byte[] bytes = new byte[8];
+		for (int j = 7; j >= 0; j--) {
+			bytes[j] = (byte) hash;
+			hash >>>= 8;
+		}
+		return bytes;
+	}
+
+	private void stripe(byte[] bytes, int offset) {
+		lane1 = round(lane1, littleEndianLong(bytes, offset));
+		lane2 = round(lane2, littleEndianLong(bytes, offset + 8));
+		lane3 = round(lane3, littleEndianLong(bytes, offset + 16));
+		lane4 = round(lane4, littleEndianLong(bytes, offset + 24));
+	}
+
+	private static long round(long lane, long input) {
+		lane += input * PRIME2;
+		lane = Long.rotateLeft(lane, 31);
+		return lane * PRIME1;
+	}
+
+	private static long merge(long hash, long lane) {
+		hash ^= round(0, lane);
+		return hash * PRIME1 + PRIME4;
+	}
+
+	private static long littleEndianLong(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFFL) | ((bytes[offset + 1] & 0xFFL) << 8)
+				| ((bytes[offset + 2] & 0xFFL) << 16)
+				| ((bytes[offset + 3] & 0xFFL) << 24)
+				| ((bytes[offset + 4] & 0xFFL) << 32)
+				| ((bytes[offset + 5] & 0xFFL) << 40)
+				| ((bytes[offset + 6] & 0xFFL) << 48)
+				| ((bytes[offset + 7] & 0xFFL) << 56);
+	}
+
+	private static int littleEndianInt(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8)
+				| ((bytes[offset + 2] & 0xFF) << 16)
+				| ((bytes[offset + 3] & 0xFF) << 24);
+	}
+}
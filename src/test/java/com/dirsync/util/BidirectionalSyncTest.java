@@ -0,0 +1,84 @@
+package com.dirsync.util;
+
+import java.io.File;
+
+public class BidirectionalSyncTest extends DirectoryTestCase {
+
+	private String directory1;
+
+	private String directory2;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory1 = new File(root, "one").getPath();
+		directory2 = new File(root, "two").getPath();
+		write("one/a.txt", "alpha");
+		write("one/sub/b.txt", "beta");
+		write("two/sub/c.txt", "gamma");
+		write("two/other/d.txt", "delta");
+	}
+
+	private SyncPlan sync() throws Exception {
+		BidirectionalSync sync = new BidirectionalSync(new FileManager(),
+				directory1, directory2);
+		SyncPlan plan = sync.reconcile();
+		BatchResult result = sync.execute(plan);
+		assertTrue(result.getFailed().isEmpty());
+		return plan;
+	}
+
+	public void testCarriesChangesBothWays() throws Exception {
+		sync();
+		assertSameContents(new File(root, "one/a.txt"), new File(root,
+				"two/a.txt"));
+		assertSameContents(new File(root, "one/sub/b.txt"), new File(root,
+				"two/sub/b.txt"));
+		assertSameContents(new File(root, "two/sub/c.txt"), new File(root,
+				"one/sub/c.txt"));
+		assertSameContents(new File(root, "two/other/d.txt"), new File(root,
+				"one/other/d.txt"));
+
+		assertEquals(0, sync().getOperations().size());
+
+		write("one/sub/b.txt", "beta, longer");
+		new File(root, "two/other/d.txt").delete();
+		write("two/other/new/e.txt", "epsilon");
+		SyncPlan plan = sync();
+		assertEquals(1, plan.getCount(SyncOperation.Type.UPDATE));
+		assertEquals(1, plan.getCount(SyncOperation.Type.DELETE));
+		assertEquals(1, plan.getCount(SyncOperation.Type.COPY));
+		assertSameContents(new File(root, "one/sub/b.txt"), new File(root,
+				"two/sub/b.txt"));
+		assertFalse(new File(root, "one/other/d.txt").exists());
+		assertSameContents(new File(root, "two/other/new/e.txt"), new File(
+				root, "one/other/new/e.txt"));
+	}
+
+	public void testRemovedSubtreeIsDeletedOnTheOtherSide() throws Exception {
+		sync();
+		new File(root, "one/other/d.txt").delete();
+		new File(root, "one/other").delete();
+		SyncPlan plan = sync();
+		assertEquals(1, plan.getCount(SyncOperation.Type.DELETE));
+		assertFalse(new File(root, "two/other/d.txt").exists());
+	}
+
+	/**
+	 * A conflict leaves neither side changed, but it is reported again until
+	 * it is resolved.
+	 */
+	public void testConflictIsReportedAgain() throws Exception {
+		sync();
+		write("one/sub/c.txt", "gamma on one");
+		write("two/sub/c.txt", "gamma on two, longer");
+		assertEquals(1, sync().getConflicts().size());
+		assertEquals(1, sync().getConflicts().size());
+
+		write("two/sub/c.txt", "gamma on one");
+		SyncPlan plan = sync();
+		assertTrue(plan.getConflicts().isEmpty());
+		assertEquals(0, plan.getOperations().size());
+		assertEquals(0, sync().getConflicts().size());
+	}
+}
@@ -0,0 +1,54 @@
+package com.dirsync.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BkTreeTest extends TestCase {
+
+	/**
+	 * A search finds exactly the hashes a scan of every hash finds.
+	 */
+	public void testSearchMatchesLinearScan() {
+		Random random = new Random(42);
+		long[] hashes = new long[2000];
+		BkTree tree = new BkTree();
+		for (int i = 0; i < hashes.length; i++) {
+			// Clusters of near hashes, as alike images give.
+			hashes[i] = (i % 10 == 0) ? random.nextLong() : hashes[i - i % 10]
+					^ (1L << random.nextInt(64)) ^ (1L << random.nextInt(64));
+			tree.add(hashes[i], "image" + i);
+		}
+		assertEquals(hashes.length, tree.size());
+		for (int query = 0; query < 50; query++) {
+			long hash = hashes[random.nextInt(hashes.length)]
+					^ (1L << random.nextInt(64));
+			for (int maxDistance : new int[] { 0, 3, 10 }) {
+				ArrayList<String> expected = new ArrayList<String>();
+				for (int i = 0; i < hashes.length; i++) {
+					if (PerceptualHash.distance(hash, hashes[i]) <= maxDistance) {
+						expected.add("image" + i);
+					}
+				}
+				ArrayList<String> found = tree.search(hash, maxDistance);
+				Collections.sort(expected);
+				Collections.sort(found);
+				assertEquals(expected, found);
+			}
+		}
+	}
+
+	public void testEqualHashesShareANode() {
+		BkTree tree = new BkTree();
+		assertTrue(tree.search(0, 64).isEmpty());
+		tree.add(7, "a");
+		tree.add(7, "b");
+		tree.add(~7L, "c");
+		ArrayList<String> found = tree.search(7, 0);
+		Collections.sort(found);
+		assertEquals("[a, b]", found.toString());
+		assertEquals(3, tree.search(0, 64).size());
+	}
+}
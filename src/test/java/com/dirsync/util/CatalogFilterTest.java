@@ -0,0 +1,58 @@
+package com.dirsync.util;
+
+import junit.framework.TestCase;
+
+public class CatalogFilterTest extends TestCase {
+
+	public void testParse() {
+		CatalogFilter filter = CatalogFilter
+				.parse("exclude .git\n# a comment\r\n\ninclude *.jpg; "
+						+ "exclude-regex .*[.]bak.jpg;min-size 1K\nmax-size 4G");
+		assertTrue(filter.needsAttributes());
+		assertTrue(filter.acceptDirectory("photos"));
+		assertFalse(filter.acceptDirectory("photos/.git"));
+		assertTrue(filter.acceptFile("photos/a.jpg", 1024, 0));
+		assertFalse(filter.acceptFile("photos/a.jpg", 1023, 0));
+		assertFalse(filter.acceptFile("photos/a.jpg", 4L * 1024 * 1024 * 1024
+				+ 1, 0));
+		assertFalse(filter.acceptFile("photos/a.txt", 1024, 0));
+		assertFalse(filter.acceptFile("photos/a.bak.jpg", 1024, 0));
+		assertFalse(filter.acceptPath("photos/.git/a.jpg", 1024, 0));
+	}
+
+	/**
+	 * The text form of a filter parses to a filter with the same text.
+	 */
+	public void testToStringRoundTrips() {
+		CatalogFilter filter = CatalogFilter
+				.parse("exclude build/*;include-regex .*x;"
+						+ "modified-after 1420000000000;"
+						+ "modified-before 1420070400000");
+		CatalogFilter parsed = CatalogFilter.parse(filter.toString());
+		assertEquals(filter.toString(), parsed.toString());
+		assertFalse(parsed.acceptDirectory("build/classes"));
+		assertTrue(parsed.acceptDirectory("src/build"));
+		assertTrue(parsed.acceptFile("src/x", 0, 1420070300000L));
+		assertFalse(parsed.acceptFile("src/x", 0, 1420070400000L));
+		assertFalse(parsed.acceptFile("src/x", 0, 1420000000000L));
+		assertFalse(parsed.acceptFile("src/y", 0, 1420070300000L));
+	}
+
+	public void testEmpty() {
+		assertTrue(CatalogFilter.parse(null).isEmpty());
+		assertTrue(CatalogFilter.parse(" ; # nothing\n").isEmpty());
+		assertEquals("", new CatalogFilter().toString());
+	}
+
+	public void testBadRules() {
+		String[] rules = { "exclude", "skip *.tmp", "min-size lots",
+				"exclude-regex [" };
+		for (String rule : rules) {
+			try {
+				CatalogFilter.parse(rule);
+				fail(rule);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.ArrayList;
+
+public class CatalogStoreTest extends DirectoryTestCase {
+
+	private String tree;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		tree = new File(root, "tree").getPath();
+		write("tree/a.txt", "alpha");
+		write("tree/b/long.txt", "a longer file");
+		write("tree/b/.long.txt.dirsync-copy", "not committed");
+		write("loose.txt", "packed");
+		PackArchive packArchive = new PackArchive(tree + File.separator + "p");
+		try {
+			packArchive.add("inner.txt", new File(root, "loose.txt").getPath());
+		} finally {
+			packArchive.close();
+		}
+	}
+
+	public void testSnapshotListsFilesAndPackedEntries() throws Exception {
+		FileManager fileManager = new FileManager();
+		CatalogStore snapshot = fileManager.snapshotDirectory(tree, true);
+		try {
+			assertEquals(CatalogStore.Order.NAME, snapshot.getOrder());
+			assertEquals(3, snapshot.size());
+			String packed = "p" + File.separator + "inner.txt";
+			int index = snapshot.find(packed);
+			assertTrue(index >= 0);
+			assertTrue(snapshot.isPacked(index));
+			assertEquals(6, snapshot.getSize(index));
+			index = snapshot.find("b" + File.separator + "long.txt");
+			assertFalse(snapshot.isPacked(index));
+			assertEquals(13, snapshot.getSize(index));
+			assertEquals(-1, snapshot.find("b" + File.separator
+					+ ".long.txt.dirsync-copy"));
+
+			snapshot.sort(CatalogStore.Order.SIZE);
+			assertEquals("a.txt", snapshot.getName(0));
+			assertEquals(packed, snapshot.getName(1));
+		} finally {
+			snapshot.close();
+			fileManager.closePackArchives();
+		}
+
+		CatalogStore saved = fileManager.getDirectorySnapshot(tree);
+		try {
+			assertEquals(CatalogStore.Order.SIZE, saved.getOrder());
+			assertEquals(3, saved.size());
+		} finally {
+			saved.close();
+		}
+	}
+
+	public void testCompare() throws Exception {
+		FileManager fileManager = new FileManager();
+		CatalogStore older = fileManager.snapshotDirectory(tree, true);
+		older.close();
+		fileManager.closePackArchives();
+		new File(tree, "a.txt").delete();
+		write("tree/c.txt", "new");
+		older = fileManager.getDirectorySnapshot(tree);
+		CatalogStore newer = CatalogStore.build(fileManager, tree, true,
+				new File(root, "newer.catalog").getPath());
+		try {
+			ArrayList<String> added = new ArrayList<String>();
+			ArrayList<String> removed = new ArrayList<String>();
+			ArrayList<String> changed = new ArrayList<String>();
+			CatalogStore.compare(older, newer, added, removed, changed);
+			assertEquals("[c.txt]", added.toString());
+			assertEquals("[a.txt]", removed.toString());
+			assertTrue(changed.isEmpty());
+		} finally {
+			older.close();
+			newer.close();
+			fileManager.closePackArchives();
+		}
+	}
+
+	public void testFindDuplicatesSkipsPackedEntries() throws Exception {
+		write("tree/c/packed copy.txt", "packed");
+		write("tree/c/alpha copy.txt", "alpha");
+		write("tree/c/other.txt", "other");
+		FileManager fileManager = new FileManager();
+		try {
+			ArrayList<ArrayList<String>> duplicates = fileManager
+					.findDuplicates(tree, true);
+			assertEquals(1, duplicates.size());
+			ArrayList<String> group = duplicates.get(0);
+			assertEquals(2, group.size());
+			assertTrue(group.contains("a.txt"));
+			assertTrue(group.contains("c" + File.separator + "alpha copy.txt"));
+		} finally {
+			fileManager.closePackArchives();
+		}
+	}
+
+	public void testFindDuplicatesKeepsSnapshot() throws Exception {
+		FileManager fileManager = new FileManager();
+		CatalogStore snapshot = fileManager.snapshotDirectory(tree, true);
+		int size = snapshot.size();
+		snapshot.close();
+		write("tree/d.txt", "new");
+		try {
+			fileManager.findDuplicates(tree, true);
+			snapshot = fileManager.getDirectorySnapshot(tree);
+			try {
+				assertEquals(size, snapshot.size());
+				assertTrue(snapshot.find("d.txt") < 0);
+			} finally {
+				snapshot.close();
+			}
+		} finally {
+			fileManager.closePackArchives();
+		}
+	}
+}
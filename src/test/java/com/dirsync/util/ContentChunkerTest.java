@@ -0,0 +1,105 @@
+package com.dirsync.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ContentChunkerTest extends TestCase {
+
+	private final ContentChunker chunker = new ContentChunker(256, 1024, 4096);
+
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(7).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * @return The chunks split reads from the data, checking that they cover
+	 *         it in order.
+	 */
+	private ArrayList<String> split(final byte[] data) throws IOException {
+		final ArrayList<String> chunks = new ArrayList<String>();
+		final int[] position = { 0 };
+		// A stream that returns few bytes per read, as a slow device does.
+		InputStream in = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] b, int off, int len) {
+				return super.read(b, off, Math.min(len, 777));
+			}
+		};
+		long total = chunker.split(Channels.newChannel(in), new IoRateLimiter(),
+				new ContentChunker.ChunkHandler() {
+					public void chunk(byte[] chunk, int offset, int length) {
+						assertTrue(Arrays.equals(Arrays.copyOfRange(data,
+								position[0], position[0] + length), Arrays
+								.copyOfRange(chunk, offset, offset + length)));
+						position[0] += length;
+						chunks.add(Arrays.toString(Arrays.copyOfRange(chunk,
+								offset, offset + length)));
+					}
+				});
+		assertEquals(data.length, total);
+		assertEquals(data.length, position[0]);
+		return chunks;
+	}
+
+	public void testChunkSizes() throws IOException {
+		byte[] data = randomData(200 * 1024);
+		ArrayList<String> chunks = split(data);
+		assertTrue(chunks.size() > 100);
+		for (int i = 0; i < chunks.size(); i++) {
+			int length = chunks.get(i).split(",").length;
+			assertTrue(length <= 4096);
+			assertTrue(length >= 256 || i == chunks.size() - 1);
+		}
+		// Bytes that never hash to a boundary are cut at the maximum.
+		ArrayList<String> zeros = split(new byte[10000]);
+		assertEquals(3, zeros.size());
+		assertEquals(0, split(new byte[0]).size());
+	}
+
+	/**
+	 * Inserting bytes changes only the chunks around the insertion.
+	 */
+	public void testBoundariesSurviveAnInsertion() throws IOException {
+		byte[] data = randomData(200 * 1024);
+		int at = 100 * 1024 + 17;
+		byte[] edited = new byte[data.length + 10];
+		System.arraycopy(data, 0, edited, 0, at);
+		Arrays.fill(edited, at, at + 10, (byte) 'x');
+		System.arraycopy(data, at, edited, at + 10, data.length - at);
+
+		ArrayList<String> before = split(data);
+		ArrayList<String> after = split(edited);
+		HashSet<String> unchanged = new HashSet<String>(before);
+		int changed = 0;
+		for (String chunk : after) {
+			if (!unchanged.contains(chunk)) {
+				changed++;
+			}
+		}
+		assertTrue(changed >= 1);
+		assertTrue(changed <= 3);
+		assertTrue(Math.abs(after.size() - before.size()) <= 2);
+	}
+
+	public void testBadSizes() {
+		int[][] sizes = { { 0, 1024, 4096 }, { 1024, 1024, 4096 },
+				{ 256, 1000, 4096 }, { 256, 4096, 4096 } };
+		for (int[] size : sizes) {
+			try {
+				new ContentChunker(size[0], size[1], size[2]);
+				fail(Arrays.toString(size));
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+}
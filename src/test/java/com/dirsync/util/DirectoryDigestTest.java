@@ -0,0 +1,120 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DirectoryDigestTest extends DirectoryTestCase {
+
+	/**
+	 * Identical subtrees have equal digests and a file that differs only in
+	 * content is found through the digests of its parents.
+	 */
+	public void testContentDigestsFindDifferingFile() throws Exception {
+		write("one/same/deep/a.txt", "alpha");
+		write("one/same/b.txt", "bravo");
+		write("one/changed/c.txt", "charlie");
+		write("two/same/deep/a.txt", "alpha");
+		write("two/same/b.txt", "bravo");
+		write("two/changed/c.txt", "CHARLIE");
+		String one = new File(root, "one").getPath();
+		String two = new File(root, "two").getPath();
+		FileManager fileManager = new FileManager();
+		DirectoryDigest digest1 = fileManager.digestDirectory(one,
+				DirectoryDigest.Mode.CONTENT);
+		DirectoryDigest digest2 = fileManager.digestDirectory(two,
+				DirectoryDigest.Mode.CONTENT);
+
+		assertTrue(Arrays.equals(digest1.getDigest("same"),
+				digest2.getDigest("same")));
+		assertTrue(Arrays.equals(
+				digest1.getDigest("same" + File.separator + "deep"),
+				digest2.getDigest("same" + File.separator + "deep")));
+		assertFalse(Arrays.equals(digest1.getDigest("changed"),
+				digest2.getDigest("changed")));
+		assertFalse(Arrays.equals(digest1.getDigest(""), digest2.getDigest("")));
+
+		List<String> changed = new ArrayList<String>();
+		assertTrue(DirectoryDigest.changedDirectories(digest1, digest2,
+				changed));
+		assertTrue(changed.contains("changed"));
+		assertFalse(changed.contains("same"));
+		assertFalse(changed.contains("same" + File.separator + "deep"));
+	}
+
+	/**
+	 * Compare lists only the directories whose digests differ: a file
+	 * removed from a subtree after it was digested is not seen, which shows
+	 * the subtree was skipped, while a file in a differing directory is
+	 * found.
+	 */
+	public void testCompareSkipsIdenticalSubtree() throws Exception {
+		write("one/same/a.txt", "alpha");
+		write("one/changed/b.txt", "bravo");
+		write("two/same/a.txt", "alpha");
+		write("two/changed/b.txt", "bravo");
+		write("two/changed/c.txt", "charlie");
+		String one = new File(root, "one").getPath();
+		String two = new File(root, "two").getPath();
+		FileManager fileManager = new FileManager();
+		DirectoryDigest digest1 = fileManager.digestDirectory(one,
+				DirectoryDigest.Mode.NAMES_AND_SIZES);
+		DirectoryDigest digest2 = fileManager.digestDirectory(two,
+				DirectoryDigest.Mode.NAMES_AND_SIZES);
+		assertTrue(new File(two, "same" + File.separator + "a.txt").delete());
+		List<String> onlyIn1 = new ArrayList<String>();
+		List<String> onlyIn2 = new ArrayList<String>();
+		DirectoryDigest.compare(one, digest1, two, digest2, onlyIn1, onlyIn2,
+				null);
+		assertTrue(onlyIn1.isEmpty());
+		assertEquals(Arrays.asList("changed" + File.separator + "c.txt"),
+				onlyIn2);
+	}
+
+	/**
+	 * Contents are hashed through the FileManager's hash cache, so a hash
+	 * already cached for an unchanged file is used without reading it.
+	 */
+	public void testContentDigestsUseHashCache() throws Exception {
+		File a = write("one/a.txt", "alpha");
+		File b = write("two/a.txt", "ALPHA");
+		b.setLastModified(a.lastModified());
+		FileManager fileManager = new FileManager();
+		byte[] hash = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+		fileManager.getHashCache().put(a, hash);
+		fileManager.getHashCache().put(b, hash);
+		DirectoryDigest digest1 = fileManager.digestDirectory(a.getParent(),
+				DirectoryDigest.Mode.CONTENT);
+		DirectoryDigest digest2 = fileManager.digestDirectory(b.getParent(),
+				DirectoryDigest.Mode.CONTENT);
+		assertTrue(Arrays.equals(digest1.getDigest(""), digest2.getDigest("")));
+	}
+
+	/**
+	 * Unless directory times are trusted, a file rewritten in place is seen
+	 * even though its directory's time has not changed.
+	 */
+	public void testDirectoryTimesNotTrustedByDefault() throws Exception {
+		File file = write("tree/sub/a.txt", "alpha");
+		File directory = file.getParentFile();
+		long time = directory.lastModified();
+		String tree = new File(root, "tree").getPath();
+		FileManager fileManager = new FileManager();
+		assertFalse(fileManager.isTrustDirectoryTimes());
+		byte[] before = fileManager.digestDirectory(tree,
+				DirectoryDigest.Mode.NAMES_AND_SIZES).getDigest("sub");
+		write("tree/sub/a.txt", "alphabet");
+		directory.setLastModified(time);
+		byte[] after = fileManager.digestDirectory(tree,
+				DirectoryDigest.Mode.NAMES_AND_SIZES).getDigest("sub");
+		assertFalse(Arrays.equals(before, after));
+
+		fileManager.setTrustDirectoryTimes(true);
+		write("tree/sub/a.txt", "alpha");
+		directory.setLastModified(time);
+		byte[] trusted = fileManager.digestDirectory(tree,
+				DirectoryDigest.Mode.NAMES_AND_SIZES).getDigest("sub");
+		assertTrue(Arrays.equals(after, trusted));
+	}
+}
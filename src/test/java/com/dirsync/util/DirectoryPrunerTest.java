@@ -0,0 +1,53 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class DirectoryPrunerTest extends DirectoryTestCase {
+
+	private File mkdirs(String name) {
+		File directory = new File(root, name);
+		assertTrue(directory.mkdirs());
+		return directory;
+	}
+
+	/**
+	 * A parent shared by two touched directories is removed once the second
+	 * is, although the first left it holding the second.
+	 */
+	public void testSiblingsUnderOneParent() throws Exception {
+		File c = mkdirs("tree/a/b/c");
+		File d = mkdirs("tree/a/b/d");
+		write("tree/keep.txt", "keep");
+		assertEquals(4, DirectoryPruner.pruneUpward(new File(root, "tree"),
+				Arrays.asList(c, d)));
+		assertFalse(new File(root, "tree/a").exists());
+		assertTrue(new File(root, "tree/keep.txt").isFile());
+	}
+
+	public void testStopsAtFilesAndRoot() throws Exception {
+		File c = mkdirs("tree/a/b/c");
+		write("tree/a/file.txt", "keep");
+		File x = mkdirs("tree/x");
+		File outside = mkdirs("outside");
+		assertEquals(3, DirectoryPruner.pruneUpward(new File(root, "tree"),
+				Arrays.asList(c, x, outside, new File(root, "tree/missing"))));
+		assertTrue(new File(root, "tree/a/file.txt").isFile());
+		assertFalse(new File(root, "tree/a/b").exists());
+		assertTrue(new File(root, "tree").isDirectory());
+		assertTrue(outside.isDirectory());
+	}
+
+	public void testPruneTree() throws Exception {
+		mkdirs("tree/a/b/c");
+		mkdirs("tree/a/d");
+		mkdirs("tree/e/f");
+		write("tree/e/g.txt", "keep");
+		assertEquals(5, DirectoryPruner.pruneTree(new File(root, "tree"),
+				false));
+		assertEquals(Arrays.asList("e"), Arrays.asList(new File(root, "tree")
+				.list()));
+		assertEquals(Arrays.asList("g.txt"), Arrays.asList(new File(root,
+				"tree/e").list()));
+	}
+}
@@ -0,0 +1,63 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Gives each test a scratch directory, and a home directory of its own so
+ * FileManager state is not written to the real one.
+ */
+public abstract class DirectoryTestCase extends TestCase {
+
+	protected File root;
+
+	private String userHome;
+
+	@Override
+	protected void setUp() throws Exception {
+		root = Files.createTempDirectory("dirsync-test").toFile()
+				.getCanonicalFile();
+		userHome = System.getProperty("user.home");
+		System.setProperty("user.home", new File(root, "home").getPath());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		System.setProperty("user.home", userHome);
+		FileUtils.deleteDirectory(root);
+	}
+
+	/**
+	 * Write a file under the scratch directory, creating its parents.
+	 */
+	protected File write(String name, byte[] data) throws IOException {
+		File file = new File(root, name);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	protected File write(String name, String text) throws IOException {
+		return write(name, text.getBytes("UTF-8"));
+	}
+
+	protected static void assertSameContents(File expected, File actual)
+			throws IOException {
+		assertTrue(actual + " is missing", actual.isFile());
+		assertTrue(actual + " differs from " + expected, Arrays.equals(
+				FileUtils.readFileToByteArray(expected),
+				FileUtils.readFileToByteArray(actual)));
+	}
+}
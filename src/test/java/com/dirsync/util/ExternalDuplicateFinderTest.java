@@ -0,0 +1,109 @@
+package com.dirsync.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+
+public class ExternalDuplicateFinderTest extends DirectoryTestCase {
+
+	/**
+	 * Gives every file the same hash, so only the byte comparison tells
+	 * files apart.
+	 */
+	private static final HashAlgorithm COLLIDING = new HashAlgorithm() {
+
+		public String getName() {
+			return "COLLIDING";
+		}
+
+		public int getLength() {
+			return 8;
+		}
+
+		public Hasher newHasher() {
+			return new Hasher() {
+
+				public void update(ByteBuffer buffer) {
+					buffer.position(buffer.limit());
+				}
+
+				public void update(byte[] bytes, int offset, int length) {
+				}
+
+				public byte[] digest() {
+					return new byte[8];
+				}
+			};
+		}
+	};
+
+	public void testFindsDuplicates() throws Exception {
+		createTree();
+		ArrayList<String> pairs = find(new FileManager(), true);
+		assertEquals(2, pairs.size());
+		assertTrue(pairs.contains("a.txt=b" + File.separator + "a copy.txt")
+				|| pairs.contains("b" + File.separator + "a copy.txt=a.txt"));
+	}
+
+	public void testConfirmsCollidingHashes() throws Exception {
+		createTree();
+		FileManager fileManager = new FileManager();
+		fileManager.setHashAlgorithm(COLLIDING);
+		ArrayList<String> pairs = find(fileManager, true);
+		assertEquals(2, pairs.size());
+		for (String pair : pairs) {
+			String[] names = pair.split("=");
+			assertSameContents(new File(root, "tree/" + names[0]), new File(
+					root, "tree/" + names[1]));
+		}
+	}
+
+	public void testUnconfirmedMatchesAreProbable() throws Exception {
+		createTree();
+		FileManager fileManager = new FileManager();
+		fileManager.setHashAlgorithm(COLLIDING);
+		// The four files of five bytes all appear to match the first.
+		assertEquals(3, find(fileManager, false).size());
+	}
+
+	public void testUtfLengthMatchesWriteUtf() throws IOException {
+		for (String text : new String[] { "", "plain.txt", "café",
+				"日本", "nul\u0000char" }) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			new DataOutputStream(bytes).writeUTF(text);
+			assertEquals(text, bytes.size() - 2,
+					ExternalDuplicateFinder.getUtfLength(text));
+		}
+	}
+
+	private void createTree() throws IOException {
+		write("tree/a.txt", "aaaaa");
+		write("tree/b/a copy.txt", "aaaaa");
+		write("tree/c.txt", "ccccc");
+		write("tree/b/c copy.txt", "ccccc");
+		write("tree/unique.txt", "a longer file");
+	}
+
+	private ArrayList<String> find(FileManager fileManager, boolean confirm)
+			throws IOException {
+		// Two records in memory forces the sorts to merge runs from disk.
+		ExternalDuplicateFinder finder = new ExternalDuplicateFinder(
+				fileManager, 2, root);
+		finder.setConfirm(confirm);
+		final ArrayList<String> pairs = new ArrayList<String>();
+		long found = finder.find(new File(root, "tree").getPath(), true,
+				new ExternalDuplicateFinder.PairHandler() {
+
+					public void duplicate(String original, String duplicate) {
+						pairs.add(original + "=" + duplicate);
+					}
+				});
+		assertEquals(pairs.size(), found);
+		Collections.sort(pairs);
+		return pairs;
+	}
+}
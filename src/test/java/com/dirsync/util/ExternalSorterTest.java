@@ -0,0 +1,46 @@
+package com.dirsync.util;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class ExternalSorterTest extends DirectoryTestCase {
+
+	public void testMergesRunsInOrder() throws Exception {
+		ExternalSorter sorter = new ExternalSorter(8, 100, root);
+		Random random = new Random(1);
+		int count = 1000;
+		for (int i = 0; i < count; i++) {
+			// Non-negative keys with repeats, so equal keys sort by id.
+			sorter.add(ByteBuffer.allocate(8).putLong(random.nextInt(50))
+					.array(), count - i);
+		}
+		ExternalSorter.Reader reader = sorter.sorted();
+		try {
+			long previousKey = -1;
+			long previousId = -1;
+			int read = 0;
+			while (reader.next()) {
+				long key = ByteBuffer.wrap(reader.getKey()).getLong();
+				assertTrue(key >= previousKey);
+				if (key == previousKey) {
+					assertTrue(reader.getId() > previousId);
+				}
+				previousKey = key;
+				previousId = reader.getId();
+				read++;
+			}
+			assertEquals(count, read);
+		} finally {
+			reader.close();
+			sorter.close();
+		}
+	}
+
+	public void testEmpty() throws Exception {
+		ExternalSorter sorter = new ExternalSorter(4, 10, root);
+		ExternalSorter.Reader reader = sorter.sorted();
+		assertFalse(reader.next());
+		reader.close();
+		sorter.close();
+	}
+}
@@ -0,0 +1,149 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+public class FanOutCopierTest extends DirectoryTestCase {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	private List<String> fileNames;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		fileNames = new ArrayList<String>();
+		int[] sizes = { 0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, 3 * BLOCK_SIZE + 5 };
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] data = new byte[sizes[i]];
+			for (int j = 0; j < data.length; j++) {
+				data[j] = (byte) (i + j * 7);
+			}
+			String fileName = "file" + i + ".dat";
+			write("from/" + fileName, data);
+			fileNames.add(fileName);
+		}
+	}
+
+	private List<String> createDestinations(int count) {
+		ArrayList<String> toDirectories = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			File toDirectory = new File(root, "to" + i);
+			toDirectory.mkdirs();
+			toDirectories.add(toDirectory.getPath());
+		}
+		return toDirectories;
+	}
+
+	private void assertCopied(String toDirectory) throws Exception {
+		for (String fileName : fileNames) {
+			File from = new File(root, "from/" + fileName);
+			File to = new File(toDirectory, fileName);
+			assertSameContents(from, to);
+			assertEquals(from.lastModified(), to.lastModified());
+		}
+	}
+
+	/**
+	 * Writers share a pool smaller than the number of blocks, so buffers
+	 * must come back to it for the copy to finish.
+	 */
+	public void testCopiesToEveryDestination() throws Exception {
+		for (boolean verify : new boolean[] { false, true }) {
+			FanOutCopier copier = new FanOutCopier(2, BLOCK_SIZE);
+			copier.setVerify(verify);
+			List<String> toDirectories = createDestinations(3);
+			LinkedHashMap<String, BatchResult> results = copier.copyFiles(
+					new File(root, "from").getPath(), toDirectories, fileNames);
+			assertEquals(toDirectories, new ArrayList<String>(results.keySet()));
+			for (String toDirectory : toDirectories) {
+				BatchResult result = results.get(toDirectory);
+				assertTrue(result.getFailed().isEmpty());
+				assertEquals(fileNames.size(), result.getSucceeded().size());
+				assertCopied(toDirectory);
+			}
+		}
+	}
+
+	public void testFailureStaysAtItsDestination() throws Exception {
+		List<String> toDirectories = createDestinations(2);
+		// A directory in the way of one copy fails it at that destination.
+		new File(toDirectories.get(1), fileNames.get(4)).mkdirs();
+		ArrayList<String> names = new ArrayList<String>(fileNames);
+		names.add(2, "missing.dat");
+		LinkedHashMap<String, BatchResult> results = new FanOutCopier(1,
+				BLOCK_SIZE).copyFiles(new File(root, "from").getPath(),
+				toDirectories, names);
+
+		BatchResult first = results.get(toDirectories.get(0));
+		assertEquals(Arrays.asList("missing.dat"), new ArrayList<String>(
+				first.getFailed().keySet()));
+		assertCopied(toDirectories.get(0));
+		BatchResult second = results.get(toDirectories.get(1));
+		assertEquals(Arrays.asList("missing.dat", fileNames.get(4)),
+				new ArrayList<String>(second.getFailed().keySet()));
+		assertEquals(fileNames.size() - 1, second.getSucceeded().size());
+	}
+
+	/**
+	 * A destination whose writes fail partway through a file, with an
+	 * unchecked exception, loses that file only. The pool holds one buffer,
+	 * so a writer that kept its block would stall the whole copy.
+	 */
+	public void testDestinationFailsMidFile() throws Exception {
+		final List<String> toDirectories = createDestinations(2);
+		final FanOutCopier copier = new FanOutCopier(1, BLOCK_SIZE) {
+			@Override
+			int writeCopy(String toDirectory, FileChannel channel,
+					ByteBuffer data) throws IOException {
+				if (toDirectory.equals(toDirectories.get(1))
+						&& channel.position() > 0) {
+					throw new IllegalStateException("Device went away");
+				}
+				return super.writeCopy(toDirectory, channel, data);
+			}
+		};
+		final List<LinkedHashMap<String, BatchResult>> results = Collections
+				.synchronizedList(new ArrayList<LinkedHashMap<String, BatchResult>>());
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				results.add(copier.copyFiles(new File(root, "from").getPath(),
+						toDirectories, fileNames));
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		thread.join(30000);
+		assertFalse("The copy stalled", thread.isAlive());
+
+		assertTrue(results.get(0).get(toDirectories.get(0)).getFailed()
+				.isEmpty());
+		assertCopied(toDirectories.get(0));
+		BatchResult failed = results.get(0).get(toDirectories.get(1));
+		// Only the file of several blocks is written past its start.
+		assertEquals(Arrays.asList(fileNames.get(4)), new ArrayList<String>(
+				failed.getFailed().keySet()));
+		assertEquals(fileNames.size() - 1, failed.getSucceeded().size());
+		// Neither the copy nor its temporary file is left behind.
+		assertEquals(fileNames.size() - 1,
+				new File(toDirectories.get(1)).list().length);
+	}
+
+	public void testPipelinedCopy() throws Exception {
+		PipelinedCopier copier = new PipelinedCopier(2, BLOCK_SIZE);
+		copier.setVerify(true);
+		String toDirectory = createDestinations(1).get(0);
+		BatchResult result = copier.copyFiles(new File(root, "from")
+				.getPath(), toDirectory, fileNames);
+		assertTrue(result.getFailed().isEmpty());
+		assertCopied(toDirectory);
+	}
+}
@@ -0,0 +1,279 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+
+public class FileManagerTest extends DirectoryTestCase {
+
+	/**
+	 * A directory the FileManager created and then pruned, or that someone
+	 * else removed, is created again by the next copy into it.
+	 */
+	public void testCopyIntoRemovedDirectory() throws Exception {
+		write("from/a/b/one.txt", "one");
+		write("from/a/b/two.txt", "two");
+		String from = new File(root, "from").getPath();
+		String to = new File(root, "to").getPath();
+		String one = "a" + File.separator + "b" + File.separator + "one.txt";
+		String two = "a" + File.separator + "b" + File.separator + "two.txt";
+		FileManager fileManager = new FileManager();
+		fileManager.createDirectories(to, Arrays.asList(one, two));
+		assertEquals(3, fileManager.removeEmptyDirectories(to));
+		fileManager.copyFile(from, to, one);
+		assertSameContents(new File(from, one), new File(to, one));
+
+		FileUtils.deleteDirectory(new File(to));
+		fileManager.copyFile(from, to, two);
+		assertSameContents(new File(from, two), new File(to, two));
+		FileUtils.deleteDirectory(new File(to));
+		BatchResult result = fileManager.copyFiles(from, to,
+				Arrays.asList(one));
+		assertTrue(result.getFailed().isEmpty());
+		fileManager.setPipelinedCopy(true);
+		FileUtils.deleteDirectory(new File(to));
+		result = fileManager.copyFiles(from, to, Arrays.asList(two));
+		assertTrue(result.getFailed().isEmpty());
+		FileUtils.deleteDirectory(new File(to));
+		fileManager.copyFile(new File(from, two).getPath(),
+				new File(to, two).getPath());
+		assertSameContents(new File(from, two), new File(to, two));
+	}
+
+	/**
+	 * Threads that ask for the hash cache and engine at once, as the threads
+	 * of a MoveEngine do, all get the same ones.
+	 */
+	public void testLazyStateIsSharedAcrossThreads() throws Exception {
+		final FileManager fileManager = new FileManager();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Object[]>> futures = new ArrayList<Future<Object[]>>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(executor.submit(new Callable<Object[]>() {
+					public Object[] call() throws Exception {
+						start.await();
+						return new Object[] { fileManager.getHashCache(),
+								fileManager.getHashEngine() };
+					}
+				}));
+			}
+			start.countDown();
+			Set<Object> instances = Collections
+					.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+			for (Future<Object[]> future : futures) {
+				instances.addAll(Arrays.asList(future.get()));
+			}
+			assertEquals(2, instances.size());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * A sparse copy skips whole zero blocks, including a short one at the end
+	 * of the file, and writes a block holding any non-zero byte. Overwriting
+	 * a file of non-zero bytes leaves no stale data in the holes.
+	 */
+	public void testSparseCopyPreservesZeroRuns() throws Exception {
+		byte[] data = new byte[8192 + 12288 + 100 + 8192 + 1000];
+		Arrays.fill(data, 0, 8192, (byte) 1);
+		Arrays.fill(data, 8192 + 12288, 8192 + 12288 + 100, (byte) 2);
+		File from = write("from/sparse.dat", data);
+		byte[] stale = new byte[data.length];
+		Arrays.fill(stale, (byte) 3);
+		File to = write("to/sparse.dat", stale);
+		FileManager fileManager = new FileManager();
+		long skipped = fileManager.copySparseFile(from.getPath(), to.getPath());
+		assertEquals(12288 + 4096 + 1100, skipped);
+		assertSameContents(from, to);
+
+		fileManager.setSparseCopy(true);
+		fileManager.setVerifyCopy(true);
+		write("to/sparse.dat", stale);
+		BatchResult result = fileManager.copyFiles(from.getParent(),
+				to.getParent(), Arrays.asList("sparse.dat"));
+		assertTrue(result.getFailed().isEmpty());
+		assertSameContents(from, to);
+	}
+
+	/**
+	 * A limiter that flips a bit in what is read back through a channel, as
+	 * a failing disk would, except on one thread.
+	 */
+	private static class CorruptingLimiter extends IoRateLimiter {
+
+		private final Thread spared;
+
+		/**
+		 * @param spared
+		 *            The thread whose reads are left alone, or null.
+		 */
+		CorruptingLimiter(Thread spared) {
+			this.spared = spared;
+		}
+
+		@Override
+		public int read(ReadableByteChannel channel, ByteBuffer buffer)
+				throws IOException {
+			int read = super.read(channel, buffer);
+			if ((read > 0) && (Thread.currentThread() != spared)) {
+				int last = buffer.position() - 1;
+				buffer.put(last, (byte) (buffer.get(last) ^ 1));
+			}
+			return read;
+		}
+	}
+
+	/**
+	 * A copy that reads back differently from its source fails verification,
+	 * whether copied alone, in a batch or pipelined, and the destination
+	 * keeps its earlier contents.
+	 */
+	public void testVerifyDetectsCorruptCopy() throws Exception {
+		File from = write("from/data.txt", "the original contents");
+		File to = write("to/data.txt", "earlier");
+		FileManager fileManager = new FileManager();
+		fileManager.setVerifyCopy(true);
+		// Copies read their source as a stream; verification reads back
+		// through a channel.
+		fileManager.setRateLimiter(new CorruptingLimiter(null));
+		try {
+			fileManager.copyFile(from.getPath(), to.getPath());
+			fail("A corrupt copy was not detected");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Verification failed"));
+		}
+		assertEquals("earlier", FileUtils.readFileToString(to, "UTF-8"));
+
+		List<String> names = Arrays.asList("data.txt");
+		BatchResult result = fileManager.copyFiles(from.getParent(),
+				to.getParent(), names);
+		assertEquals(names, new ArrayList<String>(result.getFailed().keySet()));
+		assertEquals("earlier", FileUtils.readFileToString(to, "UTF-8"));
+
+		// A pipelined copy reads its source on this thread and reads back
+		// on the writer's.
+		fileManager.setPipelinedCopy(true);
+		fileManager.setRateLimiter(new CorruptingLimiter(Thread
+				.currentThread()));
+		result = fileManager.copyFiles(from.getParent(), to.getParent(), names);
+		assertEquals(names, new ArrayList<String>(result.getFailed().keySet()));
+		assertEquals("earlier", FileUtils.readFileToString(to, "UTF-8"));
+		assertEquals(1, to.getParentFile().list().length);
+
+		fileManager.setRateLimiter(new IoRateLimiter());
+		result = fileManager.copyFiles(from.getParent(), to.getParent(), names);
+		assertTrue(result.getFailed().isEmpty());
+		assertSameContents(from, to);
+	}
+
+	/**
+	 * Comparing trees side by side through a listener reports the same names
+	 * as the difference of their catalogs, for files and subtrees on one
+	 * side only and for pack archive entries.
+	 */
+	public void testStreamedCompareMatchesCatalogs() throws Exception {
+		write("one/a.txt", "alpha");
+		write("one/only1.txt", "one");
+		write("one/sub/b.txt", "bravo");
+		write("one/sub/deep/only1.txt", "one");
+		write("one/gone/x.txt", "x");
+		write("one/gone/y/z.txt", "z");
+		write("two/a.txt", "alpha");
+		write("two/only2.txt", "two");
+		write("two/sub/b.txt", "bravo");
+		write("two/new/n.txt", "n");
+		write("two/packed/p.txt", "papa");
+		write("two/packed/sub/r.txt", "romeo");
+		File p = write("p.txt", "papa");
+		File q = write("q.txt", "quebec");
+		PackArchive archive = new PackArchive(new File(root, "one/packed")
+				.getPath());
+		archive.add("p.txt", p.getPath());
+		archive.add("sub" + File.separator + "q.txt", q.getPath());
+		archive.close();
+		String one = new File(root, "one").getPath();
+		String two = new File(root, "two").getPath();
+		FileManager fileManager = new FileManager();
+		try {
+			final Set<String> streamed1 = new TreeSet<String>();
+			final Set<String> streamed2 = new TreeSet<String>();
+			fileManager.compareDirectories(one, two, new DifferenceListener() {
+				public void onlyIn1(Collection<String> fileNames) {
+					streamed1.addAll(fileNames);
+				}
+
+				public void onlyIn2(Collection<String> fileNames) {
+					streamed2.addAll(fileNames);
+				}
+			});
+			Set<String> catalog1 = new TreeSet<String>(
+					fileManager.catalogDirectory(one, true, null));
+			Set<String> catalog2 = new TreeSet<String>(
+					fileManager.catalogDirectory(two, true, null));
+			Set<String> expected1 = new TreeSet<String>(catalog1);
+			expected1.removeAll(catalog2);
+			Set<String> expected2 = new TreeSet<String>(catalog2);
+			expected2.removeAll(catalog1);
+			assertTrue(expected1.contains("packed" + File.separator + "sub"
+					+ File.separator + "q.txt"));
+			assertTrue(expected2.contains("new" + File.separator + "n.txt"));
+			assertEquals(expected1, streamed1);
+			assertEquals(expected2, streamed2);
+		} finally {
+			fileManager.closePackArchives();
+		}
+	}
+
+	/**
+	 * A renamed file and a moved file are found, and a file whose size and
+	 * hash match but whose bytes do not is left alone.
+	 */
+	public void testFindMoves() throws Exception {
+		write("one/renamed.txt", "alpha");
+		write("one/sub/moved.txt", "beta");
+		File clash1 = write("one/clash.dat", "gamma");
+		write("two/old name.txt", "alpha");
+		write("two/moved.txt", "beta");
+		File clash2 = write("two/other.dat", "delta");
+		FileManager fileManager = new FileManager();
+		// Stand in for a hash collision.
+		byte[] hash = new byte[8];
+		fileManager.getHashCache().put(clash1, hash);
+		fileManager.getHashCache().put(clash2, hash);
+
+		String moved = "sub" + File.separator + "moved.txt";
+		SyncPlan plan = fileManager.findMoves(
+				new File(root, "one").getPath(),
+				new File(root, "two").getPath(),
+				Arrays.asList("renamed.txt", moved, "clash.dat"),
+				Arrays.asList("old name.txt", "moved.txt", "other.dat"));
+		ArrayList<String> moves = new ArrayList<String>();
+		for (SyncOperation operation : plan.getOperations()) {
+			assertEquals(SyncOperation.Type.MOVE, operation.getType());
+			moves.add(operation.getFileName() + " -> "
+					+ operation.getTargetName());
+		}
+		Collections.sort(moves);
+		assertEquals(Arrays.asList("moved.txt -> " + moved,
+				"old name.txt -> renamed.txt"), moves);
+	}
+}
@@ -0,0 +1,44 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.Collection;
+
+import org.apache.commons.io.FileUtils;
+
+public class GroupCommitTest extends DirectoryTestCase {
+
+	public void testCommitRenamesCopies() throws Exception {
+		File target = new File(root, "dir/a.txt");
+		target.getParentFile().mkdirs();
+		File tempFile = GroupCommit.getTempFile(target);
+		FileUtils.writeStringToFile(tempFile, "hello", "UTF-8");
+		BatchResult result = new BatchResult();
+		GroupCommit commit = new GroupCommit(result);
+		commit.add("a.txt", tempFile, target, 5, null);
+		assertFalse(target.exists());
+		commit.commit();
+		assertEquals("hello", FileUtils.readFileToString(target, "UTF-8"));
+		assertFalse(tempFile.exists());
+		assertEquals(1, result.getSucceeded().size());
+		assertEquals(5, result.getBytes());
+	}
+
+	public void testStaleCopyIsDeleted() throws Exception {
+		File target = new File(root, "a.txt");
+		File stale = write("." + target.getName() + ".dirsync-copy",
+				"left by a crash");
+		assertTrue(GroupCommit.isTempFile(stale.getName()));
+		assertEquals(stale, GroupCommit.getTempFile(target));
+		assertFalse(stale.exists());
+	}
+
+	public void testCatalogsLeaveOutUncommittedCopies() throws Exception {
+		write("dir/a.txt", "a");
+		write("dir/.b.txt.dirsync-copy", "partial");
+		FileManager fileManager = new FileManager();
+		Collection<String> files = fileManager.catalogDirectory(new File(
+				root, "dir").getPath(), true, null);
+		assertEquals(1, files.size());
+		assertTrue(files.contains("a.txt"));
+	}
+}
@@ -0,0 +1,39 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+public class HashEngineTest extends DirectoryTestCase {
+
+	/**
+	 * A hashed file can be renamed and deleted at once, which an open
+	 * mapping would prevent on Windows.
+	 */
+	public void testHashedFileCanBeMovedAndDeleted() throws Exception {
+		File file = write("a.bin", new byte[3 * HashEngine.BUFFER_SIZE + 5]);
+		HashEngine engine = new HashEngine(HashEngine.DEFAULT_ALGORITHM,
+				new IoRateLimiter());
+		byte[] hash = engine.hash(file);
+		File moved = new File(root, "b.bin");
+		assertTrue(file.renameTo(moved));
+		assertTrue(Arrays.equals(hash, engine.hash(moved)));
+		assertTrue(moved.delete());
+	}
+
+	public void testHashFilesReusesTheEngine() throws Exception {
+		write("a.txt", "same");
+		write("b.txt", "same");
+		write("c.txt", "other");
+		HashEngine engine = new HashEngine(HashEngine.DEFAULT_ALGORITHM,
+				new IoRateLimiter());
+		for (int i = 0; i < 3; i++) {
+			HashMap<String, byte[]> hashes = engine.hashFiles(root.getPath(),
+					Arrays.asList("a.txt", "b.txt", "c.txt", "missing.txt"),
+					null);
+			assertEquals(3, hashes.size());
+			assertTrue(Arrays.equals(hashes.get("a.txt"), hashes.get("b.txt")));
+			assertFalse(Arrays.equals(hashes.get("a.txt"), hashes.get("c.txt")));
+		}
+	}
+}
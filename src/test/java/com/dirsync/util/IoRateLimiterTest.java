@@ -0,0 +1,84 @@
+package com.dirsync.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+public class IoRateLimiterTest extends TestCase {
+
+	/**
+	 * A clock that only moves when the limiter sleeps.
+	 */
+	private static class FakeClock implements IoRateLimiter.Clock {
+
+		long now = 0;
+
+		long slept = 0;
+
+		public long nanoTime() {
+			return now;
+		}
+
+		public void sleep(long nanos) {
+			now += nanos;
+			slept += nanos;
+		}
+	}
+
+	/**
+	 * Small files read through a large buffer are charged for their bytes,
+	 * not for the buffer.
+	 */
+	public void testChargesBytesReturned() throws IOException {
+		FakeClock clock = new FakeClock();
+		IoRateLimiter limiter = new IoRateLimiter(64 * 1024, 0, clock);
+		byte[] buffer = new byte[1024 * 1024];
+		for (int i = 0; i < 100; i++) {
+			InputStream in = new ByteArrayInputStream(new byte[100]);
+			assertEquals(100, limiter.read(in, buffer));
+			assertEquals(-1, limiter.read(in, buffer));
+		}
+		// 10000 bytes at 64 KB/s; charging the buffer would take half an hour.
+		assertEquals(10000 / (64 * 1024.0), clock.slept / 1e9, 1e-6);
+	}
+
+	public void testLimitsBytesRead() throws IOException {
+		FakeClock clock = new FakeClock();
+		IoRateLimiter limiter = new IoRateLimiter(1024 * 1024, 0, clock);
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = new ByteArrayInputStream(new byte[1024 * 1024]);
+		while (limiter.read(in, buffer) >= 0) {
+		}
+		// 1 MB at 1 MB/s, starting with an empty bucket.
+		assertEquals(1.0, clock.slept / 1e9, 1e-6);
+	}
+
+	public void testLimitsReads() throws IOException {
+		FakeClock clock = new FakeClock();
+		IoRateLimiter limiter = new IoRateLimiter(0, 100, clock);
+		byte[] buffer = new byte[1];
+		InputStream in = new ByteArrayInputStream(new byte[50]);
+		for (int i = 0; i < 50; i++) {
+			assertEquals(1, limiter.read(in, buffer));
+		}
+		// The debt of the last read is paid by the next one.
+		assertEquals(-1, limiter.read(in, buffer));
+		assertEquals(0.5, clock.slept / 1e9, 1e-6);
+	}
+
+	/**
+	 * Time left unused saves up at most a quarter second of reading.
+	 */
+	public void testBurstIsCapped() throws IOException {
+		FakeClock clock = new FakeClock();
+		IoRateLimiter limiter = new IoRateLimiter(1024 * 1024, 0, clock);
+		clock.now += 10000000000L;
+		byte[] buffer = new byte[64 * 1024];
+		InputStream in = new ByteArrayInputStream(new byte[1024 * 1024]);
+		while (limiter.read(in, buffer) >= 0) {
+		}
+		assertEquals(0.75, clock.slept / 1e9, 1e-6);
+	}
+}
@@ -0,0 +1,67 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+public class MoveEngineTest extends DirectoryTestCase {
+
+	public void testMovesAndReportsFailures() throws Exception {
+		write("from/a.txt", "alpha");
+		write("from/sub/b.txt", "beta");
+		new File(root, "to/sub").mkdirs();
+		MoveResult result = new MoveEngine(new FileManager(), 2).moveFiles(
+				new File(root, "from").getPath(),
+				new File(root, "to").getPath(),
+				Arrays.asList("a.txt", "sub" + File.separator + "b.txt",
+						"missing.txt", "bad\u0000name"));
+		assertEquals(2, result.getSucceeded().size());
+		assertEquals(2, result.getRenamed().size());
+		assertTrue(result.getFailed().containsKey("missing.txt"));
+		// A name no path can hold fails with more than an IOException.
+		assertTrue(result.getFailed().containsKey("bad\u0000name"));
+		assertFalse(new File(root, "from/a.txt").exists());
+		assertEquals("beta", FileUtils.readFileToString(new File(root,
+				"to/sub/b.txt"), "UTF-8"));
+	}
+
+	/**
+	 * The copy a move across file systems makes is checked, committed under
+	 * the target name and keeps the source's time.
+	 */
+	public void testCopyVerified() throws Exception {
+		File from = write("from/a.txt", "alpha");
+		from.setLastModified(from.lastModified() - 60000);
+		File to = write("to/a.txt", "old");
+		new FileManager().copyVerified(from, to);
+		assertSameContents(from, to);
+		assertEquals(from.lastModified(), to.lastModified());
+		assertEquals(1, new File(root, "to").list().length);
+	}
+
+	/**
+	 * Moves to another file system when the machine has one to hand.
+	 */
+	public void testMoveAcrossFileSystems() throws Exception {
+		File shm = new File("/dev/shm");
+		if (!shm.isDirectory()
+				|| Files.getFileStore(shm.toPath()).equals(
+						Files.getFileStore(root.toPath()))) {
+			return;
+		}
+		File other = Files.createTempDirectory(shm.toPath(), "dirsync-test")
+				.toFile();
+		try {
+			File from = write("from/a.txt", "alpha");
+			File expected = write("expected.txt", "alpha");
+			File to = new File(other, "a.txt");
+			assertFalse(new MoveEngine(new FileManager(), 1).move(from, to));
+			assertFalse(from.exists());
+			assertSameContents(expected, to);
+		} finally {
+			FileUtils.deleteDirectory(other);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.dirsync.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.apache.commons.io.FileUtils;
+
+public class PackArchiveTest extends DirectoryTestCase {
+
+	private String archiveDirectory;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		archiveDirectory = new File(root, "archive").getPath();
+	}
+
+	private PackArchive createArchive() throws IOException {
+		write("a.txt", "alpha");
+		write("b.txt", "beta");
+		PackArchive archive = new PackArchive(archiveDirectory);
+		archive.add("a.txt", new File(root, "a.txt").getPath());
+		archive.add("sub" + File.separator + "b.txt",
+				new File(root, "b.txt").getPath());
+		return archive;
+	}
+
+	private File getIndexFile() {
+		return new File(archiveDirectory, PackArchive.INDEX_FILE_NAME);
+	}
+
+	public void testRoundTrip() throws Exception {
+		PackArchive archive = createArchive();
+		write("a.txt", "alpha, replaced");
+		archive.add("a.txt", new File(root, "a.txt").getPath());
+		archive.remove("sub" + File.separator + "b.txt");
+		archive.close();
+
+		archive = new PackArchive(archiveDirectory);
+		try {
+			assertEquals(1, archive.catalog().size());
+			assertFalse(archive.contains("sub" + File.separator + "b.txt"));
+			assertTrue(Arrays.equals("alpha, replaced".getBytes("UTF-8"),
+					archive.readBytes("a.txt")));
+			File extracted = new File(root, "out/a.txt");
+			archive.extract("a.txt", extracted.getPath());
+			assertSameContents(new File(root, "a.txt"), extracted);
+			assertEquals(new File(root, "a.txt").lastModified(),
+					extracted.lastModified());
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Adds and removes reach the index only when the archive is flushed.
+	 */
+	public void testRecordsWaitForFlush() throws Exception {
+		PackArchive archive = createArchive();
+		try {
+			assertEquals(0, getIndexFile().length());
+			assertTrue(Arrays.equals("beta".getBytes("UTF-8"),
+					archive.readBytes("sub" + File.separator + "b.txt")));
+			archive.flush();
+			long length = getIndexFile().length();
+			assertTrue(length > 0);
+			archive.remove("a.txt");
+			assertEquals(length, getIndexFile().length());
+			archive.flush();
+			assertTrue(getIndexFile().length() > length);
+		} finally {
+			archive.close();
+		}
+		archive = new PackArchive(archiveDirectory);
+		try {
+			assertEquals(Arrays.asList("sub" + File.separator + "b.txt"),
+					new ArrayList<String>(archive.catalog()));
+		} finally {
+			archive.close();
+		}
+	}
+
+	/**
+	 * Through a FileManager a pack archive looks like a directory of ordinary
+	 * files: it catalogs and compares like the tree that was copied into it,
+	 * and a file packed earlier is listed once after it outgrows packing.
+	 */
+	public void testFileManagerTreatsEntriesAsFiles() throws Exception {
+		write("source/a.xmp", "alpha");
+		write("source/sub/b.thm", "beta");
+		write("source/c.dat",
+				new byte[(int) PackArchive.DEFAULT_SMALL_FILE_SIZE + 1]);
+		String source = new File(root, "source").getPath();
+		FileManager fileManager = new FileManager();
+		fileManager.getPackArchive(archiveDirectory);
+		try {
+			Collection<String> fileNames = fileManager.catalogDirectory(
+					source, true, null);
+			BatchResult result = fileManager.copyFiles(source,
+					archiveDirectory, fileNames);
+			assertTrue(result.getFailed().isEmpty());
+			assertEquals(3, result.getSucceeded().size());
+			assertEquals(new HashSet<String>(fileNames), new HashSet<String>(
+					fileManager.catalogDirectory(archiveDirectory, true, null)));
+			assertTrue(new File(archiveDirectory, "c.dat").isFile());
+			assertFalse(new File(archiveDirectory, "a.xmp").exists());
+
+			final ArrayList<String> differences = new ArrayList<String>();
+			DifferenceListener listener = new DifferenceListener() {
+				public void onlyIn1(Collection<String> names) {
+					differences.addAll(names);
+				}
+
+				public void onlyIn2(Collection<String> names) {
+					differences.addAll(names);
+				}
+			};
+			fileManager.compareDirectories(source, archiveDirectory, listener);
+			assertTrue(differences.isEmpty());
+
+			// a.xmp outgrows packing and is copied as a plain file.
+			write("source/a.xmp",
+					new byte[(int) PackArchive.DEFAULT_SMALL_FILE_SIZE + 1]);
+			fileManager.copyFiles(source, archiveDirectory,
+					Arrays.asList("a.xmp"));
+			Collection<String> catalog = fileManager.catalogDirectory(
+					archiveDirectory, true, null);
+			assertEquals(3, catalog.size());
+			assertEquals(new HashSet<String>(fileNames), new HashSet<String>(
+					catalog));
+			fileManager.compareDirectories(source, archiveDirectory, listener);
+			assertTrue(differences.isEmpty());
+
+			File restored = new File(root, "restored");
+			fileManager.copyFiles(archiveDirectory, restored.getPath(),
+					catalog);
+			for (String fileName : fileNames) {
+				assertSameContents(new File(source, fileName), new File(
+						restored, fileName));
+			}
+		} finally {
+			fileManager.closePackArchives();
+		}
+		PackArchive archive = new PackArchive(archiveDirectory);
+		try {
+			assertEquals(Arrays.asList("sub" + File.separator + "b.thm"),
+					new ArrayList<String>(archive.catalog()));
+		} finally {
+			archive.close();
+		}
+	}
+
+	public void testTornTailIsDropped() throws Exception {
+		createArchive().close();
+		long length = getIndexFile().length();
+		RandomAccessFile index = new RandomAccessFile(getIndexFile(), "rw");
+		try {
+			// Cut the last record short.
+			index.setLength(length - 3);
+		} finally {
+			index.close();
+		}
+
+		PackArchive archive = new PackArchive(archiveDirectory);
+		try {
+			assertEquals(1, archive.catalog().size());
+			assertTrue(archive.contains("a.txt"));
+			// Records appended after the torn one are read back.
+			write("c.txt", "gamma");
+			archive.add("c.txt", new File(root, "c.txt").getPath());
+		} finally {
+			archive.close();
+		}
+		archive = new PackArchive(archiveDirectory);
+		try {
+			assertEquals(2, archive.catalog().size());
+			assertTrue(Arrays.equals("gamma".getBytes("UTF-8"),
+					archive.readBytes("c.txt")));
+		} finally {
+			archive.close();
+		}
+	}
+
+	public void testBadNameLengthEndsTheIndex() throws Exception {
+		createArchive().close();
+		long length = getIndexFile().length();
+		for (int nameLength : new int[] { Integer.MAX_VALUE, -1 }) {
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(
+					getIndexFile(), true));
+			try {
+				out.writeByte(1);
+				out.writeInt(nameLength);
+				out.write(new byte[64]);
+			} finally {
+				out.close();
+			}
+			PackArchive archive = new PackArchive(archiveDirectory);
+			try {
+				assertEquals(2, archive.catalog().size());
+			} finally {
+				archive.close();
+			}
+			assertEquals(length, getIndexFile().length());
+		}
+	}
+
+	public void testGarbageIndexIsEmpty() throws Exception {
+		new File(archiveDirectory).mkdirs();
+		byte[] garbage = new byte[100];
+		Arrays.fill(garbage, (byte) 0x7f);
+		FileUtils.writeByteArrayToFile(getIndexFile(), garbage);
+		PackArchive archive = new PackArchive(archiveDirectory);
+		try {
+			assertTrue(archive.catalog().isEmpty());
+		} finally {
+			archive.close();
+		}
+		assertEquals(0, getIndexFile().length());
+	}
+}
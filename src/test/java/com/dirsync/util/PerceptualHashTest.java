@@ -0,0 +1,84 @@
+package com.dirsync.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+
+public class PerceptualHashTest extends DirectoryTestCase {
+
+	/**
+	 * A gradient with a few shapes, drawn at any size.
+	 */
+	private static BufferedImage draw(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+					RenderingHints.VALUE_ANTIALIAS_ON);
+			for (int x = 0; x < width; x++) {
+				graphics.setColor(new Color(x * 255 / width, 80, 160));
+				graphics.drawLine(x, 0, x, height);
+			}
+			graphics.setColor(Color.WHITE);
+			graphics.fillOval(width / 8, height / 4, width / 3, height / 2);
+			graphics.setColor(Color.BLACK);
+			graphics.fillRect(width * 5 / 8, height / 8, width / 4,
+					height / 3);
+		} finally {
+			graphics.dispose();
+		}
+		return image;
+	}
+
+	private File save(String name, BufferedImage image) throws Exception {
+		File file = new File(root, name);
+		file.getParentFile().mkdirs();
+		assertTrue(ImageIO.write(image, "png", file));
+		return file;
+	}
+
+	/**
+	 * A large image is decoded subsampled, and hashes as its full decode and
+	 * a small copy of it do.
+	 */
+	public void testSubsampledHashMatches() throws Exception {
+		BufferedImage large = draw(2400, 1800);
+		File file = save("large.png", large);
+		long full = PerceptualHash.hash(large);
+		long subsampled = PerceptualHash.hash(file);
+		assertTrue(PerceptualHash.distance(full, subsampled) <= 2);
+		long small = PerceptualHash.hash(save("small.png", draw(240, 180)));
+		assertTrue(PerceptualHash.distance(subsampled, small) <= 4);
+		assertTrue(PerceptualHash.distance(subsampled,
+				PerceptualHash.hash(new BufferedImage(240, 180,
+						BufferedImage.TYPE_INT_RGB))) > 10);
+	}
+
+	public void testUnreadableFile() throws Exception {
+		try {
+			PerceptualHash.hash(write("not an image.png", "text"));
+			fail();
+		} catch (java.io.IOException expected) {
+		}
+	}
+
+	public void testFindSimilarImages() throws Exception {
+		save("tree/photo.png", draw(1200, 900));
+		save("tree/resized/photo small.png", draw(300, 225));
+		save("tree/other.png", new BufferedImage(300, 300,
+				BufferedImage.TYPE_INT_RGB));
+		write("tree/broken.png", "text");
+		ArrayList<ArrayList<String>> groups = new FileManager()
+				.findSimilarImages(new File(root, "tree").getPath(), true,
+						PerceptualHash.DEFAULT_MAX_DISTANCE);
+		assertEquals(1, groups.size());
+		assertEquals(2, groups.get(0).size());
+		assertTrue(groups.get(0).contains("photo.png"));
+	}
+}
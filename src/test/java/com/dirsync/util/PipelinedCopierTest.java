@@ -0,0 +1,75 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class PipelinedCopierTest extends DirectoryTestCase {
+
+	private static final int BUFFER_SIZE = 1024;
+
+	/**
+	 * Files larger than the whole ring, files that end on a buffer boundary
+	 * and empty files are copied, with and without verification.
+	 */
+	public void testCopiesAcrossBuffers() throws Exception {
+		int[] sizes = { 0, 1, BUFFER_SIZE, 2 * BUFFER_SIZE,
+				10 * BUFFER_SIZE + 3 };
+		String[] names = new String[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			byte[] data = new byte[sizes[i]];
+			for (int j = 0; j < data.length; j++) {
+				data[j] = (byte) (i * 13 + j);
+			}
+			names[i] = "file" + i + ".dat";
+			write("from/" + names[i], data);
+		}
+		List<String> fileNames = Arrays.asList(names);
+		String from = new File(root, "from").getPath();
+		for (boolean verify : new boolean[] { false, true }) {
+			File to = new File(root, "to-" + verify);
+			to.mkdirs();
+			PipelinedCopier copier = new PipelinedCopier(2, BUFFER_SIZE);
+			copier.setVerify(verify);
+			BatchResult result = copier.copyFiles(from, to.getPath(),
+					fileNames);
+			assertTrue(result.getFailed().isEmpty());
+			assertEquals(fileNames, result.getSucceeded());
+			for (String fileName : fileNames) {
+				File source = new File(from, fileName);
+				File copy = new File(to, fileName);
+				assertSameContents(source, copy);
+				assertEquals(source.lastModified(), copy.lastModified());
+			}
+		}
+	}
+
+	/**
+	 * A source that cannot be read fails on its own, and the files after it
+	 * are still copied.
+	 */
+	public void testMissingSourceFailsAlone() throws Exception {
+		write("from/a.txt", "alpha");
+		write("from/c.txt", "charlie");
+		String from = new File(root, "from").getPath();
+		File to = new File(root, "to");
+		to.mkdirs();
+		BatchResult result = new PipelinedCopier(2, BUFFER_SIZE).copyFiles(
+				from, to.getPath(), Arrays.asList("a.txt", "b.txt", "c.txt"));
+		assertEquals(Arrays.asList("b.txt"), Arrays.asList(result.getFailed()
+				.keySet().toArray()));
+		assertSameContents(new File(from, "a.txt"), new File(to, "a.txt"));
+		assertSameContents(new File(from, "c.txt"), new File(to, "c.txt"));
+		assertFalse(new File(to, "b.txt").exists());
+		assertEquals(2, to.list().length);
+	}
+
+	public void testNeedsTwoBuffers() {
+		try {
+			new PipelinedCopier(1, BUFFER_SIZE);
+			fail("A ring of one buffer was accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+}
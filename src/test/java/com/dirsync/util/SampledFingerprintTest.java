@@ -0,0 +1,94 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SampledFingerprintTest extends DirectoryTestCase {
+
+	private static final int SIZE = 10000;
+
+	private static final int CHUNK_SIZE = 100;
+
+	/**
+	 * Two chunks of 100 bytes are read from a 10000 byte file, at its start
+	 * and its end, so a difference in either is seen and a difference in the
+	 * middle is not.
+	 */
+	public void testDifferenceInSampledChunk() throws Exception {
+		File original = write("original.bin", data(-1));
+		File start = write("start.bin", data(50));
+		File end = write("end.bin", data(SIZE - 1));
+		File middle = write("middle.bin", data(SIZE / 2));
+		SampledFingerprint fingerprint = fingerprint(original);
+		assertFalse(fingerprint.isComplete());
+		assertEquals(0.02, fingerprint.getCoverage(), 1e-9);
+		assertFalse(Arrays.equals(fingerprint.getFingerprint(), fingerprint(
+				start).getFingerprint()));
+		assertFalse(Arrays.equals(fingerprint.getFingerprint(), fingerprint(
+				end).getFingerprint()));
+		assertTrue(Arrays.equals(fingerprint.getFingerprint(), fingerprint(
+				middle).getFingerprint()));
+	}
+
+	/**
+	 * A file no larger than the samples is read in full.
+	 */
+	public void testSmallFileIsComplete() throws Exception {
+		File small = write("small.bin", new byte[] { 1, 2, 3 });
+		File other = write("other.bin", new byte[] { 1, 9, 3 });
+		SampledFingerprint fingerprint = fingerprint(small);
+		assertTrue(fingerprint.isComplete());
+		assertEquals(1.0, fingerprint.getCoverage(), 0);
+		assertFalse(Arrays.equals(fingerprint.getFingerprint(), fingerprint(
+				other).getFingerprint()));
+	}
+
+	/**
+	 * Files that differ in a sampled chunk are not grouped, files that differ
+	 * only between the samples are grouped with their coverage, and
+	 * confirming drops that group.
+	 */
+	public void testLikelyDuplicatesCarryCoverage() throws Exception {
+		write("dir/original.bin", data(-1));
+		write("dir/middle.bin", data(SIZE / 2));
+		write("dir/start.bin", data(50));
+		write("dir/copy.bin", data(-1));
+		String directory = new File(root, "dir").getPath();
+		FileManager fileManager = new FileManager();
+		ArrayList<DuplicateGroup> groups = fileManager.findLikelyDuplicates(
+				directory, false, 2, CHUNK_SIZE);
+		assertEquals(1, groups.size());
+		DuplicateGroup group = groups.get(0);
+		assertFalse(group.isConfirmed());
+		assertEquals(0.02, group.getCoverage(), 1e-9);
+		assertEquals(Arrays.asList("copy.bin", "middle.bin", "original.bin"),
+				group.getFileNames());
+
+		ArrayList<DuplicateGroup> confirmed = fileManager.confirmDuplicates(
+				directory, groups);
+		assertEquals(1, confirmed.size());
+		assertTrue(confirmed.get(0).isConfirmed());
+		assertEquals(Arrays.asList("copy.bin", "original.bin"), confirmed
+				.get(0).getFileNames());
+	}
+
+	private static SampledFingerprint fingerprint(File file) throws Exception {
+		return SampledFingerprint.of(file, 2, CHUNK_SIZE, new IoRateLimiter());
+	}
+
+	/**
+	 * @param changed
+	 *            The offset of a byte to change, or -1.
+	 */
+	private static byte[] data(int changed) {
+		byte[] data = new byte[SIZE];
+		for (int i = 0; i < SIZE; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		if (changed >= 0) {
+			data[changed] ^= 0x55;
+		}
+		return data;
+	}
+}
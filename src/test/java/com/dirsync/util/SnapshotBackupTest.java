@@ -0,0 +1,90 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+public class SnapshotBackupTest extends DirectoryTestCase {
+
+	/**
+	 * Fails the copy of one file.
+	 */
+	private static class FailingFileManager extends FileManager {
+
+		private final String failing;
+
+		FailingFileManager(String failing) {
+			this.failing = failing;
+		}
+
+		@Override
+		public BatchResult copyFiles(String fromDirectory, String toDirectory,
+				Collection<String> fileNames) {
+			ArrayList<String> others = new ArrayList<String>(fileNames);
+			BatchResult result = new BatchResult();
+			if (others.remove(failing)) {
+				result.addFailed(failing, new IOException("Unable to copy "
+						+ failing));
+			}
+			result.add(super.copyFiles(fromDirectory, toDirectory, others));
+			return result;
+		}
+	}
+
+	public void testUnchangedFilesAreLinked() throws Exception {
+		write("source/a.txt", "alpha");
+		String source = new File(root, "source").getPath();
+		SnapshotBackup backup = new SnapshotBackup(new FileManager(),
+				new File(root, "backup").getPath());
+		assertTrue(backup.backup(source).getFailed().isEmpty());
+		File first = backup.getSnapshot();
+		assertEquals(first, backup.getLatestSnapshot());
+		// The next snapshot must not take the same name.
+		assertTrue(first.renameTo(new File(first.getParentFile(),
+				"2000-01-01_000000")));
+
+		write("source/b.txt", "beta");
+		backup.backup(source);
+		assertEquals(Arrays.asList("a.txt"), backup.getLinked());
+		assertEquals(Arrays.asList("b.txt"), backup.getCopied());
+		assertSameContents(new File(root, "source/b.txt"), new File(
+				backup.getSnapshot(), "b.txt"));
+	}
+
+	/**
+	 * A run that fails a file leaves its snapshot partial, and the next run
+	 * links from it and deletes it.
+	 */
+	public void testFailedRunIsLeftPartial() throws Exception {
+		write("source/a.txt", "alpha");
+		write("source/b.txt", "beta");
+		String source = new File(root, "source").getPath();
+		File backupDirectory = new File(root, "backup");
+
+		SnapshotBackup backup = new SnapshotBackup(new FailingFileManager(
+				"b.txt"), backupDirectory.getPath());
+		BatchResult result = backup.backup(source);
+		assertEquals(Arrays.asList("b.txt"), new ArrayList<String>(result
+				.getFailed().keySet()));
+		File partial = backup.getSnapshot();
+		assertTrue(partial.getName().endsWith(SnapshotBackup.PARTIAL_SUFFIX));
+		assertNull(backup.getLatestSnapshot());
+		File stale = new File(backupDirectory, "2000-01-01_000000"
+				+ SnapshotBackup.PARTIAL_SUFFIX);
+		assertTrue(partial.renameTo(stale));
+
+		backup = new SnapshotBackup(new FileManager(),
+				backupDirectory.getPath());
+		result = backup.backup(source);
+		assertTrue(result.getFailed().isEmpty());
+		assertEquals(Arrays.asList("a.txt"), backup.getLinked());
+		assertEquals(Arrays.asList("b.txt"), backup.getCopied());
+		assertEquals(backup.getSnapshot(), backup.getLatestSnapshot());
+		assertSameContents(new File(root, "source/a.txt"), new File(
+				backup.getSnapshot(), "a.txt"));
+		assertFalse(stale.exists());
+		assertEquals(1, backupDirectory.list().length);
+	}
+}
@@ -0,0 +1,108 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+public class StandardCopyOrderTest extends DirectoryTestCase {
+
+	private String from;
+
+	private String b;
+
+	private String ax;
+
+	private String ay;
+
+	private List<String> selection;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		from = new File(root, "from").getPath();
+		ax = "a" + File.separator + "x.txt";
+		ay = "a" + File.separator + "y.txt";
+		b = "b.txt";
+		long now = System.currentTimeMillis() / 1000 * 1000;
+		write("from/" + ay, "twelve bytes").setLastModified(now - 20000);
+		write("from/" + b, "one").setLastModified(now);
+		write("from/" + ax, "four").setLastModified(now - 10000);
+		selection = Arrays.asList(b, ay, ax);
+	}
+
+	public void testSelection() {
+		assertEquals(selection, StandardCopyOrder.SELECTION.order(from,
+				selection));
+	}
+
+	/**
+	 * Files in the top directory sort before those in subdirectories, and
+	 * each directory's files are together and sorted by name.
+	 */
+	public void testDirectory() {
+		assertEquals(Arrays.asList(b, ax, ay), StandardCopyOrder.DIRECTORY
+				.order(from, selection));
+	}
+
+	public void testSmallestFirst() {
+		assertEquals(Arrays.asList(b, ax, ay),
+				StandardCopyOrder.SMALLEST_FIRST.order(from, selection));
+	}
+
+	public void testNewestFirst() {
+		assertEquals(Arrays.asList(b, ax, ay), StandardCopyOrder.NEWEST_FIRST
+				.order(from, selection));
+	}
+
+	/**
+	 * Files are in ascending inode order where inodes are exposed, and in
+	 * directory order otherwise.
+	 */
+	public void testPhysical() throws Exception {
+		ArrayList<String> expected = new ArrayList<String>(selection);
+		try {
+			Collections.sort(expected, new Comparator<String>() {
+				public int compare(String name1, String name2) {
+					return Long.valueOf(inode(name1)).compareTo(inode(name2));
+				}
+			});
+		} catch (UnsupportedOperationException e) {
+			expected = StandardCopyOrder.DIRECTORY.order(from, selection);
+		}
+		assertEquals(expected, StandardCopyOrder.PHYSICAL.order(from,
+				selection));
+	}
+
+	/**
+	 * Ordering a batch copy leaves every file copied.
+	 */
+	public void testCopyFilesInOrder() throws Exception {
+		FileManager fileManager = new FileManager();
+		fileManager.setCopyOrder(StandardCopyOrder.SMALLEST_FIRST);
+		String to = new File(root, "to").getPath();
+		BatchResult result = fileManager.copyFiles(from, to, selection);
+		assertTrue(result.getFailed().isEmpty());
+		for (String fileName : selection) {
+			assertSameContents(new File(from, fileName), new File(to,
+					fileName));
+		}
+		assertTrue(fileManager.getThroughputHistory().getFilesPerSecond(
+				ThroughputHistory.getDevice(to),
+				StandardCopyOrder.SMALLEST_FIRST.getName()) > 0);
+	}
+
+	private long inode(String fileName) {
+		try {
+			return ((Number) Files.getAttribute(Paths.get(from, fileName),
+					"unix:ino")).longValue();
+		} catch (IOException e) {
+			throw new UnsupportedOperationException(e);
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Runs an agent on a free loopback port and synchronizes with it.
+ */
+public class SyncLoopbackTest extends DirectoryTestCase {
+
+	private SyncAgent agent;
+
+	private int port;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		new File(root, "agent").mkdirs();
+		agent = new SyncAgent(new FileManager(), new File(root, "agent")
+				.getPath());
+		port = agent.start(null, 0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		agent.stop();
+		super.tearDown();
+	}
+
+	public void testPushAndPull() throws Exception {
+		pushAndPull(false);
+	}
+
+	public void testPushAndPullCompressed() throws Exception {
+		pushAndPull(true);
+	}
+
+	private void pushAndPull(boolean compress) throws Exception {
+		byte[] large = new byte[3 * SyncProtocol.BLOCK_SIZE + 17];
+		for (int i = 0; i < large.length; i++) {
+			large[i] = (byte) (i % 251);
+		}
+		write("local/a.txt", "alpha");
+		write("local/sub/large.dat", large);
+		write("local/sub/empty.txt", new byte[0]);
+		SyncClient client = new SyncClient(InetAddress.getLoopbackAddress()
+				.getHostAddress(), port, compress, new FileManager());
+		try {
+			BatchResult pushed = client.push(new File(root, "local").getPath());
+			assertTrue(pushed.getFailed().isEmpty());
+			assertEquals(3, pushed.getSucceeded().size());
+			assertSameContents(new File(root, "local/a.txt"), new File(root,
+					"agent/a.txt"));
+			assertSameContents(new File(root, "local/sub/large.dat"),
+					new File(root, "agent/sub/large.dat"));
+			assertSameContents(new File(root, "local/sub/empty.txt"),
+					new File(root, "agent/sub/empty.txt"));
+
+			assertEquals(0, client.push(new File(root, "local").getPath())
+					.getSucceeded().size());
+
+			write("agent/sub/remote.txt", "from the agent");
+			BatchResult pulled = client.pull(new File(root, "copy").getPath());
+			assertTrue(pulled.getFailed().isEmpty());
+			assertEquals(4, pulled.getSucceeded().size());
+			assertSameContents(new File(root, "agent/sub/remote.txt"),
+					new File(root, "copy/sub/remote.txt"));
+			assertSameContents(new File(root, "local/sub/large.dat"),
+					new File(root, "copy/sub/large.dat"));
+		} finally {
+			client.close();
+		}
+	}
+
+	public void testRefusesNamesOutsideTheDirectory() throws Exception {
+		File directory = new File(root, "agent");
+		assertEquals(new File(directory, "sub" + File.separator + "a.txt")
+				.getCanonicalFile(), SyncProtocol.resolve(directory,
+				"sub/a.txt"));
+		try {
+			SyncProtocol.resolve(directory, "../outside.txt");
+			fail();
+		} catch (IOException expected) {
+		}
+		try {
+			SyncProtocol.resolve(directory, "/etc/passwd");
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.dirsync.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class SyncPlanTest extends DirectoryTestCase {
+
+	private static void assertSameOperation(SyncOperation expected,
+			SyncOperation actual) {
+		assertEquals(expected.getType(), actual.getType());
+		assertEquals(expected.getFromDirectory(), actual.getFromDirectory());
+		assertEquals(expected.getDirectory(), actual.getDirectory());
+		assertEquals(expected.getFileName(), actual.getFileName());
+		assertEquals(expected.getTargetName(), actual.getTargetName());
+		assertEquals(expected.getBytes(), actual.getBytes());
+	}
+
+	/**
+	 * A copy plans a MKDIR for each missing directory, once.
+	 */
+	public void testAddCopy() throws Exception {
+		write("from/a/b/two.txt", "two!");
+		write("to/a/b/two.txt", "old");
+		write("from/c/d/three.txt", "3");
+		write("from/c/d/four.txt", "four");
+		String from = new File(root, "from").getPath();
+		String to = new File(root, "to").getPath();
+		SyncPlan plan = new SyncPlan();
+		plan.addCopy(from, to, "a" + File.separator + "b" + File.separator
+				+ "two.txt");
+		plan.addCopy(from, to, "c" + File.separator + "d" + File.separator
+				+ "three.txt");
+		plan.addCopy(from, to, "c" + File.separator + "d" + File.separator
+				+ "four.txt");
+		ArrayList<SyncOperation> operations = plan.getOperations();
+		assertEquals(5, operations.size());
+		assertEquals(SyncOperation.Type.UPDATE, operations.get(0).getType());
+		assertEquals("c", operations.get(1).getFileName());
+		assertEquals("c" + File.separator + "d", operations.get(2)
+				.getFileName());
+		assertEquals(2, plan.getCount(SyncOperation.Type.MKDIR));
+		assertEquals(2, plan.getCount(SyncOperation.Type.COPY));
+		assertEquals(9, plan.getBytes());
+	}
+
+	public void testSaveAndLoad() throws Exception {
+		SyncPlan plan = new SyncPlan();
+		plan.add(SyncOperation.mkdir("/to", "new"));
+		plan.add(SyncOperation.copy("/from", "/to", "new/a.txt", 12, false));
+		plan.add(SyncOperation.copy("/from", "/to", "b.txt", 1L << 40, true));
+		plan.add(SyncOperation.move("/to", "old name", "new name \u00e9"));
+		plan.add(SyncOperation.delete("/to", "gone.txt"));
+		plan.addConflict("both changed.txt");
+		String file = new File(root, "plan").getPath();
+		plan.save(file);
+
+		SyncPlan loaded = SyncPlan.load(file);
+		ArrayList<SyncOperation> expected = plan.getOperations();
+		ArrayList<SyncOperation> actual = loaded.getOperations();
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameOperation(expected.get(i), actual.get(i));
+		}
+		assertEquals(Arrays.asList("both changed.txt"), loaded.getConflicts());
+		assertEquals(plan.getBytes(), loaded.getBytes());
+	}
+
+	public void testLoadWhatIsNotAPlan() throws Exception {
+		assertNull(SyncPlan.load(new File(root, "missing").getPath()));
+		assertNull(SyncPlan.load(write("text", "not a plan").getPath()));
+		String file = new File(root, "empty").getPath();
+		new SyncPlan().save(file);
+		SyncPlan empty = SyncPlan.load(file);
+		assertTrue(empty.isEmpty());
+		assertTrue(empty.getConflicts().isEmpty());
+	}
+}
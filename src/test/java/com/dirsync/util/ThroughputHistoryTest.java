@@ -0,0 +1,46 @@
+package com.dirsync.util;
+
+import java.io.File;
+
+public class ThroughputHistoryTest extends DirectoryTestCase {
+
+	/**
+	 * Measurements are averaged with the newest weighted 0.3, per device and
+	 * label, and survive a reload.
+	 */
+	public void testMovingAverage() throws Exception {
+		String path = new File(root, "throughput.properties").getPath();
+		ThroughputHistory history = new ThroughputHistory(path);
+		assertEquals(-1.0, history.getBytesPerSecond("disk", "DIRECTORY"), 0);
+		history.record("disk", "DIRECTORY", 1000, 10, 1000000000L);
+		history.record("disk", "DIRECTORY", 2000, 20, 1000000000L);
+		history.record("disk", "SMALLEST_FIRST", 500, 50, 1000000000L);
+		history.record("other", "DIRECTORY", 9000, 90, 1000000000L);
+
+		history = new ThroughputHistory(path);
+		assertEquals(1300.0, history.getBytesPerSecond("disk", "DIRECTORY"),
+				1e-9);
+		assertEquals(13.0, history.getFilesPerSecond("disk", "DIRECTORY"),
+				1e-9);
+		assertEquals(1300.0, history.getBestBytesPerSecond("disk"), 1e-9);
+		assertEquals(50.0, history.getBestFilesPerSecond("disk"), 1e-9);
+		assertEquals(-1.0, history.getBestBytesPerSecond("none"), 0);
+	}
+
+	public void testIgnoresEmptyInterval() throws Exception {
+		ThroughputHistory history = new ThroughputHistory(new File(root,
+				"throughput.properties").getPath());
+		history.record("disk", "DIRECTORY", 1000, 10, 0);
+		assertEquals(-1.0, history.getBytesPerSecond("disk", "DIRECTORY"), 0);
+	}
+
+	/**
+	 * A directory that does not exist yet is on the device of its nearest
+	 * existing parent.
+	 */
+	public void testDeviceOfMissingDirectory() {
+		assertEquals(ThroughputHistory.getDevice(root.getPath()),
+				ThroughputHistory.getDevice(new File(root, "not/yet")
+						.getPath()));
+	}
+}
@@ -0,0 +1,74 @@
+package com.dirsync.util;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class XxHash64Test extends TestCase {
+
+	private static byte[] pattern(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31 + 7);
+		}
+		return data;
+	}
+
+	private static String hex(byte[] hash) {
+		StringBuilder text = new StringBuilder();
+		for (byte b : hash) {
+			text.append(String.format("%02x", b & 0xFF));
+		}
+		return text.toString();
+	}
+
+	private static String hash(byte[] data) {
+		XxHash64 hasher = new XxHash64();
+		hasher.update(data, 0, data.length);
+		return hex(hasher.digest());
+	}
+
+	public void testReferenceVectors() throws Exception {
+		assertEquals("ef46db3751d8e999", hash(new byte[0]));
+		assertEquals("d24ec4f1a98c6e5b", hash("a".getBytes("US-ASCII")));
+		assertEquals("44bc2cf5ad770999", hash("abc".getBytes("US-ASCII")));
+		assertEquals("fbcea83c8a378bf1", hash(
+				"Nobody inspects the spammish repetition".getBytes("US-ASCII")));
+		assertEquals("99594f4828043d35", hash(pattern(1000)));
+	}
+
+	public void testSeed() throws Exception {
+		XxHash64 hasher = new XxHash64(0x9E3779B97F4A7C15L);
+		byte[] data = "abc".getBytes("US-ASCII");
+		hasher.update(data, 0, data.length);
+		assertEquals("2ed0f59d6b43ac8b", hex(hasher.digest()));
+	}
+
+	/**
+	 * Feeding the data in pieces of any size, from arrays or buffers, gives
+	 * the same hash, and digest starts the next hash afresh.
+	 */
+	public void testIncrementalUpdates() {
+		byte[] data = pattern(1000);
+		XxHash64 hasher = new XxHash64();
+		int offset = 0;
+		for (int piece = 1; offset < data.length; piece += 3) {
+			int length = Math.min(piece, data.length - offset);
+			hasher.update(data, offset, length);
+			offset += length;
+		}
+		assertEquals("99594f4828043d35", hex(hasher.digest()));
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data).flip();
+		direct.limit(333);
+		hasher.update(direct);
+		direct.limit(data.length);
+		hasher.update(direct);
+		assertEquals("99594f4828043d35", hex(hasher.digest()));
+
+		hasher.update(ByteBuffer.wrap("abc".getBytes()).slice());
+		assertEquals("44bc2cf5ad770999", hex(hasher.digest()));
+		assertEquals("ef46db3751d8e999", hex(hasher.digest()));
+	}
+}